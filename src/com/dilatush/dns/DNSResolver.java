@@ -7,7 +7,10 @@ package com.dilatush.dns;
 // TODO: convert to FSM...
 
 
+import com.dilatush.dns.message.DNSMessage;
+import com.dilatush.dns.message.DNSOpCode;
 import com.dilatush.dns.message.DNSQuestion;
+import com.dilatush.dns.message.DNSResponseCode;
 import com.dilatush.dns.misc.*;
 import com.dilatush.dns.query.*;
 import com.dilatush.dns.rr.DNSResourceRecord;
@@ -16,12 +19,16 @@ import com.dilatush.util.ExecutorService;
 import com.dilatush.util.Outcome;
 
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static com.dilatush.dns.misc.DNSIPVersion.*;
@@ -52,6 +59,8 @@ import static com.dilatush.util.General.getLogger;
  * <p>Instances of this class can operate in either forwarding mode or recursive mode; this option is selected for each query made.</p>
  * <p>Instances of this class include an optional cache of the results of DNS queries, which can greatly increase the resolver's performance when multiple queries to the same
  * domain are made.  This is a very common occurrence in almost any application, so using the cache is highly recommended.</p>
+ * <p>Several instances of this class (with different DNS servers, for instance) can share one set of network I/O threads and one cache (see
+ * {@link Builder#setSharedWith(DNSResolver)}), rather than each having its own.</p>
  */
 @SuppressWarnings( "unused" )
 public class DNSResolver {
@@ -61,6 +70,11 @@ public class DNSResolver {
     private static final Outcome.Forge<QueryResult> outcomeQueryResult = new Outcome.Forge<>();
     private static final Outcome.Forge<?>           outcome            = new Outcome.Forge<>();
 
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;  // how often we sweep expired records out of the cache...
+    private static final int  SWEEP_BATCH_SIZE      = 1000;  // the most expired records we sweep out of the cache in one go...
+    private static final long QUERY_DEADLINE_MILLIS = 30000; // the longest a query in flight may take before it (and everything waiting on it) fails...
+    private static final int  MAX_SUBQUERY_DEPTH    = 16;    // the most queries a sub-query may be nested in (its lineage's size)...
+
     private final ExecutorService               executor;
     private final DNSNIO                        nio;
     private final DNSIPVersion                  ipVersion;
@@ -68,10 +82,17 @@ public class DNSResolver {
     private final Map<String,ServerSpec>        serversByName;
     private final List<ServerSpec>              serversByPriority;
     private final List<ServerSpec>              serversBySpeed;
-    private final Map<Short,DNSQuery>           activeQueries;
+    private final Set<DNSQuery>                 activeQueries;
+    private final Map<InFlightKey,InFlight>     inFlight;
     private final AtomicInteger                 nextQueryID;
     private final DNSCache                      cache;
     private final DNSRootHints                  rootHints;
+    private final int                           ednsBufferSize;
+    private final long                          staleDeadlineMillis;
+    private final DNSCacheHeapGovernor          heapGovernor;
+    private final Path                          snapshotFile;
+    private final long                          snapshotIntervalMillis;
+    private final boolean                       cacheOwner;    // true if this resolver made its cache (and reactors), false if it shares another resolver's...
 
 
     /**
@@ -83,19 +104,60 @@ public class DNSResolver {
      * @param _maxCacheSize Specifies the maximum DNS resource record cache size.
      * @param _maxAllowableTTLMillis Specifies the maximum allowable TTL (in milliseconds) for a resource record in the cache.
      * @param _rootHints Specifies the {@link DNSRootHints} to use.
+     * @param _evictionPolicyFactory Makes the {@link DNSCacheEvictionPolicy} for each of the cache's partitions, given the partition's maximum size.
+     * @param _infrastructureCacheSize Specifies the maximum size of the cache's infrastructure partition, or zero for a quarter of the maximum cache size.
+     * @param _ednsBufferSize Specifies the UDP payload size to advertise with EDNS(0), or zero to not use EDNS.
+     * @param _nioThreads Specifies the number of threads (reactors) that {@link DNSNIO} uses for network I/O.
+     * @param _prefetchFraction Specifies the fraction of a cached record's TTL before its expiration that it may be refreshed, or zero to not refresh records ahead of time.
+     * @param _prefetchMinHits Specifies how many times a cached record must be used before it is refreshed ahead of time.
+     * @param _staleWindowMillis Specifies how long (in milliseconds) expired records are kept in the cache to serve stale, or zero to not serve stale records.
+     * @param _staleDeadlineMillis Specifies how long (in milliseconds) to wait for a fresh answer before serving a stale one.
+     * @param _maxCacheBytes Specifies the maximum estimated heap (in bytes) used by the cached records, or zero for no limit.
+     * @param _heapLowWater Specifies the tenured heap occupancy below which the cache's byte budget is grown, if it's governed by heap pressure.
+     * @param _heapHighWater Specifies the tenured heap occupancy above which the cache's byte budget is shrunk, or zero to not govern it by heap pressure.
+     * @param _snapshotFile Specifies the file the cache is loaded from at startup and saved to, or {@code null} to not keep cache snapshots.
+     * @param _snapshotIntervalMillis Specifies how often (in milliseconds) the cache is saved to the snapshot file, or zero to save it only at shutdown.
+     * @param _offHeapCacheBytes Specifies the off-heap memory (in bytes) for the cache's records, or zero to hold them on the heap.
+     * @param _sharedWith Specifies the resolver whose {@link DNSNIO} and {@link DNSCache} this resolver uses, or {@code null} for this resolver to have its own; if given,
+     *                    all the parameters for those (from {@code _maxCacheSize} on, apart from {@code _ednsBufferSize}) are ignored.
      * @throws DNSResolverException if there is a problem instantiating {@link DNSNIO}.
      */
     private DNSResolver( final ExecutorService _executor, final DNSIPVersion _ipVersion, final List<ServerSpec> _serverSpecs,
-                         final int _maxCacheSize, final long _maxAllowableTTLMillis, final DNSRootHints _rootHints ) throws DNSResolverException {
+                         final int _maxCacheSize, final long _maxAllowableTTLMillis, final DNSRootHints _rootHints,
+                         final IntFunction<DNSCacheEvictionPolicy> _evictionPolicyFactory, final int _infrastructureCacheSize,
+                         final int _ednsBufferSize, final int _nioThreads, final double _prefetchFraction, final int _prefetchMinHits,
+                         final long _staleWindowMillis, final long _staleDeadlineMillis,
+                         final long _maxCacheBytes, final double _heapLowWater, final double _heapHighWater,
+                         final Path _snapshotFile, final long _snapshotIntervalMillis, final long _offHeapCacheBytes,
+                         final DNSResolver _sharedWith ) throws DNSResolverException {
 
         executor      = _executor;
-        nio           = new DNSNIO();
         ipVersion     = _ipVersion;
         serverSpecs   = _serverSpecs;
-        activeQueries = new ConcurrentHashMap<>();
+        activeQueries = ConcurrentHashMap.newKeySet();
+        inFlight      = new ConcurrentHashMap<>();
         nextQueryID   = new AtomicInteger();
-        cache         = new DNSCache( _maxCacheSize, _maxAllowableTTLMillis, _rootHints, _ipVersion );
         rootHints     = new DNSRootHints();
+        ednsBufferSize = _ednsBufferSize;
+        cacheOwner    = (_sharedWith == null);
+
+        // if we're sharing another resolver's reactors and cache, we use them just as they are...
+        if( !cacheOwner ) {
+            nio                 = _sharedWith.nio;
+            cache               = _sharedWith.cache;
+            staleDeadlineMillis = _sharedWith.staleDeadlineMillis;
+        }
+        else {
+            nio           = new DNSNIO( _nioThreads );
+            cache         = (_offHeapCacheBytes > 0)
+                    ? new DNSCache( _maxCacheSize, _maxAllowableTTLMillis, _rootHints, _ipVersion, _offHeapCacheBytes )
+                    : (_infrastructureCacheSize > 0)
+                    ? new DNSCache( _maxCacheSize, _maxAllowableTTLMillis, _rootHints, _ipVersion, _evictionPolicyFactory, _infrastructureCacheSize )
+                    : new DNSCache( _maxCacheSize, _maxAllowableTTLMillis, _rootHints, _ipVersion, _evictionPolicyFactory );
+
+            // we only need a deadline for fresh answers if we're serving stale records...
+            staleDeadlineMillis = (_staleWindowMillis > 0) ? _staleDeadlineMillis : 0;
+        }
 
         // map our agent parameters by name...
         Map<String,ServerSpec> byName = new HashMap<>();
@@ -111,6 +173,49 @@ public class DNSResolver {
         temp = new ArrayList<>( serverSpecs );
         temp.sort( Comparator.comparingLong( a -> a.timeoutMillis ) );
         serversBySpeed = Collections.unmodifiableList( temp );
+
+        // the cache's upkeep is up to the resolver that made it, so if we're sharing another resolver's cache, we're done...
+        if( !cacheOwner ) {
+            heapGovernor           = null;
+            snapshotFile           = null;
+            snapshotIntervalMillis = 0;
+            return;
+        }
+
+        // if we're refreshing popular records ahead of their expiration, hook the cache up to our refresher...
+        cache.setPrefetch( _prefetchFraction, _prefetchMinHits, this::prefetch );
+
+        // if we're serving stale records, the cache has to keep them...
+        cache.setStaleWindow( _staleWindowMillis );
+
+        // if the cache has a byte budget, either set it or (if we're governing it by heap pressure) start our governor, which starts at the maximum...
+        // with no budget specified, the governor's maximum is a tenth of the heap...
+        if( _heapHighWater > 0 ) {
+            long maxBytes = (_maxCacheBytes > 0) ? _maxCacheBytes : Runtime.getRuntime().maxMemory() / 10;
+            heapGovernor = new DNSCacheHeapGovernor( cache, Math.max( 1, maxBytes / 8 ), maxBytes, _heapLowWater, _heapHighWater );
+            heapGovernor.start();
+        }
+        else {
+            heapGovernor = null;
+            cache.setMaxCacheBytes( _maxCacheBytes );
+        }
+
+        // if we're keeping cache snapshots, warm up the cache from the last one, then save snapshots periodically and at shutdown...
+        snapshotFile           = _snapshotFile;
+        snapshotIntervalMillis = _snapshotIntervalMillis;
+        if( snapshotFile != null ) {
+            Outcome<Integer> lo = cache.load( snapshotFile );
+            if( lo.ok() )
+                LOGGER.log( Level.INFO, "Warmed up cache with " + lo.info() + " resource records from " + snapshotFile );
+            else
+                LOGGER.log( Level.WARNING, "Could not warm up cache: " + lo.msg() );
+            if( snapshotIntervalMillis > 0 )
+                nio.addTimeout( new DNSQueryTimeout( snapshotIntervalMillis, () -> executor.submit( this::onSnapshotTimer ) ) );
+            Runtime.getRuntime().addShutdownHook( new Thread( this::saveCache, "DNSResolver cache snapshot" ) );
+        }
+
+        // sweep expired records out of the cache a little at a time, in the background...
+        nio.addTimeout( new DNSQueryTimeout( SWEEP_INTERVAL_MILLIS, () -> executor.submit( this::onSweepTimer ) ) );
     }
 
 
@@ -140,11 +245,11 @@ public class DNSResolver {
 
         Checks.required( _question, _serverSelection );
 
-        List<ServerSpec> servers = getServers( _serverSelection );
-
-        DNSQuery query = new DNSForwardedQuery( this, cache, nio, executor, activeQueries, _question, getNextID(), servers, _handler );
-
-        query.initiate();
+        InFlightKey key = new InFlightKey( _question, _serverSelection.strategy, _serverSelection.serverName, false );
+        coalesce( key, Collections.emptySet(), serveStale( _question, _handler ), (handler) -> {
+            List<ServerSpec> servers = getServers( _serverSelection );
+            return new DNSForwardedQuery( this, cache, nio, executor, activeQueries, _question, getNextID(), servers, handler );
+        } );
     }
 
 
@@ -172,17 +277,245 @@ public class DNSResolver {
 
         Checks.required( _question );
 
-        DNSQuery query = new DNSRecursiveQuery( this, cache, nio, executor, activeQueries, _question, getNextID(), _handler );
+        subquery( _question, Collections.emptySet(), serveStale( _question, _handler ) );
+    }
+
 
-        query.initiate();
+    /**
+     * Resolve the given question recursively, on behalf of a recursive query whose lineage (its question, and the questions of all the queries it is a sub-query of) is given.
+     * If an identical recursive query is already in flight, and isn't in that lineage, the given handler is simply attached to it, and called with its result.  Otherwise, a new
+     * recursive query is started.  This is how {@link DNSRecursiveQuery} starts its sub-queries (for name server IP addresses, and for following CNAME chains), so that they
+     * are coalesced with other queries as well.
+     * <p>A sub-query whose question is in its own lineage fails at once, as that query can't complete until the sub-query does (a CNAME loop, or name servers whose
+     * addresses can only be found through each other); so does a sub-query nested more than 16 deep.  A sub-query is also never attached to a query in flight that is itself
+     * waiting (directly or through other queries) on a query in the sub-query's lineage, as then neither could ever complete; a separate query is started instead.  Should
+     * two sub-queries racing each other close such a cycle anyway, the deadline on every query in flight (see {@link #coalesce(InFlightKey,Set,Consumer,Function)})
+     * breaks it.</p>
+     *
+     * @param _question The {@link DNSQuestion} to resolve.
+     * @param _lineage The questions of the query making this sub-query, and all of its ancestors; empty for a query made by a client.
+     * @param _handler The handler to call with the result.
+     */
+    public void subquery( final DNSQuestion _question, final Set<DNSQuestion> _lineage, final Consumer<Outcome<QueryResult>> _handler ) {
+
+        Checks.required( _question, _lineage, _handler );
+
+        // if this question is in the lineage, we have a loop that no query can resolve; nor will we nest sub-queries without limit...
+        if( _lineage.contains( _question ) || (_lineage.size() >= MAX_SUBQUERY_DEPTH) ) {
+            String msg = (_lineage.contains( _question ) ? "Resolution loop for " : "Sub-queries nested too deeply for ") + _question;
+            executor.submit( () -> _handler.accept( outcomeQueryResult.notOk( msg, new DNSResolverException( msg, DNSResolverError.RESOLUTION_LOOP ) ) ) );
+            return;
+        }
+
+        // if the query in flight for this question is waiting on our lineage, joining it would leave both waiting forever, so we make our own query...
+        if( waitsOn( _question, _lineage ) ) {
+            LOGGER.log( Level.FINE, "Not coalescing " + _question + ", as the query in flight for it is waiting on " + _lineage );
+            new DNSRecursiveQuery( this, cache, nio, executor, activeQueries, _question, getNextID(), _lineage, _handler ).initiate();
+            return;
+        }
+
+        InFlightKey key = new InFlightKey( _question, null, null, false );
+        coalesce( key, _lineage, _handler,
+                (handler) -> new DNSRecursiveQuery( this, cache, nio, executor, activeQueries, _question, getNextID(), _lineage, handler ) );
+    }
+
+
+    /**
+     * Returns {@code true} if the recursive query in flight for the given question (if there is one) is waiting, directly or through other queries in flight, on the query for
+     * any of the given questions.  This walks the queries in flight from the given questions to the queries waiting on them, and on to the queries waiting on those, looking
+     * for the given question.
+     *
+     * @param _question The question whose query in flight might be waiting.
+     * @param _lineage The questions it might be waiting on.
+     * @return {@code true} if the query in flight for the given question is waiting on the query for any of the given questions.
+     */
+    private boolean waitsOn( final DNSQuestion _question, final Set<DNSQuestion> _lineage ) {
+
+        Deque<DNSQuestion> toVisit = new ArrayDeque<>( _lineage );
+        Set<DNSQuestion>   visited = new HashSet<>( _lineage );
+        while( !toVisit.isEmpty() ) {
+            InFlight flight = inFlight.get( new InFlightKey( toVisit.pop(), null, null, false ) );
+            if( flight == null )
+                continue;
+            for( DNSQuestion waiter : flight.waiters ) {
+                if( waiter.equals( _question ) )
+                    return true;
+                if( visited.add( waiter ) )
+                    toVisit.push( waiter );
+            }
+        }
+        return false;
     }
 
 
+    /**
+     * If this resolver serves stale records (RFC 8767), returns a handler that answers the given question with stale records from the cache if a fresh answer doesn't arrive
+     * before the deadline, or if the query for a fresh answer fails (other than by finding that the name doesn't exist).  Either way the query for a fresh answer continues, and
+     * refreshes the cache when it completes.  The given handler is called exactly once, with whichever answer is ready first.  If this resolver doesn't serve stale records,
+     * the given handler is returned unchanged.
+     *
+     * @param _question The {@link DNSQuestion} being resolved.
+     * @param _handler The client's handler.
+     * @return The handler to use for the query for a fresh answer.
+     */
+    private Consumer<Outcome<QueryResult>> serveStale( final DNSQuestion _question, final Consumer<Outcome<QueryResult>> _handler ) {
+
+        if( staleDeadlineMillis <= 0 )
+            return _handler;
+
+        StaleGuard guard = new StaleGuard( _question, _handler );
+        nio.addTimeout( guard.deadline );
+        return guard::complete;
+    }
+
+
+    /**
+     * Called by the cache (in whatever thread is using it) when a popular resource record is about to expire.  Resolves the given question in the background, bypassing the
+     * cache, so that the cache gets fresh records.  If this resolver has DNS servers to forward to, the question is forwarded to them (by priority); otherwise it's resolved
+     * recursively.  Refreshes of the same question are coalesced with each other, but never with client queries (which might be answered from the cache).
+     *
+     * @param _question The {@link DNSQuestion} to refresh.
+     */
+    private void prefetch( final DNSQuestion _question ) {
+
+        Consumer<Outcome<QueryResult>> handler = (result) -> {
+            if( result.notOk() )
+                LOGGER.log( Level.FINE, "Prefetch failed for " + _question + ": " + result.msg() );
+        };
+
+        executor.submit( () -> {
+            if( hasServers() ) {
+                DNSServerSelection selection = DNSServerSelection.priority();
+                InFlightKey key = new InFlightKey( _question, selection.strategy, selection.serverName, true );
+                coalesce( key, Collections.emptySet(), handler, (h) -> {
+                    DNSQuery query = new DNSForwardedQuery( this, cache, nio, executor, activeQueries, _question, getNextID(), getServers( selection ), h );
+                    query.setBypassCache( true );
+                    return query;
+                } );
+            }
+            else {
+                InFlightKey key = new InFlightKey( _question, null, null, true );
+                coalesce( key, Collections.emptySet(), handler, (h) -> {
+                    DNSQuery query = new DNSRecursiveQuery( this, cache, nio, executor, activeQueries, _question, getNextID(), Collections.emptySet(), h );
+                    query.setBypassCache( true );
+                    return query;
+                } );
+            }
+        } );
+    }
+
+
+    /**
+     * Attach the given handler to the query in flight with the given key, if there is one.  Otherwise, make a new query with the given factory, record it as the query in flight
+     * with the given key, and initiate it.  When a query made by this method completes, it is no longer in flight, and its result is sent to every handler attached to it.  The
+     * given waiters (the lineage of the sub-query the handler belongs to, if any) are recorded as waiting on the query in flight, for {@link #waitsOn(DNSQuestion,Set)}.
+     * <p>No query stays in flight for longer than 30 seconds: if it hasn't completed by then, it's no longer in flight, and every handler attached to it is sent a timeout.
+     * Anything still waiting on a query that can never complete (such as one of a cycle of sub-queries waiting on each other) is thus released, and later queries for the
+     * same question start afresh rather than joining it.</p>
+     *
+     * @param _key The key identifying the query.
+     * @param _waiters The questions waiting on the query, through the given handler.
+     * @param _handler The handler to be called with the query's result.
+     * @param _queryFactory The function that makes a new query, given the handler for its result.
+     */
+    private void coalesce( final InFlightKey _key, final Set<DNSQuestion> _waiters, final Consumer<Outcome<QueryResult>> _handler,
+                           final Function<Consumer<Outcome<QueryResult>>,DNSQuery> _queryFactory ) {
+
+        while( true ) {
+
+            // if there's a query in flight that we can join, we're done...
+            InFlight existing = inFlight.get( _key );
+            if( (existing != null) && existing.join( _handler, _waiters ) )
+                return;
+
+            // otherwise, try to put our own query in flight; if some other thread beat us to it, we'll go around again and join theirs...
+            InFlight ours = new InFlight( _handler, _waiters );
+            boolean installed = (existing == null) ? (inFlight.putIfAbsent( _key, ours ) == null) : inFlight.replace( _key, existing, ours );
+            if( installed ) {
+
+                // if the query takes too long, it's no longer in flight, and everything waiting on it gets a timeout (the timeout's handler runs in an IO Runner thread)...
+                DNSQueryTimeout deadline = new DNSQueryTimeout( QUERY_DEADLINE_MILLIS, () -> executor.submit( () -> {
+                    inFlight.remove( _key, ours );
+                    String msg = "Query for " + _key.question() + " did not complete within " + QUERY_DEADLINE_MILLIS + "ms";
+                    ours.complete( outcomeQueryResult.notOk( msg, new DNSResolverException( msg, DNSResolverError.TIMEOUT ) ) );
+                } ) );
+                nio.addTimeout( deadline );
+
+                DNSQuery query = _queryFactory.apply( (outcome) -> {
+                    deadline.cancel();
+                    inFlight.remove( _key, ours );
+                    ours.complete( outcome );
+                } );
+                query.initiate();
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Returns the next identifying integer for a query.  This identifies the query only; the 16-bit message IDs actually sent to DNS servers are allocated by the transport
+     * (see {@link com.dilatush.dns.query.DNSMessageIDAllocator}), so it doesn't matter that this value eventually wraps around.
+     *
+     * @return the next identifying integer for a query.
+     */
     public int getNextID() {
         return nextQueryID.getAndIncrement();
     }
 
 
+    /**
+     * Returns the UDP payload size (in bytes) that this resolver advertises with EDNS(0) in its queries, or zero if it doesn't use EDNS.
+     *
+     * @return the UDP payload size advertised with EDNS(0), or zero if EDNS isn't used.
+     */
+    public int getEDNSBufferSize() {
+        return ednsBufferSize;
+    }
+
+
+    /**
+     * Saves a snapshot of this resolver's cache to its snapshot file, if it has one (see {@link Builder#setCacheSnapshot(Path,long)}).  This is done automatically at
+     * shutdown and (if an interval was specified) periodically, but may be called at any time.
+     *
+     * @return The {@link Outcome Outcome&lt;?&gt;} of this operation.
+     */
+    public Outcome<?> saveCache() {
+
+        if( snapshotFile == null )
+            return outcome.notOk( "No cache snapshot file was specified" );
+
+        Outcome<Integer> so = cache.save( snapshotFile );
+        if( so.notOk() ) {
+            LOGGER.log( Level.WARNING, "Could not save cache snapshot: " + so.msg(), so.cause() );
+            return outcome.notOk( so.msg(), so.cause() );
+        }
+        return outcome.ok();
+    }
+
+
+    /**
+     * Called (in the executor) each time the snapshot interval has passed.  Saves a snapshot of the cache, and starts the next interval.
+     */
+    private void onSnapshotTimer() {
+        saveCache();
+        nio.addTimeout( new DNSQueryTimeout( snapshotIntervalMillis, () -> executor.submit( this::onSnapshotTimer ) ) );
+    }
+
+
+    /**
+     * Called (in the executor) each time the sweep interval has passed, and again right away whenever a sweep removes a whole batch of expired records from the cache (as
+     * there may be more).  Each sweep does a bounded amount of work, so a backlog of expired records is worked off in small batches rather than in one long blockage of the
+     * executor.
+     */
+    private void onSweepTimer() {
+        if( cache.sweep( SWEEP_BATCH_SIZE ) >= SWEEP_BATCH_SIZE )
+            executor.submit( this::onSweepTimer );
+        else
+            nio.addTimeout( new DNSQueryTimeout( SWEEP_INTERVAL_MILLIS, () -> executor.submit( this::onSweepTimer ) ) );
+    }
+
+
     public List<DNSResourceRecord> getRootHints() {
 
         Outcome<List<DNSResourceRecord>> rho = rootHints.current();
@@ -250,6 +583,47 @@ public class DNSResolver {
     }
 
 
+    /**
+     * Returns the number of resource records currently held in this resolver's cache.
+     *
+     * @return The number of resource records currently held in this resolver's cache.
+     */
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+
+    /**
+     * Returns the estimated number of bytes of heap used by the resource records currently held in this resolver's cache.
+     *
+     * @return The estimated number of bytes of heap used by the resource records currently held in this resolver's cache.
+     */
+    public long getCacheBytes() {
+        return cache.sizeInBytes();
+    }
+
+
+    /**
+     * Returns the current statistics (size, hits, and evictions) of the infrastructure partition of this resolver's cache, which holds the NS and SOA records, and the
+     * addresses of the name servers.
+     *
+     * @return The statistics of the cache's infrastructure partition.
+     */
+    public DNSCache.PartitionStats getCacheInfrastructureStats() {
+        return cache.getInfrastructureStats();
+    }
+
+
+    /**
+     * Returns the current statistics (size, hits, and evictions) of the answer partition of this resolver's cache, which holds all the other records.
+     *
+     * @return The statistics of the cache's answer partition.
+     */
+    public DNSCache.PartitionStats getCacheAnswerStats() {
+        return cache.getAnswerStats();
+    }
+
+
     public static DNSResolver getDefaultRecursiveResolver() {
         Builder builder = new Builder();
         return builder.getDNSResolver().info();
@@ -276,6 +650,21 @@ public class DNSResolver {
         private       int                  maxCacheSize          = 1000;
         private       long                 maxAllowableTTLMillis = 2 * 3600 * 1000;  // two hours...
         private       DNSRootHints         rootHints             = new DNSRootHints();
+        private       IntFunction<DNSCacheEvictionPolicy> evictionPolicyFactory = (size) -> new DNSTTLEvictionPolicy();
+        private       int                  infrastructureCacheSize = 0;              // a quarter of the cache's size...
+        private       int                  ednsBufferSize        = 1232;                 // the size recommended by DNS Flag Day 2020, to avoid IP fragmentation...
+        private       int                  nioThreads            = Runtime.getRuntime().availableProcessors();
+        private       double               prefetchFraction      = 0;                    // don't refresh records ahead of time...
+        private       int                  prefetchMinHits       = 5;
+        private       long                 staleWindowMillis     = 0;                    // don't serve stale records...
+        private       long                 staleDeadlineMillis   = 1800;                 // the client response timer recommended by RFC 8767...
+        private       long                 maxCacheBytes         = 0;                    // no limit on the cache's estimated heap use...
+        private       double               heapLowWater          = 0;
+        private       double               heapHighWater         = 0;                    // don't govern the cache by heap pressure...
+        private       Path                 snapshotFile          = null;                 // don't keep cache snapshots...
+        private       long                 snapshotIntervalMillis = 0;
+        private       long                 offHeapCacheBytes     = 0;                    // hold the cache's records on the heap...
+        private       DNSResolver          sharedWith            = null;                 // have our own network I/O and cache...
 
 
         /**
@@ -290,16 +679,45 @@ public class DNSResolver {
             if( executor == null )
                 executor = new ExecutorService();
 
-            // try to construct the new instance (it might fail if there's a problem starting up NIO)...
+            // the cache needs room for at least one record in each of its partitions (a shared cache has been checked already)...
+            if( sharedWith == null ) {
+                if( maxCacheSize < 2 )
+                    return outcomeResolver.notOk( "Maximum cache size must be at least 2: " + maxCacheSize );
+                if( (offHeapCacheBytes == 0) && (infrastructureCacheSize >= maxCacheSize) )
+                    return outcomeResolver.notOk( "Infrastructure cache size (" + infrastructureCacheSize + ") must be less than maximum cache size (" + maxCacheSize + ")" );
+            }
+
+            // try to construct the new instance (it might fail if there's a problem starting up NIO, or if some other setting is invalid)...
             try {
-                return outcomeResolver.ok( new DNSResolver( executor, ipVersion, serverSpecs, maxCacheSize, maxAllowableTTLMillis, rootHints ) );
+                return outcomeResolver.ok( new DNSResolver( executor, ipVersion, serverSpecs, maxCacheSize, maxAllowableTTLMillis, rootHints, evictionPolicyFactory,
+                        infrastructureCacheSize, ednsBufferSize, nioThreads, prefetchFraction, prefetchMinHits, staleWindowMillis, staleDeadlineMillis, maxCacheBytes, heapLowWater,
+                        heapHighWater, snapshotFile, snapshotIntervalMillis, offHeapCacheBytes, sharedWith ) );
             }
-            catch( DNSResolverException _e ) {
+            catch( DNSResolverException | IllegalArgumentException _e ) {
                 return outcomeResolver.notOk( "Problem creating DNSResolver", _e );
             }
         }
 
 
+        /**
+         * <p>Specifies another resolver whose network I/O ({@link DNSNIO}, with its reactor threads and pooled sockets) and cache the resolver will share, rather than having
+         * its own.  This is how a service that needs several resolvers (with different DNS servers, say) avoids a set of I/O threads and a copy of the same popular records
+         * for each of them.  Message IDs are allocated per socket, so queries from the resolvers sharing a {@link DNSNIO} never collide.  The default is {@code null}, for a
+         * resolver with its own network I/O and cache.</p>
+         * <p>The shared cache stays just as the other resolver configured it: this builder's settings for the cache (its sizes, eviction policy, prefetching, serving stale
+         * records, byte budget, heap governing, snapshots, and off-heap memory) and for the number of I/O threads are ignored, and the other resolver does the cache's upkeep
+         * (sweeping, prefetching, and snapshots).  Note that all the resolvers sharing a cache see the same answers, so only resolvers whose DNS servers should agree should
+         * share one, and that clearing the cache of any of them clears it for all of them.</p>
+         *
+         * @param _resolver The resolver to share network I/O and the cache with, or {@code null} to not share them.
+         * @return This {@link Builder}, as a convenience for setter chaining.
+         */
+        public Builder setSharedWith( final DNSResolver _resolver ) {
+            sharedWith = _resolver;
+            return this;
+        }
+
+
         /**
          * Specifies the executor that will be used to decode and process messages received from DNS servers.  The default is a single-threaded executor.
          *
@@ -337,7 +755,7 @@ public class DNSResolver {
 
 
         /**
-         * Specifies the maximum DNS resource record cache size.  The default is 1,000 resource records.
+         * Specifies the maximum DNS resource record cache size, which must be at least 2 (one record for each of the cache's partitions).  The default is 1,000 resource records.
          *
          * @param _maxCacheSize The maximum DNS resource record cache size.
          * @return This {@link Builder}, as a convenience for setter chaining.
@@ -348,6 +766,75 @@ public class DNSResolver {
         }
 
 
+        /**
+         * Specifies the maximum estimated heap (in bytes) that the records in the resolver's cache may use, in addition to the limit on the number of records.  This lets a
+         * cache holding large records (such as TXT records) stay within a memory budget.  Zero means no limit, which is the default.
+         *
+         * @param _maxCacheBytes The maximum estimated heap (in bytes) that the cached records may use, or zero for no limit.
+         * @return This {@link Builder}, as a convenience for setter chaining.
+         */
+        public Builder setMaxCacheBytes( final long _maxCacheBytes ) {
+            if( _maxCacheBytes < 0 )
+                throw new IllegalArgumentException( "Invalid max cache bytes: " + _maxCacheBytes );
+            maxCacheBytes = _maxCacheBytes;
+            return this;
+        }
+
+
+        /**
+         * Specifies that the resolver's cache budget (in bytes) is to be governed by heap pressure (see {@link DNSCacheHeapGovernor}).  After each garbage collection, if the
+         * fraction of the tenured heap still in use is above the high water mark, the budget is cut by a quarter (down to an eighth of the maximum); if it's below the low water
+         * mark, the budget is raised by a quarter (up to the maximum).  The maximum is the budget set with {@link #setMaxCacheBytes(long)}, or a tenth of the maximum heap if
+         * none was set.  A high water mark of zero disables this, which is the default.  Water marks of 0.5 and 0.85 are a reasonable place to start.
+         *
+         * @param _lowWater The fraction of the tenured heap in use below which the budget is grown.
+         * @param _highWater The fraction of the tenured heap in use above which the budget is shrunk, or zero to not govern the budget by heap pressure.
+         * @return This {@link Builder}, as a convenience for setter chaining.
+         */
+        public Builder setCacheHeapGovernor( final double _lowWater, final double _highWater ) {
+            if( (_highWater != 0) && ((_lowWater < 0) || (_highWater > 1) || (_lowWater >= _highWater)) )
+                throw new IllegalArgumentException( "Invalid water marks: " + _lowWater + " and " + _highWater );
+            heapLowWater  = _lowWater;
+            heapHighWater = _highWater;
+            return this;
+        }
+
+
+        /**
+         * Specifies a file that the resolver's cache is warmed up from when the resolver is built, and saved to periodically and at shutdown (see
+         * {@link DNSCache#save(Path)}), so that a restarted resolver doesn't start with an empty cache.  Records that have expired since the snapshot was saved are discarded
+         * when it's loaded.  If the file doesn't exist (as on the very first start), the cache starts empty.  The default is to keep no snapshots.
+         *
+         * @param _snapshotFile The snapshot file, or {@code null} to keep no snapshots.
+         * @param _intervalMillis How often (in milliseconds) to save the cache, or zero to save it only at shutdown.
+         * @return This {@link Builder}, as a convenience for setter chaining.
+         */
+        public Builder setCacheSnapshot( final Path _snapshotFile, final long _intervalMillis ) {
+            if( _intervalMillis < 0 )
+                throw new IllegalArgumentException( "Invalid snapshot interval: " + _intervalMillis );
+            snapshotFile           = _snapshotFile;
+            snapshotIntervalMillis = _intervalMillis;
+            return this;
+        }
+
+
+        /**
+         * Specifies that the resolver's cache holds its records off the Java heap, in the given amount of memory, rather than on the heap (see {@link DNSOffHeapStore}).
+         * This is for caches of millions of records, which would otherwise give the garbage collector a great many long-lived objects to trace.  The records are decoded
+         * only when they're fetched.  Off-heap caches evict the oldest records first, so the eviction policy and the byte budget don't apply to them, and they don't refresh
+         * popular records ahead of time.  Zero (the default) holds the records on the heap.
+         *
+         * @param _offHeapCacheBytes The off-heap memory (in bytes) for the cache's records (at least 512KB), or zero to hold them on the heap.
+         * @return This {@link Builder}, as a convenience for setter chaining.
+         */
+        public Builder setOffHeapCache( final long _offHeapCacheBytes ) {
+            if( (_offHeapCacheBytes != 0) && (_offHeapCacheBytes < 512 * 1024) )
+                throw new IllegalArgumentException( "Invalid off-heap cache size: " + _offHeapCacheBytes );
+            offHeapCacheBytes = _offHeapCacheBytes;
+            return this;
+        }
+
+
         /**
          * Specifies the maximum allowable TTL (in milliseconds) for a resource record in the cache.  The default is two hours.
          *
@@ -360,6 +847,106 @@ public class DNSResolver {
         }
 
 
+        /**
+         * Specifies how the resolver's cache chooses which resource records to evict when it's full, with a factory that makes a {@link DNSCacheEvictionPolicy} given the
+         * maximum size of one of the cache's partitions (see {@link #setInfrastructureCacheSize(int)}).  The default ({@link DNSTTLEvictionPolicy}) evicts the records closest
+         * to expiration.  {@code DNSTinyLFUEvictionPolicy::new} keeps the records that are used most often instead, which gives a much better hit rate when popular records
+         * have short TTLs, or when many records are used just once.
+         *
+         * @param _evictionPolicyFactory The factory for the cache's eviction policy.
+         * @return This {@link Builder}, as a convenience for setter chaining.
+         */
+        public Builder setEvictionPolicy( final IntFunction<DNSCacheEvictionPolicy> _evictionPolicyFactory ) {
+            Checks.required( _evictionPolicyFactory );
+            evictionPolicyFactory = _evictionPolicyFactory;
+            return this;
+        }
+
+
+        /**
+         * Specifies the maximum number of resource records in the resolver's cache that may be infrastructure: the NS and SOA records, and the addresses of the name servers
+         * they name.  These are kept in a partition of their own, with its own eviction policy, so that a burst of one-off lookups can't evict the delegations that recursive
+         * queries need.  It must be less than the maximum cache size (see {@link #setMaxCacheSize(int)}), as the rest of the cache holds the answers.  Zero means a quarter of
+         * the maximum cache size, which is the default.  This doesn't apply to a cache held off-heap, which isn't partitioned.  If it isn't less than the maximum cache size,
+         * {@link #getDNSResolver()} fails.
+         *
+         * @param _infrastructureCacheSize The maximum number of infrastructure resource records in the cache, or zero for a quarter of the maximum cache size.
+         * @return This {@link Builder}, as a convenience for setter chaining.
+         */
+        public Builder setInfrastructureCacheSize( final int _infrastructureCacheSize ) {
+            infrastructureCacheSize = Math.max( 0, _infrastructureCacheSize );
+            return this;
+        }
+
+
+        /**
+         * Specifies the UDP payload size (in bytes) that the resolver will advertise with EDNS(0), which is the largest UDP response that DNS servers may send it.  Larger
+         * sizes mean fewer truncated UDP responses (and therefore fewer retries over TCP), but increase the chance of IP fragmentation.  Zero means don't use EDNS at all, which
+         * limits UDP responses to 512 bytes.  Whatever this setting, DNS servers that don't support EDNS are detected, and queried without it.  The default is 1,232 bytes.
+         *
+         * @param _ednsBufferSize The UDP payload size to advertise, or zero to not use EDNS.
+         * @return This {@link Builder}, as a convenience for setter chaining.
+         */
+        public Builder setEDNSBufferSize( final int _ednsBufferSize ) {
+            ednsBufferSize = Math.max( 0, _ednsBufferSize );
+            return this;
+        }
+
+
+        /**
+         * Specifies the number of threads that the resolver will use for network I/O.  Each thread has its own selector, and each UDP socket or TCP connection is handled by
+         * just one of them, so more threads let the resolver use more cores for network I/O.  The default is the number of available processors.
+         *
+         * @param _nioThreads The number of network I/O threads; must be at least one.
+         * @return This {@link Builder}, as a convenience for setter chaining.
+         */
+        public Builder setNIOThreads( final int _nioThreads ) {
+            if( _nioThreads < 1 )
+                throw new IllegalArgumentException( "Must have at least one network I/O thread: " + _nioThreads );
+            nioThreads = _nioThreads;
+            return this;
+        }
+
+
+        /**
+         * Specifies when the resolver refreshes popular records in its cache before they expire, so that clients asking for popular names (almost) never wait for a DNS server.
+         * A cached record that has been used at least {@code _minHits} times is refreshed in the background once the time left before it expires is less than
+         * {@code _fraction} of its TTL (less a random amount, so that records cached together aren't all refreshed together).  A fraction of zero disables refreshing ahead
+         * of time, which is the default, as each refresh is an extra query to a DNS server that no client asked for.  A fraction of 0.1 and five hits (refreshing records used
+         * at least five times, in the last tenth of their TTL) suits most busy resolvers.
+         *
+         * @param _fraction The fraction (between 0 and 1) of a record's TTL before its expiration that it may be refreshed.
+         * @param _minHits The number of times a record must be used before it is refreshed ahead of time.
+         * @return This {@link Builder}, as a convenience for setter chaining.
+         */
+        public Builder setPrefetch( final double _fraction, final int _minHits ) {
+            if( (_fraction < 0) || (_fraction > 1) )
+                throw new IllegalArgumentException( "Prefetch fraction must be between 0 and 1: " + _fraction );
+            prefetchFraction = _fraction;
+            prefetchMinHits  = _minHits;
+            return this;
+        }
+
+
+        /**
+         * Specifies whether the resolver serves stale records (RFC 8767) when DNS servers are slow or down.  If the stale window is non-zero, records are kept in the cache for
+         * that long after they expire.  If a query for a fresh answer hasn't completed by the deadline, or if it fails (other than by finding that the name doesn't exist),
+         * the client gets the stale records from the cache instead (with a TTL of 30 seconds), while the query carries on to refresh the cache.  The default stale window is
+         * zero (don't serve stale records); RFC 8767 suggests between one and three days.
+         *
+         * @param _staleWindowMillis How long (in milliseconds) to keep expired records, or zero to not serve stale records.
+         * @param _deadlineMillis How long (in milliseconds) to wait for a fresh answer before serving a stale one; the default is 1,800 milliseconds.
+         * @return This {@link Builder}, as a convenience for setter chaining.
+         */
+        public Builder setServeStale( final long _staleWindowMillis, final long _deadlineMillis ) {
+            if( (_staleWindowMillis < 0) || (_deadlineMillis < 1) )
+                throw new IllegalArgumentException( "Invalid serve-stale parameters: " + _staleWindowMillis + ", " + _deadlineMillis );
+            staleWindowMillis   = _staleWindowMillis;
+            staleDeadlineMillis = _deadlineMillis;
+            return this;
+        }
+
+
         /**
          * Add the given parameters for a recursive DNS server agent to the list of agent parameters contained in this builder.  The list of agent parameters determines the
          * recursive DNS servers that the {@link DNSResolver} instance will be able to use.
@@ -379,6 +966,170 @@ public class DNSResolver {
     }
 
 
+    /**
+     * The key for a query in flight: its question, for a forwarded query the server selection (a recursive query has a {@code null} strategy), and whether it is refreshing the
+     * cache.
+     */
+    private record InFlightKey( DNSQuestion question, DNSServerSelectionStrategy strategy, String serverName, boolean prefetch ) {}
+
+
+    /**
+     * Instances of this class hold the handlers waiting for the result of a query in flight.  Handlers may be attached until the query completes; after that, a new query must be
+     * made.
+     */
+    private static class InFlight {
+
+        private final List<Consumer<Outcome<QueryResult>>> handlers = new ArrayList<>();
+        private final Set<DNSQuestion>                     waiters  = ConcurrentHashMap.newKeySet();  // the questions of the queries waiting on this one...
+        private       boolean                              done;
+
+
+        private InFlight( final Consumer<Outcome<QueryResult>> _handler, final Set<DNSQuestion> _waiters ) {
+            handlers.add( _handler );
+            waiters.addAll( _waiters );
+        }
+
+
+        /**
+         * Attach the given handler, and record the given questions as waiting on the query, unless the query has already completed.
+         *
+         * @param _handler The handler to attach.
+         * @param _waiters The questions waiting on the query, through the given handler.
+         * @return {@code true} if the handler was attached.
+         */
+        private synchronized boolean join( final Consumer<Outcome<QueryResult>> _handler, final Set<DNSQuestion> _waiters ) {
+            if( done )
+                return false;
+            handlers.add( _handler );
+            waiters.addAll( _waiters );
+            return true;
+        }
+
+
+        /**
+         * Mark the query as completed, and send its result to every attached handler.  Only the first call does anything, as a query that has passed its deadline may still
+         * complete later.
+         *
+         * @param _outcome The query's result.
+         */
+        private void complete( final Outcome<QueryResult> _outcome ) {
+            List<Consumer<Outcome<QueryResult>>> toCall;
+            synchronized( this ) {
+                if( done )
+                    return;
+                done   = true;
+                toCall = new ArrayList<>( handlers );
+            }
+            for( Consumer<Outcome<QueryResult>> handler : toCall ) {
+
+                // one misbehaving handler mustn't keep the others from getting the result...
+                try {
+                    handler.accept( _outcome );
+                }
+                catch( RuntimeException _e ) {
+                    LOGGER.log( Level.SEVERE, "Exception thrown by query result handler", _e );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Instances of this class stand between a client's handler and the query for a fresh answer to the client's question, when this resolver serves stale records.  Whichever
+     * comes first - a fresh answer, the deadline, or a failure - decides what the client gets, and the client's handler is called just once.
+     */
+    private class StaleGuard {
+
+        private final DNSQuestion                    question;
+        private final Consumer<Outcome<QueryResult>> handler;
+        private final DNSQueryTimeout                deadline;
+        private final AtomicBoolean                  answered;
+
+
+        private StaleGuard( final DNSQuestion _question, final Consumer<Outcome<QueryResult>> _handler ) {
+            question = _question;
+            handler  = _handler;
+            answered = new AtomicBoolean();
+
+            // the timeout's handler runs in an IO Runner thread, so we do our work in the executor...
+            deadline = new DNSQueryTimeout( staleDeadlineMillis, () -> executor.submit( this::onDeadline ) );
+        }
+
+
+        /**
+         * Called with the result of the query for a fresh answer.  If it failed (other than by finding that the name doesn't exist), the client gets stale records instead, if
+         * the cache has any.
+         *
+         * @param _outcome The result of the query for a fresh answer.
+         */
+        private void complete( final Outcome<QueryResult> _outcome ) {
+
+            deadline.cancel();
+
+            boolean nameError = (_outcome.cause() instanceof DNSServerException dse) && (dse.responseCode == DNSResponseCode.NAME_ERROR);
+            if( _outcome.notOk() && !nameError ) {
+                Outcome<QueryResult> stale = getStale( "query failed: " + _outcome.msg() );
+                if( stale != null ) {
+                    answer( stale );
+                    return;
+                }
+            }
+            answer( _outcome );
+        }
+
+
+        /**
+         * Called when the deadline for a fresh answer has passed.  If the cache has stale records, the client gets them; otherwise the client waits for the fresh answer.
+         */
+        private void onDeadline() {
+
+            if( answered.get() )
+                return;
+
+            Outcome<QueryResult> stale = getStale( "no answer within " + staleDeadlineMillis + "ms" );
+            if( stale != null )
+                answer( stale );
+        }
+
+
+        /**
+         * Returns an ok outcome with a stale answer to our question from the cache, or {@code null} if the cache doesn't have one.
+         *
+         * @param _why Why we're serving a stale answer, for the log.
+         * @return The outcome with the stale answer, or {@code null} if there is none.
+         */
+        private Outcome<QueryResult> getStale( final String _why ) {
+
+            DNSMessage.Builder builder = new DNSMessage.Builder();
+            builder
+                    .setOpCode(   DNSOpCode.QUERY )
+                    .setRecurse(  true            )
+                    .setId(       0               )
+                    .addQuestion( question        );
+            DNSMessage queryMessage = builder.getMessage();
+            DNSMessage response = cache.resolveStale( queryMessage );
+            if( (response.responseCode != DNSResponseCode.OK) || response.answers.isEmpty() )
+                return null;
+
+            DNSQuery.QueryLog log = new DNSQuery.QueryLog();
+            log.log( "Served stale answer from cache (" + _why + ")" );
+            LOGGER.log( Level.FINE, "Serving stale answer for " + question + " (" + _why + ")" );
+            return outcomeQueryResult.ok( new QueryResult( queryMessage, response, log ) );
+        }
+
+
+        /**
+         * Sends the given outcome to the client, unless the client has already been answered.
+         *
+         * @param _outcome The outcome to send.
+         */
+        private void answer( final Outcome<QueryResult> _outcome ) {
+            if( answered.compareAndSet( false, true ) )
+                handler.accept( _outcome );
+        }
+    }
+
+
     private static class HandlerWrapper {
 
         private final Consumer<Outcome<QueryResult>>          handler1;
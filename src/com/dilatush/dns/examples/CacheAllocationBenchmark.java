@@ -0,0 +1,99 @@
+package com.dilatush.dns.examples;
+
+import com.dilatush.dns.message.*;
+import com.dilatush.dns.misc.DNSCache;
+import com.dilatush.dns.misc.DNSIPVersion;
+import com.dilatush.dns.misc.DNSRootHints;
+import com.dilatush.dns.rr.CNAME;
+import com.dilatush.dns.rr.NS;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * Measures the heap allocated (in bytes per operation) and the time taken (in nanoseconds per operation) by {@link DNSCache}'s lookups, on a single thread: typed gets,
+ * visits, and resolutions that hit (through a four-link CNAME chain) and miss.  Each lookup is run a couple of hundred thousand times to warm up, then a million times while
+ * measuring, using the thread allocation counter of {@link com.sun.management.ThreadMXBean}.  Run it with a JIT-compiling JVM (the default), and without a profiler attached.
+ * NS records stand in for address records, as the lookups treat every record type the same.
+ */
+@SuppressWarnings( "unused" )
+public class CacheAllocationBenchmark {
+
+    private static final int WARMUP     = 200_000;    // the number of operations run before measuring...
+    private static final int OPERATIONS = 1_000_000;  // the number of operations measured...
+
+    private static long sink;  // where the lookups' results go, so the JIT can't optimize them away...
+
+
+    public static void main( final String[] _args ) {
+
+        DNSCache cache = new DNSCache( 10000, 7200000, new DNSRootHints(), DNSIPVersion.IPv4 );
+
+        // a CDN-style chain of aliases, ending at a name with records of the type we'll ask for...
+        cache.add( List.of( cname( "www.shop.com", "shop.cdn.net" ), cname( "shop.cdn.net", "e1.edge.net" ), cname( "e1.edge.net", "e1.g.edge.net" ),
+                cname( "e1.g.edge.net", "x.akam.net" ) ) );
+        cache.add( List.of( ns( "x.akam.net", "n1.x.akam.net" ), ns( "x.akam.net", "n2.x.akam.net" ) ) );
+
+        DNSMessage hit  = query( "www.shop.com", DNSRRType.NS );
+        DNSMessage miss = query( "nothere.org",  DNSRRType.NS );
+
+        measure( "get(String,DNSRRType...)", () -> sink += cache.get( "x.akam.net", DNSRRType.NS ).size()                 );
+        measure( "visit(String,DNSRRType)",  () -> sink += cache.visit( "x.akam.net", DNSRRType.NS, (rr) -> sink++ )      );
+        measure( "resolveAnswers (4 hops)",  () -> sink += cache.resolveAnswers( hit ).size()                              );
+        measure( "resolve (4 hops)",         () -> sink += cache.resolve( hit ).answers.size()                             );
+        measure( "resolve (miss)",           () -> sink += cache.resolveAnswers( miss ).size()                             );
+
+        System.out.println( "(" + sink + ")" );
+    }
+
+
+    /**
+     * Runs the given operation enough times to warm it up, then measures it, printing the heap allocated and the time taken per operation.
+     *
+     * @param _label The name of the operation, for the printout.
+     * @param _operation The operation to measure.
+     */
+    private static void measure( final String _label, final Runnable _operation ) {
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        for( int i = 0; i < WARMUP; i++ )
+            _operation.run();
+
+        long startBytes = threads.getThreadAllocatedBytes( thread );
+        long startNanos = System.nanoTime();
+        for( int i = 0; i < OPERATIONS; i++ )
+            _operation.run();
+        long nanos = System.nanoTime() - startNanos;
+        long bytes = threads.getThreadAllocatedBytes( thread ) - startBytes;
+
+        System.out.printf( "%-28s %8.1f bytes/op %8.1f ns/op%n", _label, bytes / (double) OPERATIONS, nanos / (double) OPERATIONS );
+    }
+
+
+    private static DNSDomainName name( final String _name ) {
+        return DNSDomainName.fromString( _name ).info();
+    }
+
+
+    private static CNAME cname( final String _alias, final String _canonical ) {
+        return CNAME.create( name( _alias ), 3600, name( _canonical ) ).info();
+    }
+
+
+    private static NS ns( final String _name, final String _nameServer ) {
+        return NS.create( name( _name ), DNSRRClass.IN, 3600, name( _nameServer ) ).info();
+    }
+
+
+    private static DNSMessage query( final String _name, final DNSRRType _type ) {
+        DNSMessage.Builder builder = new DNSMessage.Builder();
+        builder
+                .setOpCode(   DNSOpCode.QUERY                          )
+                .setRecurse(  true                                     )
+                .setId(       1                                        )
+                .addQuestion( new DNSQuestion( name( _name ), _type )  );
+        return builder.getMessage();
+    }
+}
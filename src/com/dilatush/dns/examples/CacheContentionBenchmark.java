@@ -0,0 +1,133 @@
+package com.dilatush.dns.examples;
+
+import com.dilatush.dns.message.DNSDomainName;
+import com.dilatush.dns.message.DNSRRClass;
+import com.dilatush.dns.message.DNSRRType;
+import com.dilatush.dns.misc.DNSCache;
+import com.dilatush.dns.misc.DNSIPVersion;
+import com.dilatush.dns.misc.DNSRootHints;
+import com.dilatush.dns.rr.NS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how {@link DNSCache}'s throughput scales with the number of threads using it, for a read-heavy mix of lookups (by default, one add for every 20 lookups) of 10,000
+ * names.  Each thread count is run twice: once against the cache as it is (lock-striped, with lock-free reads), and once with every call made while holding a single lock,
+ * which is how the cache behaved when all its methods were {@code synchronized}.  The arguments, all optional, are the highest thread count (default: the number of
+ * processors), the seconds to run each case (default: 2), and the number of lookups per add (default: 20).
+ */
+@SuppressWarnings( "unused" )
+public class CacheContentionBenchmark {
+
+    private static final int NAMES = 10_000;  // the number of distinct names looked up...
+
+    private static final Object monitor = new Object();  // the single lock for the synchronized cases...
+
+
+    public static void main( final String[] _args ) throws InterruptedException {
+
+        int maxThreads = (_args.length > 0) ? Integer.parseInt( _args[0] ) : Runtime.getRuntime().availableProcessors();
+        int seconds    = (_args.length > 1) ? Integer.parseInt( _args[1] ) : 2;
+        int readsPer   = (_args.length > 2) ? Integer.parseInt( _args[2] ) : 20;
+
+        // make up the records we'll be looking up, and fill the cache with them...
+        DNSCache cache = new DNSCache( NAMES * 2, 7200000, new DNSRootHints(), DNSIPVersion.IPv4 );
+        List<NS> records = new ArrayList<>( NAMES );
+        for( int i = 0; i < NAMES; i++ ) {
+            NS ns = NS.create( DNSDomainName.fromString( "host" + i + ".example.com" ).info(), DNSRRClass.IN, 3600,
+                    DNSDomainName.fromString( "ns" + (i % 10) + ".example.net" ).info() ).info();
+            records.add( ns );
+            cache.add( ns );
+        }
+
+        // give the JIT a chance to compile everything before we start measuring...
+        run( cache, records, maxThreads, seconds, readsPer, false );
+        run( cache, records, maxThreads, seconds, readsPer, true  );
+
+        System.out.printf( "%-8s %16s %16s %8s%n", "threads", "striped ops/s", "one-lock ops/s", "ratio" );
+        for( int threads = 1; threads <= maxThreads; threads *= 2 ) {
+            double striped = run( cache, records, threads, seconds, readsPer, false );
+            double locked  = run( cache, records, threads, seconds, readsPer, true  );
+            System.out.printf( "%-8d %16.0f %16.0f %8.2f%n", threads, striped, locked, striped / locked );
+        }
+    }
+
+
+    /**
+     * Runs the given number of threads against the given cache for the given time, each doing lookups of random names, with an add after every given number of lookups, and
+     * returns the total operations per second.
+     *
+     * @param _cache The cache to use.
+     * @param _records The records the cache holds.
+     * @param _threads The number of threads to run.
+     * @param _seconds The number of seconds to run for.
+     * @param _readsPer The number of lookups per add.
+     * @param _synchronized {@code true} to make every call while holding a single lock.
+     * @return The total operations per second.
+     * @throws InterruptedException if interrupted while waiting for the threads.
+     */
+    private static double run( final DNSCache _cache, final List<NS> _records, final int _threads, final int _seconds, final int _readsPer, final boolean _synchronized )
+            throws InterruptedException {
+
+        LongAdder      operations = new LongAdder();
+        CountDownLatch start      = new CountDownLatch( 1 );
+        CountDownLatch done       = new CountDownLatch( _threads );
+        long[]         deadline   = new long[1];
+
+        for( int t = 0; t < _threads; t++ ) {
+            Thread thread = new Thread( () -> {
+                try {
+                    start.await();
+                }
+                catch( InterruptedException _e ) {
+                    return;
+                }
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+
+                // we only look at the clock every 256 operations, as it's not free...
+                while( ((count & 0xFF) != 0) || (System.nanoTime() < deadline[0]) ) {
+                    NS record = _records.get( random.nextInt( _records.size() ) );
+                    boolean add = (count % (_readsPer + 1)) == _readsPer;
+                    if( _synchronized ) {
+                        synchronized( monitor ) {
+                            operate( _cache, record, add );
+                        }
+                    }
+                    else
+                        operate( _cache, record, add );
+                    count++;
+                }
+                operations.add( count );
+                done.countDown();
+            } );
+            thread.setDaemon( true );
+            thread.start();
+        }
+
+        long started = System.nanoTime();
+        deadline[0] = started + _seconds * 1_000_000_000L;
+        start.countDown();
+        done.await();
+        return operations.sum() / ((System.nanoTime() - started) / 1e9);
+    }
+
+
+    /**
+     * Adds the given record to the given cache, or looks up the records for its name.
+     *
+     * @param _cache The cache to use.
+     * @param _record The record to add, or whose name to look up.
+     * @param _add {@code true} to add the record, {@code false} to look it up.
+     */
+    private static void operate( final DNSCache _cache, final NS _record, final boolean _add ) {
+        if( _add )
+            _cache.add( _record );
+        else
+            _cache.visit( _record.name.text, DNSRRType.NS, (rr) -> {} );
+    }
+}
@@ -0,0 +1,359 @@
+package com.dilatush.dns.examples;
+
+import com.dilatush.dns.DNSResolver;
+import com.dilatush.dns.message.DNSDomainName;
+import com.dilatush.dns.message.DNSQuestion;
+import com.dilatush.dns.message.DNSRRClass;
+import com.dilatush.dns.message.DNSRRType;
+import com.dilatush.dns.misc.DNSCache;
+import com.dilatush.dns.misc.DNSCache.DNSCacheEntry;
+import com.dilatush.dns.misc.DNSExpirationWheel;
+import com.dilatush.dns.misc.DNSIPVersion;
+import com.dilatush.dns.misc.DNSOffHeapStore;
+import com.dilatush.dns.misc.DNSResolverError;
+import com.dilatush.dns.misc.DNSResolverException;
+import com.dilatush.dns.misc.DNSRootHints;
+import com.dilatush.dns.query.AbstractTimeout;
+import com.dilatush.dns.query.DNSQuery.QueryResult;
+import com.dilatush.dns.query.Timeouts;
+import com.dilatush.dns.rr.A;
+import com.dilatush.dns.rr.CNAME;
+import com.dilatush.dns.rr.DNSResourceRecord;
+import com.dilatush.util.Outcome;
+import com.dilatush.util.ip.IPv4Address;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Checks the resolver's internal data structures against what they promise, printing a line for each check and exiting with a non-zero status if any fails:</p>
+ * <ul>
+ *     <li>{@link DNSOffHeapStore}: the slab ring is wrapped around many times, and then every name's chain must hold only that name's records, the live records found
+ *     through the index must add up to the store's count, the newest records must all still be there, and re-adding a record, adding to an RRset, and replacing an RRset
+ *     must supersede and re-expire what they should.</li>
+ *     <li>{@link DNSExpirationWheel}: entries expiring up to three days ahead (so most start in the far wheel) must come out of {@link DNSExpirationWheel#earliest()} in
+ *     order of expiration, and {@link DNSExpirationWheel#sweep(long,int,java.util.function.Consumer)} must find exactly the expired ones.</li>
+ *     <li>{@link Timeouts}: random timeouts, some cancelled, must each fire once, on time (or not at all, if cancelled), and {@link Timeouts#nextCheckTime()} must never be
+ *     later than the earliest pending timeout.</li>
+ *     <li>{@link DNSCache} snapshots: a saved snapshot must load every record back, with its data intact, and a truncated snapshot must be reported, having loaded just the records
+ *     before the cut.</li>
+ *     <li>Sub-query loops: {@link DNSResolver#subquery(DNSQuestion,Set,java.util.function.Consumer)} must fail a sub-query whose question is in its own lineage, and one nested
+ *     too deeply, at once, without sending anything.  (The other half of cycle detection, not joining a query in flight that waits on the sub-query's lineage, needs queries
+ *     held in flight by real DNS servers, so it isn't checked here.)</li>
+ * </ul>
+ */
+@SuppressWarnings( "unused" )
+public class DataStructureSelfCheck {
+
+    private static boolean ok = true;  // false once any check has failed...
+
+
+    public static void main( final String[] _args ) throws Exception {
+
+        checkOffHeapStore();
+        checkExpirationWheel();
+        checkTimeouts();
+        checkSnapshot();
+        checkSubqueryLoops();
+
+        System.out.println( ok ? "PASSED" : "FAILED" );
+        System.exit( ok ? 0 : 1 );
+    }
+
+
+    /**
+     * Wraps a small off-heap store's slab ring around many times, then checks its index and counts, and how it supersedes records.
+     */
+    private static void checkOffHeapStore() {
+
+        int names      = 5_000;
+        int additions  = 100_000;
+        int maxRecords = 2_000;
+        DNSOffHeapStore store = new DNSOffHeapStore( 512 * 1024, maxRecords );  // four slabs of 128KB, each holding a couple of thousand records...
+        long expires = System.currentTimeMillis() + 3_600_000;
+
+        for( int i = 0; i < additions; i++ )
+            store.add( a( "n" + (i % names) + ".ring.test", i ), expires );
+
+        // every chain holds only its own name's records, and the live records add up to the count...
+        int found = 0;
+        int wrongName = 0;
+        for( int n = 0; n < names; n++ ) {
+            String name = "n" + n + ".ring.test";
+            int[] count = new int[1];
+            int[] wrong = new int[1];
+            store.get( name, 0, (rr, expiration) -> {
+                count[0]++;
+                if( !rr.name.text.equals( name ) )
+                    wrong[0]++;
+            } );
+            found     += count[0];
+            wrongName += wrong[0];
+        }
+        check( "off-heap: chains hold only their own name's records", wrongName == 0, wrongName + " records under the wrong name" );
+        check( "off-heap: live records found through the index match the count", found == store.size(), found + " found, " + store.size() + " counted" );
+        check( "off-heap: the record limit holds (within a slab)", store.size() <= 2 * maxRecords, store.size() + " records" );
+
+        // the newest record for each of the last few hundred names must still be there...
+        int missing = 0;
+        for( int i = additions - 500; i < additions; i++ ) {
+            A newest = a( "n" + (i % names) + ".ring.test", i );
+            boolean[] there = new boolean[1];
+            store.get( newest.name.text, 0, (rr, expiration) -> there[0] |= rr.sameAs( newest ) );
+            if( !there[0] )
+                missing++;
+        }
+        check( "off-heap: the newest records survive the ring wrapping", missing == 0, missing + " of 500 missing" );
+
+        // adding a record again supersedes the old copy; adding to the RRset re-expires all of it; replacing the RRset leaves only the new one...
+        String name = "set.ring.test";
+        store.add( a( name, 1 ), expires );
+        store.add( a( name, 2 ), expires );
+        int before = store.size();
+        store.add( a( name, 1 ), expires + 1000 );
+        check( "off-heap: re-adding a record supersedes the old copy", store.size() == before, before + " -> " + store.size() );
+        List<Long> expirations = new ArrayList<>();
+        store.get( name, 0, (rr, expiration) -> expirations.add( expiration ) );
+        check( "off-heap: adding to an RRset re-expires all of it", (expirations.size() == 2) && expirations.stream().allMatch( (e) -> e == expires + 1000 ),
+                expirations.toString() );
+        store.addRRset( List.of( a( name, 3 ) ), expires );
+        List<DNSResourceRecord> after = new ArrayList<>();
+        store.get( name, 0, (rr, expiration) -> after.add( rr ) );
+        check( "off-heap: replacing an RRset leaves only the new one", (after.size() == 1) && after.get( 0 ).sameAs( a( name, 3 ) ), after.toString() );
+    }
+
+
+    /**
+     * Fills an expiration wheel with entries expiring up to three days ahead, then checks that they come out in order, and that a sweep finds just the expired ones.
+     */
+    private static void checkExpirationWheel() {
+
+        long now = System.currentTimeMillis();
+        Random random = new Random( 1 );
+        DNSExpirationWheel wheel = new DNSExpirationWheel();
+        List<DNSCacheEntry> entries = new ArrayList<>();
+        for( int i = 0; i < 20_000; i++ ) {
+            DNSCacheEntry entry = entry( "w" + i + ".wheel.test", now + 1000 + (long)(random.nextDouble() * 3 * 86_400_000L) );
+            entries.add( entry );
+            wheel.add( entry );
+        }
+        entries.sort( Comparator.comparingLong( (entry) -> entry.expiration ) );
+
+        int outOfOrder = 0;
+        for( DNSCacheEntry expected : entries ) {
+            DNSCacheEntry earliest = wheel.earliest();
+            if( (earliest == null) || ((earliest.expiration / 1000) != (expected.expiration / 1000)) )
+                outOfOrder++;
+            if( earliest != null )
+                wheel.remove( earliest );
+        }
+        check( "wheel: entries come out in order of expiration", outOfOrder == 0, outOfOrder + " of " + entries.size() + " out of order" );
+        check( "wheel: empty once every entry is removed", wheel.earliest() == null, "not empty" );
+
+        // one entry has expired, one expires tomorrow; a sweep now finds the first, and a sweep two days from now finds the second...
+        DNSCacheEntry expired  = entry( "old.wheel.test", now + 500 );
+        DNSCacheEntry tomorrow = entry( "far.wheel.test", now + 86_400_000L );
+        wheel.add( expired );
+        wheel.add( tomorrow );
+        List<DNSCacheEntry> swept = new ArrayList<>();
+        wheel.sweep( now + 2000, 10, (entry) -> { swept.add( entry ); wheel.remove( entry ); } );
+        check( "wheel: a sweep finds just the expired entry", swept.equals( List.of( expired ) ) && (wheel.earliest() == tomorrow ), swept.toString() );
+        wheel.sweep( now + 2 * 86_400_000L, 10, (entry) -> { swept.add( entry ); wheel.remove( entry ); } );
+        check( "wheel: a later sweep finds the far entry", swept.equals( List.of( expired, tomorrow ) ) && (wheel.earliest() == null), swept.toString() );
+    }
+
+
+    /**
+     * Runs random timeouts, cancelling some, for a few seconds, checking that each fires once and on time, and that the next check time is never late.
+     *
+     * @throws InterruptedException if interrupted while sleeping.
+     */
+    private static void checkTimeouts() throws InterruptedException {
+
+        Timeouts timeouts = new Timeouts();
+        Random random = new Random( 2 );
+        List<CheckTimeout> pending = new ArrayList<>();
+        List<CheckTimeout> all = new ArrayList<>();
+        int lateChecks = 0;
+        long end = System.currentTimeMillis() + 3000;
+        while( (System.currentTimeMillis() < end) || !pending.isEmpty() ) {
+
+            if( (System.currentTimeMillis() < end) && (random.nextInt( 3 ) == 0) ) {
+                CheckTimeout timeout = new CheckTimeout( random.nextInt( 1000 ) );
+                timeouts.add( timeout );
+                pending.add( timeout );
+                all.add( timeout );
+            }
+            if( (random.nextInt( 10 ) == 0) && !pending.isEmpty() )
+                pending.get( random.nextInt( pending.size() ) ).cancel();
+
+            timeouts.check();
+            pending.removeIf( AbstractTimeout::isDone );
+
+            long next     = timeouts.nextCheckTime();
+            long earliest = pending.stream().mapToLong( AbstractTimeout::getExpiration ).min().orElse( Long.MAX_VALUE );
+            if( !pending.isEmpty() && ((next < 0) || (next > earliest)) )
+                lateChecks++;
+            Thread.sleep( Math.max( 0, Math.min( 5, ((next < 0) ? 5 : next - System.currentTimeMillis()) ) ) );
+        }
+
+        long wrongCount = all.stream().filter( (timeout) -> timeout.fired.get() > 1 ).count();
+        long late       = all.stream().filter( (timeout) -> timeout.firedAt - timeout.getExpiration() > 50 ).count();
+        check( "timeouts: each fires at most once", wrongCount == 0, wrongCount + " fired more than once" );
+        check( "timeouts: none fires more than 50ms late", late == 0, late + " late" );
+        check( "timeouts: the next check time is never after the earliest timeout", lateChecks == 0, lateChecks + " late check times" );
+    }
+
+
+    /**
+     * Saves a cache to a snapshot, loads it into a new cache, and checks the records; then does the same with the snapshot cut in half.
+     *
+     * @throws Exception on any problem with the temporary files.
+     */
+    private static void checkSnapshot() throws Exception {
+
+        DNSCache cache = new DNSCache( 10_000, 7_200_000, new DNSRootHints(), DNSIPVersion.IPv4 );
+        List<DNSResourceRecord> records = new ArrayList<>();
+        for( int i = 0; i < 1000; i++ )
+            records.add( a( "s" + i + ".snapshot.test", i ) );
+        records.add( CNAME.create( DNSDomainName.fromString( "alias.snapshot.test" ).info(), 3600, DNSDomainName.fromString( "s0.snapshot.test" ).info() ).info() );
+        for( DNSResourceRecord rr : records )
+            cache.add( rr );
+
+        Path file = Files.createTempFile( "dns-snapshot", ".bin" );
+        Path half = Files.createTempFile( "dns-snapshot-half", ".bin" );
+        try {
+            Outcome<Integer> saved = cache.save( file );
+            check( "snapshot: saves every record", saved.ok() && (saved.info() == records.size()), saved.ok() ? saved.info() + " saved" : saved.msg() );
+
+            DNSCache loaded = new DNSCache( 10_000, 7_200_000, new DNSRootHints(), DNSIPVersion.IPv4 );
+            Outcome<Integer> load = loaded.load( file );
+            int intact = 0;
+            for( DNSResourceRecord rr : records ) {
+                List<DNSResourceRecord> got = loaded.get( rr.name, rr.type );
+                if( (got.size() == 1) && got.get( 0 ).sameAs( rr ) && (got.get( 0 ).ttl <= rr.ttl) )
+                    intact++;
+            }
+            check( "snapshot: loads every record back intact", load.ok() && (load.info() == records.size()) && (intact == records.size()),
+                    (load.ok() ? load.info() + " loaded, " : load.msg() + ", ") + intact + " intact" );
+
+            byte[] bytes = Files.readAllBytes( file );
+            Files.write( half, java.util.Arrays.copyOf( bytes, bytes.length / 2 ) );
+            DNSCache partial = new DNSCache( 10_000, 7_200_000, new DNSRootHints(), DNSIPVersion.IPv4 );
+            Outcome<Integer> partialLoad = partial.load( half );
+            int wrong = 0;
+            for( DNSResourceRecord rr : records ) {
+                for( DNSResourceRecord got : partial.get( rr.name, rr.type ) )
+                    if( !got.sameAs( rr ) )
+                        wrong++;
+            }
+            boolean someLoaded = partialLoad.notOk() && (partial.size() > 0) && (partial.size() < records.size());
+            check( "snapshot: a truncated snapshot is reported, and loads just the records before the cut", someLoaded && (wrong == 0),
+                    partial.size() + " loaded, " + wrong + " wrong" );
+        }
+        finally {
+            Files.deleteIfExists( file );
+            Files.deleteIfExists( half );
+        }
+    }
+
+
+    /**
+     * Checks that a resolver fails a sub-query that loops back on its own lineage, and one nested too deeply, at once.
+     *
+     * @throws Exception if the resolver can't be made, or on interruption.
+     */
+    private static void checkSubqueryLoops() throws Exception {
+
+        DNSResolver resolver = new DNSResolver.Builder().getDNSResolver().info();
+        DNSQuestion question = new DNSQuestion( DNSDomainName.fromString( "loop.test" ).info(), DNSRRType.A );
+
+        // the question is in its own lineage...
+        CompletableFuture<Outcome<QueryResult>> loop = new CompletableFuture<>();
+        resolver.subquery( question, Set.of( question ), loop::complete );
+        check( "sub-queries: a question in its own lineage fails as a loop", isLoop( loop ), "not reported as a loop" );
+
+        // the lineage is too long...
+        Set<DNSQuestion> lineage = new HashSet<>();
+        for( int i = 0; i < 16; i++ )
+            lineage.add( new DNSQuestion( DNSDomainName.fromString( "l" + i + ".loop.test" ).info(), DNSRRType.A ) );
+        CompletableFuture<Outcome<QueryResult>> deep = new CompletableFuture<>();
+        resolver.subquery( question, lineage, deep::complete );
+        check( "sub-queries: nesting too deeply fails", isLoop( deep ), "not reported as a loop" );
+    }
+
+
+    /**
+     * Returns {@code true} if the given outcome arrives within five seconds, and is a failure reporting a resolution loop.
+     *
+     * @param _outcome The outcome to wait for.
+     * @return {@code true} if the outcome reports a resolution loop.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private static boolean isLoop( final CompletableFuture<Outcome<QueryResult>> _outcome ) throws InterruptedException {
+        try {
+            Outcome<QueryResult> outcome = _outcome.get( 5, TimeUnit.SECONDS );
+            return outcome.notOk() && (outcome.cause() instanceof DNSResolverException dre) && (dre.error == DNSResolverError.RESOLUTION_LOOP);
+        }
+        catch( Exception _e ) {
+            if( _e instanceof InterruptedException )
+                throw (InterruptedException) _e;
+            return false;
+        }
+    }
+
+
+    /**
+     * Prints the result of a check, and remembers if it failed.
+     *
+     * @param _what What was checked.
+     * @param _passed {@code true} if the check passed.
+     * @param _detail What was found, printed if the check failed.
+     */
+    private static void check( final String _what, final boolean _passed, final String _detail ) {
+        System.out.println( (_passed ? "ok      " : "FAILED  ") + _what + (_passed ? "" : ": " + _detail) );
+        ok &= _passed;
+    }
+
+
+    private static A a( final String _name, final int _n ) {
+        byte[] address = { 10, (byte)(_n >> 16), (byte)(_n >> 8), (byte) _n };
+        return A.create( DNSDomainName.fromString( _name ).info(), 3600, IPv4Address.fromBytes( address ).info() ).info();
+    }
+
+
+    private static DNSCacheEntry entry( final String _name, final long _expiration ) {
+        return new DNSCacheEntry( List.of( a( _name, 1 ) ), _expiration );
+    }
+
+
+    /**
+     * A timeout that notes when, and how many times, it fired.
+     */
+    private static class CheckTimeout extends AbstractTimeout {
+
+        private final AtomicInteger fired = new AtomicInteger();
+        private volatile long       firedAt;
+
+
+        private CheckTimeout( final long _timeoutMS ) {
+            super( _timeoutMS );
+        }
+
+
+        @Override
+        protected void onTimeout() {
+            firedAt = System.currentTimeMillis();
+            fired.incrementAndGet();
+        }
+    }
+}
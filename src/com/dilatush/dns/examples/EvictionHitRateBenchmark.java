@@ -0,0 +1,125 @@
+package com.dilatush.dns.examples;
+
+import com.dilatush.dns.message.DNSDomainName;
+import com.dilatush.dns.message.DNSRRType;
+import com.dilatush.dns.misc.DNSCache;
+import com.dilatush.dns.misc.DNSCacheEvictionPolicy;
+import com.dilatush.dns.misc.DNSIPVersion;
+import com.dilatush.dns.misc.DNSRootHints;
+import com.dilatush.dns.misc.DNSTTLEvictionPolicy;
+import com.dilatush.dns.misc.DNSTinyLFUEvictionPolicy;
+import com.dilatush.dns.rr.A;
+import com.dilatush.util.ip.IPv4Address;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+/**
+ * <p>Compares the hit rates of {@link DNSCache}'s eviction policies ({@link DNSTTLEvictionPolicy} and {@link DNSTinyLFUEvictionPolicy}) on a synthetic trace of lookups.  The
+ * trace mixes lookups of popular names, drawn from a Zipf distribution over 100,000 names, with bursts of lookups of names that are never seen again (as a crawler or a
+ * spam run would cause).  Each name's A record has a TTL chosen (by the name) from one minute, five minutes, an hour, and a day.  Each lookup that misses adds the name's
+ * record, as a resolver would once it had the answer.  The same trace (from the same seed) is run against a cache with each policy, for a few cache sizes.</p>
+ * <p>The trace runs much faster than its TTLs, so nothing expires during it; what's measured is only which records each policy chooses to evict.  The arguments, all
+ * optional, are the number of lookups (default: 2,000,000), the Zipf exponent (default: 0.9), and the fraction of lookups that are one-time names (default: 0.2).</p>
+ */
+@SuppressWarnings( "unused" )
+public class EvictionHitRateBenchmark {
+
+    private static final int   NAMES  = 100_000;                     // the number of popular names...
+    private static final int[] TTLS   = { 60, 300, 3600, 86400 };    // the TTLs (in seconds) records may have...
+    private static final int[] SIZES  = { 2_000, 10_000, 40_000 };   // the cache sizes to try (in resource records)...
+    private static final int   BURST  = 500;                         // the number of one-time names in each burst...
+    private static final long  SEED   = 1234567L;                    // so every policy sees the same trace...
+
+
+    public static void main( final String[] _args ) {
+
+        int    lookups  = (_args.length > 0) ? Integer.parseInt( _args[0] )      : 2_000_000;
+        double exponent = (_args.length > 1) ? Double.parseDouble( _args[1] )    : 0.9;
+        double oneTime  = (_args.length > 2) ? Double.parseDouble( _args[2] )    : 0.2;
+
+        double[] cdf = zipf( exponent );
+
+        System.out.printf( "%,d lookups, Zipf exponent %.2f over %,d names, %.0f%% one-time names%n", lookups, exponent, NAMES, oneTime * 100 );
+        System.out.printf( "%-10s %14s %14s%n", "size", "TTL hit %", "TinyLFU hit %" );
+        for( int size : SIZES ) {
+            double ttl     = run( size, (partitionSize) -> new DNSTTLEvictionPolicy(), cdf, lookups, oneTime );
+            double tinyLFU = run( size, DNSTinyLFUEvictionPolicy::new,                 cdf, lookups, oneTime );
+            System.out.printf( "%-10d %14.2f %14.2f%n", size, ttl * 100, tinyLFU * 100 );
+        }
+    }
+
+
+    /**
+     * Runs the trace against a new cache of the given size with the given eviction policy, and returns the fraction of lookups that hit.
+     *
+     * @param _size The maximum number of resource records in the cache.
+     * @param _policyFactory Makes the eviction policy for each of the cache's partitions.
+     * @param _cdf The cumulative distribution of the popular names.
+     * @param _lookups The number of lookups in the trace.
+     * @param _oneTime The fraction of lookups that are of one-time names.
+     * @return The fraction of lookups that hit.
+     */
+    private static double run( final int _size, final IntFunction<DNSCacheEvictionPolicy> _policyFactory, final double[] _cdf, final int _lookups,
+                               final double _oneTime ) {
+
+        DNSCache cache  = new DNSCache( _size, 7 * 86400000L, new DNSRootHints(), DNSIPVersion.IPv4, _policyFactory );
+        Random   random = new Random( SEED );
+        long     hits   = 0;
+        long     unique = 0;  // the number of one-time names made up so far...
+        int      burst  = 0;  // the number of one-time lookups left in the current burst...
+
+        for( int i = 0; i < _lookups; i++ ) {
+
+            // start a burst of one-time names often enough that they make up the given fraction of the lookups...
+            if( (burst == 0) && (random.nextDouble() < _oneTime / BURST) )
+                burst = BURST;
+
+            String name;
+            int    ttl;
+            if( burst > 0 ) {
+                burst--;
+                name = "u" + unique++ + ".crawl.example.org";
+                ttl  = TTLS[ (int)(unique % TTLS.length) ];
+            }
+            else {
+                int index = Arrays.binarySearch( _cdf, random.nextDouble() );
+                index = Math.min( NAMES - 1, (index < 0) ? -index - 1 : index );
+                name  = "n" + index + ".example.com";
+                ttl   = TTLS[ index % TTLS.length ];
+            }
+
+            if( cache.visit( name, DNSRRType.A, (rr) -> {} ) > 0 )
+                hits++;
+            else
+                cache.add( a( name, ttl ) );
+        }
+        return hits / (double) _lookups;
+    }
+
+
+    /**
+     * Returns the cumulative distribution of a Zipf distribution with the given exponent over the popular names, with the most popular name first.
+     *
+     * @param _exponent The exponent of the distribution.
+     * @return The cumulative distribution.
+     */
+    private static double[] zipf( final double _exponent ) {
+
+        double[] cdf = new double[ NAMES ];
+        double sum = 0;
+        for( int i = 0; i < NAMES; i++ ) {
+            sum += 1 / Math.pow( i + 1, _exponent );
+            cdf[i] = sum;
+        }
+        for( int i = 0; i < NAMES; i++ )
+            cdf[i] /= sum;
+        return cdf;
+    }
+
+
+    private static A a( final String _name, final int _ttl ) {
+        return A.create( DNSDomainName.fromString( _name ).info(), _ttl, IPv4Address.fromBytes( new byte[] { 10, 0, 0, 1 } ).info() ).info();
+    }
+}
@@ -0,0 +1,245 @@
+package com.dilatush.dns.examples;
+
+import com.dilatush.dns.DNSResolver;
+import com.dilatush.dns.message.DNSDomainName;
+import com.dilatush.dns.message.DNSQuestion;
+import com.dilatush.dns.message.DNSRRType;
+import com.dilatush.dns.misc.DNSServerSelection;
+import com.dilatush.dns.query.DNSMessageIDAllocator;
+import com.dilatush.dns.query.DNSQuery.QueryResult;
+import com.dilatush.util.Outcome;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Stress tests the allocation of wire message IDs, and the matching of responses to queries on (server, ID, question).  It runs in two parts:</p>
+ * <ul>
+ *     <li>Several threads allocate and release IDs from one {@link DNSMessageIDAllocator} as fast as they can, checking that no ID is ever allocated while it's in flight,
+ *     and then the allocator is filled, checking that it hands out every one of the 65,536 IDs exactly once before failing.</li>
+ *     <li>A forwarding {@link DNSResolver} sends queries (by default, a million of them, with up to 5,000 in flight at once) to a stand-in DNS server on the loopback
+ *     interface.  The stand-in answers each query with an NS record owned by the query's name, but answers them in batches, shuffled, so responses arrive out of order, and
+ *     drops a few of them, so some queries time out and are retried.  Every query is for a different name (so none are coalesced or answered from the cache), and every
+ *     response is checked against its query's name.</li>
+ * </ul>
+ * <p>The arguments, both optional, are the number of queries (default: 1,000,000) and the most in flight at once (default: 5,000).  The test prints what it found, and exits
+ * with a non-zero status if anything went wrong.</p>
+ */
+@SuppressWarnings( "unused" )
+public class QueryIDStressTest {
+
+    private static final int    ALLOCATOR_THREADS    = 4;
+    private static final int    ALLOCATIONS          = 2_000_000;  // per thread...
+    private static final int    BATCH                = 64;         // the stand-in server answers this many queries at a time, shuffled...
+    private static final double DROP_RATE            = 0.0005;     // the fraction of queries the stand-in server drops...
+
+
+    public static void main( final String[] _args ) throws Exception {
+
+        int queries  = (_args.length > 0) ? Integer.parseInt( _args[0] ) : 1_000_000;
+        int inFlight = (_args.length > 1) ? Integer.parseInt( _args[1] ) : 5_000;
+
+        boolean ok = testAllocator();
+        ok &= testResolver( queries, inFlight );
+        System.out.println( ok ? "PASSED" : "FAILED" );
+        System.exit( ok ? 0 : 1 );
+    }
+
+
+    /**
+     * Hammers a single allocator from several threads, then fills it.
+     *
+     * @return {@code true} if the allocator never handed out an ID that was in flight, and handed out all 65,536 when filled.
+     * @throws InterruptedException if interrupted while waiting for the threads.
+     */
+    private static boolean testAllocator() throws InterruptedException {
+
+        DNSMessageIDAllocator allocator = new DNSMessageIDAllocator();
+        AtomicIntegerArray    owned     = new AtomicIntegerArray( 65536 );  // 1 for each ID a thread believes it holds...
+        AtomicLong            doubles   = new AtomicLong();
+
+        List<Thread> threads = new ArrayList<>();
+        for( int t = 0; t < ALLOCATOR_THREADS; t++ ) {
+            Thread thread = new Thread( () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int[] held = new int[ 4096 ];  // each thread keeps up to this many IDs in flight, so the allocator is kept fairly busy...
+                int   holding = 0;
+                for( int i = 0; i < ALLOCATIONS; i++ ) {
+                    if( (holding == held.length) || ((holding > 0) && random.nextBoolean()) ) {
+                        int index = random.nextInt( holding );
+                        int id    = held[index];
+                        held[index] = held[--holding];
+                        owned.set( id, 0 );
+                        allocator.release( id );
+                    }
+                    else {
+                        int id = allocator.allocate();
+                        if( !owned.compareAndSet( id, 0, 1 ) )
+                            doubles.incrementAndGet();
+                        held[holding++] = id;
+                    }
+                }
+                while( holding > 0 ) {
+                    int id = held[--holding];
+                    owned.set( id, 0 );
+                    allocator.release( id );
+                }
+            } );
+            threads.add( thread );
+            thread.start();
+        }
+        for( Thread thread : threads )
+            thread.join();
+
+        // now fill it up, and make sure every ID comes out exactly once...
+        boolean[] seen = new boolean[ 65536 ];
+        int distinct = 0;
+        int id;
+        while( (id = allocator.allocate()) >= 0 ) {
+            if( !seen[id] ) {
+                seen[id] = true;
+                distinct++;
+            }
+        }
+
+        System.out.println( "Allocator: " + (ALLOCATOR_THREADS * (long) ALLOCATIONS) + " operations on " + ALLOCATOR_THREADS + " threads, " + doubles.get()
+                + " IDs allocated while in flight; filled with " + distinct + " distinct IDs, " + allocator.inFlight() + " in flight" );
+        return (doubles.get() == 0) && (distinct == 65536) && (allocator.inFlight() == 65536);
+    }
+
+
+    /**
+     * Runs the given number of queries, no more than the given number at once, through a forwarding resolver to a stand-in server.
+     *
+     * @param _queries The number of queries to run.
+     * @param _inFlight The most queries to have in flight at once.
+     * @return {@code true} if every query got the answer for its own question.
+     * @throws Exception on any problem setting up the stand-in server or the resolver.
+     */
+    private static boolean testResolver( final int _queries, final int _inFlight ) throws Exception {
+
+        DatagramChannel server = DatagramChannel.open();
+        server.bind( new InetSocketAddress( "127.0.0.1", 0 ) );
+        Thread standIn = new Thread( () -> serve( server ) );
+        standIn.setDaemon( true );
+        standIn.start();
+
+        DNSResolver.Builder builder = new DNSResolver.Builder();
+        builder.addDNSServer( (InetSocketAddress) server.getLocalAddress(), 1000, 0, "stand-in" );
+        DNSResolver resolver = builder.getDNSResolver().info();
+
+        Semaphore  permits    = new Semaphore( _inFlight );
+        AtomicLong answered   = new AtomicLong();
+        AtomicLong mismatched = new AtomicLong();
+        AtomicLong failed     = new AtomicLong();
+
+        long start = System.nanoTime();
+        for( int i = 0; i < _queries; i++ ) {
+            permits.acquire();
+            DNSQuestion question = new DNSQuestion( DNSDomainName.fromString( "q" + i + ".stress.test" ).info(), DNSRRType.NS );
+            resolver.query( question, (Outcome<QueryResult> _outcome) -> {
+                if( _outcome.notOk() )
+                    failed.incrementAndGet();
+                else if( _outcome.info().response().answers.isEmpty()
+                        || !_outcome.info().response().answers.get( 0 ).name.equals( question.qname ) )
+                    mismatched.incrementAndGet();
+                else
+                    answered.incrementAndGet();
+                permits.release();
+            }, DNSServerSelection.priority() );
+        }
+        permits.acquire( _inFlight );
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf( "Resolver: %d queries in %.1f seconds (%.0f/second), %d answered correctly, %d with the wrong answer, %d failed%n",
+                _queries, seconds, _queries / seconds, answered.get(), mismatched.get(), failed.get() );
+        return (mismatched.get() == 0) && (answered.get() + failed.get() == _queries);
+    }
+
+
+    /**
+     * The stand-in DNS server: answers each query it receives with an NS record owned by the query's name (pointing at the name itself), in shuffled batches, dropping a few.
+     *
+     * @param _server The channel the server receives on and sends from.
+     */
+    private static void serve( final DatagramChannel _server ) {
+
+        ByteBuffer               receive  = ByteBuffer.allocate( 4096 );
+        List<ByteBuffer>         batch    = new ArrayList<>();
+        List<InetSocketAddress>  senders  = new ArrayList<>();
+        ThreadLocalRandom        random   = ThreadLocalRandom.current();
+        try {
+            while( true ) {
+
+                // collect a batch of queries, or whatever's waiting if there aren't that many...
+                _server.configureBlocking( batch.isEmpty() );
+                receive.clear();
+                InetSocketAddress sender = (InetSocketAddress) _server.receive( receive );
+                if( sender != null ) {
+                    receive.flip();
+                    if( random.nextDouble() >= DROP_RATE ) {
+                        batch.add( answer( receive ) );
+                        senders.add( sender );
+                    }
+                    if( batch.size() < BATCH )
+                        continue;
+                }
+
+                // answer them, out of order...
+                List<Integer> order = new ArrayList<>();
+                for( int i = 0; i < batch.size(); i++ )
+                    order.add( i );
+                Collections.shuffle( order );
+                for( int i : order )
+                    _server.send( batch.get( i ), senders.get( i ) );
+                batch.clear();
+                senders.clear();
+            }
+        }
+        catch( IOException _e ) {
+            System.out.println( "Stand-in server failed: " + _e.getMessage() );
+        }
+    }
+
+
+    /**
+     * Returns the answer to the given query: its header and question, marked as a response with one answer (an NS record owned by the question's name, pointing at that
+     * name), and without the query's additional records (its OPT record, if it has one).
+     *
+     * @param _query The query, positioned at its start.
+     * @return The answer, ready to send.
+     */
+    private static ByteBuffer answer( final ByteBuffer _query ) {
+
+        // find the end of the question (its name, then its type and class)...
+        int end = 12;
+        while( _query.get( end ) != 0 )
+            end += 1 + (_query.get( end ) & 0xFF);
+        end += 5;
+
+        ByteBuffer answer = ByteBuffer.allocate( end + 14 );
+        answer.put( _query.array(), 0, end );
+        answer.put( 2, (byte)(answer.get( 2 ) | 0x80) );   // it's a response...
+        answer.put( 3, (byte) 0x80 );                        // recursion available, no error...
+        answer.putShort( 6, (short) 1 );                     // one answer...
+        answer.putShort( 8, (short) 0 );                     // no authorities...
+        answer.putShort( 10, (short) 0 );                    // no additional records...
+        answer.putShort( (short) 0xC00C );                   // the name is the question's name...
+        answer.putShort( (short) DNSRRType.NS.code );
+        answer.putShort( (short) 1 );                        // class IN...
+        answer.putInt( 0 );                                  // a TTL of zero, so it isn't cached...
+        answer.putShort( (short) 2 );
+        answer.putShort( (short) 0xC00C );                   // the name server is the question's name, too...
+        answer.flip();
+        return answer;
+    }
+}
@@ -301,6 +301,19 @@ public class DNSDomainName {
     }
 
 
+    /**
+     * Returns a rough estimate of the number of bytes of heap that this domain name occupies, including its text, its labels, and the lists and strings that hold them.  The
+     * estimate assumes a 64 bit JVM with compressed object pointers and compact (one byte per character) strings.
+     *
+     * @return the estimated number of bytes of heap that this domain name occupies.
+     */
+    public int estimatedSize() {
+
+        // this object and its text (~64 bytes plus the characters), the label list (~56 bytes plus 4 per label), and each label with its text (~56 bytes plus the characters)...
+        return 120 + 2 * length + 60 * labels.size();
+    }
+
+
     /**
      * Attempts to create a new instance of this class from the encoded bytes in the given DNS message {@link ByteBuffer}.  Note that because this
      * is decoding from the message, the encoding may be the compressed form; this method will decompress any such compressed encoding.
@@ -1,5 +1,6 @@
 package com.dilatush.dns.message;
 
+import com.dilatush.dns.misc.DNSBufferPool;
 import com.dilatush.dns.misc.DNSResolverError;
 import com.dilatush.dns.misc.DNSResolverException;
 import com.dilatush.dns.rr.DNSResourceRecord;
@@ -10,9 +11,9 @@ import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.*;
 
-//   +----------------------------------------+
-//   | See RFC 1035 and RFC 5395 for details. |
-//   +----------------------------------------+
+//   +----------------------------------------------------+
+//   | See RFC 1035, RFC 5395, and RFC 6891 for details.  |
+//   +----------------------------------------------------+
 
 /**
  * Instances of this class represent DNS messages of any kind.  Instances of this class may be created either by using an instance of the
@@ -25,7 +26,7 @@ import java.util.*;
 public class DNSMessage {
 
     // the buffer sizes that we'll try while encoding...
-    private static final int[] MAX_DNS_MESSAGE_BUFFER_SIZES = new int[] { 512, 8192 + 2, 16384 + 2, 65536 + 2 };
+    private static final int   MIN_ENCODER_BUFFER_SIZE = 512;  // the size of the first buffer we try to encode into...
 
     private static final Outcome.Forge<DNSMessage> outcome       = new Outcome.Forge<>();
     private static final Outcome.Forge<ByteBuffer> encodeOutcome = new Outcome.Forge<>();
@@ -61,7 +62,7 @@ public class DNSMessage {
     /** This field is {@code true} in a query if the resolver will accept non-authenticated answers and authorities. */
     public final boolean                 checkingDisabled;       // valid in query only; true if resolver will accept non-authenticated answers and authorities...
 
-    /** In a response, this field indicates whether the response was ok, or had a problem. */
+    /** In a response, this field indicates whether the response was ok, or had a problem.  With EDNS, this is the whole twelve bit extended response code. */
     public final DNSResponseCode         responseCode;           // valid in responses only; ok or type of error...
 
     /** In a query, the questions to ask the server (normally just one).  These questions are copied to the server's response. */
@@ -76,6 +77,9 @@ public class DNSMessage {
     /** In a response, resource records of any type that were not the answers actually asked for, but which may contain useful additional information. */
     public final List<DNSResourceRecord> additionalRecords;      // the additional records in this message...
 
+    /** The EDNS(0) OPT pseudo-resource record in this message (encoded as an additional record), or {@code null} if there is none. */
+    public final DNSOPTRecord            opt;                    // the EDNS OPT pseudo-record, or null if this message doesn't use EDNS...
+
 
     /**
      * Creates a new instance of this class with the given parameters.  Note that this constructor is private, and is used only by {@link Builder} and
@@ -97,12 +101,13 @@ public class DNSMessage {
      * @param _authorities In a response, name server resource records for the name servers that provided the answers.
      * @param _additionalRecords In a response, resource records of any type that were not the answers actually asked for, but which may contain
      *                           useful additional information.
+     * @param _opt The EDNS(0) OPT pseudo-resource record, or {@code null} if the message doesn't use EDNS.
      */
     private DNSMessage(
             final int _id, final boolean _isResponse, DNSOpCode _opCode, final boolean _authoritativeAnswer, final boolean _truncated,
             final boolean _recurse, final boolean _canRecurse, final boolean _z, final boolean _authenticated, final boolean _checkingDisabled,
             final DNSResponseCode _responseCode, final List<DNSQuestion> _questions, final List<DNSResourceRecord> _answers,
-            final List<DNSResourceRecord> _authorities, final List<DNSResourceRecord> _additionalRecords) {
+            final List<DNSResourceRecord> _authorities, final List<DNSResourceRecord> _additionalRecords, final DNSOPTRecord _opt ) {
 
         id                  = _id;
         isResponse          = _isResponse;
@@ -119,6 +124,7 @@ public class DNSMessage {
         answers             = Collections.unmodifiableList( _answers           );
         authorities         = Collections.unmodifiableList( _authorities       );
         additionalRecords   = Collections.unmodifiableList( _additionalRecords );
+        opt                 = _opt;
     }
 
 
@@ -176,7 +182,48 @@ public class DNSMessage {
                 questions,            // copy the questions (always just one) from the query to the response...
                 _answers,             // the answers we're returning...
                 _authorities,         // the authorities we're returning...
-                _additionalRecords    // the additional records we're returning...
+                _additionalRecords,   // the additional records we're returning...
+                null                  // synthetic responses don't use EDNS...
+        );
+    }
+
+
+    /**
+     * Synthesizes an authoritative negative response message (RFC 2308) based on this message, which must be a query.  The response has no answers, and its authorities are
+     * the given records (normally just the SOA record for the zone that said the answer doesn't exist).  The response code must be either {@link DNSResponseCode#NAME_ERROR}
+     * (the queried name does not exist) or {@link DNSResponseCode#OK} (the queried name exists, but has no records of the queried type).
+     *
+     * @param _responseCode The response code for this message, either NAME_ERROR or OK.
+     * @param _authorities The authorities for this response message.
+     * @return The synthetic response message.
+     */
+    public DNSMessage getSyntheticNegativeResponse( final DNSResponseCode _responseCode, final List<DNSResourceRecord> _authorities ) {
+
+        if( isResponse || (opCode != DNSOpCode.QUERY) )
+            throw new UnsupportedOperationException( "Can synthesize responses only for query messages" );
+
+        Checks.required( _responseCode, _authorities );
+
+        if( (_responseCode != DNSResponseCode.NAME_ERROR) && (_responseCode != DNSResponseCode.OK) )
+            throw new IllegalArgumentException( "Negative responses must be NAME_ERROR or OK: " + _responseCode );
+
+        return new DNSMessage(
+                id,                   // the response has the same ID as the query...
+                true,                 // it's a response...
+                opCode,               // the response has the same OpCode as the query...
+                true,                 // cached negative answers are authoritative...
+                false,                // the response is not truncated..
+                recurse,              // response is copied from the query...
+                false,                // the cache cannot recurse...
+                z,                    // z is copied from the query...
+                false,                // the cached response is not authenticated...
+                false,                // checking is not disabled...
+                _responseCode,        // NAME_ERROR or OK (no data)...
+                questions,            // copy the questions (always just one) from the query to the response...
+                new ArrayList<>(0),   // a negative response has no answers...
+                _authorities,         // the authorities (the SOA) we're returning...
+                new ArrayList<>(0),   // our synthetic response has no additional records...
+                null                  // synthetic responses don't use EDNS...
         );
     }
 
@@ -209,29 +256,54 @@ public class DNSMessage {
                 questions,            // copy the questions (always just one) from the query to the response...
                 new ArrayList<>(0),   // the answers we're synthesizing a response for...
                 new ArrayList<>(0),   // our synthetic response has no authorities...
-                new ArrayList<>(0)    // our synthetic response has no additional records...
+                new ArrayList<>(0),   // our synthetic response has no additional records...
+                null                  // synthetic responses don't use EDNS...
         );
     }
 
 
+    /**
+     * Returns a copy of this message with the given EDNS(0) OPT pseudo-resource record, or with none if the given record is {@code null}.  If this message already has the
+     * given record, it is returned unchanged.
+     *
+     * @param _opt The {@link DNSOPTRecord} for the copy, or {@code null} for none.
+     * @return The copy of this message.
+     */
+    public DNSMessage withOPT( final DNSOPTRecord _opt ) {
+
+        if( opt == _opt )
+            return this;
+
+        return new DNSMessage(
+                id, isResponse, opCode, authoritativeAnswer, truncated, recurse, canRecurse, z, authenticated,
+                checkingDisabled, responseCode, questions, answers, authorities, additionalRecords, _opt );
+    }
+
+
     /**
      * <p>Attempt to encode this instance into the wire format for a DNS message, into a {@link ByteBuffer} instance.  If the attempt is successful,
      * an ok {@link Outcome Outcome&lt;ByteBuffer&gt;} is returned containing the {@link ByteBuffer} with the encoded instance.  If the attempt was
      * unsuccessful, a not ok outcome is returned, with a message explaining the problem encountered.</p>
-     * <p>Internally this method first attempts to encode into a 512-byte buffer (the maximum size of a UDP DNS packet).  If that attempt fails, it
-     * will try several successively larger buffers until either it fits, or we've determined that it cannot fit into the 65538 bytes that is the
+     * <p>Internally this method first attempts to encode into a 512-byte buffer (the maximum size of a classic UDP DNS packet).  If that attempt fails,
+     * it will try several successively larger buffers until either it fits, or we've determined that it cannot fit into the 65538 bytes that is the
      * maximum size for a TCP DNS packet.</p>
+     * <p>The buffers are direct buffers from the {@link DNSBufferPool}.  The caller owns the returned buffer, and must release it to the pool when it is
+     * finished with it.</p>
      *
      * @return the {@link Outcome Outcome&lt;ByteBuffer&gt;} with the results of the encoding attempt.
      */
     public Outcome<ByteBuffer> encode() {
 
+        // the upper bits of an extended response code go in the OPT record...
+        DNSOPTRecord ednsRecord = encodedOPT();
+
         // try successively larger buffers to encode into...
         bufferSizes:
-        for( int maxDnsMessageBufferSize : MAX_DNS_MESSAGE_BUFFER_SIZES ) {
+        for( int size = MIN_ENCODER_BUFFER_SIZE; size > 0; size = DNSBufferPool.nextSize( size ) ) {
 
-            // create the buffer to contain our result...
-            ByteBuffer msgBuffer = ByteBuffer.allocate( maxDnsMessageBufferSize );  // by default, it's big-endian...
+            // get the buffer to contain our result; we release it if we fail to encode into it...
+            ByteBuffer msgBuffer = DNSBufferPool.acquire( size );  // by default, it's big-endian...
+            size = msgBuffer.capacity();
 
             // create an empty offsets map for the domain name compression mechanism...
             Map<String,Integer> offsets = new HashMap<>();
@@ -244,7 +316,7 @@ public class DNSMessage {
 
             // fabricate and stuff away our sixteen bits of flags and codes, working from the LSBs up...
             int x;
-            x = responseCode.code;
+            x = responseCode.code & 0x0F;
             x |= checkingDisabled    ? 0x0010 : 0;
             x |= authenticated       ? 0x0020 : 0;
             x |= z                   ? 0x0040 : 0;
@@ -260,7 +332,7 @@ public class DNSMessage {
             msgBuffer.putShort( (short) questions.size() );
             msgBuffer.putShort( (short) answers.size() );
             msgBuffer.putShort( (short) authorities.size()       );
-            msgBuffer.putShort( (short) additionalRecords.size() );
+            msgBuffer.putShort( (short) (additionalRecords.size() + ((ednsRecord == null) ? 0 : 1)) );
 
             Outcome<?> result;
 
@@ -268,7 +340,8 @@ public class DNSMessage {
             for( DNSQuestion question : questions ) {
                 result = question.encode( msgBuffer, offsets );
                 if( result.ok() ) continue;
-                if( result.cause() instanceof BufferOverflowException ) continue bufferSizes;
+                DNSBufferPool.release( msgBuffer );
+                if( isOverflow( result ) ) continue bufferSizes;
                 return encodeOutcome.notOk( result.msg(), result.cause() );
             }
 
@@ -276,7 +349,8 @@ public class DNSMessage {
             for( DNSResourceRecord answer : answers ) {
                 result = answer.encode( msgBuffer, offsets );
                 if( result.ok() ) continue;
-                if( result.cause() instanceof BufferOverflowException ) continue bufferSizes;
+                DNSBufferPool.release( msgBuffer );
+                if( isOverflow( result ) ) continue bufferSizes;
                 return encodeOutcome.notOk( result.msg(), result.cause() );
             }
 
@@ -284,7 +358,8 @@ public class DNSMessage {
             for( DNSResourceRecord authority : authorities ) {
                 result = authority.encode( msgBuffer, offsets );
                 if( result.ok() ) continue;
-                if( result.cause() instanceof BufferOverflowException ) continue bufferSizes;
+                DNSBufferPool.release( msgBuffer );
+                if( isOverflow( result ) ) continue bufferSizes;
                 return encodeOutcome.notOk( result.msg(), result.cause() );
             }
 
@@ -292,10 +367,21 @@ public class DNSMessage {
             for( DNSResourceRecord additionalRecord : additionalRecords ) {
                 result = additionalRecord.encode( msgBuffer, offsets );
                 if( result.ok() ) continue;
-                if( result.cause() instanceof BufferOverflowException ) continue bufferSizes;
+                DNSBufferPool.release( msgBuffer );
+                if( isOverflow( result ) ) continue bufferSizes;
                 return encodeOutcome.notOk( result.msg(), result.cause() );
             }
 
+            // encode our EDNS OPT pseudo-record, if we have one (it's counted as an additional record)...
+            if( ednsRecord != null ) {
+                result = ednsRecord.encode( msgBuffer );
+                if( result.notOk() ) {
+                    DNSBufferPool.release( msgBuffer );
+                    if( isOverflow( result ) ) continue bufferSizes;
+                    return encodeOutcome.notOk( result.msg(), result.cause() );
+                }
+            }
+
             // if we make it here, then we've encoded the whole thing - flip the buffer and skedaddle...
             msgBuffer.flip();
             return encodeOutcome.ok( msgBuffer );
@@ -309,6 +395,36 @@ public class DNSMessage {
     }
 
 
+    /**
+     * Returns the OPT pseudo-record to encode with this message: our own, unless our response code is an extended one (RFC 6891) whose upper eight bits our OPT record doesn't
+     * hold, in which case it's a copy of our OPT record (or, if we don't have one, a minimal one) holding them.
+     *
+     * @return The OPT pseudo-record to encode, or {@code null} if none is needed.
+     */
+    private DNSOPTRecord encodedOPT() {
+
+        int upper = responseCode.code >> 4;
+        if( (opt == null) ? (upper == 0) : (opt.extendedResponseCode == upper) )
+            return opt;
+        return (opt == null)
+                ? new DNSOPTRecord( DNSOPTRecord.MIN_UDP_PAYLOAD_SIZE, upper, 0, false, new ArrayList<>( 0 ) )
+                : new DNSOPTRecord( opt.udpPayloadSize, upper, opt.version, opt.dnssecOK, opt.options );
+    }
+
+
+    /**
+     * Returns {@code true} if the given encoding outcome failed because the encoder buffer overflowed.  The encoders report this with a cause that is either a
+     * {@link BufferOverflowException} or a {@link DNSResolverException} with an error of {@link DNSResolverError#ENCODER_BUFFER_OVERFLOW}.
+     *
+     * @param _result The outcome of an encoding operation.
+     * @return {@code true} if the encoding failed because the encoder buffer overflowed.
+     */
+    private static boolean isOverflow( final Outcome<?> _result ) {
+        return (_result.cause() instanceof BufferOverflowException)
+                || ((_result.cause() instanceof DNSResolverException) && (((DNSResolverException) _result.cause()).error == DNSResolverError.ENCODER_BUFFER_OVERFLOW));
+    }
+
+
     /**
      * Attempt to decode the DNS message in wire format contained in the given message {@link ByteBuffer}.  The buffer must have a limit of the
      * received message's size, and a position of zero.  If the attempt was successful, an ok {@link Outcome Outcome&lt;DNSMessage&gt;} is returned,
@@ -344,6 +460,7 @@ public class DNSMessage {
             .setAuthenticated(             (flags & 0x0020) != 0                      )
             .setCheckingDisabled(          (flags & 0x0010) != 0                      )
             .setResponseCode(              DNSResponseCode.fromCode( flags & 0x0F )   );
+        int responseCode = flags & 0x0F;  // the lower four bits of the response code; an OPT record may have the upper eight...
 
         // decode the four 16-bit question and resource record counts...
         int quc = 0xFFFF & _msgBuffer.getShort();
@@ -377,6 +494,20 @@ public class DNSMessage {
 
         // decode any additional resource records...
         for( int i = 0; i < adc; i++ ) {
+
+            // the EDNS OPT pseudo-record is not a real resource record (its class isn't a class!), so we decode it separately...
+            if( DNSOPTRecord.isOPT( _msgBuffer ) ) {
+                Outcome<DNSOPTRecord> optOutcome = DNSOPTRecord.decode( _msgBuffer );
+                if( optOutcome.notOk() )
+                    return outcome.notOk( optOutcome.msg(), optOutcome.cause() );
+                builder.setOPT( optOutcome.info() );
+
+                // with EDNS, the response code is twelve bits, of which the OPT record has the upper eight (RFC 6891, section 6.1.3)...
+                if( optOutcome.info().extendedResponseCode != 0 )
+                    builder.setResponseCode( DNSResponseCode.fromCode( (optOutcome.info().extendedResponseCode << 4) | responseCode ) );
+                continue;
+            }
+
             Outcome<? extends DNSResourceRecord> additionalOutcome = DNSResourceRecord.decode( _msgBuffer );
             if( additionalOutcome.notOk() )
                 return outcome.notOk( additionalOutcome.msg(), additionalOutcome.cause() );
@@ -444,6 +575,12 @@ public class DNSMessage {
             } );
         }
 
+        // the EDNS OPT pseudo-record...
+        if( opt != null ) {
+            sb.append( "\nEDNS: " );
+            sb.append( opt.toString() );
+        }
+
         // and, finally, we're done...
         return sb.toString();
     }
@@ -471,6 +608,7 @@ public class DNSMessage {
         private final List<DNSResourceRecord> answers;                // the answers in this message...
         private final List<DNSResourceRecord> authorities;            // the authorities in this message...
         private final List<DNSResourceRecord> additionalRecords;      // the additional records in this message...
+        private       DNSOPTRecord            opt;                    // the EDNS OPT pseudo-record, or null if none...
 
 
         /**
@@ -497,7 +635,7 @@ public class DNSMessage {
         public DNSMessage getMessage() {
             return new DNSMessage(
                     id, isResponse, opCode, authoritativeAnswer, truncated, recurse, canRecurse, z, authenticated,
-                    checkingDisabled, responseCode, questions, answers, authorities, additionalRecords );
+                    checkingDisabled, responseCode, questions, answers, authorities, additionalRecords, opt );
         }
 
 
@@ -673,5 +811,30 @@ public class DNSMessage {
             responseCode = _responseCode;
             return this;
         }
+
+
+        /**
+         * Set the EDNS(0) OPT pseudo-resource record for this message, or {@code null} for none (the default).
+         *
+         * @param _opt The {@link DNSOPTRecord}, or {@code null}.
+         * @return This {@link Builder}, as a convenience for setter chaining.
+         */
+        public Builder setOPT( final DNSOPTRecord _opt ) {
+            opt = _opt;
+            return this;
+        }
+
+
+        /**
+         * Use EDNS(0) in this message, advertising the given UDP payload size (the largest UDP response we can receive).  A size of zero (or less) means don't use EDNS,
+         * which is the default.  Sizes between 1 and 511 are treated as 512.
+         *
+         * @param _udpPayloadSize The UDP payload size to advertise, or zero for no EDNS.
+         * @return This {@link Builder}, as a convenience for setter chaining.
+         */
+        public Builder setEDNSBufferSize( final int _udpPayloadSize ) {
+            opt = (_udpPayloadSize > 0) ? new DNSOPTRecord( _udpPayloadSize ) : null;
+            return this;
+        }
     }
 }
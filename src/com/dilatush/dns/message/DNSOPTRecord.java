@@ -0,0 +1,221 @@
+package com.dilatush.dns.message;
+
+//   +------------------------------+
+//   | See RFC 6891 for details.    |
+//   +------------------------------+
+
+import com.dilatush.dns.misc.DNSResolverError;
+import com.dilatush.dns.misc.DNSResolverException;
+import com.dilatush.util.Checks;
+import com.dilatush.util.Outcome;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Instances of this class represent the EDNS(0) OPT pseudo-resource record, which may appear (at most once) in the additional records of a DNS message.  It isn't really a
+ * resource record at all: its owner name is always the root, its class field holds the sender's UDP payload size (the largest UDP message it can receive), and its TTL field
+ * holds the upper eight bits of an extended response code, the EDNS version, and the "DNSSEC OK" flag.  Its resource data is a list of options, each with a code and some
+ * bytes of data.  Because it isn't really a resource record, instances of this class are held by {@link DNSMessage} separately from the other additional records, and are
+ * never cached.  Instances are immutable and threadsafe.</p>
+ */
+@SuppressWarnings( "unused" )
+public class DNSOPTRecord {
+
+    private static final Outcome.Forge<DNSOPTRecord> outcome       = new Outcome.Forge<>();
+    private static final Outcome.Forge<?>            encodeOutcome = new Outcome.Forge<>();
+
+    /** The smallest UDP payload size that may be advertised; smaller values are treated as this value (RFC 6891, section 6.2.5). */
+    public static final int MIN_UDP_PAYLOAD_SIZE = 512;
+
+    /** The option code for the EDNS TCP keepalive option (RFC 7828). */
+    public static final int TCP_KEEPALIVE_OPTION = 11;
+
+
+    /** The largest UDP message (in bytes) that the sender of this record can receive. */
+    public final int          udpPayloadSize;
+
+    /** The upper eight bits of the twelve bit extended response code. */
+    public final int          extendedResponseCode;
+
+    /** The EDNS version; this implementation supports only version zero. */
+    public final int          version;
+
+    /** {@code true} if the sender can handle DNSSEC resource records. */
+    public final boolean      dnssecOK;
+
+    /** The options in this record. */
+    public final List<Option> options;
+
+
+    /**
+     * Creates a new instance of this class with the given arguments.
+     *
+     * @param _udpPayloadSize The largest UDP message (in bytes) that the sender can receive.
+     * @param _extendedResponseCode The upper eight bits of the extended response code.
+     * @param _version The EDNS version.
+     * @param _dnssecOK {@code true} if the sender can handle DNSSEC resource records.
+     * @param _options The options in this record.
+     */
+    public DNSOPTRecord( final int _udpPayloadSize, final int _extendedResponseCode, final int _version, final boolean _dnssecOK, final List<Option> _options ) {
+
+        Checks.required( _options );
+
+        udpPayloadSize       = Math.max( MIN_UDP_PAYLOAD_SIZE, Math.min( 0xFFFF, _udpPayloadSize ) );
+        extendedResponseCode = 0xFF & _extendedResponseCode;
+        version              = 0xFF & _version;
+        dnssecOK             = _dnssecOK;
+        options              = Collections.unmodifiableList( new ArrayList<>( _options ) );
+    }
+
+
+    /**
+     * Creates a new instance of this class for EDNS version zero, with the given UDP payload size and options.
+     *
+     * @param _udpPayloadSize The largest UDP message (in bytes) that the sender can receive.
+     * @param _options The options in this record.
+     */
+    public DNSOPTRecord( final int _udpPayloadSize, final List<Option> _options ) {
+        this( _udpPayloadSize, 0, 0, false, _options );
+    }
+
+
+    /**
+     * Creates a new instance of this class for EDNS version zero, with the given UDP payload size and no options.
+     *
+     * @param _udpPayloadSize The largest UDP message (in bytes) that the sender can receive.
+     */
+    public DNSOPTRecord( final int _udpPayloadSize ) {
+        this( _udpPayloadSize, 0, 0, false, new ArrayList<>( 0 ) );
+    }
+
+
+    /**
+     * Returns the first option in this record with the given code, or {@code null} if there is none.
+     *
+     * @param _code The option code.
+     * @return the option with the given code, or {@code null} if there is none.
+     */
+    public Option getOption( final int _code ) {
+
+        for( Option option : options ) {
+            if( option.code() == _code )
+                return option;
+        }
+        return null;
+    }
+
+
+    /**
+     * Encodes this instance into the given {@link ByteBuffer} at its current position.  If the encoding was successful, an ok {@link Outcome} is returned.  Otherwise, a not
+     * ok {@link Outcome} with an explanatory message is returned.
+     *
+     * @param _msgBuffer The {@link ByteBuffer} to encode this instance into.
+     * @return the {@link Outcome}, either ok or not ok with an explanatory message.
+     */
+    public Outcome<?> encode( final ByteBuffer _msgBuffer ) {
+
+        Checks.required( _msgBuffer );
+
+        // figure out how many bytes we need: root name, type, class, TTL, data length, and the options...
+        int dataLength = 0;
+        for( Option option : options )
+            dataLength += 4 + option.data().length;
+        if( _msgBuffer.remaining() < (11 + dataLength) )
+            return encodeOutcome.notOk( "Encoder buffer overflow", new DNSResolverException( "Buffer overflow", DNSResolverError.ENCODER_BUFFER_OVERFLOW ) );
+
+        _msgBuffer.put( (byte) 0 );                                                 // the root domain name...
+        _msgBuffer.putShort( (short) DNSRRType.OPT.code );                          // the type...
+        _msgBuffer.putShort( (short) udpPayloadSize );                              // the "class" is our UDP payload size...
+        _msgBuffer.put( (byte) extendedResponseCode );                              // the "TTL" is the extended response code, version, and flags...
+        _msgBuffer.put( (byte) version );
+        _msgBuffer.putShort( (short) (dnssecOK ? 0x8000 : 0) );
+        _msgBuffer.putShort( (short) dataLength );                                  // the resource data length...
+        for( Option option : options ) {                                            // and finally the options...
+            _msgBuffer.putShort( (short) option.code() );
+            _msgBuffer.putShort( (short) option.data().length );
+            _msgBuffer.put( option.data() );
+        }
+
+        return encodeOutcome.ok();
+    }
+
+
+    /**
+     * Returns {@code true} if the resource record at the current position of the given {@link ByteBuffer} is an OPT pseudo-resource record.  The buffer's position is not
+     * changed.
+     *
+     * @param _msgBuffer The {@link ByteBuffer} containing the DNS message being decoded.
+     * @return {@code true} if the resource record at the current position is an OPT pseudo-resource record.
+     */
+    public static boolean isOPT( final ByteBuffer _msgBuffer ) {
+
+        int pos = _msgBuffer.position();
+        return (_msgBuffer.remaining() >= 3) && (_msgBuffer.get( pos ) == 0) && ((0xFFFF & _msgBuffer.getShort( pos + 1 )) == DNSRRType.OPT.code);
+    }
+
+
+    /**
+     * Decode the OPT pseudo-resource record at the current position of the given DNS message {@link ByteBuffer}.  On exit, the buffer is positioned at the first byte
+     * following the record.  Returns an ok outcome with the decoded record if there were no problems, or a not ok outcome with an explanatory message otherwise.
+     *
+     * @param _msgBuffer The {@link ByteBuffer} to decode the record from.
+     * @return The {@link Outcome} of the decoding operation.
+     */
+    public static Outcome<DNSOPTRecord> decode( final ByteBuffer _msgBuffer ) {
+
+        Checks.required( _msgBuffer );
+
+        if( _msgBuffer.remaining() < 11 )
+            return outcome.notOk( "Decoder buffer underflow", new DNSResolverException( "Buffer underflow", DNSResolverError.DECODER_BUFFER_UNDERFLOW ) );
+
+        _msgBuffer.get();                                          // skip the root domain name...
+        _msgBuffer.getShort();                                     // skip the type (we know it's OPT)...
+        int     udpPayloadSize       = 0xFFFF & _msgBuffer.getShort();
+        int     extendedResponseCode = 0xFF & _msgBuffer.get();
+        int     version              = 0xFF & _msgBuffer.get();
+        boolean dnssecOK             = (_msgBuffer.getShort() & 0x8000) != 0;
+        int     dataLength           = 0xFFFF & _msgBuffer.getShort();
+
+        if( _msgBuffer.remaining() < dataLength )
+            return outcome.notOk( "Decoder buffer underflow", new DNSResolverException( "Buffer underflow", DNSResolverError.DECODER_BUFFER_UNDERFLOW ) );
+
+        // decode the options...
+        List<Option> options = new ArrayList<>();
+        int end = _msgBuffer.position() + dataLength;
+        while( _msgBuffer.position() < end ) {
+
+            if( (end - _msgBuffer.position()) < 4 )
+                return outcome.notOk( "Truncated EDNS option", new DNSResolverException( "Truncated EDNS option", DNSResolverError.INVALID_RESOURCE_RECORD_DATA ) );
+
+            int code   = 0xFFFF & _msgBuffer.getShort();
+            int length = 0xFFFF & _msgBuffer.getShort();
+            if( (end - _msgBuffer.position()) < length )
+                return outcome.notOk( "Truncated EDNS option", new DNSResolverException( "Truncated EDNS option", DNSResolverError.INVALID_RESOURCE_RECORD_DATA ) );
+
+            byte[] data = new byte[length];
+            _msgBuffer.get( data );
+            options.add( new Option( code, data ) );
+        }
+
+        return outcome.ok( new DNSOPTRecord( udpPayloadSize, extendedResponseCode, version, dnssecOK, options ) );
+    }
+
+
+    /**
+     * Return a string representing this instance.
+     *
+     * @return a string representing this instance.
+     */
+    public String toString() {
+        return "OPT (EDNS version: " + version + ", UDP payload size: " + udpPayloadSize + ", DNSSEC OK: " + dnssecOK + ", options: " + options.size() + ")";
+    }
+
+
+    /**
+     * A single EDNS option, with its option code and data.
+     */
+    public record Option( int code, byte[] data ) {}
+}
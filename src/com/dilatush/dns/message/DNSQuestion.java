@@ -9,6 +9,7 @@ import com.dilatush.util.Outcome;
 
 import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * Instances of this class represent a DNS question, with a domain name (the subject of the question), the resource record type desired, and the
@@ -95,6 +96,34 @@ public class DNSQuestion {
     }
 
 
+    /**
+     * Returns {@code true} if this object is equal to the given object, which is the case if it is a {@link DNSQuestion} with the same qname, qtype, and qclass.
+     *
+     * @param _o The object to test for equality to this object.
+     * @return {@code true} if this object is equal to the given object.
+     */
+    @Override
+    public boolean equals( final Object _o ) {
+
+        if( this == _o ) return true;
+        if( _o == null || getClass() != _o.getClass() ) return false;
+        DNSQuestion that = (DNSQuestion) _o;
+        return qname.equals( that.qname ) && (qtype == that.qtype) && (qclass == that.qclass);
+    }
+
+
+    /**
+     * Returns a hash code for this object.
+     *
+     * @return a hash code for this object.
+     */
+    @Override
+    public int hashCode() {
+
+        return Objects.hash( qname, qtype, qclass );
+    }
+
+
     /**
      * Attempts to create a new instance of this class from the bytes at the current position of the given {@link ByteBuffer}.
      *
@@ -31,6 +31,7 @@ public enum DNSRRType {
     MX    ( false, "MX",    15  ),    // mail exchange...
     TXT   ( false, "TXT",   16  ),    // text strings...
     AAAA  ( false, "AAAA",  28  ),    // an IPv6 host address...
+    OPT   ( false, "OPT",   41  ),    // the EDNS(0) pseudo-record (see DNSOPTRecord); only ever in a message's additional records...
     AXFR  ( true,  "AXFR",  252 ),    // A request for a transfer of an entire zone...
     MAILB ( true,  "MAILB", 253 ),    // A request for mailbox-related records (MB, MG or MR)...
     MAILA ( true,  "MAILA", 254 ),    // A request for mail agent RRs (Obsolete - see MX)...
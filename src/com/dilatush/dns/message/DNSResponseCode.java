@@ -16,9 +16,11 @@ public enum DNSResponseCode {
     SERVER_FAILURE  ( 2 ),  // Name server failure...
     NAME_ERROR      ( 3 ),  // Only from authoritative name servers - the queried domain name does not exist...
     NOT_IMPLEMENTED ( 4 ),  // Name server does not implement the kind of query...
-    REFUSED         ( 5 );  // Name server refused to perform the operation (likely due to a policy)...
+    REFUSED         ( 5 ),  // Name server refused to perform the operation (likely due to a policy)...
+    BADVERS         ( 16 ); // EDNS only - the name server doesn't implement the EDNS version of the query (RFC 6891)...
 
-    // remaining possible values (codes) 6-15 are reserved for future use...
+    // the remaining possible values (codes) 6-15 are reserved for future use; codes above 15 are extended response codes, whose upper eight bits are carried in the EDNS
+    // OPT pseudo-record (see DNSOPTRecord)...
 
     // map of code to enum value, for decoding...
     // initialized statically because we can't do it from the constructor...
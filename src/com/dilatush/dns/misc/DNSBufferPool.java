@@ -0,0 +1,192 @@
+package com.dilatush.dns.misc;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.dilatush.util.General.getLogger;
+
+/**
+ * <p>Static container class for a pool of direct {@link ByteBuffer}s, used for network reads and for encoding DNS messages, so that the I/O path creates (almost) no garbage.
+ * The buffers come in a few size classes, from 512 bytes (the largest classic UDP DNS message) to 65,538 bytes (the largest TCP DNS message, with its length prefix); a request
+ * for a buffer gets one from the smallest class that can hold it.  Each class keeps a limited number of free buffers; buffers released when their class is full are simply left
+ * for the garbage collector, as are requests for more than the largest class.</p>
+ * <p>Every buffer acquired from the pool must be released back to it exactly once, and must not be used after it has been released.  If the system property
+ * {@code com.dilatush.dns.bufferPoolDebug} is {@code true}, the pool tracks every buffer it hands out, and logs a warning (with the stack trace of the acquisition) for any
+ * buffer that is garbage collected without having been released, or that is released when it isn't outstanding.  This costs a good deal of time, so it's intended only for
+ * debugging.</p>
+ */
+@SuppressWarnings( "unused" )
+public class DNSBufferPool {
+
+    private static final Logger  LOGGER         = getLogger();
+
+    private static final int[]   SIZES          = new int[] { 512, 2048, 8192 + 2, 16384 + 2, 65536 + 2 };   // the buffer size classes...
+    private static final int[]   MAX_FREE       = new int[] { 1024, 512,  64,       16,        4         };  // the maximum number of free buffers in each class...
+
+    private static final boolean DEBUG          = Boolean.getBoolean( "com.dilatush.dns.bufferPoolDebug" );
+
+    private static final List<Queue<ByteBuffer>> free      = new ArrayList<>( SIZES.length );     // the free buffers in each size class...
+    private static final AtomicInteger[]         freeCount = new AtomicInteger[SIZES.length];  // the number of free buffers in each size class...
+
+    // these are used only in debug mode...
+    private static final Set<Tracker>              outstanding = ConcurrentHashMap.newKeySet();  // a tracker for each buffer that has been acquired but not released...
+    private static final ReferenceQueue<ByteBuffer> collected   = new ReferenceQueue<>();         // trackers for buffers that have been garbage collected...
+
+    static {
+        for( int i = 0; i < SIZES.length; i++ ) {
+            free.add( new ConcurrentLinkedQueue<>() );
+            freeCount[i] = new AtomicInteger();
+        }
+    }
+
+
+    /**
+     * Returns a cleared direct {@link ByteBuffer} with a capacity of at least the given size.  Its position is zero and its limit is its capacity, which may be larger than the
+     * requested size.  The buffer must be released (with {@link #release(ByteBuffer)}) when it is no longer needed.
+     *
+     * @param _size The minimum capacity (in bytes) of the buffer.
+     * @return the buffer.
+     */
+    public static ByteBuffer acquire( final int _size ) {
+
+        int sizeClass = sizeClass( _size );
+        ByteBuffer buffer = null;
+
+        // if we have a free buffer of the right size, use it; otherwise make a new one...
+        if( sizeClass >= 0 ) {
+            buffer = free.get( sizeClass ).poll();
+            if( buffer != null )
+                freeCount[sizeClass].decrementAndGet();
+            else
+                buffer = ByteBuffer.allocateDirect( SIZES[sizeClass] );  // by default, it's big-endian...
+        }
+        else
+            buffer = ByteBuffer.allocateDirect( _size );
+
+        if( DEBUG ) {
+            reportLeaks();
+            outstanding.add( new Tracker( buffer ) );
+        }
+
+        return buffer;
+    }
+
+
+    /**
+     * Returns the given {@link ByteBuffer} (which must have been acquired with {@link #acquire(int)}) to the pool.  The caller must not use the buffer after releasing it.  Does
+     * nothing if the given buffer is {@code null}.
+     *
+     * @param _buffer The buffer to release.
+     */
+    public static void release( final ByteBuffer _buffer ) {
+
+        if( _buffer == null )
+            return;
+
+        if( DEBUG ) {
+            reportLeaks();
+            if( !untrack( _buffer ) ) {
+                LOGGER.log( Level.WARNING, "Released a buffer that isn't outstanding", new Throwable( "Released at:" ) );
+                return;
+            }
+        }
+
+        // if the buffer is one of our sizes, and we don't already have too many free buffers of that size, keep it...
+        int sizeClass = sizeClass( _buffer.capacity() );
+        if( (sizeClass < 0) || (SIZES[sizeClass] != _buffer.capacity()) || !_buffer.isDirect() )
+            return;
+        if( freeCount[sizeClass].incrementAndGet() > MAX_FREE[sizeClass] ) {
+            freeCount[sizeClass].decrementAndGet();
+            return;
+        }
+        _buffer.clear();
+        free.get( sizeClass ).add( _buffer );
+    }
+
+
+    /**
+     * Returns the capacity of the next size class larger than the given size, or -1 if there is none.  The encoder uses this to decide what size buffer to try next, when a
+     * message didn't fit in a buffer of the given size.
+     *
+     * @param _size The size (in bytes) that was too small.
+     * @return the capacity of the next larger size class, or -1 if there is none.
+     */
+    public static int nextSize( final int _size ) {
+        int sizeClass = sizeClass( _size + 1 );
+        return (sizeClass < 0) ? -1 : SIZES[sizeClass];
+    }
+
+
+    /**
+     * Returns the index of the smallest size class that can hold the given number of bytes, or -1 if none can.
+     *
+     * @param _size The size (in bytes) of the buffer needed.
+     * @return the index of the size class, or -1 if there is none big enough.
+     */
+    private static int sizeClass( final int _size ) {
+        for( int i = 0; i < SIZES.length; i++ ) {
+            if( _size <= SIZES[i] )
+                return i;
+        }
+        return -1;
+    }
+
+
+    /**
+     * Stop tracking the given buffer, returning {@code true} if it was being tracked (that is, if it was outstanding).  Used only in debug mode.
+     *
+     * @param _buffer The buffer to stop tracking.
+     * @return {@code true} if the buffer was being tracked.
+     */
+    private static boolean untrack( final ByteBuffer _buffer ) {
+
+        for( Tracker tracker : outstanding ) {
+            if( tracker.get() == _buffer ) {
+                outstanding.remove( tracker );
+                tracker.clear();
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Log a warning for every tracked buffer that has been garbage collected without being released.  Used only in debug mode.
+     */
+    private static void reportLeaks() {
+
+        Object ref;
+        while( (ref = collected.poll()) != null ) {
+            Tracker tracker = (Tracker) ref;
+            if( outstanding.remove( tracker ) )
+                LOGGER.log( Level.WARNING, "Buffer was garbage collected without being released", tracker.acquisition );
+        }
+    }
+
+
+    /**
+     * Instances of this class track a single outstanding buffer in debug mode, recording where it was acquired.  Trackers use identity equality, as buffers themselves use
+     * content equality.
+     */
+    private static class Tracker extends WeakReference<ByteBuffer> {
+
+        private final Throwable acquisition;  // the stack trace of where the buffer was acquired...
+
+
+        private Tracker( final ByteBuffer _buffer ) {
+            super( _buffer, collected );
+            acquisition = new Throwable( "Acquired at:" );
+        }
+    }
+}
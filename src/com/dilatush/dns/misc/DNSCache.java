@@ -3,103 +3,282 @@ package com.dilatush.dns.misc;
 import com.dilatush.dns.message.*;
 import com.dilatush.dns.rr.DNSResourceRecord;
 import com.dilatush.dns.rr.NS;
+import com.dilatush.dns.rr.SOA;
 import com.dilatush.dns.rr.UNIMPLEMENTED;
 import com.dilatush.util.Checks;
 import com.dilatush.util.General;
 import com.dilatush.util.Outcome;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
 
 import static com.dilatush.dns.message.DNSRRType.*;
 import static com.dilatush.dns.message.DNSResponseCode.*;
-import static com.dilatush.dns.misc.DNSUtil.filterResourceRecords;
 import static com.dilatush.dns.misc.DNSUtil.normalizeResourceRecords;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
 import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.SEVERE;
 
-// TODO: add method to resolve CNAME chains
 // TODO: add method that takes a query message and produces a response message
 
 /**
  * <p>Instances of this class implement a cache for DNS resource records for fully-qualified domain names (FQDNs).  The cache has a fixed limit on the number of resource records
- * that can be cached, set at instantiation time.  Resource records that have expired (as defined by the TTL field) are automatically purged from the cache and are never returned
- * when fetching from the cache.</p>
+ * that can be cached, set at instantiation time, and optionally a limit on the estimated number of bytes of heap that the cached records use (see
+ * {@link #setMaxCacheBytes(long)}), which may be changed at any time.  Resource records that have expired (as defined by the TTL field) are automatically purged from the
+ * cache and are never returned when fetching from the cache.</p>
  * <p>The cache is intentionally very simple, allowing only for new resource records to be added, and resource records for a given FQDN to be fetched.  The design emphasizes
  * minimizing memory consumption (to allow larger caches) over performance (since even a relatively slow cache is still vastly faster than a DNS query).  Instances of this class
- * are mutable (obviously), but are threadsafe because the methods sensitive to mutation are all synchronized.</p>
- * <p>Expired resource records are purged when they are discovered (during resource record addition or fetching).  There is no explicit purge method, and the purges are never for
- * more than a few records at a time.  This means that at any given time the cache may contain any number of expired records, especially if additions and fetches are relatively
- * infrequent events.  However, in no case will an expired resource record in the cache prevent a new resource record from being added.  This "lazy" approach to purging expired
- * records has the benefit of spreading the purging work out, so there will never be a lengthy blockage due to expired record purging.</p>
+ * are mutable (obviously), but are threadsafe.</p>
+ * <p>The cache is lock-striped by domain name: all mutations of the resource records for a given FQDN are made while holding the lock for that FQDN's stripe, so mutations of
+ * unrelated names proceed in parallel.  Reads take no locks at all.  The per-FQDN arrays of cache entries are never modified once they have been published to the entry map
+ * (every mutation publishes a new array), so a reader always sees a consistent (if possibly slightly stale) set of entries.</p>
+ * <p>Expired resource records are purged when they are discovered (during resource record addition or fetching), and by {@link #sweep(int)}, which finds them through a timing
+ * wheel of one-second buckets (see {@link DNSExpirationWheel}) and removes a bounded number at a time.  None of these purges are for more than a bounded number of records at a
+ * time, so there will never be a lengthy blockage due to expired record purging; the flip side is that the cache may hold some expired records for a while, if nothing sweeps
+ * it.  In no case will an expired resource record in the cache prevent a new resource record from being added.  In serve-stale mode (see
+ * {@link #setStaleWindow(long)}), expired records are kept for a while longer, and purged only once they're past the stale window.</p>
+ * <p>The cache also holds negative answers (RFC 2308): names that don't exist (NXDOMAIN, keyed by name) and names that exist but have no records of a given type (NODATA, keyed
+ * by name and type).  A negative answer is cached only if the response that carried it had an SOA record in its authorities, and it is cached for the lesser of that SOA's TTL
+ * and its MINIMUM field.  Adding a resource record for a name removes any negative answers that it contradicts.</p>
+ * <p>The cache is partitioned in two, each part with its own maximum size and its own eviction policy: the infrastructure partition, which holds what recursive resolution
+ * finds its way with (NS and SOA records, and the address records of the name servers named by cached NS records), and the answer partition, which holds everything else.
+ * A burst of one-off lookups can thus evict only other answers, never the delegations that the next recursive query will need.  Both partitions are reached through the
+ * same methods; {@link #getInfrastructureStats()} and {@link #getAnswerStats()} report on each of them.</p>
+ * <p>For very large caches, the resource records may instead be held off the Java heap, in wire format, in a {@link DNSOffHeapStore} (see
+ * {@link #DNSCache(int,long,DNSRootHints,DNSIPVersion,long)}).  Everything above still applies, except for eviction (which is then first-in, first-out, and not
+ * partitioned), the byte budget, and prefetching.</p>
  */
 public class DNSCache {
 
     private static final Logger LOGGER = General.getLogger();
 
-    private static final int  MIN_CACHE_SIZE                   = 1000;
-    private static final int  DEFAULT_MAX_CACHE_SIZE           = 5000;
-    private static final long DEFAULT_MAX_ALLOWABLE_TTL_MILLIS = 2 * 60 * 60 * 1000;  // 2 hours...
+    private static final Outcome.Forge<Integer> outcome = new Outcome.Forge<>();
+
+    private static final int    DEFAULT_MAX_CACHE_SIZE           = 5000;
+    private static final long   DEFAULT_MAX_ALLOWABLE_TTL_MILLIS = 2 * 60 * 60 * 1000;  // 2 hours...
+    private static final int    STRIPE_COUNT                     = 64;                   // must be a power of two...
+    private static final double PREFETCH_JITTER                  = 0.5;                  // the most that an entry's prefetch window is randomly shrunk by...
+    private static final long   STALE_TTL_SECONDS                = 30;                   // the TTL of stale records we serve, as RFC 8767 recommends...
+    private static final int    SNAPSHOT_MAGIC                   = 0x444E5343;           // "DNSC", the first four bytes of a snapshot file...
+    private static final short  SNAPSHOT_VERSION                 = 1;                    // the snapshot file format version...
+    private static final int    SNAPSHOT_BUFFER_SIZE             = 256 * 1024;           // the size of the buffer we write snapshots through...
+    private static final int    MAX_ENCODED_RR_SIZE              = 0x10000 + 512;        // bigger than any encoded resource record (name, header, and data)...
+
+    private static final int             MAX_CNAME_CHAIN = 16;                       // the most CNAME records we'll follow in a chain (guarding against loops)...
+    private static final DNSCacheEntry[] NO_ENTRIES      = new DNSCacheEntry[0];     // the entries for a FQDN that we have nothing for...
 
     private        final int          maxCacheSize;           // the maximum number of resource records that this cache may contain...
     private        final long         maxAllowableTTLMillis;  // the maximum (longest) time-to-live (TTL) that any resource record in the cache is allowed to have...
-    private        final AtomicLong   uniqueInteger;          // differentiates ttlMap entries (see below) that have the same expiration time...
     private        final DNSRootHints rootHints;              // the root hints manager we'll use for recursive resolution...
     private        final DNSIPVersion ipVersion;              // what versions of IP we're using to find name servers...
+    private        final ReentrantLock[] stripes;             // the locks that serialize mutations of entryMap, striped by FQDN...
+    private        volatile Prefetch     prefetch;            // how to refresh popular records before they expire, or null if we don't...
+    private        volatile long         staleWindowMillis;   // how long (in milliseconds) we keep expired records, in case we need to serve them stale...
+    private        final Partition    infrastructure;         // the partition for NS and SOA records, and the name servers' addresses...
+    private        final Partition    answers;                // the partition for all the other records...
+    private        final Map<String,Integer> nameServerNames; // the names of the name servers in the cached NS RRsets, and how many of those RRsets name each...
+    private        final AtomicLong      cachedBytes;         // the estimated number of bytes of heap used by the resource records in entryMap...
+    private        volatile long         maxCacheBytes;       // the maximum estimated number of bytes of heap the cached records may use, or zero for no limit...
+    private        final DNSOffHeapStore offHeapStore;        // holds the resource records off-heap instead of in entryMap, or null if they're on-heap...
+    private        final DNSDelegationTrie delegations;       // the NS RRsets in entryMap, by zone, so we can find the deepest known delegation for a name...
 
     /****************************************************************************************************************************************************
-     * The two maps below are the key data structures for the cache.
-     *
-     * entryMap  Maps a FQDN (as a string) to an array of DNSCacheEntry instances that contain the resource record itself (a DNSResourceRecord instance),
-     *           the expiration time (in milliseconds, as returned by System.currentTimeMillis()), and the key to the entry for this resource record in
-     *           ttlMap.  The array never has any empty (null) elements; each element has a (possibly expired) record.  We chose an array (as opposed to
-     *           a list) because the array is always exactly the right size (minimizing memory consumption) while the array backing an array list may be
-     *           substantially larger than the number of actual elements, and other forms of lists have larger elements and lower performance.
-     *
-     * ttlMap    Maps a DNSTTLCacheKey instance to a DNSCacheEntry.  There is one entry in this map for every resource record held in the entryMap.  The
-     *           key is effectively a 128-bit integer, with the high order 64 bits being the resource record expiration time, and the low order 64 bits
-     *           (the "discriminator") being a unique integer.  The map is a TreeMap, so the keys can be easily traversed in order.  The discriminator is
-     *           necessary because any number of resource records may have the same expiration time; the discriminator ensures that these will all have
-     *           a unique key that is still ordered from earliest-to-latest expiration time.  The DNSCacheEntry value contains all the information
-     *           needed to locate a resource record in the entryMap when it's time to purge it.
+     * The map below is the key data structure for the cache.
+     *
+     * entryMap  Maps a FQDN (as a string) to an array of DNSCacheEntry instances, one for each type (and class) of resource record cached for that FQDN.
+     *           Each entry is a resource record set (RRset): the resource records of that name, type, and class, and the one expiration time (in milliseconds,
+     *           as returned by System.currentTimeMillis()) that they share.  So the map is effectively name -> type -> RRset, and fetching the records of a
+     *           given type is one map lookup plus a scan of an array that's nearly always only one to three entries long.  The array never has any empty (null)
+     *           elements; each element has a (possibly expired) RRset.  We chose an array (as opposed to a map or list) because the array is always exactly the
+     *           right size (minimizing memory consumption), and nothing is faster to scan when it's this short.  The arrays (and the entries in them) are
+     *           copy-on-write: once an array is in the map it is never modified, which is what lets get() run without any locks.  Replacing an RRset is one
+     *           new entry and one new array, however many records the RRset has.
+     *
+     * Every entry is in one of two partitions (infrastructure or answers), chosen when it's stored.  Each partition's eviction policy knows about every entry
+     * in that partition, and decides which to evict when the partition is full; it evicts whole RRsets.  The policy is told about each addition, replacement,
+     * and removal while holding the stripe lock for the entry's FQDN, so an entry is known to its partition's policy if and only if it is in entryMap.  Every
+     * entry is also in its partition's expiration wheel (see DNSExpirationWheel), in the bucket for the second it expires in, which is how expired entries are
+     * found and swept out without searching entryMap.  The wheel is shared with the TTL eviction policy, if that's the policy we have, as that policy needs
+     * exactly the same index; otherwise the partition keeps its own, updated under the same stripe lock.
      ****************************************************************************************************************************************************/
-    private        final Map<String,DNSCacheEntry[]>           entryMap;  // entries are (domain name) -> (list of cache entries) for that domain...
-    private        final TreeMap<DNSTTLCacheKey,DNSCacheEntry> ttlMap;    // entries are (expiration, unique long) -> (cache entry)...
+    private        final Map<String,DNSCacheEntry[]>                          entryMap;  // entries are (domain name) -> (list of cache entries) for that domain...
+
+    // negative answers, keyed by (domain name, null, class) for NXDOMAIN or (domain name, type, class) for NODATA; these are few and small, so a plain map will do...
+    private        final Map<DNSNegativeKey,DNSNegativeEntry>                 negativeMap;
+
+    // answers already assembled by resolveAnswers(), keyed by the question and recursion flag; each remembers the RRsets it was assembled from, and is good only for as long
+    // as none of them has been replaced, removed, or expired...
+    private        final Map<DNSResponseKey,DNSCachedResponse>                responseMap;
+
+    // CNAME chains already followed, flattened: each maps an alias (as a string) to the chain of CNAME records from it to the name at the end of the chain, and remembers the
+    // CNAME RRsets in the chain, and is good only for as long as none of them has been replaced, removed, or expired...
+    private        final Map<String,DNSCachedResponse>                        chainMap;
 
 
     /**
      * <p>Creates a new instance of this class using the given arguments:</p>
      * <ul>
      *     <li>_maxCacheSize - the maximum number of DNS resource records that may be stored in this cache.  If adding a record would cause the cache to exceed this size, the
-     *     resource record closest to expiration is removed before adding the new resource record, thus capping the cache's size.  The minimum cache size is 1,000 resource
-     *     records.  Any attempt to set a cache size smaller than that is silently changed to 1,000 resource records.</li>
+     *     eviction policy chooses resource records to remove, thus capping the cache's size.  The cache size must be at least 2 (one resource record for each of the cache's
+     *     partitions); a smaller size causes an {@link IllegalArgumentException}.</li>
      *     <li>_maxAllowableTTLMillis - the maximum time, in milliseconds, that a resource record may remain cached - no matter what the TTL on the resource record is.  To
      *     prevent capping the TTL, set this value to {@link Long#MAX_VALUE}.  Values must be greater than zero.</li>
+     *     <li>_evictionPolicyFactory - makes the {@link DNSCacheEvictionPolicy} for each of this cache's partitions, given the partition's maximum size (a quarter of
+     *     the maximum cache size for the infrastructure partition, and the rest for the answer partition).  Use {@code DNSTinyLFUEvictionPolicy::new} for a cache that keeps
+     *     the most frequently used records, or {@code (size) -> new DNSTTLEvictionPolicy()} for a cache that evicts the records closest to expiration.</li>
      * </ul>
      *
      * @param _maxCacheSize The maximum number of DNS resource records that may be stored in this cache.
      * @param _maxAllowableTTLMillis The maximum time, in milliseconds, that any resource record is allowed to exist before expiring.
      * @param _rootHints The {@link DNSRootHints} manager to use for recursive resolution.
      * @param _ipVersion Specifies the IP versions to use for finding name servers.
+     * @param _evictionPolicyFactory Makes the {@link DNSCacheEvictionPolicy} for each of this cache's partitions, given the partition's maximum size.
      */
-    public DNSCache( final int _maxCacheSize, final long _maxAllowableTTLMillis, final DNSRootHints _rootHints, final DNSIPVersion _ipVersion ) {
+    public DNSCache( final int _maxCacheSize, final long _maxAllowableTTLMillis, final DNSRootHints _rootHints, final DNSIPVersion _ipVersion,
+                     final IntFunction<DNSCacheEvictionPolicy> _evictionPolicyFactory ) {
+        this( _maxCacheSize, _maxAllowableTTLMillis, _rootHints, _ipVersion, _evictionPolicyFactory, defaultInfrastructureSize( _maxCacheSize ), null );
+    }
+
+
+    /**
+     * Creates a new instance of this class using the given arguments, exactly as {@link #DNSCache(int,long,DNSRootHints,DNSIPVersion,IntFunction)} does, except that the
+     * maximum size of the infrastructure partition (NS and SOA records, and the name servers' addresses) is given, instead of being a quarter of the maximum cache size.
+     * The answer partition gets the rest.  Each partition gets its own eviction policy from the factory, made for that partition's maximum size.
+     *
+     * @param _maxCacheSize The maximum number of DNS resource records that may be stored in this cache.
+     * @param _maxAllowableTTLMillis The maximum time, in milliseconds, that any resource record is allowed to exist before expiring.
+     * @param _rootHints The {@link DNSRootHints} manager to use for recursive resolution.
+     * @param _ipVersion Specifies the IP versions to use for finding name servers.
+     * @param _evictionPolicyFactory Makes the {@link DNSCacheEvictionPolicy} for each of this cache's partitions, given the partition's maximum size.
+     * @param _infrastructureSize The maximum number of DNS resource records that may be stored in the infrastructure partition; must be less than the maximum cache size.
+     */
+    public DNSCache( final int _maxCacheSize, final long _maxAllowableTTLMillis, final DNSRootHints _rootHints, final DNSIPVersion _ipVersion,
+                     final IntFunction<DNSCacheEvictionPolicy> _evictionPolicyFactory, final int _infrastructureSize ) {
+        this( _maxCacheSize, _maxAllowableTTLMillis, _rootHints, _ipVersion, _evictionPolicyFactory, _infrastructureSize, null );
+    }
+
+
+    /**
+     * <p>Creates a new instance of this class using the given arguments, that holds its resource records off the Java heap (see {@link DNSOffHeapStore}), for caches of
+     * millions of records that would otherwise burden the garbage collector:</p>
+     * <ul>
+     *     <li>_maxCacheSize - the maximum number of DNS resource records that may be stored in this cache.  If adding a record would cause the cache to exceed this size, or
+     *     the off-heap memory to exceed its capacity, the oldest records are evicted.</li>
+     *     <li>_maxAllowableTTLMillis - the maximum time, in milliseconds, that a resource record may remain cached - no matter what the TTL on the resource record is.  To
+     *     prevent capping the TTL, set this value to {@link Long#MAX_VALUE}.  Values must be greater than zero.</li>
+     *     <li>_offHeapBytes - the amount of off-heap memory, in bytes, that the resource records may use.  It is allocated as it's needed.</li>
+     * </ul>
+     * <p>The resource records are kept in wire format, and decoded only when they're fetched; the records returned have their TTLs changed to the time they have left.  In
+     * exchange for the lighter load on the garbage collector, eviction is first-in, first-out (there is no eviction policy), there's no byte budget on the heap (see
+     * {@link #setMaxCacheBytes(long)}), and records aren't prefetched (see {@link #setPrefetch(double,int,Consumer)}).</p>
+     *
+     * @param _maxCacheSize The maximum number of DNS resource records that may be stored in this cache.
+     * @param _maxAllowableTTLMillis The maximum time, in milliseconds, that any resource record is allowed to exist before expiring.
+     * @param _rootHints The {@link DNSRootHints} manager to use for recursive resolution.
+     * @param _ipVersion Specifies the IP versions to use for finding name servers.
+     * @param _offHeapBytes The amount of off-heap memory, in bytes, that the resource records may use.
+     */
+    public DNSCache( final int _maxCacheSize, final long _maxAllowableTTLMillis, final DNSRootHints _rootHints, final DNSIPVersion _ipVersion, final long _offHeapBytes ) {
+        this( _maxCacheSize, _maxAllowableTTLMillis, _rootHints, _ipVersion, (size) -> new DNSTTLEvictionPolicy(), defaultInfrastructureSize( _maxCacheSize ),
+                new DNSOffHeapStore( _offHeapBytes, _maxCacheSize ) );
+    }
+
+
+    /**
+     * Creates a new instance of this class using the given arguments; if the off-heap store is {@code null}, the resource records are held on the heap.
+     *
+     * @param _maxCacheSize The maximum number of DNS resource records that may be stored in this cache.
+     * @param _maxAllowableTTLMillis The maximum time, in milliseconds, that any resource record is allowed to exist before expiring.
+     * @param _rootHints The {@link DNSRootHints} manager to use for recursive resolution.
+     * @param _ipVersion Specifies the IP versions to use for finding name servers.
+     * @param _evictionPolicyFactory Makes the {@link DNSCacheEvictionPolicy} for each of this cache's partitions, given the partition's maximum size.
+     * @param _infrastructureSize The maximum number of DNS resource records that may be stored in the infrastructure partition.
+     * @param _offHeapStore The store for resource records held off the heap, or {@code null} to hold them on the heap.
+     */
+    private DNSCache( final int _maxCacheSize, final long _maxAllowableTTLMillis, final DNSRootHints _rootHints, final DNSIPVersion _ipVersion,
+                      final IntFunction<DNSCacheEvictionPolicy> _evictionPolicyFactory, final int _infrastructureSize, final DNSOffHeapStore _offHeapStore ) {
 
-        Checks.required( _rootHints );
+        Checks.required( _rootHints, _evictionPolicyFactory );
 
-        // sanity check...
+        // sanity checks...
+        if( _maxCacheSize < 2 )
+            throw new IllegalArgumentException( "Invalid max cache size: " + _maxCacheSize );
         if( _maxAllowableTTLMillis < 1 )
             throw new IllegalArgumentException( "Invalid max allowable timeout: " + _maxAllowableTTLMillis );
+        if( (_infrastructureSize < 1) || (_infrastructureSize >= _maxCacheSize) )
+            throw new IllegalArgumentException( "Invalid infrastructure partition size: " + _infrastructureSize );
 
         maxCacheSize          = _maxCacheSize;
-        maxAllowableTTLMillis = Math.max( MIN_CACHE_SIZE, _maxAllowableTTLMillis );
-        entryMap              = new HashMap<>( maxCacheSize );
-        ttlMap                = new TreeMap<>();
-        uniqueInteger         = new AtomicLong();
+        maxAllowableTTLMillis = _maxAllowableTTLMillis;
+        offHeapStore          = _offHeapStore;
+        entryMap              = new ConcurrentHashMap<>( (offHeapStore == null) ? maxCacheSize : 16 );
+        infrastructure        = new Partition( _infrastructureSize, _evictionPolicyFactory );
+        answers               = new Partition( maxCacheSize - _infrastructureSize, _evictionPolicyFactory );
+        nameServerNames       = new ConcurrentHashMap<>();
+        negativeMap           = new ConcurrentHashMap<>();
+        responseMap           = new ConcurrentHashMap<>();
+        chainMap              = new ConcurrentHashMap<>();
+        delegations           = new DNSDelegationTrie();
         rootHints             = _rootHints;
         ipVersion             = _ipVersion;
+        cachedBytes           = new AtomicLong();
+        stripes               = new ReentrantLock[STRIPE_COUNT];
+        for( int i = 0; i < STRIPE_COUNT; i++ )
+            stripes[i] = new ReentrantLock();
+
+        LOGGER.log( FINE, "Created DNSCache, max size " + maxCacheSize + " DNS resource records (" + _infrastructureSize + " of them for infrastructure)" );
+    }
+
+
+    /**
+     * Returns the default maximum size of the infrastructure partition for a cache of the given maximum size: a quarter of it, which is far more than the delegations and
+     * name server addresses of all but the busiest recursive resolvers need.
+     *
+     * @param _maxCacheSize The maximum number of DNS resource records that may be stored in the cache.
+     * @return The maximum number of DNS resource records that may be stored in the infrastructure partition.
+     */
+    private static int defaultInfrastructureSize( final int _maxCacheSize ) {
+        return Math.max( 1, _maxCacheSize / 4 );
+    }
 
-        LOGGER.log( FINE, "Created DNSCache, max size " + maxCacheSize + " DNS resource records" );
+
+    /**
+     * <p>Creates a new instance of this class using the given arguments, that evicts the resource records closest to expiration when it's full (see
+     * {@link DNSTTLEvictionPolicy}):</p>
+     * <ul>
+     *     <li>_maxCacheSize - the maximum number of DNS resource records that may be stored in this cache.  If adding a record would cause the cache to exceed this size, the
+     *     resource record closest to expiration is removed before adding the new resource record, thus capping the cache's size.  The cache size must be at least 2 (one
+     *     resource record for each of the cache's partitions); a smaller size causes an {@link IllegalArgumentException}.</li>
+     *     <li>_maxAllowableTTLMillis - the maximum time, in milliseconds, that a resource record may remain cached - no matter what the TTL on the resource record is.  To
+     *     prevent capping the TTL, set this value to {@link Long#MAX_VALUE}.  Values must be greater than zero.</li>
+     * </ul>
+     *
+     * @param _maxCacheSize The maximum number of DNS resource records that may be stored in this cache.
+     * @param _maxAllowableTTLMillis The maximum time, in milliseconds, that any resource record is allowed to exist before expiring.
+     * @param _rootHints The {@link DNSRootHints} manager to use for recursive resolution.
+     * @param _ipVersion Specifies the IP versions to use for finding name servers.
+     */
+    public DNSCache( final int _maxCacheSize, final long _maxAllowableTTLMillis, final DNSRootHints _rootHints, final DNSIPVersion _ipVersion ) {
+        this( _maxCacheSize, _maxAllowableTTLMillis, _rootHints, _ipVersion, (size) -> new DNSTTLEvictionPolicy() );
     }
 
 
@@ -113,6 +292,71 @@ public class DNSCache {
     }
 
 
+    /**
+     * <p>Enables refresh-ahead prefetching of popular resource records.  Once a cached resource record has been fetched at least the given number of times, and the time left
+     * before it expires is less than the given fraction of its TTL, the given prefetcher is called (once) with the question that would refresh it.  The prefetcher is expected
+     * to resolve that question in the background, bypassing the cache, so that the refreshed records replace this one before it expires.  To keep records that were added
+     * together from all being refreshed at once, each record's prefetch window is randomly shrunk by up to half.  The prefetcher is called in whatever thread fetched the
+     * record, so it should return quickly.</p>
+     * <p>A fraction of zero, or a {@code null} prefetcher, disables prefetching, which is the default.</p>
+     *
+     * @param _fraction The fraction (between 0 and 1) of a record's TTL before its expiration that it becomes eligible for prefetching.
+     * @param _minHits The minimum number of times a record must be fetched before it is eligible for prefetching.
+     * @param _prefetcher The prefetcher to call with the question that would refresh a record.
+     */
+    public void setPrefetch( final double _fraction, final int _minHits, final Consumer<DNSQuestion> _prefetcher ) {
+
+        if( (_fraction < 0) || (_fraction > 1) )
+            throw new IllegalArgumentException( "Prefetch fraction must be between 0 and 1: " + _fraction );
+
+        prefetch = ((_fraction == 0) || (_prefetcher == null)) ? null : new Prefetch( _fraction, Math.max( 1, _minHits ), _prefetcher );
+    }
+
+
+    /**
+     * Enables serve-stale mode (RFC 8767): expired resource records are kept in this cache for the given stale window after they expire, so that they can be returned by
+     * {@link #resolveStale(DNSMessage)} when a fresh answer can't be had.  They are never returned by any other method.  Stale records are the first to go when the cache is
+     * full, whatever its eviction policy.  A window of zero (the default) disables serve-stale mode, and expired records are purged as soon as they're discovered.
+     *
+     * @param _staleWindowMillis The time (in milliseconds) that expired records are kept, or zero to not keep them.
+     */
+    public void setStaleWindow( final long _staleWindowMillis ) {
+
+        if( _staleWindowMillis < 0 )
+            throw new IllegalArgumentException( "Invalid stale window: " + _staleWindowMillis );
+
+        staleWindowMillis = _staleWindowMillis;
+    }
+
+
+    /**
+     * Attempts to resolve the given query message from this cache, using stale (expired, but still within the stale window) resource records as well as fresh ones, and returns
+     * the result in a synthetic response message.  This is how the resolver answers a query when a fresh answer can't be had in time (RFC 8767).  Stale records in the answer
+     * have a TTL of 30 seconds, so clients won't hang on to them for long.  If the cache can answer the question (including resolving any CNAME chain), the response code is
+     * {@link DNSResponseCode#OK} and the answers contain the resource records found.  Otherwise, the response code is {@link DNSResponseCode#NAME_ERROR} and no resource records
+     * are returned.  Queries for {@link DNSRRType#ANY} are always answered with {@link DNSResponseCode#REFUSED}, and malformed queries with
+     * {@link DNSResponseCode#FORMAT_ERROR}.
+     *
+     * @param _queryMessage The {@link DNSMessage} containing the query to be resolved (if possible) from the cache.
+     * @return The {@link DNSMessage} containing the result of the attempted resolution from cache.
+     */
+    public DNSMessage resolveStale( final DNSMessage _queryMessage ) {
+
+        Checks.required( _queryMessage );
+
+        // if the query message isn't a valid query, return a FORMAT_ERROR...
+        if( _queryMessage.isResponse || (_queryMessage.questions.size() == 0) || (_queryMessage.getQuestion().qtype == DNSRRType.UNIMPLEMENTED) )
+            return _queryMessage.getSyntheticNotOKResponse( FORMAT_ERROR );
+
+        // we can't tell if the cache has all records for an ANY query, fresh or stale...
+        if( _queryMessage.getQuestion().qtype == ANY )
+            return _queryMessage.getSyntheticNotOKResponse( REFUSED );
+
+        List<DNSResourceRecord> answers = resolveAnswers( _queryMessage, this::getStale );
+        return (answers.size() > 0) ? _queryMessage.getSyntheticOKResponse( answers ) : _queryMessage.getSyntheticNotOKResponse( NAME_ERROR );
+    }
+
+
     /**
      * Attempts to resolve the given query message, and returns the result in a synthetic response message.  Failure to resolve from the cache is indicated by a response code of
      * {@link DNSResponseCode#NAME_ERROR}.  The intent of this method is to provide results from the cache, if possible, that closely resemble the results of the same query
@@ -161,29 +405,42 @@ public class DNSCache {
                 return _queryMessage.getSyntheticOKResponse( answers );
         }
 
+        // if we have a cached negative answer, return it just as the authoritative server did (with the SOA in the authorities)...
+        DNSNegativeEntry negative = getNegative( _queryMessage.getQuestion() );
+        if( negative != null )
+            return _queryMessage.getSyntheticNegativeResponse( negative.responseCode, List.of( negative.soa ) );
+
         // since we don't have any answers, if the query requested recursion, we leave with a NAME_ERROR...
         if( _queryMessage.recurse )
             return _queryMessage.getSyntheticNotOKResponse( NAME_ERROR );
 
         // if we get here, then we're answering without recursion, and we couldn't directly resolve the query - time to look for name servers...
-        DNSDomainName nsSearchDomain = _queryMessage.getQuestion().qname;
-        List<DNSResourceRecord> nameServers;
-        do {
-            DNSMessage.Builder builder = new DNSMessage.Builder();
-            builder
-                    .setOpCode(   DNSOpCode.QUERY                       )
-                    .setRecurse(  false                                 )
-                    .setId(       1                                     )
-                    .addQuestion( new DNSQuestion( nsSearchDomain, NS ) );
-            nameServers = resolveAnswers( builder.getMessage() );
-            if( nameServers.size() == 0 ) {
-                if( nsSearchDomain.isRoot() ) {
-                    if( !updateRootHints() )
-                        return _queryMessage.getSyntheticNotOKResponse( SERVER_FAILURE );
-                } else
-                    nsSearchDomain = nsSearchDomain.parent();
-            }
-        } while( nameServers.size() == 0 );
+        return resolveDelegation( _queryMessage );
+    }
+
+
+    /**
+     * Returns a synthetic response message with the most specific name servers in the cache for the question in the given query message, without looking for answers to that
+     * question in the cache.  At worst case, these will be the root name servers (from the root hints file).  The response code will be {@link DNSResponseCode#OK}, there
+     * will be no answers, the name servers found will be in the authorities, and if the IP addresses of the name servers are in the cache, they will be in the additional
+     * records.  If root hints cannot be downloaded, a {@link DNSResponseCode#SERVER_FAILURE} will be returned.  This is what {@link #resolve(DNSMessage,boolean)} returns for
+     * a query that doesn't request recursion and can't be answered from the cache; it's also useful for refreshing records that are in the cache.  The most specific name
+     * servers are found with a single walk down a trie of the cached NS RRsets (see {@link DNSDelegationTrie}), rather than by searching the cache for each of the question's
+     * ancestor domains in turn.
+     *
+     * @param _queryMessage The {@link DNSMessage} containing the query to find name servers for.
+     * @return The {@link DNSMessage} containing the name servers found.
+     */
+    public DNSMessage resolveDelegation( final DNSMessage _queryMessage ) {
+
+        Checks.required( _queryMessage );
+
+        // find the name servers for the deepest zone cut we know about; if we don't even know the root's, we couldn't get the root hints...
+        List<DNSResourceRecord> nameServers = (offHeapStore == null)
+                ? findDelegation( _queryMessage.getQuestion().qname )
+                : searchDelegation( _queryMessage.getQuestion().qname );
+        if( nameServers == null )
+            return _queryMessage.getSyntheticNotOKResponse( SERVER_FAILURE );
 
         // now we need to find the IP addresses of the name servers we found, if we have them...
         List<DNSResourceRecord> nameServersIPs = new ArrayList<>();
@@ -192,13 +449,10 @@ public class DNSCache {
             // we do this because the query above MIGHT return a CNAME...
             if( rr instanceof NS ns ) {
                 DNSDomainName nsdn = ns.nameServer;
-                nameServersIPs.addAll(
-                        switch( ipVersion ) {
-                            case IPv4 -> get( nsdn, A );
-                            case IPv6 -> get( nsdn, AAAA );
-                            case IPvBoth -> get( nsdn, A, AAAA );
-                        }
-                );
+                if( ipVersion != DNSIPVersion.IPv6 )
+                    visit( nsdn, A, nameServersIPs::add );
+                if( ipVersion != DNSIPVersion.IPv4 )
+                    visit( nsdn, AAAA, nameServersIPs::add );
             }
         } );
 
@@ -242,6 +496,71 @@ public class DNSCache {
     }
 
 
+    /**
+     * Returns the name servers (NS records) for the deepest zone cut that this cache knows about for the given domain name, looking it up in the delegation trie with a single
+     * walk down the name's labels.  Only delegations that haven't expired are used.  If the cache doesn't even know the root's current name servers, they're added from the
+     * root hints first; should that fail, the root's expired name servers (if the cache still has them) are used, as they're better than none.  An expired delegation below the
+     * root is never used.
+     *
+     * @param _dn The domain name to find the name servers for.
+     * @return The name servers found, or {@code null} if there were none and the root hints couldn't be read.
+     */
+    private List<DNSResourceRecord> findDelegation( final DNSDomainName _dn ) {
+
+        long now = System.currentTimeMillis();
+        Predicate<DNSCacheEntry> current = (entry) -> !entry.superseded && (entry.expiration >= now);
+        DNSCacheEntry delegation = delegations.deepest( _dn, current );
+        if( delegation == null ) {
+
+            // refresh the root's name servers from the root hints, and look again (still for a current delegation)...
+            boolean hintsStored = updateRootHints();
+            delegation = delegations.deepest( _dn, current );
+
+            // if the root hints couldn't be stored, fall back to the root's expired name servers...
+            if( (delegation == null) && !hintsStored )
+                delegation = delegations.deepest( _dn, (entry) -> !entry.superseded && entry.name().isRoot() );
+            if( delegation == null )
+                return null;
+        }
+
+        // the delegation was used just as much as if we'd fetched it...
+        accessed( delegation );
+        return delegation.resourceRecords;
+    }
+
+
+    /**
+     * Returns the name servers (NS records) for the deepest zone cut that this cache knows about for the given domain name, searching the cache for the name servers of the
+     * domain name and then each of its ancestors in turn.  If the cache doesn't even know the root's name servers, they're added from the root hints.  This is for caches that
+     * hold their resource records off-heap, as those have no delegation trie.
+     *
+     * @param _dn The domain name to find the name servers for.
+     * @return The name servers found (and possibly CNAME records for them), or {@code null} if the root hints couldn't be read.
+     */
+    private List<DNSResourceRecord> searchDelegation( final DNSDomainName _dn ) {
+
+        DNSDomainName nsSearchDomain = _dn;
+        List<DNSResourceRecord> nameServers;
+        do {
+            DNSMessage.Builder builder = new DNSMessage.Builder();
+            builder
+                    .setOpCode(   DNSOpCode.QUERY                       )
+                    .setRecurse(  false                                 )
+                    .setId(       1                                     )
+                    .addQuestion( new DNSQuestion( nsSearchDomain, NS ) );
+            nameServers = resolveAnswers( builder.getMessage() );
+            if( nameServers.size() == 0 ) {
+                if( nsSearchDomain.isRoot() ) {
+                    if( !updateRootHints() )
+                        return null;
+                } else
+                    nsSearchDomain = nsSearchDomain.parent();
+            }
+        } while( nameServers.size() == 0 );
+        return nameServers;
+    }
+
+
     private boolean updateRootHints() {
         Outcome<List<DNSResourceRecord>> rho = rootHints.current();
         if( rho.notOk() ) {
@@ -254,8 +573,12 @@ public class DNSCache {
 
 
     /**
-     * Attempt to find answers in the cache for the given question, including resolving any CNAME chain.  If answers are found, the returned list of resource records contains
-     * them (including any CNAME chain).  Otherwise, an empty list is returned.
+     * <p>Attempt to find answers in the cache for the given question, including resolving any CNAME chain.  If answers are found, the returned (unmodifiable) list of resource
+     * records contains them (including any CNAME chain).  Otherwise, an empty list is returned.</p>
+     * <p>Complete answers (those that include records of the type asked for) are remembered, keyed by the question and the query's recursion flag, along with the RRsets they
+     * were assembled from.  Asking the same question again gets the same answer with a single hash lookup (plus a check that none of those RRsets has been replaced, removed,
+     * or has expired since), rather than by walking the CNAME chain again.  Remembered answers don't count against the cache's byte budget, but there are never more of them
+     * than the cache's maximum size (in resource records).  Answers to ANY queries, and answers from records held off-heap, are not remembered.</p>
      *
      * @param _query The query containing the question to be resolved from cache.
      * @return The answers found in the cache, which may be none.
@@ -264,6 +587,265 @@ public class DNSCache {
 
         Checks.required( _query );
 
+        // if we're holding our records off-heap, there are no RRsets for us to remember answers by...
+        DNSQuestion question = _query.getQuestion();
+        if( (offHeapStore != null) || (question.qtype == ANY) )
+            return resolveAnswers( _query, this::get );
+
+        // if we have nothing at all for the name, there's no answer (and nothing to allocate)...
+        if( !entryMap.containsKey( question.qname.text ) )
+            return List.of();
+
+        // if we've answered this question before, and nothing the answer was assembled from has changed, we're done...
+        long now = System.currentTimeMillis();
+        DNSResponseKey key = new DNSResponseKey( question.qname.text, question.qtype, question.qclass, _query.recurse );
+        DNSCachedResponse response = responseMap.get( key );
+        if( response != null ) {
+            if( response.isCurrent( now ) ) {
+
+                // the RRsets were used just as much as if we'd fetched them...
+                touch( response.sources, now );
+                if( LOGGER.isLoggable( FINE ) )
+                    LOGGER.log( FINE, "Response cache hit for " + key );
+                return response.answers;
+            }
+            responseMap.remove( key, response );
+        }
+
+        // assemble the answer the long way, keeping track of the RRsets it came from...
+        List<DNSCacheEntry> sources = new ArrayList<>();
+        List<DNSResourceRecord> answers = List.copyOf( assembleAnswers( _query, sources, now ) );
+
+        // if the answer is complete, remember it...
+        if( answers.stream().anyMatch( (rr) -> rr.type == question.qtype ) ) {
+            responseMap.put( key, new DNSCachedResponse( answers, sources.toArray( NO_ENTRIES ) ) );
+            trimAssembled( responseMap, now );
+        }
+        return answers;
+    }
+
+
+    /**
+     * If the given map (of answers or CNAME chains) holds more than the cache's maximum size (in resource records), forget the ones that are no longer current, and then (if
+     * need be) any others, until it holds no more than 90% of the maximum, so that we don't have to do this again right away.
+     *
+     * @param _map The map of answers or CNAME chains to trim.
+     * @param _now The current system time.
+     */
+    private <K> void trimAssembled( final Map<K,DNSCachedResponse> _map, final long _now ) {
+
+        if( _map.size() <= maxCacheSize )
+            return;
+
+        _map.values().removeIf( (response) -> !response.isCurrent( _now ) );
+        int target = maxCacheSize - maxCacheSize / 10;
+        Iterator<K> it = _map.keySet().iterator();
+        while( (_map.size() > target) && it.hasNext() ) {
+            it.next();
+            it.remove();
+        }
+    }
+
+
+    /**
+     * Lets the eviction policy and the prefetcher know that the given (unexpired) RRsets were used, just as if they'd been fetched.
+     *
+     * @param _entries The RRsets that were used.
+     * @param _now The current system time.
+     */
+    private void touch( final DNSCacheEntry[] _entries, final long _now ) {
+
+        Prefetch pf = prefetch;
+        for( DNSCacheEntry entry : _entries ) {
+            accessed( entry );
+            if( pf != null )
+                checkPrefetch( pf, entry, _now );
+        }
+    }
+
+
+    /**
+     * Counts a hit on the given entry in its partition, and lets the partition's eviction policy know the entry was used.
+     *
+     * @param _entry The entry that was used.
+     */
+    private void accessed( final DNSCacheEntry _entry ) {
+
+        Partition partition = _entry.partition;
+        partition.hits.increment();
+        partition.evictionPolicy.accessed( _entry );
+    }
+
+
+    /**
+     * <p>Returns the chain of CNAME records that this cache holds starting at the given alias: the alias's CNAME record, then the CNAME record of the name that points to, and
+     * so on, for as long as the cache has a CNAME record for the name at the end of the chain (up to 16 of them, which guards against loops).  If the cache holds no CNAME for
+     * the alias, returns an empty list.  The last record's canonical name is the name at the end of the chain, whose other records are what a query for the alias is
+     * really after.</p>
+     * <p>Chains are remembered, flattened, so that following a chain through a content delivery network's several aliases takes a single probe rather than a lookup for each
+     * one; a remembered chain is good until any of its CNAME records is replaced, removed, or expires.  If a CNAME record is later added at the end of a remembered chain, the
+     * chain is lengthened when that's discovered (as {@link #resolveAnswers(DNSMessage)} does).</p>
+     *
+     * @param _alias The domain name to follow the CNAME chain from.
+     * @return The (unmodifiable, possibly empty) chain of CNAME records.
+     */
+    public List<DNSResourceRecord> getCNAMEChain( final DNSDomainName _alias ) {
+
+        Checks.required( _alias );
+
+        // if we're holding our records on the heap, we can use (or make) a flattened chain...
+        if( offHeapStore == null ) {
+            DNSCachedResponse chain = getFlattenedChain( _alias.text, System.currentTimeMillis() );
+            return (chain == null) ? List.of() : chain.answers;
+        }
+
+        // otherwise, we follow the chain one link at a time...
+        List<DNSResourceRecord> chain = new ArrayList<>();
+        DNSDomainName dn = _alias;
+        while( chain.size() < MAX_CNAME_CHAIN ) {
+            List<DNSResourceRecord> rrs = get( dn );
+            if( (rrs.size() != 1) || !(rrs.get( 0 ) instanceof com.dilatush.dns.rr.CNAME cname) )
+                break;
+            chain.add( cname );
+            dn = cname.cname;
+        }
+        return Collections.unmodifiableList( chain );
+    }
+
+
+    /**
+     * Returns the flattened CNAME chain (as the answers of a {@link DNSCachedResponse}, whose sources are the chain's CNAME RRsets) starting at the given alias, or
+     * {@code null} if the alias has no CNAME.  A current remembered chain is used if there is one; otherwise the chain is followed through the entry map and remembered.
+     * Either way, the chain's RRsets count as used.  Only for records held on the heap.
+     *
+     * @param _alias The FQDN (as a lower-case string) to follow the chain from.
+     * @param _now The current system time.
+     * @return The flattened chain, or {@code null} if there is none.
+     */
+    private DNSCachedResponse getFlattenedChain( final String _alias, final long _now ) {
+
+        // if we've followed this chain before, and none of its links have changed, we're done...
+        DNSCachedResponse chain = chainMap.get( _alias );
+        if( chain != null ) {
+            if( chain.isCurrent( _now ) ) {
+                touch( chain.sources, _now );
+                return chain;
+            }
+            chainMap.remove( _alias, chain );
+        }
+
+        // follow the chain through the entry map, so long as each name has nothing but a CNAME (as the RFCs require of a name with a CNAME)...
+        List<DNSResourceRecord> cnames = new ArrayList<>();
+        List<DNSCacheEntry>     links  = new ArrayList<>();
+        String dn = _alias;
+        while( cnames.size() < MAX_CNAME_CHAIN ) {
+            DNSCacheEntry link = getOnlyCNAME( dn, _now );
+            if( link == null )
+                break;
+            com.dilatush.dns.rr.CNAME cname = (com.dilatush.dns.rr.CNAME) link.resourceRecords.get( 0 );
+            cnames.add( cname );
+            links.add( link );
+            dn = cname.cname.text;
+        }
+        if( cnames.isEmpty() )
+            return null;
+
+        // remember it for next time...
+        chain = new DNSCachedResponse( List.copyOf( cnames ), links.toArray( NO_ENTRIES ) );
+        touch( chain.sources, _now );
+        chainMap.put( _alias, chain );
+        trimAssembled( chainMap, _now );
+        return chain;
+    }
+
+
+    /**
+     * Returns the unexpired CNAME RRset for the given FQDN if it's the only unexpired RRset for that FQDN and holds just one record, or {@code null} otherwise.
+     *
+     * @param _dn The FQDN (as a lower-case string).
+     * @param _now The current system time.
+     * @return The CNAME RRset, or {@code null} if there is none.
+     */
+    private DNSCacheEntry getOnlyCNAME( final String _dn, final long _now ) {
+
+        DNSCacheEntry[] entries = entryMap.get( _dn );
+        if( entries == null )
+            return null;
+
+        DNSCacheEntry cname = null;
+        for( DNSCacheEntry entry : entries ) {
+            if( entry.expiration < _now )
+                continue;
+            if( (cname != null) || (entry.type != CNAME) || (entry.resourceRecords.size() != 1) )
+                return null;
+            cname = entry;
+        }
+        return cname;
+    }
+
+
+    /**
+     * Attempt to find answers for the given (non-ANY) question in the records held on the heap, including resolving any CNAME chain, adding every RRset the answers come from
+     * to the given sources.  The records are found with {@link #visit(String,DNSRRType,Consumer,List)}, which looks only at the RRsets of the type asked for, and makes no
+     * list of a name's records; CNAME chains are followed with the flattened chains (see {@link #getCNAMEChain(DNSDomainName)}).  The only lists made are the ones the
+     * answers are assembled in.
+     *
+     * @param _query The query containing the question to be resolved.
+     * @param _sources The list to add the RRsets the answers come from to.
+     * @param _now The current system time.
+     * @return The answers found, which may be none.
+     */
+    private List<DNSResourceRecord> assembleAnswers( final DNSMessage _query, final List<DNSCacheEntry> _sources, final long _now ) {
+
+        DNSQuestion question = _query.getQuestion();
+        List<DNSResourceRecord> answers = new ArrayList<>();
+
+        // if the cache has records of the type asked for, they're the answers...
+        visit( question.qname.text, question.qtype, (rr) -> { if( rr.klass == question.qclass ) answers.add( rr ); }, _sources );
+        if( !answers.isEmpty() )
+            return answers;
+
+        // otherwise, if the name is an alias, jump to the end of its CNAME chain (as far as it's known) in one probe...
+        DNSCachedResponse flattened = getFlattenedChain( question.qname.text, _now );
+        if( flattened == null )
+            return answers;
+        List<DNSResourceRecord> chain = new ArrayList<>( flattened.answers );
+        _sources.addAll( Arrays.asList( flattened.sources ) );
+        String end = ((com.dilatush.dns.rr.CNAME) chain.get( chain.size() - 1 )).cname.text;
+
+        // if the end of the chain now has a CNAME too, the flattened chain is out of date; we'll carry on from there, and flatten it afresh next time...
+        DNSCacheEntry link = getOnlyCNAME( end, _now );
+        if( link != null )
+            chainMap.remove( question.qname.text, flattened );
+        while( (link != null) && (chain.size() < MAX_CNAME_CHAIN) ) {
+            com.dilatush.dns.rr.CNAME cname = (com.dilatush.dns.rr.CNAME) link.resourceRecords.get( 0 );
+            chain.add( cname );
+            _sources.add( link );
+            accessed( link );
+            end  = cname.cname.text;
+            link = getOnlyCNAME( end, _now );
+        }
+
+        // now see if the end of the chain has any of the records we actually want, and if so add them to the chain...
+        int startSize = chain.size();
+        visit( end, question.qtype, (rr) -> { if( rr.klass == question.qclass ) chain.add( rr ); }, _sources );
+
+        // if we got at least one of the record type we actually want, or if this is a recursive query, then the CNAME chain is our answer...
+        return (!_query.recurse || (startSize < chain.size())) ? chain : answers;
+    }
+
+
+    /**
+     * Attempt to find answers for the given question, including resolving any CNAME chain, using the given function to get the resource records for a domain name, and
+     * following CNAME chains one link at a time.  This is for answers that {@link #assembleAnswers(DNSMessage,List,long)} can't assemble: answers to ANY queries, answers
+     * from records held off-heap, and stale answers.
+     *
+     * @param _query The query containing the question to be resolved.
+     * @param _getter The function that gets the resource records for a domain name.
+     * @return The answers found, which may be none.
+     */
+    private List<DNSResourceRecord> resolveAnswers( final DNSMessage _query, final Function<DNSDomainName,List<DNSResourceRecord>> _getter ) {
+
         // save our question...
         DNSQuestion question = _query.getQuestion();
 
@@ -271,7 +853,7 @@ public class DNSCache {
         List<DNSResourceRecord> answers = new ArrayList<>();
 
         // get anything the cache might have from the domain we're looking for...
-        List<DNSResourceRecord> cached = get( question.qname );
+        List<DNSResourceRecord> cached = _getter.apply( question.qname );
 
         // if we got nothing at all back, bail out negatively...
         if( cached.size() == 0 )
@@ -293,10 +875,10 @@ public class DNSCache {
                 List<DNSResourceRecord> chainCache = new ArrayList<>( cached );    // the cached results as we follow the chain...
 
                 // so long as what we found is a valid CNAME chain element, add it to our CNAME chain and move to the next element...
-                while( (chainCache.size() == 1) && (chainCache.get(0).type == CNAME) ) {
+                while( (chainCache.size() == 1) && (chainCache.get(0).type == CNAME) && (cnameChain.size() < MAX_CNAME_CHAIN) ) {
                     cnameChain.add( chainCache.get( 0 ) );
                     com.dilatush.dns.rr.CNAME cnameRR = (com.dilatush.dns.rr.CNAME)chainCache.get( 0 );
-                    chainCache = get( cnameRR.cname );
+                    chainCache = _getter.apply( cnameRR.cname );
                 }
 
                 // at this point, the CNAME chain contains 1 or more CNAME records, and the chain cache contains a different kind of record, or no record -
@@ -320,18 +902,18 @@ public class DNSCache {
      * <p>Adds the given {@link DNSResourceRecord} to this cache with the given expiration time (using system time as returned by {@link System#currentTimeMillis()}).  Attempts
      * to add expired or {@link UNIMPLEMENTED} resource records are silently ignored.  The actual expiration time used in the cache is calculated as the earlier of the given
      * expiration time or the current time plus the maximum allowable TTL.  </p>
-     * <p>If the cache already contains the maximum number of cache entries allowed, then the cached record with the earliest expiration time is purged before adding the new
-     * resource record, thus capping the cache's size. </p>
-     * <p>If there is already an entry in the cache that is of the same type as the entry to be added, with the same resource record data, then the existing entry is overwritten
-     * with the new entry.  For instance, if the cache of resource records for "www.bogus.com" already had an A record with "141.2.3.76", and a new matching A record was added,
-     * the new record will overwrite the existing on.  The main significance of this behavior is that it is possible for the TTL of a resource record in the cache to be updated.</p>
-     * <p>If the cache does not contain any resource records that are the same type with the same resource record data as the resource record being added, then the new resource
-     * record is added to the cache.</p>
+     * <p>If the cache already contains the maximum number of cache entries allowed, then after adding the new resource record the cached records with the earliest expiration
+     * times are purged, thus capping the cache's size.  When several threads are adding at once, the cache may briefly exceed its maximum size. </p>
+     * <p>The record joins the cached, unexpired resource record set (RRset) with the same domain name, type, and class, if there is one, and otherwise starts a new one
+     * (replacing any stale RRset).  If the RRset already has a record with the same resource record data, that record is overwritten with the new one.  For instance, if the
+     * cache of resource records for "www.bogus.com" already had an A record with "141.2.3.76", and a new matching A record was added, the new record will overwrite the existing
+     * one.  Either way, the whole RRset takes the new record's expiration time, as it's the freshest news about the RRset.  To replace an RRset rather than add to it, use
+     * {@link #add(List)}.</p>
      *
      * @param _rr The {@link DNSResourceRecord} to be added to this cache.
      * @param _expires The system time that this record expires.
      */
-    public synchronized void add( final DNSResourceRecord _rr, final long _expires ) {
+    public void add( final DNSResourceRecord _rr, final long _expires ) {
 
         Checks.required( _rr );
 
@@ -347,80 +929,323 @@ public class DNSCache {
         if( _expires <= System.currentTimeMillis() )
             return;
 
-        LOGGER.log( FINE, "Adding to cache: " + _rr + "(" + ttlMap.size() + " resource records cached before this addition)" );
+        if( LOGGER.isLoggable( FINE ) )
+            LOGGER.log( FINE, "Adding to cache: " + _rr + "(" + size() + " resource records cached before this addition)" );
+
+        // this record means the name exists, and has records of this type, so any negative answers saying otherwise are wrong now...
+        if( !negativeMap.isEmpty() ) {
+            negativeMap.remove( new DNSNegativeKey( _rr.name.text, null,     _rr.klass ) );
+            negativeMap.remove( new DNSNegativeKey( _rr.name.text, _rr.type, _rr.klass ) );
+        }
 
         // if the expiration time is too far into the future, truncate it...
         long expires = Math.min( _expires, System.currentTimeMillis() + maxAllowableTTLMillis );
 
-        // if we don't have an entry for this domain, we need to add one...
-        if( !entryMap.containsKey( _rr.name.text ) )
-            entryMap.put( _rr.name.text, new DNSCacheEntry[0] );
-
-        // if we already have an entry that matches the class, type, and resource data then we're going to replace that one...
-        DNSCacheEntry[] entries = entryMap.get( _rr.name.text );  // this is guaranteed to be non-null because of the code just above...
-
-        // iterate over all the entries looking for a resource record that's the same (domain, class, type, resource data) as the one being added...
-        // exiting the loop with entryIndex >= entries.length means we found no resource records that are the same...
-        int entryIndex;
-        for( entryIndex = 0; entryIndex < entries.length; entryIndex++ ) {
+        // if we're holding our records off-heap, the store takes care of everything (including eviction)...
+        if( offHeapStore != null ) {
+            offHeapStore.add( _rr, expires );
+            return;
+        }
 
-            DNSCacheEntry entry = entries[entryIndex];
+        // all changes to the entries for this domain are made while holding its stripe lock...
+        ReentrantLock stripe = stripeFor( _rr.name.text );
+        stripe.lock();
+        try {
+
+            // find the RRset (the entry with the same type and class) that this record belongs to, if we have one...
+            DNSCacheEntry[] entries = entryMap.getOrDefault( _rr.name.text, NO_ENTRIES );
+            int entryIndex = indexOf( entries, _rr.type, _rr.klass );
+
+            // if we have an unexpired RRset, the record joins it, overwriting any record that's the same (domain, class, type, resource data) as the one being added;
+            // otherwise (including when the RRset we have is stale) the record starts a new RRset...
+            List<DNSResourceRecord> records = new ArrayList<>();
+            boolean overwrote = false;
+            if( (entryIndex < entries.length) && (entries[entryIndex].expiration > System.currentTimeMillis()) ) {
+                for( DNSResourceRecord rr : entries[entryIndex].resourceRecords ) {
+                    if( !overwrote && rr.sameAs( _rr ) ) {
+                        LOGGER.log( FINE, "Overwriting: " + rr );
+                        records.add( _rr );
+                        overwrote = true;
+                    }
+                    else
+                        records.add( rr );
+                }
+            }
+            if( !overwrote )
+                records.add( _rr );
 
-            // if this entry isn't the same as the record being added, we try the next one...
-            if( !entry.resourceRecord.sameAs( _rr ) )
-                continue;
+            // the RRset takes the expiration time of the record we just got, as it's the freshest news we have about the RRset...
+            store( entries, List.of( new DNSCacheEntry( records, expires ) ) );
+        }
+        finally {
+            stripe.unlock();
+        }
 
-            // if we get here, then the current entry is the same as the added record...
-            // that means we need to overwrite this entry with the (presumably "fresher") record we're adding...
+        // if our cache is too big with this addition, trim it down...
+        trim();
+    }
 
-            LOGGER.log( FINE, "Overwriting: " + entry.resourceRecord );
 
-            // remove the to-be-overwritten record's mapping in ttlMap...
-            ttlMap.remove( entry.ttlKey );
-
-            // make a new key for the mapping in ttlMap, for the new entry we'll be making there...
-            DNSTTLCacheKey ttlKey = new DNSTTLCacheKey( expires, uniqueInteger.getAndIncrement() );
+    /**
+     * <p>Replaces the RRsets in this cache for the given domain name with the given RRsets (each a list of records with that domain name and the same type and class, and no two
+     * with the same type and class), as RFC 2181 calls for when an RRset arrives in a response.  Records with a zero TTL, unimplemented records, and duplicate records are
+     * dropped; an RRset that's left empty changes nothing.  Each RRset expires when the shortest-lived of its records does, capped at the current time plus the maximum
+     * allowable TTL.</p>
+     * <p>All the RRsets are stored while holding the name's stripe lock just once, and published together in one new array of entries.  The caller is responsible for trimming
+     * the cache afterwards.</p>
+     *
+     * @param _dn The domain name of the RRsets.
+     * @param _rrsets The RRsets to store.
+     * @param _now The current system time.
+     */
+    private void addRRsets( final String _dn, final Collection<List<DNSResourceRecord>> _rrsets, final long _now ) {
+
+        long maxExpires = _now + maxAllowableTTLMillis;
+        List<DNSCacheEntry> newEntries = new ArrayList<>( _rrsets.size() );
+        for( List<DNSResourceRecord> rrset : _rrsets ) {
+
+            // drop any records we wouldn't cache, and any duplicates, noting the lowest TTL (RFC 2181 says they should all be the same, and to use the lowest if they're not)...
+            List<DNSResourceRecord> records = new ArrayList<>( rrset.size() );
+            long ttl = Long.MAX_VALUE;
+            for( DNSResourceRecord rr : rrset ) {
+                if( (rr.ttl == 0) || (rr instanceof UNIMPLEMENTED) || records.stream().anyMatch( rr::sameAs ) )
+                    continue;
+                records.add( rr );
+                ttl = Math.min( ttl, rr.ttl );
+            }
+            if( records.isEmpty() )
+                continue;
 
-            // make a new cache entry for the record we're adding, overwriting the existing record...
-            entries[entryIndex] = new DNSCacheEntry( _rr, ttlKey );
+            // these records mean the name exists, and has records of this type, so any negative answers saying otherwise are wrong now...
+            DNSResourceRecord first = records.get( 0 );
+            if( !negativeMap.isEmpty() ) {
+                negativeMap.remove( new DNSNegativeKey( _dn, null,       first.klass ) );
+                negativeMap.remove( new DNSNegativeKey( _dn, first.type, first.klass ) );
+            }
 
-            // make the new mapping in ttlMap for the record we're adding
-            ttlMap.put( ttlKey, entries[entryIndex] );
+            // if the expiration time is too far into the future, truncate it...
+            long expires = Math.min( _now + ttl * 1000, maxExpires );
 
-            // no need to check for other matches; this logic guarantees there will be at most one match in a given domain...
-            // entryMap already has a reference to this array, so we don't need to update the entryMap mapping...
-            break;
+            // if we're holding our records off-heap, the store replaces the old RRset with the new one itself...
+            if( offHeapStore != null ) {
+                offHeapStore.addRRset( records, expires );
+                continue;
+            }
+            newEntries.add( new DNSCacheEntry( records, expires ) );
         }
+        if( newEntries.isEmpty() )
+            return;
+
+        if( LOGGER.isLoggable( FINE ) )
+            LOGGER.log( FINE, "Adding " + newEntries.size() + " RRset(s) to cache for " + _dn + " (" + size() + " resource records cached before this addition)" );
 
-        // if the entryIndex >= entries.length, then we don't already have a record that same as the one we're adding...
-        // that means we have to actually add a new one after making room for it...
-        if( entryIndex >= entries.length ) {
+        // replace whatever RRsets we had (fresh or stale) while holding the stripe lock...
+        ReentrantLock stripe = stripeFor( _dn );
+        stripe.lock();
+        try {
+            store( entryMap.getOrDefault( _dn, NO_ENTRIES ), newEntries );
+        }
+        finally {
+            stripe.unlock();
+        }
+    }
 
-            // if our cache would have too many entries with this addition, trim it down...
-            while( ttlMap.size() >= maxCacheSize ) {
 
-                // remove the ttl entry closest to expiring...
-                remove( ttlMap.firstEntry().getValue() );
+    /**
+     * Puts the given entries (RRsets) into the given array of entries for their FQDN, each replacing the entry with the same type and class if there is one, or added at the
+     * end if not.  The array isn't modified; a single new one is published in its place, however many entries are stored.  Each entry is put in the partition it belongs in,
+     * whose eviction policy, expiration wheel, and count of records are kept up to date, as are the delegation trie, the names of the name servers, and the count of bytes.
+     * Must be called while holding the FQDN's stripe lock.
+     *
+     * @param _entries The entries currently published for the FQDN (an empty array if there are none).
+     * @param _newEntries The entries to store, all for the same FQDN, and no two with the same type and class; there must be at least one.
+     */
+    private void store( final DNSCacheEntry[] _entries, final List<DNSCacheEntry> _newEntries ) {
+
+        // we make a new array, as readers may be looking at the one that's in entryMap right now; it's sized for the worst case, and trimmed if need be...
+        DNSCacheEntry[] newEntries = Arrays.copyOf( _entries, _entries.length + _newEntries.size() );
+        int length = _entries.length;
+        for( DNSCacheEntry entry : _newEntries ) {
+            entry.partition = isInfrastructure( entry ) ? infrastructure : answers;
+            int index = indexOf( _entries, entry.type, entry.klass );
+            if( index < _entries.length ) {
+                DNSCacheEntry old = _entries[index];
+                newEntries[index] = entry;
+                old.superseded = true;
+
+                // a name server's address may have been an answer before we knew it was a name server, and moves to the infrastructure when it's replaced...
+                if( old.partition == entry.partition )
+                    entry.partition.replaced( old, entry );
+                else {
+                    old.partition.removed( old );
+                    entry.partition.added( entry );
+                }
+                if( old.type == NS )
+                    countNameServers( old, -1 );
+                cachedBytes.addAndGet( entry.size - old.size );
             }
+            else {
+                newEntries[length++] = entry;
+                entry.partition.added( entry );
+                cachedBytes.addAndGet( entry.size );
+            }
+        }
+        entryMap.put( _newEntries.get( 0 ).name().text, (length == newEntries.length) ? newEntries : Arrays.copyOf( newEntries, length ) );
+
+        // any NS RRset is now the delegation for its zone, and the names of its name servers are the names of name servers...
+        for( DNSCacheEntry entry : _newEntries ) {
+            if( entry.type == NS )
+                countNameServers( entry, 1 );
+            if( (entry.type == NS) && (entry.klass == DNSRRClass.IN) )
+                delegations.put( entry );
+        }
+    }
+
+
+    /**
+     * Returns {@code true} if the given entry belongs in the infrastructure partition: if it's an NS or SOA RRset, or the address (A or AAAA) RRset of a name server named by
+     * an NS RRset in this cache.  An address RRset that's cached before the NS RRset naming it is an answer until it's replaced.
+     *
+     * @param _entry The entry to classify.
+     * @return {@code true} if the entry belongs in the infrastructure partition.
+     */
+    private boolean isInfrastructure( final DNSCacheEntry _entry ) {
+
+        return switch( _entry.type ) {
+            case NS, SOA -> true;
+            case A, AAAA -> nameServerNames.containsKey( _entry.name().text );
+            default      -> false;
+        };
+    }
+
+
+    /**
+     * Adds the given amount (one or minus one) to the counts of NS RRsets naming each of the name servers in the given NS RRset, forgetting any name server that's no longer
+     * named by any of them.
+     *
+     * @param _entry The NS RRset.
+     * @param _delta The amount to add to each name server's count.
+     */
+    private void countNameServers( final DNSCacheEntry _entry, final int _delta ) {
+
+        for( DNSResourceRecord rr : _entry.resourceRecords ) {
+            if( rr instanceof NS ns )
+                nameServerNames.merge( ns.nameServer.text, _delta, (count, delta) -> ((count + delta) <= 0) ? null : count + delta );
+        }
+    }
+
+
+    /**
+     * Returns the index of the entry (RRset) with the given type and class in the given array of entries, or the array's length if there is none.
+     *
+     * @param _entries The entries to search.
+     * @param _type The type of the RRset to find.
+     * @param _klass The class of the RRset to find.
+     * @return The index of the RRset, or the array's length if there is none.
+     */
+    private static int indexOf( final DNSCacheEntry[] _entries, final DNSRRType _type, final DNSRRClass _klass ) {
+
+        int index;
+        for( index = 0; index < _entries.length; index++ ) {
+            if( (_entries[index].type == _type) && (_entries[index].klass == _klass) )
+                break;
+        }
+        return index;
+    }
+
+
+    /**
+     * Trims each of this cache's partitions down to its maximum size (in resource records), and then the whole cache down to its maximum size in bytes (if it has one), by
+     * removing the entries the partitions' eviction policies choose.  The byte budget is met by evicting answers first, and infrastructure only once there are no more answers.
+     * This is done without holding any stripe lock, as the entries removed are most likely in other stripes.
+     */
+    private void trim() {
+
+        // each partition is kept to its own size, so a flood of answers never evicts the infrastructure (or vice versa)...
+        trim( infrastructure );
+        trim( answers );
+
+        while( (maxCacheBytes > 0) && (cachedBytes.get() > maxCacheBytes) ) {
+            if( !evict( answers ) && !evict( infrastructure ) )
+                break;
+        }
+    }
 
-            // make a new array that's one longer than the existing one, and copy the existing elements into it...
-            DNSCacheEntry[] newEntries = Arrays.copyOf( entries, entries.length + 1 );
 
-            // make a key for the new mapping we need to make in ttlMap...
-            DNSTTLCacheKey ttlKey = new DNSTTLCacheKey( expires, uniqueInteger.getAndIncrement() );
+    /**
+     * Trims the given partition down to its maximum size (in resource records), by removing the entries its eviction policy chooses.
+     *
+     * @param _partition The partition to trim.
+     */
+    private void trim( final Partition _partition ) {
+
+        while( _partition.records.get() > _partition.maxSize ) {
+            if( !evict( _partition ) )
+                break;
+        }
+    }
+
 
-            // calculate the index to where we'll be stuffing our new record...
-            int newEntryIndex = newEntries.length - 1;
+    /**
+     * Removes an expired entry (stale or not) from the given partition, if it has one; otherwise removes the entry that the partition's eviction policy chooses, if it has one
+     * to choose.  Expired entries go first whatever the eviction policy, as they're the least useful entries in the cache.
+     *
+     * @param _partition The partition to evict an entry from.
+     * @return {@code true} if an entry was evicted, {@code false} if the partition had none to evict.
+     */
+    private boolean evict( final Partition _partition ) {
 
-            // create the new cache entry and stuff it away...
-            newEntries[newEntryIndex] = new DNSCacheEntry( _rr, ttlKey );
+        // if the partition has an expired entry, that's our victim...
+        int swept = _partition.expirations.sweep( System.currentTimeMillis(), 1, (entry) -> {
 
-            // make the new mapping in ttlMap for the record we're adding...
-            ttlMap.put( ttlKey, newEntries[newEntryIndex] );
+            // if another thread beat us to removing the entry, make sure the partition has forgotten it, so we don't get it again...
+            if( remove( entry ) )
+                _partition.evictions.increment();
+            else
+                _partition.forget( entry );
+        } );
+        if( swept > 0 )
+            return true;
 
-            // update the domain mapping in entryMap with our newly expanded entries...
-            entryMap.put( _rr.name.text, newEntries );
+        DNSCacheEntry victim = _partition.evictionPolicy.victim();
+        if( victim == null )
+            return false;
+
+        // if another thread beat us to removing the victim, make sure the partition has forgotten it, so we don't get it again...
+        if( remove( victim ) )
+            _partition.evictions.increment();
+        else
+            _partition.forget( victim );
+        return true;
+    }
+
+
+    /**
+     * Removes up to the given number of expired resource records from this cache (not counting those still within the stale window, if serving stale records is enabled; see
+     * {@link #setStaleWindow(long)}), taking them in roughly the order they expired in.  Each call does a bounded amount of work, picking up where the last call left off, so
+     * calling this regularly (as {@link DNSResolver} does, once a second) keeps expired records from piling up in the cache between the lazy purges that additions and fetches
+     * do.  Does nothing if the resource records are held off-heap, as those are overwritten in the order they were added anyway.
+     *
+     * @param _maxRemovals The maximum number of resource records to remove.
+     * @return The number of resource records removed; if this is the maximum, there may be more to remove.
+     */
+    public int sweep( final int _maxRemovals ) {
+
+        if( offHeapStore != null )
+            return 0;
+
+        // sweep each partition's wheel in turn, sharing the removals between them...
+        long before = System.currentTimeMillis() - staleWindowMillis;
+        int removed = 0;
+        for( Partition partition : new Partition[] { infrastructure, answers } ) {
+            removed += partition.expirations.sweep( before, _maxRemovals - removed, (entry) -> {
+
+                // if another thread beat us to removing the entry, make sure the partition has forgotten it, so we don't get it again...
+                if( !remove( entry ) )
+                    partition.forget( entry );
+            } );
         }
+        return removed;
     }
 
 
@@ -430,11 +1255,11 @@ public class DNSCache {
      * calculated as the earlier of the calculated expiration time or the current time plus the maximum allowable TTL.  </p>
      * <p>If the cache already contains the maximum number of cache entries allowed, then the cached record with the earliest expiration time is purged before adding the new
      * resource record, thus capping the cache's size. </p>
-     * <p>If there is already an entry in the cache that is of the same type as the entry to be added, with the same resource record data, then the existing entry is overwritten
-     * with the new entry.  For instance, if the cache of resource records for "www.bogus.com" already had an A record with "141.2.3.76", and a new matching A record was added,
-     * the new record will overwrite the existing on.  The main significance of this behavior is that it is possible for the TTL of a resource record in the cache to be updated.</p>
-     * <p>If the cache does not contain any resource records that are the same type with the same resource record data as the resource record being added, then the new resource
-     * record is added to the cache.</p>
+     * <p>The record joins the cached, unexpired resource record set (RRset) with the same domain name, type, and class, if there is one, and otherwise starts a new one
+     * (replacing any stale RRset).  If the RRset already has a record with the same resource record data, that record is overwritten with the new one.  For instance, if the
+     * cache of resource records for "www.bogus.com" already had an A record with "141.2.3.76", and a new matching A record was added, the new record will overwrite the existing
+     * one.  Either way, the whole RRset takes the new record's expiration time, as it's the freshest news about the RRset.  To replace an RRset rather than add to it, use
+     * {@link #add(List)}.</p>
      *
      * @param _rr The {@link DNSResourceRecord} to be added to this cache.
      */
@@ -450,14 +1275,11 @@ public class DNSCache {
      * <p>Adds the given {@link DNSResourceRecord}s to this cache with the expiration time calculated from each resource record's TTL.  Any attempt to add a {@code null} resource
      * record is logged and ignored.  Attempts to add expired or {@link UNIMPLEMENTED} resource records are silently ignored.  The actual expiration time used in the cache is
      * calculated as the earlier of the calculated expiration time or the current time plus the maximum allowable TTL.  </p>
-     * <p>If the cache already contains the maximum number of cache entries allowed, then the cached record with the earliest expiration time is purged before adding each new
-     * resource record, thus capping the cache's size. </p>
-     * <p>If there is already an entry in the cache that is of the same type as an entry to be added, with the same resource record data, then the existing entry is overwritten
-     * with the new entry.  For instance, if the cache of resource records for "www.bogus.com" already had an A record with "141.2.3.76", and a new matching A record was added,
-     * the new record will overwrite the existing on.  The main significance of this behavior is that it is possible for the TTL of a resource record in the cache to be updated.
-     * </p>
-     * <p>If the cache does not contain any resource records that are the same type with the same resource record data as a resource record being added, then the new resource
-     * record is added to the cache.</p>
+     * <p>The records are gathered into resource record sets (RRsets: the records with the same domain name, type, and class), and each RRset replaces the cached RRset of the
+     * same name, type, and class (if there is one) in one operation, as RFC 2181 calls for when an RRset arrives in a response.  For instance, if the cache held two A records
+     * for "www.bogus.com", and the given records include one A record for "www.bogus.com", then afterwards the cache holds just that one A record for "www.bogus.com".  Each
+     * RRset expires when the record in it with the lowest TTL does.</p>
+     * <p>If the cache then holds more than the maximum number of resource records allowed, records are evicted (a whole RRset at a time) to cap the cache's size. </p>
      *
      * @param _rrs The list of {@link DNSResourceRecord}s to be added to this cache.
      */
@@ -465,55 +1287,366 @@ public class DNSCache {
 
         Checks.required( _rrs );
 
-        _rrs.forEach( this::add );
+        addAll( List.of( _rrs ) );
+    }
+
+
+    /**
+     * <p>Adds all the {@link DNSResourceRecord}s in the given response message (its answers, authorities, and additional records) to this cache, exactly as
+     * {@link #add(List)} would add them all in one list.  The records are gathered into RRsets, and the RRsets into domain names, in one pass over the message; then each
+     * domain name's RRsets are stored together, taking its lock just once and publishing one new set of entries for it, and the cache is trimmed once at the end.  A referral
+     * with a dozen name servers and their glue records is thus a couple of dozen cheap updates, rather than a lock and a copy for every record.</p>
+     * <p>Negative answers in the message are not added; see {@link #addNegative(DNSMessage)} for those.</p>
+     *
+     * @param _message The {@link DNSMessage} whose resource records are to be added to this cache.
+     */
+    public void add( final DNSMessage _message ) {
+
+        Checks.required( _message );
+
+        addAll( List.of( _message.answers, _message.authorities, _message.additionalRecords ) );
+    }
+
+
+    /**
+     * Adds all the {@link DNSResourceRecord}s in the given lists to this cache: gathers them into RRsets (keeping them in the order they first appear), gathers the RRsets by
+     * domain name, stores each domain name's RRsets in one operation, and then trims the cache.  Any {@code null} resource record is logged and ignored.
+     *
+     * @param _lists The lists of {@link DNSResourceRecord}s to be added to this cache.
+     */
+    private void addAll( final List<List<DNSResourceRecord>> _lists ) {
+
+        // gather the records into RRsets, and the RRsets by domain name...
+        Map<String,Map<DNSRRsetKey,List<DNSResourceRecord>>> names = new LinkedHashMap<>();
+        for( List<DNSResourceRecord> list : _lists ) {
+            for( DNSResourceRecord rr : list ) {
+                if( rr == null ) {
+                    LOGGER.log( FINE, "Ignoring attempt to add null resource record to cache" );
+                    continue;
+                }
+                names
+                        .computeIfAbsent( rr.name.text, (key) -> new LinkedHashMap<>( 4 ) )
+                        .computeIfAbsent( new DNSRRsetKey( rr.name.text, rr.type, rr.klass ), (key) -> new ArrayList<>( 1 ) )
+                        .add( rr );
+            }
+        }
+        if( names.isEmpty() )
+            return;
+
+        // store each domain name's RRsets together...
+        long now = System.currentTimeMillis();
+        names.forEach( (dn, rrsets) -> addRRsets( dn, rrsets.values(), now ) );
+
+        // if our cache is too big with these additions, trim it down...
+        trim();
+    }
+
+
+    /**
+     * <p>Adds the negative answer (RFC 2308) in the given response message, if it has one, to this cache.  A response has a negative answer if its response code is
+     * {@link DNSResponseCode#NAME_ERROR} (the queried name doesn't exist), or if its response code is {@link DNSResponseCode#OK} but it has no answers at all (the queried name
+     * has no records of the queried type).  Either way, the negative answer is cached only if the response's authorities include an SOA record, as without one there's no way
+     * to know how long the negative answer is good for.  The negative answer expires after the lesser of the SOA record's TTL and its MINIMUM field, capped (like any other
+     * record) at the maximum allowable TTL.</p>
+     * <p>Responses that are not negative answers are silently ignored, as are negative answers to ANY queries.</p>
+     *
+     * @param _response The {@link DNSMessage} response that may contain a negative answer.
+     */
+    public void addNegative( final DNSMessage _response ) {
+
+        Checks.required( _response );
+
+        // if this isn't a response to a single question, or if it has any answers at all, then it's not a negative answer...
+        if( !_response.isResponse || (_response.questions.size() != 1) || !_response.answers.isEmpty() )
+            return;
+
+        // if it's not a name error or an OK with no answers, it's not a negative answer...
+        if( (_response.responseCode != NAME_ERROR) && (_response.responseCode != OK) )
+            return;
+
+        // we don't know what a negative answer to ANY means, so we won't cache it...
+        DNSQuestion question = _response.getQuestion();
+        if( (question.qtype == ANY) && (_response.responseCode == OK) )
+            return;
+
+        // find the SOA that tells us how long we can cache this negative answer; no SOA means no caching...
+        SOA soa = null;
+        for( DNSResourceRecord rr : _response.authorities ) {
+            if( rr instanceof SOA s ) {
+                soa = s;
+                break;
+            }
+        }
+        if( soa == null )
+            return;
+
+        // RFC 2308 says the negative TTL is the lesser of the SOA's TTL and its MINIMUM...
+        long ttlMillis = Math.min( soa.ttl, soa.minimum ) * 1000;
+        if( ttlMillis <= 0 )
+            return;
+        long expires = System.currentTimeMillis() + Math.min( ttlMillis, maxAllowableTTLMillis );
+
+        // a name error applies to every type; no data applies only to the queried type...
+        DNSNegativeKey key = new DNSNegativeKey( question.qname.text, (_response.responseCode == NAME_ERROR) ? null : question.qtype, question.qclass );
+
+        LOGGER.log( FINE, "Adding negative answer to cache: " + key + " (" + _response.responseCode + ")" );
+
+        negativeMap.put( key, new DNSNegativeEntry( _response.responseCode, soa, expires ) );
+
+        // if we have too many negative answers, trim them down; first the expired ones, then any we run across...
+        if( negativeMap.size() > maxCacheSize ) {
+            long now = System.currentTimeMillis();
+            negativeMap.values().removeIf( (entry) -> entry.expiration < now );
+            Iterator<DNSNegativeKey> it = negativeMap.keySet().iterator();
+            while( (negativeMap.size() > maxCacheSize) && it.hasNext() ) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Returns the unexpired negative answer held in this cache for the given question, or {@code null} if there is none.  A cached name error (NXDOMAIN) for the question's
+     * name and class answers questions of any type in that class; a cached "no data" answer answers only questions of its type and class.
+     *
+     * @param _question The {@link DNSQuestion} to look for a negative answer to.
+     * @return The negative answer, or {@code null} if there is none.
+     */
+    private DNSNegativeEntry getNegative( final DNSQuestion _question ) {
+
+        // if there are no negative answers at all (the usual case), don't bother making keys...
+        if( negativeMap.isEmpty() )
+            return null;
+
+        long now = System.currentTimeMillis();
+
+        // first see if the name doesn't exist; then see if it has no records of the type we want...
+        DNSNegativeEntry entry = getNegative( new DNSNegativeKey( _question.qname.text, null, _question.qclass ), now );
+        if( (entry == null) && (_question.qtype != ANY) )
+            entry = getNegative( new DNSNegativeKey( _question.qname.text, _question.qtype, _question.qclass ), now );
+        return entry;
+    }
+
+
+    /**
+     * Returns the unexpired negative answer held in this cache with the given key, or {@code null} if there is none.  An expired negative answer is removed.
+     *
+     * @param _key The key of the negative answer to look for.
+     * @param _now The current system time.
+     * @return The negative answer, or {@code null} if there is none.
+     */
+    private DNSNegativeEntry getNegative( final DNSNegativeKey _key, final long _now ) {
+
+        DNSNegativeEntry entry = negativeMap.get( _key );
+        if( entry == null )
+            return null;
+        if( entry.expiration < _now ) {
+            negativeMap.remove( _key, entry );
+            return null;
+        }
+        if( LOGGER.isLoggable( FINE ) )
+            LOGGER.log( FINE, "Negative cache hit for " + _key );
+        return entry;
+    }
+
+
+    /**
+     * Returns {@code true} if the given response message is an authoritative negative answer (RFC 2308): an authoritative response with no answers, a response code of
+     * {@link DNSResponseCode#NAME_ERROR} or {@link DNSResponseCode#OK}, and an SOA record in its authorities.  The cache's responses to queries it has a cached negative answer
+     * for always look like this, which is how they are distinguished from the cache's other responses.
+     *
+     * @param _response The {@link DNSMessage} response to test.
+     * @return {@code true} if the response is an authoritative negative answer.
+     */
+    public static boolean isNegativeAnswer( final DNSMessage _response ) {
+
+        Checks.required( _response );
+
+        return _response.authoritativeAnswer
+                && _response.answers.isEmpty()
+                && ((_response.responseCode == NAME_ERROR) || (_response.responseCode == OK))
+                && _response.authorities.stream().anyMatch( (rr) -> rr instanceof SOA );
     }
 
 
     /**
      * Returns a list of all the unexpired {@link DNSResourceRecord}s held in this cache for the given fully-qualified domain name (FQDN).  If the cache holds no resource records
-     * for the given domain, then an empty list is returned.
+     * for the given domain, then an empty list is returned.  On hot paths, prefer {@link #visit(String,DNSRRType,Consumer)}, which makes no list.
      *
      * @param _dn The FQDN to retrieve resource records for.
      * @return The (possibly empty) list of retrieved records.
      */
-    public synchronized List<DNSResourceRecord> get( final String _dn ) {
+    public List<DNSResourceRecord> get( final String _dn ) {
 
         Checks.required( _dn );
 
-        // get the entries for this FQDN, or null if there are none...
-        DNSCacheEntry[] entries = entryMap.get( _dn.toLowerCase() );
+        return getRecords( _dn, null, null );
+    }
+
+
+    /**
+     * Returns a list of all the unexpired {@link DNSResourceRecord}s held in this cache for the given FQDN whose type is one of the given types, or of any type if the types
+     * are {@code null}.  Each RRset of a wanted type that's returned counts as a hit for the eviction policy and for prefetching, and (if a list of sources is given) is
+     * added to the sources.
+     *
+     * @param _dn The FQDN to retrieve resource records for.
+     * @param _types The types of resource records wanted, or {@code null} for all types.
+     * @param _sources The list to add the RRsets returned to, or {@code null} if they're not wanted.
+     * @return The (possibly empty) list of retrieved records.
+     */
+    private List<DNSResourceRecord> getRecords( final String _dn, final DNSRRType[] _types, final List<DNSCacheEntry> _sources ) {
+
+        String dn = _dn.toLowerCase();
+
+        // if we're holding our records off-heap, get the unexpired ones from the store, with their TTLs brought up to date...
+        if( offHeapStore != null ) {
+            long now = System.currentTimeMillis();
+            List<DNSResourceRecord> result = new ArrayList<>();
+            offHeapStore.get( dn, now, (rr, expiration) -> {
+                if( (_types == null) || isOneOf( rr.type, _types ) )
+                    result.add( rr.changeTTLTo( Math.max( 1, (expiration - now) / 1000 ) ) );
+            } );
+            if( LOGGER.isLoggable( FINE ) )
+                LOGGER.log( FINE, ((result.size() > 0) ? "Cache hit for " : "Cache miss for ") + dn );
+            return result;
+        }
+
+        // get the entries for this FQDN, or null if there are none; this takes no lock, and the array we get is never modified...
+        DNSCacheEntry[] entries = entryMap.get( dn );
 
         // if we have no entries for this FQDN, then we just return an empty list...
         if( entries == null ) {
-            LOGGER.log( FINE, "Cache miss for " + _dn.toLowerCase() );
+            if( LOGGER.isLoggable( FINE ) )
+                LOGGER.log( FINE, "Cache miss for " + dn );
             return new ArrayList<>( 0 );
         }
 
-        // we have some candidate entries, so long as they haven't expired, so make a list to hold the results...
-        List<DNSResourceRecord> result = new ArrayList<>( entries.length );
+        // we have some candidate RRsets, so long as they haven't expired, so make a list to hold the results...
+        List<DNSResourceRecord> result = new ArrayList<>();
 
-        // record the current time (so we can check for expired records)...
+        // record the current time (so we can check for expired records), and see if we're prefetching...
         long currentTime = System.currentTimeMillis();
+        Prefetch pf = prefetch;
 
-        // iterate over all the entries to look for the ones that belong in the results...
+        // iterate over all the RRsets to look for the ones that belong in the results...
         for( DNSCacheEntry entry : entries ) {
 
-            // if the entry has expired, remove it and of course don't return it...
+            // if the RRset has expired, don't return it - and unless we're keeping it to serve stale, remove it (this is the only case in which a read takes a lock)...
             if( entry.expiration < currentTime ) {
-                remove( entry );
+                if( (currentTime - entry.expiration) >= staleWindowMillis )
+                    remove( entry );
                 continue;
             }
 
-            // it's a valid record, so add it to our list...
-            result.add( entry.resourceRecord );
+            // if it's not a type we want, skip it...
+            if( (_types != null) && !isOneOf( entry.type, _types ) )
+                continue;
+
+            // it's a valid RRset, so add its records to our list, and let the eviction policy know it was used...
+            result.addAll( entry.resourceRecords );
+            accessed( entry );
+            if( _sources != null )
+                _sources.add( entry );
+
+            // if it's popular, and getting close to expiring, refresh it in the background...
+            if( pf != null )
+                checkPrefetch( pf, entry, currentTime );
         }
 
         // at last, at last!  we're done; return with the results (which could be empty if all the records we had were expired)...
-        LOGGER.log( FINE, "Cache hit for " + _dn.toLowerCase() + "\n" + DNSUtil.toString( result ) );
+        if( LOGGER.isLoggable( FINE ) )
+            LOGGER.log( FINE, "Cache hit for " + dn + "\n" + DNSUtil.toString( result ) );
         return result;
     }
 
 
+    /**
+     * Returns {@code true} if the given type is one of the given types.
+     *
+     * @param _type The type to look for.
+     * @param _types The types to look in.
+     * @return {@code true} if the given type is one of the given types.
+     */
+    private static boolean isOneOf( final DNSRRType _type, final DNSRRType[] _types ) {
+
+        for( DNSRRType type : _types ) {
+            if( type == _type )
+                return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Returns a list of all the {@link DNSResourceRecord}s held in this cache for the given {@link DNSDomainName}, including stale records (those that have expired, but are
+     * still within the stale window).  The TTL of stale records is changed to 30 seconds.  If the cache holds no such resource records, then an empty list is returned.
+     *
+     * @param _dn The {@link DNSDomainName} to retrieve resource records for.
+     * @return The (possibly empty) list of retrieved records.
+     */
+    private List<DNSResourceRecord> getStale( final DNSDomainName _dn ) {
+
+        // if we're holding our records off-heap, the store has kept the expired ones (until they're evicted)...
+        if( offHeapStore != null ) {
+            long now = System.currentTimeMillis();
+            List<DNSResourceRecord> result = new ArrayList<>();
+            offHeapStore.get( _dn.text, now - staleWindowMillis + 1, (rr, expiration) ->
+                    result.add( rr.changeTTLTo( (expiration >= now) ? Math.max( 1, (expiration - now) / 1000 ) : STALE_TTL_SECONDS ) ) );
+            return result;
+        }
+
+        DNSCacheEntry[] entries = entryMap.get( _dn.text );
+        if( entries == null )
+            return new ArrayList<>( 0 );
+
+        List<DNSResourceRecord> result = new ArrayList<>();
+        long currentTime = System.currentTimeMillis();
+        long window      = staleWindowMillis;
+        for( DNSCacheEntry entry : entries ) {
+
+            // fresh RRsets are returned as they are...
+            if( entry.expiration >= currentTime )
+                result.addAll( entry.resourceRecords );
+
+            // stale RRsets are returned with a short TTL...
+            else if( (currentTime - entry.expiration) < window )
+                entry.resourceRecords.forEach( (rr) -> result.add( rr.changeTTLTo( STALE_TTL_SECONDS ) ) );
+        }
+        if( (result.size() > 0) && LOGGER.isLoggable( FINE ) )
+            LOGGER.log( FINE, "Stale cache hit for " + _dn.text + "\n" + DNSUtil.toString( result ) );
+        return result;
+    }
+
+
+    /**
+     * Count a hit on the given (unexpired) cache entry, and if it has had enough hits and is within its prefetch window, call the prefetcher to refresh it.  The prefetcher is
+     * called only once for each entry; the refreshed RRset replaces the entry.
+     *
+     * @param _prefetch The prefetch configuration.
+     * @param _entry The cache entry that was hit.
+     * @param _now The current system time.
+     */
+    private void checkPrefetch( final Prefetch _prefetch, final DNSCacheEntry _entry, final long _now ) {
+
+        // note that this count isn't atomic, so it may miss some hits when several threads fetch the same record at once - but it's close enough for this purpose...
+        int hits = ++_entry.hits;
+        if( _entry.prefetched || (hits < _prefetch.minHits) )
+            return;
+
+        // if we're not yet in this entry's prefetch window, there's nothing to do yet...
+        long window = (long)(_entry.lifetime * _prefetch.fraction * (1.0 - PREFETCH_JITTER * _entry.jitter));
+        if( (_entry.expiration - _now) > window )
+            return;
+
+        // another thread may just have done this, but the resolver coalesces identical queries, so it doesn't matter...
+        _entry.prefetched = true;
+        DNSDomainName name = _entry.name();
+        LOGGER.log( FINE, "Prefetching " + name.text + " " + _entry.type + " (" + hits + " hits, " + (_entry.expiration - _now) + "ms left)" );
+        _prefetch.prefetcher.accept( new DNSQuestion( name, _entry.type, _entry.klass ) );
+    }
+
+
     /**
      * Returns a list of all the unexpired {@link DNSResourceRecord}s held in this cache for the given {@link DNSDomainName}.  If the cache holds no resource records
      * for the given domain, then an empty list is returned.
@@ -528,7 +1661,7 @@ public class DNSCache {
 
     /**
      * Returns a list of all the unexpired {@link DNSResourceRecord}s held in this cache for the given domain name whose record type matches one of the given types.
-     * If the cache holds no matching records, then an empty list is returned.
+     * If the cache holds no matching records, then an empty list is returned.  On hot paths, prefer {@link #visit(String,DNSRRType,Consumer)}, which makes no list.
      *
      * @param _dn The domain name to retrieve resource records for.
      * @param _types The types of resource records wanted.
@@ -538,7 +1671,7 @@ public class DNSCache {
 
         Checks.required( _dn, _types );
 
-        return filterResourceRecords( get( _dn ), _types );
+        return getRecords( _dn, _types, null );
     }
 
 
@@ -557,192 +1690,739 @@ public class DNSCache {
     }
 
 
+    /**
+     * <p>Calls the given visitor with each of the unexpired {@link DNSResourceRecord}s held in this cache for the given FQDN whose type is the given type (or, if the given
+     * type is {@link DNSRRType#ANY}, of any type), and returns the number of records visited.  Each RRset visited counts as a hit for the eviction policy and for
+     * prefetching, just as it does for {@link #get(String,DNSRRType...)}.</p>
+     * <p>This is the lookup to use on hot paths: unlike the {@code get} methods, it makes no list to return the records in, so (unless the visitor allocates, or the records
+     * are held off-heap and must be decoded) a lookup allocates nothing at all, whether it hits or misses.  The visitor is called while the lookup is in progress, but with no
+     * locks held.</p>
+     *
+     * @param _dn The FQDN to visit resource records for.
+     * @param _type The type of resource records wanted.
+     * @param _visitor The visitor to call with each record found.
+     * @return The number of records visited, which may be zero.
+     */
+    public int visit( final String _dn, final DNSRRType _type, final Consumer<DNSResourceRecord> _visitor ) {
+
+        Checks.required( _dn, _type, _visitor );
+        return visit( _dn, _type, _visitor, null );
+    }
+
+
+    /**
+     * Calls the given visitor with each of the unexpired {@link DNSResourceRecord}s held in this cache for the given FQDN whose type is the given type (or, if the given
+     * type is {@link DNSRRType#ANY}, of any type), and returns the number of records visited.  If a list of sources is given, each RRset visited is added to it.
+     *
+     * @param _dn The FQDN to visit resource records for.
+     * @param _type The type of resource records wanted.
+     * @param _visitor The visitor to call with each record found.
+     * @param _sources The list to add the RRsets visited to, or {@code null} if they're not wanted.
+     * @return The number of records visited, which may be zero.
+     */
+    private int visit( final String _dn, final DNSRRType _type, final Consumer<DNSResourceRecord> _visitor, final List<DNSCacheEntry> _sources ) {
+
+        // toLowerCase() returns the same string if it's already lower case, as our keys always are...
+        String dn = _dn.toLowerCase();
+
+        // if we're holding our records off-heap, they have to be decoded (and so allocated) anyway...
+        if( offHeapStore != null ) {
+            List<DNSResourceRecord> records = getRecords( dn, (_type == ANY) ? null : new DNSRRType[] { _type }, null );
+            records.forEach( _visitor );
+            return records.size();
+        }
+
+        // get the entries for this FQDN, or null if there are none; this takes no lock, and the array we get is never modified...
+        DNSCacheEntry[] entries = entryMap.get( dn );
+        if( entries == null ) {
+            if( LOGGER.isLoggable( FINE ) )
+                LOGGER.log( FINE, "Cache miss for " + dn );
+            return 0;
+        }
+
+        long currentTime = System.currentTimeMillis();
+        Prefetch pf = prefetch;
+        int count = 0;
+        for( DNSCacheEntry entry : entries ) {
+
+            // if it's not a type we want, skip it...
+            if( (_type != ANY) && (entry.type != _type) )
+                continue;
+
+            // if the RRset has expired, don't visit it - and unless we're keeping it to serve stale, remove it...
+            if( entry.expiration < currentTime ) {
+                if( (currentTime - entry.expiration) >= staleWindowMillis )
+                    remove( entry );
+                continue;
+            }
+
+            // visit the records without an iterator, and let the eviction policy (and prefetching) know the RRset was used...
+            List<DNSResourceRecord> records = entry.resourceRecords;
+            for( int i = 0; i < records.size(); i++ )
+                _visitor.accept( records.get( i ) );
+            count += records.size();
+            accessed( entry );
+            if( _sources != null )
+                _sources.add( entry );
+            if( pf != null )
+                checkPrefetch( pf, entry, currentTime );
+        }
+
+        if( LOGGER.isLoggable( FINE ) )
+            LOGGER.log( FINE, ((count > 0) ? "Cache hit for " : "Cache miss for ") + dn + " " + _type + " (" + count + " resource records)" );
+        return count;
+    }
+
+
+    /**
+     * Calls the given visitor with each of the unexpired {@link DNSResourceRecord}s held in this cache for the given {@link DNSDomainName} whose type is the given type, and
+     * returns the number of records visited.  See {@link #visit(String,DNSRRType,Consumer)} for details.
+     *
+     * @param _dn The {@link DNSDomainName} to visit resource records for.
+     * @param _type The type of resource records wanted.
+     * @param _visitor The visitor to call with each record found.
+     * @return The number of records visited, which may be zero.
+     */
+    public int visit( final DNSDomainName _dn, final DNSRRType _type, final Consumer<DNSResourceRecord> _visitor ) {
+
+        Checks.required( _dn );
+        return visit( _dn.text, _type, _visitor );
+    }
+
+
     /**
      * Returns the number of resource records currently held in this cache.  Note that some of these records may have expired.
      *
      * @return The number of resource records currently held in this cache.
      */
-    public synchronized int size() {
-        return ttlMap.size();
+    public int size() {
+        return (offHeapStore != null) ? offHeapStore.size() : infrastructure.records.get() + answers.records.get();
     }
 
 
     /**
-     * Clear this cache.  After this call, the cache will be completely empty, exactly as if it had just been constructed.
+     * Returns the estimated number of bytes of heap used by the resource records currently held in this cache (see {@link DNSResourceRecord#estimatedSize()}), including the
+     * cache's own bookkeeping for each record.  Note that some of these records may have expired.  If the records are held off-heap, this is the number of bytes of off-heap
+     * memory in use instead.
+     *
+     * @return The estimated number of bytes of heap used by the resource records currently held in this cache.
      */
-    public synchronized void clear() {
-        entryMap.clear();
-        ttlMap.clear();
-        uniqueInteger.set( 0 );
+    public long sizeInBytes() {
+        return (offHeapStore != null) ? offHeapStore.sizeInBytes() : cachedBytes.get();
     }
 
 
     /**
-     * Remove the given {@link DNSCacheEntry} from this cache.  In practical terms, this means removing it from both cache maps.
+     * Returns the current statistics of this cache's infrastructure partition: the NS and SOA records, and the addresses of the name servers named by the NS records.  If
+     * the resource records are held off-heap, the cache isn't partitioned, and the statistics are all zero.
      *
-     * @param _dce The {@link DNSCacheEntry} to remove.
+     * @return The statistics of the infrastructure partition.
      */
-    private void remove( final DNSCacheEntry _dce ) {
+    public PartitionStats getInfrastructureStats() {
+        return infrastructure.stats();
+    }
 
-        LOGGER.log( FINE, "Removing from cache: " + _dce.resourceRecord );
 
-        // first remove the entry from the ttl map, using the handy-dandy key that we squirreled away...
-        ttlMap.remove( _dce.ttlKey );
+    /**
+     * Returns the current statistics of this cache's answer partition: all the records that aren't in the infrastructure partition.  If the resource records are held
+     * off-heap, the cache isn't partitioned, and the statistics are all zero.
+     *
+     * @return The statistics of the answer partition.
+     */
+    public PartitionStats getAnswerStats() {
+        return answers.stats();
+    }
 
-        // then remove it from the entry map...
 
-        // first get the entries for this FQDN...
-        DNSCacheEntry[] entries = entryMap.get( _dce.resourceRecord.name.text );
+    /**
+     * Returns the maximum estimated number of bytes of heap that the resource records held in this cache may use, or zero if there is no limit (the default).
+     *
+     * @return The maximum estimated number of bytes of heap that the cached resource records may use, or zero for no limit.
+     */
+    public long getMaxCacheBytes() {
+        return maxCacheBytes;
+    }
 
-        // if there were no entries, then there's nothing to remove; shouldn't happen, but if somehow it does, just leave...
-        if( entries == null )
-            return;
 
-        // iterate over all the entries, looking for the one we're trying to remove...
-        int entryIndex;
-        for( entryIndex = 0; entryIndex < entries.length; entryIndex++ ) {
+    /**
+     * Sets the maximum estimated number of bytes of heap that the resource records held in this cache may use (see {@link #sizeInBytes()}), or zero for no limit (the
+     * default).  This limit applies in addition to the maximum number of resource records set at instantiation time; whichever is reached first causes the eviction policy to
+     * choose resource records to remove.  If the cache is over the new limit, it is trimmed down to it before this method returns.  This may be called at any time, and is
+     * how a {@link DNSCacheHeapGovernor} shrinks and grows the cache under heap pressure.
+     *
+     * @param _maxCacheBytes The maximum estimated number of bytes of heap that the cached resource records may use, or zero for no limit.
+     */
+    public void setMaxCacheBytes( final long _maxCacheBytes ) {
 
-            DNSCacheEntry entry = entries[entryIndex];
+        if( _maxCacheBytes < 0 )
+            throw new IllegalArgumentException( "Invalid max cache bytes: " + _maxCacheBytes );
 
-            // if the entry is the same object (not equal to, but the object identity), then we've found the one we want to purge...
-            if( entry == _dce ) {
+        maxCacheBytes = _maxCacheBytes;
+        trim();
+    }
+
+
+    /**
+     * Clear this cache.  After this call, the cache will be completely empty, exactly as if it had just been constructed.
+     */
+    public void clear() {
+
+        // take all the stripe locks (always in the same order) so that nothing can be added while we're clearing...
+        for( ReentrantLock stripe : stripes )
+            stripe.lock();
+        try {
+            entryMap.clear();
+            if( offHeapStore != null )
+                offHeapStore.clear();
+            infrastructure.clear();
+            answers.clear();
+            nameServerNames.clear();
+            negativeMap.clear();
+            responseMap.clear();
+            chainMap.clear();
+            delegations.clear();
+            cachedBytes.set( 0 );
+        }
+        finally {
+            for( ReentrantLock stripe : stripes )
+                stripe.unlock();
+        }
+    }
 
-                // if this was the last entry for this FQDN, then we'll just remove this mapping from the entryMap, and we're done...
-                if( entries.length == 1 ) {
-                    entryMap.remove( _dce.resourceRecord.name.text );
-                    return;
+
+    /**
+     * <p>Writes a snapshot of the unexpired resource records in this cache to the given file, so that a later instance can be warmed up from it (see {@link #load(Path)}).
+     * The snapshot is written to a temporary file alongside the given file, which then replaces the given file, so a reader never sees a partially written snapshot.  The
+     * cache is not locked while the snapshot is being written, so records added or removed meanwhile may or may not be in it.  Negative answers are not saved.</p>
+     * <p>The file is a compact binary format: a four byte magic number and a two byte version, followed by one entry per record, each of which is the record's absolute
+     * expiration time (in system time, as an eight byte long), the length of its encoding (a four byte int), and the record encoded just as it is in a DNS message (but with
+     * no name compression across records).</p>
+     *
+     * @param _file The path of the snapshot file to write.
+     * @return The {@link Outcome Outcome&lt;Integer&gt;} of this operation, with the number of records written if it was ok.
+     */
+    public Outcome<Integer> save( final Path _file ) {
+
+        Checks.required( _file );
+
+        Path temp = _file.resolveSibling( _file.getFileName() + ".tmp" );
+        long now = System.currentTimeMillis();
+        int count = 0;
+        ByteBuffer encoded = ByteBuffer.allocate( MAX_ENCODED_RR_SIZE );
+        ByteBuffer buffer  = ByteBuffer.allocate( SNAPSHOT_BUFFER_SIZE );
+
+        try( FileChannel channel = FileChannel.open( temp, CREATE, WRITE, TRUNCATE_EXISTING ) ) {
+
+            buffer.putInt( SNAPSHOT_MAGIC );
+            buffer.putShort( SNAPSHOT_VERSION );
+
+            // if we're holding our records off-heap, they're already in wire format...
+            if( offHeapStore != null ) {
+                int[] stored = new int[1];
+                try {
+                    offHeapStore.forEach( (wire, expiration) -> {
+                        if( expiration <= now )
+                            return;
+                        try {
+                            writeSnapshotEntry( channel, buffer, wire, expiration );
+                            stored[0]++;
+                        }
+                        catch( IOException _e ) {
+                            throw new UncheckedIOException( _e );
+                        }
+                    } );
+                }
+                catch( UncheckedIOException _e ) {
+                    throw _e.getCause();
                 }
+                count = stored[0];
+            }
 
-                // there's more than one entry for this FQDN, so now we've got to shrink them...
+            // the entry arrays are never modified once they're in the map, so we can read them without any locks...
+            for( DNSCacheEntry[] entries : entryMap.values() ) {
+                for( DNSCacheEntry entry : entries ) {
 
-                // first we make our new entries, one shorter than the old entries...
-                DNSCacheEntry[] newEntries = new DNSCacheEntry[entries.length - 1];
+                    // no point in saving what's already expired...
+                    if( entry.expiration <= now )
+                        continue;
 
-                // if there were entries at lower indices than the one we're removing, copy them over...
-                if( entryIndex > 0 )
-                    System.arraycopy( entries, 0, newEntries, 0, entryIndex );
+                    for( DNSResourceRecord rr : entry.resourceRecords ) {
 
-                // if there were entries at higher indices than the one we're removing, copy them over...
-                if( entryIndex < (entries.length - 1) )
-                    System.arraycopy( entries, entryIndex + 1, newEntries, entryIndex, newEntries.length - entryIndex );
+                        // encode the record on its own, so that any compression pointers in it are relative to its own first byte...
+                        encoded.clear();
+                        Outcome<?> eo = rr.encode( encoded, new HashMap<>() );
+                        if( eo.notOk() ) {
+                            LOGGER.log( FINE, "Could not save to snapshot: " + rr + ": " + eo.msg() );
+                            continue;
+                        }
+                        encoded.flip();
 
-                // map our new entries into place, and we're finished...
-                entryMap.put( _dce.resourceRecord.name.text, newEntries );
-                return;
+                        writeSnapshotEntry( channel, buffer, encoded, entry.expiration );
+                        count++;
+                    }
+                }
             }
+
+            write( channel, buffer );
+            channel.force( false );
+        }
+        catch( IOException _e ) {
+            return outcome.notOk( "Could not write cache snapshot: " + _e.getMessage(), _e );
         }
 
-        // we really should never get here, but if we do it means we didn't find the resource record we're trying to remove...
-        // in that case, we just hang our head and leave...
+        // now replace the old snapshot (if there is one) with our new one...
+        try {
+            Files.move( temp, _file, REPLACE_EXISTING, ATOMIC_MOVE );
+        }
+        catch( IOException _e ) {
+            return outcome.notOk( "Could not replace cache snapshot: " + _e.getMessage(), _e );
+        }
+
+        LOGGER.log( FINE, "Saved " + count + " resource records to cache snapshot " + _file );
+        return outcome.ok( count );
     }
 
 
     /**
-     * Instances of this class are used as keys to the {@link DNSCache} {@code ttlMap}; they are immutable and threadsafe.  The key is effectively a 128-bit integer.  The
-     * high-order 64 bits are the local system time (as returned by {@link System#currentTimeMillis()}) that this cache entry will expire.  The low-order 64 bits are a unique
-     * integer within this cache.  Instances of this class are immutable and threadsafe.
+     * Append an entry for the given encoded resource record, which expires at the given time, to the given snapshot buffer, first writing the buffer to the given channel if
+     * it doesn't have room for the entry.
+     *
+     * @param _channel The channel the snapshot is being written to.
+     * @param _buffer The buffer the snapshot is being written through.
+     * @param _encoded The resource record's wire format (from its position to its limit).
+     * @param _expiration The system time that the record expires.
+     * @throws IOException on any I/O problem.
      */
-    public static class DNSTTLCacheKey implements Comparable<DNSTTLCacheKey> {
+    private static void writeSnapshotEntry( final FileChannel _channel, final ByteBuffer _buffer, final ByteBuffer _encoded, final long _expiration ) throws IOException {
 
-        /** The expiration time as a system time (like {@link System#currentTimeMillis()}). */
-        public final long expiration;
+        // if our buffer doesn't have room for this entry, write out what we've got...
+        if( _buffer.remaining() < 12 + _encoded.remaining() )
+            write( _channel, _buffer );
 
-        /** The discriminator, which is simply a unique integer (unique over all the {@link DNSTTLCacheKey} instances in this cache). */
-        public final long discriminator;
+        _buffer.putLong( _expiration );
+        _buffer.putInt( _encoded.remaining() );
+        _buffer.put( _encoded );
+    }
+
+
+    /**
+     * Write the given buffer's contents (from the beginning to its position) to the given channel, and clear the buffer.
+     *
+     * @param _channel The channel to write to.
+     * @param _buffer The buffer to write.
+     * @throws IOException on any I/O problem.
+     */
+    private static void write( final FileChannel _channel, final ByteBuffer _buffer ) throws IOException {
+
+        _buffer.flip();
+        while( _buffer.hasRemaining() )
+            _channel.write( _buffer );
+        _buffer.clear();
+    }
+
+
+    /**
+     * Adds the unexpired resource records in the given snapshot file (written by {@link #save(Path)}) to this cache, with their original expiration times; records that have
+     * expired since the snapshot was written are skipped without being decoded.  Each record's TTL is changed to the time it has left.  The records are added just as if
+     * they'd been added with {@link #add(DNSResourceRecord,long)}, so the cache's size limits apply.  The file is memory-mapped and decoded sequentially.  Records that can't be
+     * decoded are skipped; a file that isn't a snapshot, or that's truncated, loads only the records that precede the problem.
+     *
+     * @param _file The path of the snapshot file to read.
+     * @return The {@link Outcome Outcome&lt;Integer&gt;} of this operation, with the number of records added if it was ok.
+     */
+    public Outcome<Integer> load( final Path _file ) {
+
+        Checks.required( _file );
+
+        long now = System.currentTimeMillis();
+        int count = 0;
+
+        try( FileChannel channel = FileChannel.open( _file, READ ) ) {
+
+            MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+
+            // make sure this is a snapshot we know how to read...
+            if( (buffer.remaining() < 6) || (buffer.getInt() != SNAPSHOT_MAGIC) || (buffer.getShort() != SNAPSHOT_VERSION) )
+                return outcome.notOk( "Not a cache snapshot (or an unknown version): " + _file );
+
+            while( buffer.remaining() >= 12 ) {
+
+                long expiration = buffer.getLong();
+                int  length     = buffer.getInt();
+                if( (length < 0) || (length > buffer.remaining()) )
+                    return outcome.notOk( "Cache snapshot is truncated after " + count + " records: " + _file );
+
+                // the record is decoded from a slice, so that any compression pointers in it are relative to its first byte...
+                ByteBuffer encoded = buffer.slice( buffer.position(), length );
+                buffer.position( buffer.position() + length );
+
+                // if it's expired, we're not interested...
+                if( expiration <= now )
+                    continue;
+
+                Outcome<? extends DNSResourceRecord> rro = DNSResourceRecord.decode( encoded );
+                if( rro.notOk() ) {
+                    LOGGER.log( FINE, "Could not load from snapshot: " + rro.msg() );
+                    continue;
+                }
+
+                // the record's TTL is whatever it was when the record was first cached, so bring it up to date...
+                add( rro.info().changeTTLTo( Math.max( 1, (expiration - now) / 1000 ) ), expiration );
+                count++;
+            }
+        }
+        catch( IOException _e ) {
+            return outcome.notOk( "Could not read cache snapshot: " + _e.getMessage(), _e );
+        }
+
+        LOGGER.log( FINE, "Loaded " + count + " resource records from cache snapshot " + _file );
+        return outcome.ok( count );
+    }
+
+
+    /**
+     * Returns the lock for the stripe that the given FQDN (as a lower-case string) belongs to.
+     *
+     * @param _dn The FQDN to get the stripe lock for.
+     * @return The stripe lock.
+     */
+    private ReentrantLock stripeFor( final String _dn ) {
+
+        // spread the hash's high order bits into the low order bits, as ConcurrentHashMap does...
+        int hash = _dn.hashCode();
+        return stripes[ (hash ^ (hash >>> 16)) & (STRIPE_COUNT - 1) ];
+    }
+
+
+    /**
+     * Remove the given {@link DNSCacheEntry} from this cache.  In practical terms, this means removing it from the entry map, and telling the eviction policy that it's gone.
+     *
+     * @param _dce The {@link DNSCacheEntry} to remove.
+     * @return {@code true} if the entry was removed, or {@code false} if it wasn't in the cache.
+     */
+    private boolean remove( final DNSCacheEntry _dce ) {
+
+        String dn = _dce.name().text;
+        ReentrantLock stripe = stripeFor( dn );
+        stripe.lock();
+        try {
+
+            // first get the entries for this FQDN...
+            DNSCacheEntry[] entries = entryMap.get( dn );
+
+            // if there were no entries, then there's nothing to remove; another thread may have beaten us to it, so just leave...
+            if( entries == null )
+                return false;
+
+            // iterate over all the entries, looking for the one we're trying to remove...
+            // if the entry is the same object (not equal to, but the object identity), then we've found the one we want to purge...
+            int entryIndex;
+            for( entryIndex = 0; entryIndex < entries.length; entryIndex++ ) {
+                if( entries[entryIndex] == _dce )
+                    break;
+            }
+
+            // if we didn't find it, then another thread has already removed it (or overwritten it), so just leave...
+            if( entryIndex >= entries.length )
+                return false;
+
+            LOGGER.log( FINE, "Removing from cache: " + _dce );
+
+            // tell its partition (and the delegation trie, and any answers assembled from it) that the entry is gone...
+            _dce.superseded = true;
+            _dce.partition.removed( _dce );
+            if( _dce.type == NS ) {
+                delegations.remove( _dce );
+                countNameServers( _dce, -1 );
+            }
+            cachedBytes.addAndGet( -_dce.size );
+
+            // if this was the last entry for this FQDN, then we'll just remove this mapping from the entryMap, and we're done...
+            if( entries.length == 1 ) {
+                entryMap.remove( dn );
+                return true;
+            }
+
+            // there's more than one entry for this FQDN, so now we've got to shrink them...
+
+            // first we make our new entries, one shorter than the old entries...
+            DNSCacheEntry[] newEntries = new DNSCacheEntry[entries.length - 1];
+
+            // if there were entries at lower indices than the one we're removing, copy them over...
+            if( entryIndex > 0 )
+                System.arraycopy( entries, 0, newEntries, 0, entryIndex );
+
+            // if there were entries at higher indices than the one we're removing, copy them over...
+            if( entryIndex < (entries.length - 1) )
+                System.arraycopy( entries, entryIndex + 1, newEntries, entryIndex, newEntries.length - entryIndex );
+
+            // map our new entries into place, and we're finished...
+            entryMap.put( dn, newEntries );
+            return true;
+        }
+        finally {
+            stripe.unlock();
+        }
+    }
+
+
+    /**
+     * The configuration for refresh-ahead prefetching (see {@link #setPrefetch(double,int,Consumer)}).
+     */
+    private record Prefetch( double fraction, int minHits, Consumer<DNSQuestion> prefetcher ) {}
+
+
+    /**
+     * The key for a negative answer in {@link #negativeMap}: the domain name (as a lower-case string), the resource record type that it has none of - or {@code null} if the
+     * domain name doesn't exist at all - and the class the answer is for.  RFC 2308 keys negative answers by class, as a name may exist (or have records of a type) in one
+     * class and not in another.
+     */
+    private record DNSNegativeKey( String dn, DNSRRType type, DNSRRClass klass ) {}
+
+
+    /**
+     * The key that the resource records being added to the cache are gathered into RRsets by: the domain name (as a string), type, and class.
+     */
+    private record DNSRRsetKey( String dn, DNSRRType type, DNSRRClass klass ) {}
+
+
+    /**
+     * The key for an answer in {@link #responseMap}: the question's domain name (as a string), type, and class, and whether recursion was requested (which decides whether an
+     * incomplete CNAME chain is an answer).
+     */
+    private record DNSResponseKey( String dn, DNSRRType type, DNSRRClass klass, boolean recurse ) {}
+
+
+    /**
+     * An answer in {@link #responseMap} or a flattened CNAME chain in {@link #chainMap}: the (unmodifiable) answers or CNAME records, the RRsets they were assembled from, and
+     * the time the first of those RRsets expires, in system time (like {@link System#currentTimeMillis()}).
+     */
+    private record DNSCachedResponse( List<DNSResourceRecord> answers, DNSCacheEntry[] sources, long expiration ) {
 
 
         /**
-         * Creates a new instance of this class using the given arguments.  Note that this class makes no attempt to verify that the discriminator is unique, nor does it
-         * check the expiration time for validity.
+         * Creates a new instance of this class with the given answers and sources; it expires when the first of the sources does.
          *
-         * @param _expiration The expiration time as a system time (like {@link System#currentTimeMillis()}).
-         * @param _uniqueInteger The discriminator, which is simply a unique integer (unique over all the {@link DNSTTLCacheKey} instances in this cache).
+         * @param _answers The (unmodifiable) answers.
+         * @param _sources The RRsets the answers were assembled from.
          */
-        public DNSTTLCacheKey( final long _expiration, final long _uniqueInteger ) {
-
-            expiration    = _expiration;
-            discriminator = _uniqueInteger;
+        private DNSCachedResponse( final List<DNSResourceRecord> _answers, final DNSCacheEntry[] _sources ) {
+            this( _answers, _sources, Arrays.stream( _sources ).mapToLong( (entry) -> entry.expiration ).min().orElse( 0 ) );
         }
 
 
         /**
-         * Returns {@code true} if this object is equal to the given object.
+         * Returns {@code true} if this answer is still current: it hasn't expired, and none of the RRsets it was assembled from have been replaced or removed.
          *
-         * @param _o The object to test for equality to this object.
-         * @return {@code true} if this object is equal to the given object.
+         * @param _now The current system time.
+         * @return {@code true} if this answer is still current.
          */
-        @Override
-        public boolean equals( final Object _o ) {
+        private boolean isCurrent( final long _now ) {
 
-            // if the given object is the same instance as this object, then obviously they're equal...
-            if( this == _o ) return true;
+            if( expiration < _now )
+                return false;
+            for( DNSCacheEntry source : sources ) {
+                if( source.superseded )
+                    return false;
+            }
+            return true;
+        }
+    }
 
-            // if the given object is of a different class than this object, then obviously they're not equal...
-            if( _o == null || getClass() != _o.getClass() ) return false;
 
-            // our DNSTTLCacheKey instances are equal only if their expirations and discriminators are equal...
-            DNSTTLCacheKey that = (DNSTTLCacheKey) _o;
-            return (expiration == that.expiration ) && (discriminator == that.discriminator );
+    /**
+     * A negative answer in {@link #negativeMap}: the response code (NAME_ERROR or OK), the SOA record that came with it, and its expiration time in system time (like
+     * {@link System#currentTimeMillis()}).
+     */
+    private record DNSNegativeEntry( DNSResponseCode responseCode, SOA soa, long expiration ) {}
+
+
+    /**
+     * The statistics of one of a cache's partitions (see {@link #getInfrastructureStats()} and {@link #getAnswerStats()}).
+     *
+     * @param size The number of resource records currently in the partition; some of them may have expired.
+     * @param maxSize The maximum number of resource records the partition may hold.
+     * @param hits The number of times an RRset in the partition has been fetched (or has contributed to an answer) since the cache was created.
+     * @param evictions The number of RRsets evicted from the partition to keep it (or the whole cache) within its size since the cache was created; expired RRsets that are
+     *                  removed are not counted.
+     */
+    public record PartitionStats( int size, int maxSize, long hits, long evictions ) {}
+
+
+    /**
+     * One of a cache's two partitions: an eviction policy, an expiration wheel, and counts, for the entries that are in it.  All changes to a partition's entries are made
+     * while holding the stripe lock for the entry's FQDN.
+     */
+    private static class Partition {
+
+        private final int                    maxSize;         // the maximum number of resource records (not RRsets) this partition may hold...
+        private final DNSCacheEvictionPolicy evictionPolicy;  // decides which entry to evict when this partition is full...
+        private final DNSExpirationWheel     expirations;     // indexes this partition's entries by expiration time, so we can sweep out the expired ones...
+        private final boolean                ownExpirations;  // true if we keep expirations up to date, false if the eviction policy does...
+        private final AtomicInteger          records;         // the number of resource records (not RRsets) in this partition...
+        private final LongAdder              hits;            // the number of times an entry in this partition has been fetched...
+        private final LongAdder              evictions;       // the number of entries evicted from this partition...
+
+
+        /**
+         * Creates a new, empty partition with the given maximum size, and an eviction policy made by the given factory.
+         *
+         * @param _maxSize The maximum number of resource records this partition may hold.
+         * @param _evictionPolicyFactory Makes the {@link DNSCacheEvictionPolicy} for this partition, given its maximum size.
+         */
+        private Partition( final int _maxSize, final IntFunction<DNSCacheEvictionPolicy> _evictionPolicyFactory ) {
+            maxSize        = _maxSize;
+            evictionPolicy = _evictionPolicyFactory.apply( _maxSize );
+            ownExpirations = !(evictionPolicy instanceof DNSTTLEvictionPolicy);
+            expirations    = ownExpirations ? new DNSExpirationWheel() : ((DNSTTLEvictionPolicy) evictionPolicy).wheel();
+            records        = new AtomicInteger();
+            hits           = new LongAdder();
+            evictions      = new LongAdder();
         }
 
 
         /**
-         * Returns a hash code for this object.
+         * Adds the given entry to this partition.
          *
-         * @return a hash code for this object.
+         * @param _entry The entry added.
          */
-        @Override
-        public int hashCode() {
+        private void added( final DNSCacheEntry _entry ) {
+            evictionPolicy.added( _entry );
+            if( ownExpirations )
+                expirations.add( _entry );
+            records.addAndGet( _entry.resourceRecords.size() );
+        }
+
+
+        /**
+         * Replaces the given old entry in this partition with the given new entry (a fresher copy of the same RRset).
+         *
+         * @param _old The entry replaced.
+         * @param _new The entry replacing it.
+         */
+        private void replaced( final DNSCacheEntry _old, final DNSCacheEntry _new ) {
+            evictionPolicy.replaced( _old, _new );
+            if( ownExpirations ) {
+                expirations.remove( _old );
+                expirations.add( _new );
+            }
+            records.addAndGet( _new.resourceRecords.size() - _old.resourceRecords.size() );
+        }
+
 
-            return Objects.hash( expiration, discriminator );
+        /**
+         * Removes the given entry from this partition.
+         *
+         * @param _entry The entry removed.
+         */
+        private void removed( final DNSCacheEntry _entry ) {
+            forget( _entry );
+            records.addAndGet( -_entry.resourceRecords.size() );
         }
 
 
         /**
-         * Returns a negative integer, zero, or positive integer as this instance is less than, equal to, or greater than the given instance.  The comparison is computed as if
-         * {@link #expiration} were the 64 high-order bits and {@link #discriminator} were the 64 low-order bits of a 128-bit integer.
+         * Makes sure the eviction policy and the expiration wheel have forgotten the given entry, which is no longer in the cache, without changing the count of records.
          *
-         * @param _other the {@link DNSTTLCacheKey} to compare with this instance.
-         * @return a negative integer, zero, or positive integer as this instance is less than, equal to, or greater than the given instance.
+         * @param _entry The entry to forget.
          */
-         @Override
-        public int compareTo( final DNSTTLCacheKey _other ) {
+        private void forget( final DNSCacheEntry _entry ) {
+            evictionPolicy.removed( _entry );
+            if( ownExpirations )
+                expirations.remove( _entry );
+        }
 
-            int c = Long.compare( expiration, _other.expiration );
-            return ( c != 0 ) ? c : Long.compare( discriminator, _other.discriminator );
+
+        /**
+         * Removes all the entries from this partition; its hit and eviction counts are kept.
+         */
+        private void clear() {
+            evictionPolicy.clear();
+            if( ownExpirations )
+                expirations.clear();
+            records.set( 0 );
+        }
+
+
+        /**
+         * Returns the current statistics of this partition.
+         *
+         * @return The current statistics of this partition.
+         */
+        private PartitionStats stats() {
+            return new PartitionStats( records.get(), maxSize, hits.sum(), evictions.sum() );
         }
     }
 
 
     /**
-     * Instances of this class are the actual entries in a {@link DNSCache}.  Basically this class wraps a {@link DNSResourceRecord} together with an expiration time
-     * and the key to this record's mapping in {@link #ttlMap}.  Instances of this class are immutable and threadsafe.
+     * Instances of this class are the actual entries in a {@link DNSCache}.  Each one is a resource record set (RRset): all the cached {@link DNSResourceRecord}s with the
+     * same domain name, type, and class, together with the one expiration time that they share (as RFC 2181 intends).  Apart from the bookkeeping for prefetching (which
+     * tolerates races), instances of this class are immutable and threadsafe.
      */
     public static class DNSCacheEntry {
 
-        /** The {@link DNSResourceRecord} for this entry. */
-        public final DNSResourceRecord resourceRecord;
+        // the estimated heap used by an entry apart from its resource records: the entry, its list, its slot in the entry array, and the eviction policy's bookkeeping...
+        private static final int ENTRY_OVERHEAD  = 192;
+        private static final int RECORD_OVERHEAD = 8;    // the estimated heap used by each resource record's slot in the entry's list...
+
+        /** The {@link DNSResourceRecord}s in this entry's RRset; there is always at least one, and they all have the same domain name, type, and class. */
+        public final List<DNSResourceRecord> resourceRecords;
+
+        /** The type of the resource records in this entry. */
+        public final DNSRRType type;
+
+        /** The class of the resource records in this entry. */
+        public final DNSRRClass klass;
 
         /** The expiration time for this entry, in system time (like {@link System#currentTimeMillis()}). */
-        public final Long expiration;
+        public final long expiration;
 
-        /** The {@link DNSTTLCacheKey} for this entry. */
-        public final DNSTTLCacheKey ttlKey;
+        /** The estimated number of bytes of heap used by this entry, including its resource records. */
+        public final int size;
+
+        private final    long    lifetime;    // the time (in milliseconds) between this entry's creation and its expiration...
+        private final    float   jitter;      // a random number in [0,1) that shrinks this entry's prefetch window, so entries added together aren't refreshed together...
+        private volatile int     hits;        // the (approximate) number of times this entry has been fetched...
+        private volatile boolean prefetched;  // true if this entry has been handed to the prefetcher...
+        private volatile boolean superseded;  // true once this entry has been replaced or removed, so any answers assembled from it are out of date...
+        private          Partition partition; // the partition this entry is in, set (before it's published) when it's stored...
 
 
         /**
-         * Create a new instance of this class with the given resource record and cache key.
+         * Create a new instance of this class with the given RRset and expiration time.  The records must all have the same domain name, type, and class; this is not checked.
          *
-         * @param _resourceRecord The {@link DNSResourceRecord} to be included in this cache entry.
-         * @param _ttlKey The {@link DNSTTLCacheKey} to be included in this cache entry.
+         * @param _resourceRecords The {@link DNSResourceRecord}s to be included in this cache entry; there must be at least one.
+         * @param _expiration The expiration time for this entry, in system time (like {@link System#currentTimeMillis()}).
          */
-        public DNSCacheEntry( final DNSResourceRecord _resourceRecord, final DNSTTLCacheKey _ttlKey ) {
+        public DNSCacheEntry( final List<DNSResourceRecord> _resourceRecords, final long _expiration ) {
+
+            Checks.required( _resourceRecords );
+
+            if( _resourceRecords.isEmpty() )
+                throw new IllegalArgumentException( "Empty resource record set" );
 
-            Checks.required( _resourceRecord, _ttlKey );
+            resourceRecords = List.copyOf( _resourceRecords );
+            type            = resourceRecords.get( 0 ).type;
+            klass           = resourceRecords.get( 0 ).klass;
+            expiration      = _expiration;
+            lifetime        = Math.max( 0, expiration - System.currentTimeMillis() );
+            jitter          = ThreadLocalRandom.current().nextFloat();
 
-            resourceRecord = _resourceRecord;
-            expiration     = System.currentTimeMillis() + (_resourceRecord.ttl * 1000);
-            ttlKey         = _ttlKey;
+            int bytes = ENTRY_OVERHEAD;
+            for( DNSResourceRecord rr : resourceRecords )
+                bytes += RECORD_OVERHEAD + rr.estimatedSize();
+            size = bytes;
+        }
+
+
+        /**
+         * Returns the domain name of the resource records in this entry.
+         *
+         * @return The domain name of the resource records in this entry.
+         */
+        public DNSDomainName name() {
+            return resourceRecords.get( 0 ).name;
         }
 
 
@@ -753,7 +2433,7 @@ public class DNSCache {
          */
         @Override
         public String toString() {
-            return resourceRecord.toString();
+            return DNSUtil.toString( resourceRecords );
         }
     }
 }
@@ -0,0 +1,65 @@
+package com.dilatush.dns.misc;
+
+import com.dilatush.dns.misc.DNSCache.DNSCacheEntry;
+
+/**
+ * <p>Implementations of this interface decide which resource record set (RRset) a {@link DNSCache} evicts when it is full.  Each cache entry is one RRset.  The cache tells the
+ * policy about every entry that is added, replaced (by a fresher copy of the same RRset), fetched, or removed (for any reason), and asks the policy for a victim whenever it
+ * holds more records than its maximum size.  Entries are identified by object identity.  A cache is partitioned (see {@link DNSCache}), and each partition has a policy of its
+ * own, which is told only about the entries in that partition, and is made for that partition's maximum size.</p>
+ * <p>The cache calls {@link #added(DNSCacheEntry)}, {@link #replaced(DNSCacheEntry,DNSCacheEntry)}, and {@link #removed(DNSCacheEntry)} while holding the lock for the
+ * entry's domain name, but calls {@link #accessed(DNSCacheEntry)} and {@link #victim()} without holding any lock; it may call any of these methods from several threads at
+ * once.  In particular, {@link #accessed(DNSCacheEntry)} may be called for an entry that has already been removed, and must then be ignored.  Implementations must therefore be
+ * threadsafe, and must never call back into the cache.</p>
+ */
+public interface DNSCacheEvictionPolicy {
+
+
+    /**
+     * Called when the given entry has been added to the cache.
+     *
+     * @param _entry The entry that was added.
+     */
+    void added( final DNSCacheEntry _entry );
+
+
+    /**
+     * Called when the given old entry has been replaced in the cache by the given new entry, which holds a fresher copy of the same RRset.
+     *
+     * @param _old The entry that was replaced.
+     * @param _new The entry that replaced it.
+     */
+    void replaced( final DNSCacheEntry _old, final DNSCacheEntry _new );
+
+
+    /**
+     * Called when the given entry has been fetched from the cache.
+     *
+     * @param _entry The entry that was fetched.
+     */
+    void accessed( final DNSCacheEntry _entry );
+
+
+    /**
+     * Called when the given entry has been removed from the cache, for any reason (expiration, eviction, or clearing).
+     *
+     * @param _entry The entry that was removed.
+     */
+    void removed( final DNSCacheEntry _entry );
+
+
+    /**
+     * Returns the entry that the cache should evict next, or {@code null} if the policy has no entries.  The entry remains in the policy until the cache removes it.  Choosing
+     * the entry must not change the policy's state, as the cache may not evict it (another thread may have removed it first); whatever follows from evicting it is done when
+     * the cache reports its removal (see {@link #removed(DNSCacheEntry)}).
+     *
+     * @return The entry to evict, or {@code null} if there are none.
+     */
+    DNSCacheEntry victim();
+
+
+    /**
+     * Called when the cache has been cleared; the policy should forget all its entries.
+     */
+    void clear();
+}
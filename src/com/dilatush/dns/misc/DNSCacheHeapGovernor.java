@@ -0,0 +1,169 @@
+package com.dilatush.dns.misc;
+
+import com.dilatush.util.Checks;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static com.dilatush.util.General.getLogger;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.INFO;
+
+/**
+ * <p>Instances of this class shrink and grow a {@link DNSCache}'s byte budget (see {@link DNSCache#setMaxCacheBytes(long)}) in response to heap pressure.  Once started, an
+ * instance listens for the notifications that the JVM's garbage collectors send after each collection, and then looks at how full the heap's long-lived (tenured) memory pools
+ * are after the collection - that is, how much of the heap is actually in use, not counting garbage.  If that's above the high water mark, the cache's budget is cut by a
+ * quarter (down to the minimum budget), which trims the cache at once; if it's below the low water mark, the budget is raised by a quarter (up to the maximum budget).  In
+ * between, the budget is left alone.  The budget starts at the maximum.</p>
+ * <p>This relies only on the standard {@link java.lang.management} API: any JVM whose garbage collector beans are {@link NotificationEmitter}s (as HotSpot's and OpenJ9's are)
+ * will work.  On a JVM that sends no such notifications, the budget simply stays at the maximum.  The notifications are delivered in a JVM thread, so the cache is trimmed in
+ * that thread.  Instances of this class are threadsafe.</p>
+ */
+public class DNSCacheHeapGovernor implements NotificationListener {
+
+    private static final Logger LOGGER = getLogger();
+
+    private static final double SHRINK_FACTOR = 0.75;  // the factor the budget is multiplied by when the heap is too full...
+    private static final double GROW_FACTOR   = 1.25;  // the factor the budget is multiplied by when the heap has plenty of room...
+
+    private final DNSCache                  cache;      // the cache whose budget we're governing...
+    private final long                      minBytes;   // the smallest budget we'll set...
+    private final long                      maxBytes;   // the largest budget we'll set...
+    private final double                    lowWater;   // the heap occupancy (after collection) below which we grow the budget...
+    private final double                    highWater;  // the heap occupancy (after collection) above which we shrink the budget...
+    private final List<MemoryPoolMXBean>    pools;      // the tenured heap pools whose occupancy we watch...
+    private final List<NotificationEmitter> emitters;   // the garbage collector beans we're listening to, when we've been started...
+    private       long                      budget;     // the cache's current budget...
+
+
+    /**
+     * Creates a new instance of this class to govern the given cache's byte budget between the given minimum and maximum, according to the given low and high water marks.
+     * The instance does nothing until it is started.
+     *
+     * @param _cache The {@link DNSCache} whose byte budget is to be governed.
+     * @param _minBytes The smallest byte budget to give the cache; must be at least one.
+     * @param _maxBytes The largest byte budget to give the cache; must be at least the minimum.
+     * @param _lowWater The fraction of the tenured heap in use after a collection below which the budget is grown; must be between 0 and the high water mark.
+     * @param _highWater The fraction of the tenured heap in use after a collection above which the budget is shrunk; must be between the low water mark and 1.
+     */
+    public DNSCacheHeapGovernor( final DNSCache _cache, final long _minBytes, final long _maxBytes, final double _lowWater, final double _highWater ) {
+
+        Checks.required( _cache );
+
+        if( (_minBytes < 1) || (_maxBytes < _minBytes) )
+            throw new IllegalArgumentException( "Invalid byte budget range: " + _minBytes + " to " + _maxBytes );
+        if( (_lowWater < 0) || (_highWater > 1) || (_lowWater >= _highWater) )
+            throw new IllegalArgumentException( "Invalid water marks: " + _lowWater + " and " + _highWater );
+
+        cache     = _cache;
+        minBytes  = _minBytes;
+        maxBytes  = _maxBytes;
+        lowWater  = _lowWater;
+        highWater = _highWater;
+        emitters  = new ArrayList<>();
+        budget    = maxBytes;
+
+        // the pools we care about are the heap pools that support usage thresholds - these are the tenured pools, not eden or the survivor spaces...
+        pools = new ArrayList<>();
+        for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+            if( (pool.getType() == MemoryType.HEAP) && pool.isUsageThresholdSupported() && pool.isCollectionUsageThresholdSupported() )
+                pools.add( pool );
+        }
+    }
+
+
+    /**
+     * Start governing the cache: set its byte budget to the maximum, and start listening for garbage collection notifications.  Calling this on an instance that has already
+     * been started does nothing.
+     */
+    public synchronized void start() {
+
+        if( !emitters.isEmpty() )
+            return;
+
+        budget = maxBytes;
+        cache.setMaxCacheBytes( budget );
+
+        for( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) {
+            if( gc instanceof NotificationEmitter emitter ) {
+                emitter.addNotificationListener( this, null, null );
+                emitters.add( emitter );
+            }
+        }
+
+        LOGGER.log( FINE, "Started cache heap governor, listening to " + emitters.size() + " garbage collectors and watching " + pools.size() + " memory pools" );
+    }
+
+
+    /**
+     * Stop governing the cache: stop listening for garbage collection notifications.  The cache's byte budget is left wherever it was.  Calling this on an instance that hasn't
+     * been started does nothing.
+     */
+    public synchronized void stop() {
+
+        for( NotificationEmitter emitter : emitters ) {
+            try {
+                emitter.removeNotificationListener( this );
+            }
+            catch( ListenerNotFoundException _e ) {
+                // this can't happen, as we only remove what we added...
+            }
+        }
+        emitters.clear();
+    }
+
+
+    /**
+     * Returns the byte budget this instance has most recently given the cache.
+     *
+     * @return The cache's current byte budget.
+     */
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+
+    /**
+     * Called by a garbage collector bean (in a JVM thread) after each collection.  Checks how full the tenured heap is now, and shrinks or grows the cache's byte budget
+     * accordingly.
+     *
+     * @param _notification The notification (ignored, as all we care about is that a collection happened).
+     * @param _handback The handback object (always {@code null}).
+     */
+    @Override
+    public synchronized void handleNotification( final Notification _notification, final Object _handback ) {
+
+        // if we've been stopped while this notification was on its way, ignore it...
+        if( emitters.isEmpty() )
+            return;
+
+        // find the fullest of our pools, as of the end of its most recent collection...
+        double occupancy = 0;
+        for( MemoryPoolMXBean pool : pools ) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if( (usage == null) || (usage.getMax() <= 0) )
+                continue;
+            occupancy = Math.max( occupancy, (double) usage.getUsed() / usage.getMax() );
+        }
+
+        // figure out our new budget...
+        long newBudget = budget;
+        if( occupancy > highWater )
+            newBudget = Math.max( minBytes, (long)(budget * SHRINK_FACTOR) );
+        else if( occupancy < lowWater )
+            newBudget = Math.min( maxBytes, (long)(budget * GROW_FACTOR) );
+
+        // if it's changed, give it to the cache (which trims itself if it has to)...
+        if( newBudget != budget ) {
+            LOGGER.log( (newBudget < budget) ? INFO : FINE, "Heap occupancy " + (int)(occupancy * 100) + "%, changing cache budget from " + budget + " to " + newBudget + " bytes" );
+            budget = newBudget;
+            cache.setMaxCacheBytes( budget );
+        }
+    }
+}
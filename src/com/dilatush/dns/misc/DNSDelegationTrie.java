@@ -0,0 +1,138 @@
+package com.dilatush.dns.misc;
+
+import com.dilatush.dns.message.DNSDomainName;
+import com.dilatush.dns.misc.DNSCache.DNSCacheEntry;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * <p>Instances of this class index the zone cuts (delegations) known to a {@link DNSCache}: the cached NS resource record sets, in a trie keyed by the labels of their domain
+ * names in reverse order (so "www.bogus.com" is found under "com", then "bogus", then "www").  Finding the deepest known delegation for a domain name is then a single walk
+ * down the trie, one small map lookup per label, rather than a cache lookup (and a new domain name) for each of the name's ancestors in turn.</p>
+ * <p>The trie holds the {@link DNSCacheEntry} for each NS RRset, not copies of the records, so it never needs updating when the records' TTLs change; the cache tells it when
+ * an NS RRset is stored (including when one replaces another) or removed.  Fetching is lock-free; changes are serialized.  Instances of this class are threadsafe.</p>
+ */
+public class DNSDelegationTrie {
+
+    private final Node root = new Node( null, null );  // the root of the trie, which holds the root zone's name servers (if we know them)...
+
+
+    /**
+     * Records the given NS RRset as the delegation for its domain name, replacing any delegation already recorded for that name.
+     *
+     * @param _entry The cache entry holding the NS RRset.
+     */
+    public synchronized void put( final DNSCacheEntry _entry ) {
+
+        // walk down the trie from the root (the last label), making any nodes we need along the way...
+        Node node = root;
+        DNSDomainName dn = _entry.name();
+        for( int i = dn.labels.size() - 1; i >= 0; i-- ) {
+            String label = dn.labels.get( i ).text;
+            Node parent = node;
+            node = parent.children.computeIfAbsent( label, (key) -> new Node( parent, key ) );
+        }
+        node.delegation = _entry;
+    }
+
+
+    /**
+     * Forgets the given NS RRset, if it's the delegation recorded for its domain name, and prunes any nodes of the trie that are no longer needed.
+     *
+     * @param _entry The cache entry holding the NS RRset.
+     */
+    public synchronized void remove( final DNSCacheEntry _entry ) {
+
+        Node node = find( _entry.name() );
+        if( (node == null) || (node.delegation != _entry) )
+            return;
+        node.delegation = null;
+
+        // prune the nodes that have neither a delegation nor any children, from the bottom up...
+        while( (node.parent != null) && (node.delegation == null) && node.children.isEmpty() ) {
+            node.parent.children.remove( node.label );
+            node = node.parent;
+        }
+    }
+
+
+    /**
+     * Returns the deepest delegation recorded for the given domain name (the name itself, or the closest of its ancestors) that the given test accepts, or {@code null} if
+     * there is none.  The test is normally whether the delegation is still current (unexpired, and still in the cache).
+     *
+     * @param _dn The domain name to find the deepest delegation for.
+     * @param _usable The test for whether a delegation may be used.
+     * @return The cache entry holding the NS RRset of the deepest usable delegation, or {@code null} if there is none.
+     */
+    public DNSCacheEntry deepest( final DNSDomainName _dn, final Predicate<DNSCacheEntry> _usable ) {
+
+        Node node = root;
+        DNSCacheEntry deepest = usable( root.delegation, _usable );
+        for( int i = _dn.labels.size() - 1; i >= 0; i-- ) {
+            node = node.children.get( _dn.labels.get( i ).text );
+            if( node == null )
+                break;
+            DNSCacheEntry delegation = usable( node.delegation, _usable );
+            if( delegation != null )
+                deepest = delegation;
+        }
+        return deepest;
+    }
+
+
+    /**
+     * Forgets all the delegations.
+     */
+    public synchronized void clear() {
+        root.children.clear();
+        root.delegation = null;
+    }
+
+
+    /**
+     * Returns the given delegation if it's not {@code null} and the given test accepts it, or {@code null} otherwise.
+     *
+     * @param _delegation The delegation to test.
+     * @param _usable The test for whether a delegation may be used.
+     * @return The delegation, or {@code null} if it may not be used.
+     */
+    private static DNSCacheEntry usable( final DNSCacheEntry _delegation, final Predicate<DNSCacheEntry> _usable ) {
+        return ((_delegation != null) && _usable.test( _delegation )) ? _delegation : null;
+    }
+
+
+    /**
+     * Returns the node for the given domain name, or {@code null} if there is none.
+     *
+     * @param _dn The domain name to find the node for.
+     * @return The node for the domain name, or {@code null} if there is none.
+     */
+    private Node find( final DNSDomainName _dn ) {
+
+        Node node = root;
+        for( int i = _dn.labels.size() - 1; (i >= 0) && (node != null); i-- )
+            node = node.children.get( _dn.labels.get( i ).text );
+        return node;
+    }
+
+
+    /**
+     * A node in the trie, for one domain name.
+     */
+    private static class Node {
+
+        private final    Node              parent;      // the node for this node's parent domain, or null for the root...
+        private final    String            label;       // the label this node is found under in its parent's children, or null for the root...
+        private final    Map<String,Node>  children;    // the nodes for this domain's subdomains, by their first label...
+        private volatile DNSCacheEntry     delegation;  // the NS RRset for this domain, or null if we don't have one...
+
+
+        private Node( final Node _parent, final String _label ) {
+            parent   = _parent;
+            label    = _label;
+            children = new ConcurrentHashMap<>( 4 );
+        }
+    }
+}
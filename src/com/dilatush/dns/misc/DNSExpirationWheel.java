@@ -0,0 +1,296 @@
+package com.dilatush.dns.misc;
+
+import com.dilatush.dns.misc.DNSCache.DNSCacheEntry;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * <p>Instances of this class index {@link DNSCacheEntry}s by their expiration time, to the second, with a two-level hierarchical timing wheel.  The near wheel is a ring of
+ * one-second buckets, each holding the entries that expire in that second; the far wheel is a ring of coarse buckets, each holding the entries that expire in a span of 4,096
+ * seconds (about 68 minutes, a turn of the near wheel), for entries that expire beyond the near wheel's horizon.  As time passes (or as the near wheel is emptied by
+ * eviction), the far wheel's earliest coarse bucket is cascaded into the near wheel, so an entry is moved at most once.  Adding or removing an entry is constant time, and
+ * allocates just one small set node; finding the entries that have expired, or the entry that expires soonest, walks the buckets in order from where the last walk stopped,
+ * so it never scans the whole index.</p>
+ * <p>The wheel is used by {@link DNSCache} to sweep expired entries out promptly (see {@link DNSCache#sweep(int)}), and by {@link DNSTTLEvictionPolicy} to choose the entry
+ * that expires soonest.  Entries that expire in the same second are in no particular order, but otherwise the entry chosen is the one that expires soonest, however far
+ * ahead that is: a bucket that holds entries for more than one turn of its wheel (as a near bucket may, for entries kept stale for over a turn) is searched for the entries
+ * of the turn being walked.  Entries are identified by object identity.  Instances of this class are threadsafe.</p>
+ */
+public class DNSExpirationWheel {
+
+    private static final int WHEEL_SIZE   = 4096;  // the number of buckets in each wheel (must be a power of two)...
+    private static final int COARSE_SHIFT = 12;    // the log2 of the seconds in each far bucket (a turn of the near wheel)...
+
+    private final AtomicReferenceArray<Set<DNSCacheEntry>> near;     // the one-second buckets, each created when it's first needed...
+    private final AtomicReferenceArray<Set<DNSCacheEntry>> far;      // the coarse buckets, each created when it's first needed...
+    private final AtomicLong                               low;      // no near bucket for an earlier second than this holds any entries...
+    private final AtomicLong                               farLow;   // no far bucket for an earlier span than this holds any entries...
+    private final AtomicLong                               horizon;  // entries that expire in an earlier second than this go in the near wheel (a span boundary)...
+    private       long                                     swept;    // the first second that hasn't been completely swept yet...
+
+
+    /**
+     * Creates a new, empty instance of this class.
+     */
+    public DNSExpirationWheel() {
+        near    = new AtomicReferenceArray<>( WHEEL_SIZE );
+        far     = new AtomicReferenceArray<>( WHEEL_SIZE );
+        low     = new AtomicLong( Long.MAX_VALUE );
+        farLow  = new AtomicLong( Long.MAX_VALUE );
+        swept   = System.currentTimeMillis() / 1000;
+        horizon = new AtomicLong( ((swept >> COARSE_SHIFT) + 1) << COARSE_SHIFT );
+    }
+
+
+    /**
+     * Adds the given entry to this wheel: to the near wheel's bucket for the second it expires in, if that's before the horizon, or otherwise to the far wheel's bucket for the
+     * span it expires in.
+     *
+     * @param _entry The entry to add.
+     */
+    public void add( final DNSCacheEntry _entry ) {
+
+        long second = _entry.expiration / 1000;
+        if( second < horizon.get() ) {
+            bucket( near, second ).add( _entry );
+            low.accumulateAndGet( second, Math::min );
+        }
+        else {
+            long span = second >> COARSE_SHIFT;
+            bucket( far, span ).add( _entry );
+            farLow.accumulateAndGet( span, Math::min );
+        }
+    }
+
+
+    /**
+     * Removes the given entry from this wheel, if it's in it.
+     *
+     * @param _entry The entry to remove.
+     */
+    public void remove( final DNSCacheEntry _entry ) {
+
+        long second = _entry.expiration / 1000;
+        Set<DNSCacheEntry> bucket = near.get( index( second ) );
+        if( (bucket != null) && bucket.remove( _entry ) )
+            return;
+        bucket = far.get( index( second >> COARSE_SHIFT ) );
+        if( bucket != null )
+            bucket.remove( _entry );
+    }
+
+
+    /**
+     * Returns an entry that expires in the earliest second of any entry in this wheel, or {@code null} if the wheel is empty.  The entry remains in the wheel.
+     *
+     * @return An entry that expires soonest, or {@code null} if there are none.
+     */
+    public DNSCacheEntry earliest() {
+
+        while( true ) {
+
+            // if nothing in the far wheel could expire before the earliest entry in the near wheel, that's our entry...
+            DNSCacheEntry candidate = earliestNear();
+            long          span      = earliestFar();
+            if( (span == Long.MAX_VALUE) || ((candidate != null) && ((candidate.expiration / 1000) < (span << COARSE_SHIFT))) )
+                return candidate;
+
+            // otherwise, move the far wheel's earliest span into the near wheel, and look again...
+            cascade( span );
+        }
+    }
+
+
+    /**
+     * Returns an entry in the near wheel that expires in the earliest second of any entry in it, or {@code null} if the near wheel is empty.
+     *
+     * @return An entry in the near wheel that expires soonest, or {@code null} if there are none.
+     */
+    private DNSCacheEntry earliestNear() {
+
+        while( true ) {
+
+            long start = low.get();
+            if( start == Long.MAX_VALUE )
+                return null;
+
+            // walk the buckets from the earliest second that might have an entry; the first entry we find for the second we're at is it, and we remember where we found it;
+            // along the way we note the earliest second of the entries for later turns...
+            long later = Long.MAX_VALUE;
+            for( long second = start; second < start + WHEEL_SIZE; second++ ) {
+                Set<DNSCacheEntry> bucket = near.get( index( second ) );
+                if( bucket == null )
+                    continue;
+                for( DNSCacheEntry entry : bucket ) {
+                    long entrySecond = entry.expiration / 1000;
+                    if( entrySecond == second ) {
+                        long found = second;
+                        low.accumulateAndGet( start, (current, expected) -> (current == expected) ? found : current );
+                        return entry;
+                    }
+                    later = Math.min( later, entrySecond );
+                }
+            }
+
+            // we walked a whole turn without finding anything; whatever's left (if anything) is for a later turn, so we go straight to it, rather than walking the empty turns
+            // in between (which, once a far span has been cascaded, may be many)...
+            if( later == Long.MAX_VALUE ) {
+                low.compareAndSet( start, Long.MAX_VALUE );
+                return null;
+            }
+            low.compareAndSet( start, later );
+        }
+    }
+
+
+    /**
+     * Returns the earliest span (in units of a turn of the near wheel) of any entry in the far wheel, or {@link Long#MAX_VALUE} if the far wheel is empty.
+     *
+     * @return The earliest span of any entry in the far wheel.
+     */
+    private long earliestFar() {
+
+        long start = farLow.get();
+        if( start == Long.MAX_VALUE )
+            return Long.MAX_VALUE;
+
+        // walk the buckets from the earliest span that might have an entry, noting the earliest span of the entries for later turns as we go...
+        long later = Long.MAX_VALUE;
+        for( long span = start; span < start + WHEEL_SIZE; span++ ) {
+            Set<DNSCacheEntry> bucket = far.get( index( span ) );
+            if( bucket == null )
+                continue;
+            for( DNSCacheEntry entry : bucket ) {
+                long entrySpan = (entry.expiration / 1000) >> COARSE_SHIFT;
+                if( entrySpan == span ) {
+                    long found = span;
+                    farLow.accumulateAndGet( start, (current, expected) -> (current == expected) ? found : current );
+                    return span;
+                }
+                later = Math.min( later, entrySpan );
+            }
+        }
+
+        // we walked all the way around; whatever's left (if anything) is for a later turn...
+        farLow.compareAndSet( start, later );
+        return later;
+    }
+
+
+    /**
+     * Moves the entries in the given span from the far wheel to the near wheel, and moves the horizon past the span, so that entries added later for the span go straight into
+     * the near wheel.
+     *
+     * @param _span The span (in units of a turn of the near wheel) to move.
+     */
+    private synchronized void cascade( final long _span ) {
+
+        horizon.accumulateAndGet( (_span + 1) << COARSE_SHIFT, Math::max );
+        Set<DNSCacheEntry> bucket = far.get( index( _span ) );
+        if( bucket == null )
+            return;
+        for( DNSCacheEntry entry : bucket ) {
+            long second = entry.expiration / 1000;
+            if( ((second >> COARSE_SHIFT) == _span) && bucket.remove( entry ) ) {
+                bucket( near, second ).add( entry );
+                low.accumulateAndGet( second, Math::min );
+            }
+        }
+    }
+
+
+    /**
+     * Calls the given remover with each entry in this wheel that expired before the given time, up to the given number of entries, in roughly the order they expired in.  The
+     * remover is expected to remove the entry from this wheel (and whatever else it's in).  The walk starts where the last one stopped, so each call does a bounded amount of
+     * work, and successive calls work their way through all the expired entries.  As time passes, this also cascades the far wheel's spans into the near wheel.
+     *
+     * @param _before The system time (like {@link System#currentTimeMillis()}) before which entries are to be removed.
+     * @param _max The maximum number of entries to remove.
+     * @param _remover The remover to call with each expired entry.
+     * @return The number of expired entries handed to the remover.
+     */
+    public synchronized int sweep( final long _before, final int _max, final Consumer<DNSCacheEntry> _remover ) {
+
+        // we never need to walk more than one turn of the wheel...
+        long end = _before / 1000;  // the second that _before is in, which we can't sweep completely yet...
+        swept = Math.max( swept, end - WHEEL_SIZE );
+
+        // make sure everything that could have expired is in the near wheel...
+        while( horizon.get() <= end )
+            cascade( horizon.get() >> COARSE_SHIFT );
+
+        int count = 0;
+        for( long second = swept; second <= end; second++ ) {
+
+            Set<DNSCacheEntry> bucket = near.get( index( second ) );
+            if( bucket != null ) {
+                for( DNSCacheEntry entry : bucket ) {
+
+                    // the bucket may hold entries for later turns of the wheel (or for later in this second), which we leave alone...
+                    if( entry.expiration >= _before )
+                        continue;
+                    if( count >= _max )
+                        return count;
+                    _remover.accept( entry );
+                    count++;
+                }
+            }
+
+            // we can't say we're done with the current second, as more of it may expire later...
+            if( second < end )
+                swept = second + 1;
+        }
+        return count;
+    }
+
+
+    /**
+     * Removes all the entries from this wheel.
+     */
+    public synchronized void clear() {
+        for( int i = 0; i < WHEEL_SIZE; i++ ) {
+            Set<DNSCacheEntry> bucket = near.get( i );
+            if( bucket != null )
+                bucket.clear();
+            bucket = far.get( i );
+            if( bucket != null )
+                bucket.clear();
+        }
+        low.set( Long.MAX_VALUE );
+        farLow.set( Long.MAX_VALUE );
+    }
+
+
+    /**
+     * Returns the bucket in the given wheel for the given second (or span), creating it if need be.
+     *
+     * @param _wheel The wheel (near or far) to get the bucket from.
+     * @param _time The second (or span) the bucket is for.
+     * @return The bucket.
+     */
+    private static Set<DNSCacheEntry> bucket( final AtomicReferenceArray<Set<DNSCacheEntry>> _wheel, final long _time ) {
+
+        int index = index( _time );
+        Set<DNSCacheEntry> bucket = _wheel.get( index );
+        if( bucket == null ) {
+            _wheel.compareAndSet( index, null, ConcurrentHashMap.newKeySet() );
+            bucket = _wheel.get( index );
+        }
+        return bucket;
+    }
+
+
+    /**
+     * Returns the index of the bucket for the given second (or span) in a wheel.
+     *
+     * @param _time The second (or span).
+     * @return The index of its bucket.
+     */
+    private static int index( final long _time ) {
+        return (int)(_time & (WHEEL_SIZE - 1));
+    }
+}
@@ -0,0 +1,570 @@
+package com.dilatush.dns.misc;
+
+import com.dilatush.dns.rr.DNSResourceRecord;
+import com.dilatush.util.Checks;
+import com.dilatush.util.Outcome;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ObjLongConsumer;
+import java.util.logging.Logger;
+
+import static com.dilatush.util.General.getLogger;
+import static java.util.logging.Level.FINE;
+
+/**
+ * <p>Instances of this class store DNS resource records off the Java heap, for a {@link DNSCache} that is to hold millions of records without giving the garbage collector
+ * millions of long-lived objects to trace.  Each record is stored in its wire format (just as it's encoded in a DNS message), in direct (off-heap) {@link ByteBuffer}s, and is
+ * decoded into a {@link DNSResourceRecord} only when it's read.  The only on-heap structures are a handful of primitive arrays.</p>
+ * <p>The records are appended to an arena of fixed-size slabs (allocated as they're first needed), used as a ring: when the arena is full, or holds the maximum number of
+ * records, the oldest slab is reclaimed, and all the records in it are dropped at once.  So eviction is first-in, first-out, which for DNS records (most of which have similar
+ * TTLs) is a reasonable approximation of evicting the records closest to expiration, and costs nothing per record.  Expired records stay until their slab is reclaimed (which
+ * is what lets the cache serve them stale).  A record that is added again (with the same resource data) supersedes the old copy, which is marked dead in place; so does every
+ * record of an RRset that is replaced by a new one (see {@link #addRRset(List,long)}).  A record added to an unexpired RRset re-expires the rest of the RRset in place, as
+ * the cache does on the heap.</p>
+ * <p>Records are found through an open-addressed (linear probing) index from domain name to the most recently added record for that name; the records for a name are chained
+ * from newest to oldest.  Because the arena is a ring, a chain's records are always in order of age, so a chain simply ends at the first record that has been reclaimed, and an
+ * index entry whose newest record has been reclaimed is dead, and is reused or dropped when the index is rebuilt.</p>
+ * <p>Each record is stored as a header (its total size, the length of its wire format, its expiration time, and the position of the next older record for its name), then its
+ * domain name as ASCII text, then its wire format.  Instances of this class are threadsafe: reads share a lock, and writes take it exclusively.</p>
+ */
+public class DNSOffHeapStore {
+
+    private static final Logger LOGGER = getLogger();
+
+    private static final int  MIN_SLAB_COUNT    = 4;
+    private static final int  MIN_SLAB_SIZE     = 128 * 1024;       // big enough for any record...
+    private static final int  MAX_SLAB_SIZE     = 4 * 1024 * 1024;
+    private static final int  MIN_INDEX_SIZE    = 1024;             // must be a power of two...
+    private static final int  MAX_ENCODED_SIZE  = 0x10000 + 512;    // bigger than any encoded resource record (name, header, and data)...
+
+    private static final int  SIZE_OFFSET       = 0;                // the record's total size (an int); zero marks the end of the records in a slab...
+    private static final int  WIRE_OFFSET       = 4;                // the length of the record's wire format (an int)...
+    private static final int  EXPIRATION_OFFSET = 8;                // the record's expiration time (a long), or DEAD...
+    private static final int  NEXT_OFFSET       = 16;               // the position of the next older record for this name (a long), or NO_RECORD...
+    private static final int  TEXT_OFFSET       = 24;               // the length of the domain name's text (a short), followed by the text...
+    private static final int  HEADER_SIZE       = 26;
+
+    private static final long NO_RECORD         = -1;               // an empty index slot, or the end of a chain...
+    private static final long DEAD              = 0;                // the expiration time of a record that has been superseded...
+
+    private final ByteBuffer[]           slabs;        // the arena's slabs, each allocated when it's first needed...
+    private final int[]                  slabRecords;  // the number of live records in each slab...
+    private final int                    slabSize;     // the size of each slab, in bytes...
+    private final int                    maxRecords;   // the maximum number of live records...
+    private final ByteBuffer             encoded;      // where we encode a record being added (used only while holding the write lock)...
+    private final ReentrantReadWriteLock lock;         // reads share this lock; writes take it exclusively...
+
+    // positions in the arena are "virtual": they increase forever, and the slab and offset are derived from them, so a position older than the tail has been reclaimed...
+    private long   head;          // the position the next record will be written at...
+    private long   tail;          // the position of the oldest byte still in the arena (always the start of a slab)...
+    private int    records;       // the number of live (not superseded) records in the arena...
+    private int[]  indexHashes;   // the hash of the domain name in each index slot...
+    private long[] indexRefs;     // the position of the newest record for the domain name in each index slot, or NO_RECORD if the slot is empty...
+    private int    indexUsed;     // the number of index slots that aren't empty (including dead ones)...
+
+
+    /**
+     * Creates a new instance of this class, with an arena of (about) the given size, that holds no more than (about) the given number of records.  Because records are
+     * evicted a slab at a time, the maximum number of records may be exceeded by up to a slab's worth (slabs are a quarter of the arena, up to 4MB).  No off-heap memory is
+     * allocated until records are added.
+     *
+     * @param _capacityBytes The size (in bytes) of the off-heap arena.
+     * @param _maxRecords The maximum number of records to hold.
+     */
+    public DNSOffHeapStore( final long _capacityBytes, final int _maxRecords ) {
+
+        if( _capacityBytes < (long) MIN_SLAB_COUNT * MIN_SLAB_SIZE )
+            throw new IllegalArgumentException( "Off-heap capacity must be at least " + (MIN_SLAB_COUNT * MIN_SLAB_SIZE) + " bytes: " + _capacityBytes );
+        if( _maxRecords < 1 )
+            throw new IllegalArgumentException( "Must be able to hold at least one record: " + _maxRecords );
+
+        slabSize    = (int) Math.max( MIN_SLAB_SIZE, Math.min( MAX_SLAB_SIZE, _capacityBytes / MIN_SLAB_COUNT ) );
+        slabs       = new ByteBuffer[ (int) Math.max( MIN_SLAB_COUNT, _capacityBytes / slabSize ) ];
+        slabRecords = new int[ slabs.length ];
+        maxRecords  = _maxRecords;
+        encoded     = ByteBuffer.allocate( MAX_ENCODED_SIZE );
+        lock        = new ReentrantReadWriteLock();
+        indexHashes = new int[ MIN_INDEX_SIZE ];
+        indexRefs   = new long[ MIN_INDEX_SIZE ];
+        Arrays.fill( indexRefs, NO_RECORD );
+
+        LOGGER.log( FINE, "Created off-heap store with " + slabs.length + " slabs of " + slabSize + " bytes" );
+    }
+
+
+    /**
+     * Adds the given resource record, which expires at the given time, to this store, just as {@link DNSCache#add(DNSResourceRecord,long)} adds a record on the heap.  The
+     * record joins the unexpired RRset (the records with the same domain name, type, and class) this store holds, if there is one, and the whole RRset takes the given
+     * expiration time, as it's the freshest news about the RRset.  A record in the RRset with the same resource data is superseded by the given record.  If the RRset this store
+     * holds has expired (and is only being kept to be served stale), it's superseded instead, and the given record starts a new one.  If the arena is full, or holds the maximum
+     * number of records, the oldest records are dropped to make room.
+     *
+     * @param _rr The {@link DNSResourceRecord} to add.
+     * @param _expiration The system time (like {@link System#currentTimeMillis()}) that the record expires.
+     */
+    public void add( final DNSResourceRecord _rr, final long _expiration ) {
+
+        Checks.required( _rr );
+
+        String text = _rr.name.text;
+        int    hash = text.hashCode();
+
+        lock.writeLock().lock();
+        try {
+
+            // encode the record on its own, so that any compression pointers in it are relative to its own first byte...
+            encoded.clear();
+            Outcome<?> eo = _rr.encode( encoded, new HashMap<>() );
+            if( eo.notOk() ) {
+                LOGGER.log( FINE, "Could not add to off-heap store: " + _rr + ": " + eo.msg() );
+                return;
+            }
+            encoded.flip();
+
+            // find our name's index slot (if it has one), supersede any older copy of this record or expired record of its RRset, and re-expire the rest of its RRset...
+            int slot = find( text, hash );
+            if( slot >= 0 ) {
+                long now = System.currentTimeMillis();
+                for( long ref = indexRefs[slot]; ref >= tail; ref = slab( ref ).getLong( offset( ref ) + NEXT_OFFSET ) ) {
+                    long expiration = slab( ref ).getLong( offset( ref ) + EXPIRATION_OFFSET );
+                    if( (expiration == DEAD) || !sameType( ref, _rr ) )
+                        continue;
+                    if( (expiration <= now) || sameRecord( ref, _rr.name.length ) )
+                        supersede( ref );
+                    else
+                        slab( ref ).putLong( offset( ref ) + EXPIRATION_OFFSET, Math.max( DEAD + 1, _expiration ) );
+                }
+            }
+
+            // make room for our record (which may reclaim the older records for our name, or even all of them)...
+            int  size = HEADER_SIZE + text.length() + encoded.remaining();
+            long ref  = allocate( size );
+            long next = ((slot >= 0) && (indexRefs[slot] >= tail)) ? indexRefs[slot] : NO_RECORD;
+
+            // write our record...
+            ByteBuffer slab   = slab( ref );
+            int        offset = offset( ref );
+            slab.putInt( offset + SIZE_OFFSET, size );
+            slab.putInt( offset + WIRE_OFFSET, encoded.remaining() );
+            slab.putLong( offset + EXPIRATION_OFFSET, Math.max( DEAD + 1, _expiration ) );
+            slab.putLong( offset + NEXT_OFFSET, next );
+            slab.putShort( offset + TEXT_OFFSET, (short) text.length() );
+            for( int i = 0; i < text.length(); i++ )
+                slab.put( offset + HEADER_SIZE + i, (byte) text.charAt( i ) );
+            slab.put( offset + HEADER_SIZE + text.length(), encoded.array(), 0, encoded.remaining() );
+            slabRecords[ slabIndex( ref ) ]++;
+            records++;
+
+            // if our name had no index slot, give it one (rebuilding the index if it's getting full), then point the slot at our record...
+            if( slot < 0 ) {
+                if( (indexRefs[-slot - 1] == NO_RECORD) && ((indexUsed + 1) * 4L > indexRefs.length * 3L) ) {
+                    rebuildIndex();
+                    slot = find( text, hash );
+                }
+                slot = -slot - 1;
+                if( indexRefs[slot] == NO_RECORD )
+                    indexUsed++;
+                indexHashes[slot] = hash;
+            }
+            indexRefs[slot] = ref;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Adds the given RRset (resource records with the same domain name, type, and class), which expires at the given time, to this store.  The RRset replaces any records this
+     * store holds with the same domain name, type, and class (RFC 2181), which are superseded.  If the arena is full, or holds the maximum number of records, the oldest
+     * records are dropped to make room.  Does nothing if the RRset is empty.
+     *
+     * @param _rrset The resource records to add, all with the same domain name, type, and class.
+     * @param _expiration The system time (like {@link System#currentTimeMillis()}) that the records expire.
+     */
+    public void addRRset( final List<DNSResourceRecord> _rrset, final long _expiration ) {
+
+        Checks.required( _rrset );
+
+        if( _rrset.isEmpty() )
+            return;
+        DNSResourceRecord first = _rrset.get( 0 );
+        String            text  = first.name.text;
+
+        lock.writeLock().lock();
+        try {
+
+            // supersede every live record of the old RRset (the write lock is reentrant, so no other thread sees the name with neither RRset)...
+            int slot = find( text, text.hashCode() );
+            if( slot >= 0 ) {
+                for( long ref = indexRefs[slot]; ref >= tail; ref = slab( ref ).getLong( offset( ref ) + NEXT_OFFSET ) ) {
+                    if( (slab( ref ).getLong( offset( ref ) + EXPIRATION_OFFSET ) != DEAD) && sameType( ref, first ) )
+                        supersede( ref );
+                }
+            }
+
+            // then add the new RRset's records...
+            for( DNSResourceRecord rr : _rrset )
+                add( rr, _expiration );
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Calls the given consumer with each record held in this store for the given domain name that expires at or after the given time, decoded into a
+     * {@link DNSResourceRecord}, together with its expiration time.  The consumer is called while holding this store's read lock, so it should return quickly and must not
+     * add records to this store.
+     *
+     * @param _dn The domain name (as a lower-case string) to get records for.
+     * @param _minExpiration The earliest expiration time of the records wanted; records that expire earlier aren't decoded.
+     * @param _consumer The consumer to call with each record and its expiration time.
+     */
+    public void get( final String _dn, final long _minExpiration, final ObjLongConsumer<DNSResourceRecord> _consumer ) {
+
+        Checks.required( _dn, _consumer );
+
+        lock.readLock().lock();
+        try {
+
+            int slot = find( _dn, _dn.hashCode() );
+            if( slot < 0 )
+                return;
+
+            for( long ref = indexRefs[slot]; ref >= tail; ref = slab( ref ).getLong( offset( ref ) + NEXT_OFFSET ) ) {
+
+                ByteBuffer slab       = slab( ref );
+                int        offset     = offset( ref );
+                long       expiration = slab.getLong( offset + EXPIRATION_OFFSET );
+                if( (expiration == DEAD) || (expiration < _minExpiration) )
+                    continue;
+
+                Outcome<? extends DNSResourceRecord> rro = DNSResourceRecord.decode( wire( slab, offset ) );
+                if( rro.ok() )
+                    _consumer.accept( rro.info(), expiration );
+                else
+                    LOGGER.log( FINE, "Could not decode from off-heap store: " + rro.msg() );
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Calls the given consumer with the wire format of each live record held in this store (from oldest to newest), together with its expiration time.  The consumer is called
+     * while holding this store's read lock, and must not add records to this store.  The buffer given to the consumer is a read-only view of the off-heap record, valid only
+     * during the call.
+     *
+     * @param _consumer The consumer to call with each record's wire format and its expiration time.
+     */
+    public void forEach( final ObjLongConsumer<ByteBuffer> _consumer ) {
+
+        Checks.required( _consumer );
+
+        lock.readLock().lock();
+        try {
+
+            long ref = tail;
+            while( ref < head ) {
+
+                ByteBuffer slab   = slab( ref );
+                int        offset = offset( ref );
+
+                // if we're at the end of the records in this slab, skip to the next slab...
+                int size = ((slabSize - offset) < HEADER_SIZE) ? 0 : slab.getInt( offset + SIZE_OFFSET );
+                if( size == 0 ) {
+                    ref += slabSize - offset;
+                    continue;
+                }
+
+                long expiration = slab.getLong( offset + EXPIRATION_OFFSET );
+                if( expiration != DEAD )
+                    _consumer.accept( wire( slab, offset ).asReadOnlyBuffer(), expiration );
+                ref += size;
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Returns the number of live records held in this store.  Note that some of these records may have expired.
+     *
+     * @return The number of live records held in this store.
+     */
+    public int size() {
+
+        lock.readLock().lock();
+        try {
+            return records;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Returns the number of bytes of the off-heap arena in use, including the space taken by superseded records that haven't been reclaimed yet.
+     *
+     * @return The number of bytes of the off-heap arena in use.
+     */
+    public long sizeInBytes() {
+
+        lock.readLock().lock();
+        try {
+            return head - tail;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Drop all the records held in this store.  The off-heap memory already allocated is kept, for reuse.
+     */
+    public void clear() {
+
+        lock.writeLock().lock();
+        try {
+            head      = 0;
+            tail      = 0;
+            records   = 0;
+            indexUsed = 0;
+            Arrays.fill( slabRecords, 0 );
+            Arrays.fill( indexRefs, NO_RECORD );
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Returns the index slot of the given domain name if it has one, or if it doesn't, -1 minus the slot it should be given (the first dead slot in its probe sequence, or the
+     * empty slot that ended it).  Must be called while holding the lock (read or write).
+     *
+     * @param _dn The domain name (as a lower-case string).
+     * @param _hash The domain name's hash.
+     * @return The domain name's slot, or -1 minus the slot it should be given.
+     */
+    private int find( final String _dn, final int _hash ) {
+
+        int mask = indexRefs.length - 1;
+        int free = -1;
+        for( int i = spread( _hash ) & mask; ; i = (i + 1) & mask ) {
+
+            long ref = indexRefs[i];
+            if( ref == NO_RECORD )
+                return -1 - ((free >= 0) ? free : i);
+            if( ref < tail ) {
+                if( free < 0 )
+                    free = i;
+            }
+            else if( (indexHashes[i] == _hash) && sameName( ref, _dn ) )
+                return i;
+        }
+    }
+
+
+    /**
+     * Rebuild the index, dropping its dead slots, and growing it if need be so that it's no more than 3/8 full.  Must be called while holding the write lock.
+     */
+    private void rebuildIndex() {
+
+        int live = 0;
+        for( long ref : indexRefs )
+            if( ref >= tail )
+                live++;
+        int length = MIN_INDEX_SIZE;
+        while( length * 3L < (live + 1) * 8L )
+            length <<= 1;
+
+        int[]  oldHashes = indexHashes;
+        long[] oldRefs   = indexRefs;
+        indexHashes = new int[length];
+        indexRefs   = new long[length];
+        Arrays.fill( indexRefs, NO_RECORD );
+        for( int i = 0; i < oldRefs.length; i++ ) {
+            if( oldRefs[i] < tail )
+                continue;
+            int j = spread( oldHashes[i] ) & (length - 1);
+            while( indexRefs[j] != NO_RECORD )
+                j = (j + 1) & (length - 1);
+            indexHashes[j] = oldHashes[i];
+            indexRefs[j]   = oldRefs[i];
+        }
+        indexUsed = live;
+    }
+
+
+    /**
+     * Returns the position in the arena to write a record of the given size at, reclaiming the oldest slabs as necessary to make room for it (and to stay within the maximum
+     * number of records).  Records never straddle slabs.  Must be called while holding the write lock.
+     *
+     * @param _size The size of the record, in bytes.
+     * @return The position to write the record at.
+     */
+    private long allocate( final int _size ) {
+
+        // if the record won't fit in what's left of the current slab, mark the end of the slab's records and move on to the next one...
+        int offset = offset( head );
+        if( offset + _size > slabSize ) {
+            if( slabSize - offset >= HEADER_SIZE )
+                slab( head ).putInt( offset + SIZE_OFFSET, 0 );
+            head += slabSize - offset;
+        }
+
+        // reclaim the oldest slabs until the record fits in the arena, and we're under our maximum number of records...
+        while( (head + _size - tail) > (long) slabs.length * slabSize )
+            reclaim();
+        while( (records >= maxRecords) && (tail + slabSize <= head) )
+            reclaim();
+
+        // make sure the slab we're writing into exists...
+        int index = slabIndex( head );
+        if( slabs[index] == null )
+            slabs[index] = ByteBuffer.allocateDirect( slabSize );
+
+        long ref = head;
+        head += _size;
+        return ref;
+    }
+
+
+    /**
+     * Reclaim the oldest slab in the arena, dropping all the records in it.  Must be called while holding the write lock.
+     */
+    private void reclaim() {
+        int index = slabIndex( tail );
+        records -= slabRecords[index];
+        slabRecords[index] = 0;
+        tail += slabSize;
+    }
+
+
+    /**
+     * Returns {@code true} if the domain name of the record at the given position is the given domain name.
+     *
+     * @param _ref The position of the record.
+     * @param _dn The domain name (as a lower-case string).
+     * @return {@code true} if the record's domain name is the given one.
+     */
+    private boolean sameName( final long _ref, final String _dn ) {
+
+        ByteBuffer slab   = slab( _ref );
+        int        offset = offset( _ref );
+        if( slab.getShort( offset + TEXT_OFFSET ) != _dn.length() )
+            return false;
+        for( int i = 0; i < _dn.length(); i++ )
+            if( slab.get( offset + HEADER_SIZE + i ) != (byte) _dn.charAt( i ) )
+                return false;
+        return true;
+    }
+
+
+    /**
+     * Returns {@code true} if the wire format of the record at the given position is the same as the record in our encoding buffer, except for its TTL.  That means the
+     * records have the same domain name, type, class, and resource data.
+     *
+     * @param _ref The position of the record.
+     * @param _nameLength The length of the encoded domain name that starts both records (the TTL follows it, and the type and class).
+     * @return {@code true} if the records are the same, apart from their TTLs.
+     */
+    private boolean sameRecord( final long _ref, final int _nameLength ) {
+
+        ByteBuffer slab   = slab( _ref );
+        int        offset = offset( _ref );
+        int        length = encoded.remaining();
+        if( slab.getInt( offset + WIRE_OFFSET ) != length )
+            return false;
+
+        int start = offset + HEADER_SIZE + slab.getShort( offset + TEXT_OFFSET );
+        int ttl   = _nameLength + 4;  // the TTL follows the name, type, and class...
+        for( int i = 0; i < length; i++ ) {
+            if( (i >= ttl) && (i < ttl + 4) )
+                continue;
+            if( slab.get( start + i ) != encoded.get( i ) )
+                return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Returns {@code true} if the record at the given position has the same type and class as the given record (whose domain name it must already be known to have).
+     *
+     * @param _ref The position of the record.
+     * @param _rr The resource record to compare it with.
+     * @return {@code true} if the records have the same type and class.
+     */
+    private boolean sameType( final long _ref, final DNSResourceRecord _rr ) {
+
+        ByteBuffer slab   = slab( _ref );
+        int        offset = offset( _ref );
+        int        type   = offset + HEADER_SIZE + slab.getShort( offset + TEXT_OFFSET ) + _rr.name.length;  // the type follows the name, and the class follows the type...
+        return ((slab.getShort( type ) & 0xFFFF) == _rr.type.code) && ((slab.getShort( type + 2 ) & 0xFFFF) == _rr.klass.code);
+    }
+
+
+    /**
+     * Marks the (live) record at the given position as superseded.
+     *
+     * @param _ref The position of the record.
+     */
+    private void supersede( final long _ref ) {
+        slab( _ref ).putLong( offset( _ref ) + EXPIRATION_OFFSET, DEAD );
+        slabRecords[ slabIndex( _ref ) ]--;
+        records--;
+    }
+
+
+    /**
+     * Returns a buffer holding just the wire format of the record at the given offset in the given slab.
+     *
+     * @param _slab The slab holding the record.
+     * @param _offset The offset of the record in the slab.
+     * @return The buffer holding the record's wire format.
+     */
+    private static ByteBuffer wire( final ByteBuffer _slab, final int _offset ) {
+        int start = _offset + HEADER_SIZE + _slab.getShort( _offset + TEXT_OFFSET );
+        return _slab.slice( start, _slab.getInt( _offset + WIRE_OFFSET ) );
+    }
+
+
+    private ByteBuffer slab( final long _ref ) {
+        return slabs[ slabIndex( _ref ) ];
+    }
+
+
+    private int slabIndex( final long _ref ) {
+        return (int)((_ref / slabSize) % slabs.length);
+    }
+
+
+    private int offset( final long _ref ) {
+        return (int)(_ref % slabSize);
+    }
+
+
+    /**
+     * Returns the given hash with its high order bits spread into its low order bits, as {@link java.util.HashMap} does.
+     *
+     * @param _hash The hash.
+     * @return The spread hash.
+     */
+    private static int spread( final int _hash ) {
+        return _hash ^ (_hash >>> 16);
+    }
+}
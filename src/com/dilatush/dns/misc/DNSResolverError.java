@@ -42,5 +42,8 @@ public enum DNSResolverError {
     BAD_QUERY,
 
     /** Could not find name servers to satisfy the query. */
-    NO_NAME_SERVERS
+    NO_NAME_SERVERS,
+
+    /** Resolving the query needs the answer to the query itself (a CNAME loop, or name servers whose addresses can only be found through each other). */
+    RESOLUTION_LOOP
 }
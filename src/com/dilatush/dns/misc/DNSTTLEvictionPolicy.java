@@ -0,0 +1,63 @@
+package com.dilatush.dns.misc;
+
+import com.dilatush.dns.misc.DNSCache.DNSCacheEntry;
+
+/**
+ * <p>An eviction policy for {@link DNSCache} that evicts the resource record set (RRset) closest to expiration.  This is the cache's default policy.  It's very cheap, and it never evicts
+ * a record while a record that will expire in an earlier second is still cached, however far ahead they expire, but it takes no account of how often records
+ * are used: a popular record with a short TTL (as is common for content delivery networks) will be evicted in favor of an unused record with a long TTL.  See
+ * {@link DNSTinyLFUEvictionPolicy} for an alternative.</p>
+ * <p>The entries are kept in a {@link DNSExpirationWheel}, which the cache also uses to sweep out expired entries, so that the cache needs to keep only one index of
+ * expiration times.  Instances of this class are threadsafe.</p>
+ */
+public class DNSTTLEvictionPolicy implements DNSCacheEvictionPolicy {
+
+    private final DNSExpirationWheel wheel = new DNSExpirationWheel();  // the entries, by the second they expire in...
+
+
+    @Override
+    public void added( final DNSCacheEntry _entry ) {
+        wheel.add( _entry );
+    }
+
+
+    @Override
+    public void replaced( final DNSCacheEntry _old, final DNSCacheEntry _new ) {
+        wheel.remove( _old );
+        wheel.add( _new );
+    }
+
+
+    @Override
+    public void accessed( final DNSCacheEntry _entry ) {
+        // we don't care how often entries are used...
+    }
+
+
+    @Override
+    public void removed( final DNSCacheEntry _entry ) {
+        wheel.remove( _entry );
+    }
+
+
+    @Override
+    public DNSCacheEntry victim() {
+        return wheel.earliest();
+    }
+
+
+    @Override
+    public void clear() {
+        wheel.clear();
+    }
+
+
+    /**
+     * Returns the {@link DNSExpirationWheel} that holds this policy's entries, so that the cache can sweep expired entries from it rather than keeping another one.
+     *
+     * @return This policy's expiration wheel.
+     */
+    DNSExpirationWheel wheel() {
+        return wheel;
+    }
+}
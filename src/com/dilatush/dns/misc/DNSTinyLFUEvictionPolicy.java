@@ -0,0 +1,372 @@
+package com.dilatush.dns.misc;
+
+import com.dilatush.dns.misc.DNSCache.DNSCacheEntry;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * <p>An eviction policy for {@link DNSCache} that implements W-TinyLFU (Einziger, Friedman, and Manes, "TinyLFU: A Highly Efficient Cache Admission Policy"), which keeps
+ * the resource records that are used most often, even if their TTLs are short.  The cached entries are divided into three LRU (least recently used) queues, whose sizes are
+ * counted in resource records (not entries), just as the cache's size is:</p>
+ * <ul>
+ *     <li>Window: newly added entries go here.  It holds about 1% of the cache's capacity, so that a burst of new records that are used a few times can get a foothold.</li>
+ *     <li>Probation: entries that overflow the window go here, and must then win a place in the main region (see below).  Entries that are used again while on probation
+ *     are promoted to the protected queue.</li>
+ *     <li>Protected: entries that have been used while on probation.  It holds up to 80% of the main region; entries that overflow it are demoted back to probation.</li>
+ * </ul>
+ * <p>Entries overflow the window into probation for as long as the main region (probation and protected) has room.  When it doesn't, the window's least recently used
+ * entry (the candidate) competes with the least recently used entry on probation (the victim) when the cache asks for an entry to evict: whichever has been used less often
+ * recently is chosen.  If that's the victim, the candidate moves into probation once the victim has been removed.  So choosing an entry to evict changes nothing; all the
+ * changes are made when the cache tells us what it did.  How often entries have been used is estimated by a count-min sketch of 4-bit counters, keyed by each entry's
+ * domain name and type, and all the counters are halved periodically so that the estimates favor recent use.  The sketch is small (about 8 bytes per cache entry), and it remembers records that are
+ * no longer in the cache; that's what keeps a scan of many records used only once from flushing out the records that are used all the time.</p>
+ * <p>All the operations take a single lock, and are constant time except for the periodic halving of the sketch.  Instances of this class are threadsafe.</p>
+ */
+public class DNSTinyLFUEvictionPolicy implements DNSCacheEvictionPolicy {
+
+    private static final double WINDOW_FRACTION    = 0.01;  // the fraction of the capacity for the window queue...
+    private static final double PROTECTED_FRACTION = 0.80;  // the fraction of the main region (probation + protected) for the protected queue...
+
+    private final Map<DNSCacheEntry,Node> nodes;        // the node for each entry we know about...
+    private final Queue                   window;       // the LRU queue of newly added entries...
+    private final Queue                   probation;    // the LRU queue of entries admitted to the main region, but not used since...
+    private final Queue                   protect;      // the LRU queue of entries used while on probation...
+    private final int                     windowMax;    // the maximum number of resource records in the window...
+    private final int                     mainMax;      // the maximum number of resource records in the main region (probation and protected)...
+    private final int                     protectedMax; // the maximum number of resource records in the protected queue...
+    private final FrequencySketch         sketch;       // the estimated recent use frequency of entries...
+
+
+    /**
+     * Creates a new instance of this class for a cache with the given capacity.
+     *
+     * @param _capacity The maximum number of resource records in the cache.
+     */
+    public DNSTinyLFUEvictionPolicy( final int _capacity ) {
+
+        if( _capacity < 1 )
+            throw new IllegalArgumentException( "Capacity must be at least one: " + _capacity );
+
+        mainMax      = _capacity - Math.max( 1, (int)(_capacity * WINDOW_FRACTION) );
+        windowMax    = _capacity - mainMax;
+        protectedMax = (int)(mainMax * PROTECTED_FRACTION);
+        nodes        = new IdentityHashMap<>();
+        window       = new Queue();
+        probation    = new Queue();
+        protect      = new Queue();
+        sketch       = new FrequencySketch( _capacity );
+    }
+
+
+    @Override
+    public synchronized void added( final DNSCacheEntry _entry ) {
+
+        sketch.increment( keyHash( _entry ) );
+
+        Node node = new Node( _entry );
+        nodes.put( _entry, node );
+        window.addLast( node );
+        admit();
+    }
+
+
+    @Override
+    public synchronized void replaced( final DNSCacheEntry _old, final DNSCacheEntry _new ) {
+
+        // the new entry takes the old one's place in whatever queue it's in, and being refreshed counts as being used...
+        Node node = nodes.remove( _old );
+        if( node == null ) {
+            added( _new );
+            return;
+        }
+        node.queue.resize( node, _new );
+        nodes.put( _new, node );
+        access( node );
+        admit();
+    }
+
+
+    @Override
+    public synchronized void accessed( final DNSCacheEntry _entry ) {
+
+        // we count the use even if the entry is gone, as it may well be back...
+        sketch.increment( keyHash( _entry ) );
+
+        Node node = nodes.get( _entry );
+        if( node != null )
+            access( node );
+    }
+
+
+    @Override
+    public synchronized void removed( final DNSCacheEntry _entry ) {
+
+        Node node = nodes.remove( _entry );
+        if( node != null ) {
+            node.queue.remove( node );
+            admit();
+        }
+    }
+
+
+    /**
+     * Returns the entry the cache should evict next, without changing anything: if the window has overflowed (because the main region is full), the loser of the competition
+     * between the window's least recently used entry and the main region's; otherwise, the least recently used entry on probation, then protected, then in the window.
+     *
+     * @return The entry to evict, or {@code null} if there are none.
+     */
+    @Override
+    public synchronized DNSCacheEntry victim() {
+
+        // if the window has overflowed, its least recently used entry is a candidate for the main region; it competes with the least recently used entry on probation...
+        if( window.records > windowMax ) {
+
+            Node candidate = window.first();
+            Node victim    = probation.first();
+            if( victim == null )
+                victim = protect.first();
+
+            // if there's nothing in the main region to compete with, the candidate is the victim...
+            if( victim == null )
+                return candidate.entry;
+
+            // the candidate gets in only if it has been used more often than the victim...
+            return (sketch.frequency( keyHash( candidate.entry ) ) > sketch.frequency( keyHash( victim.entry ) )) ? victim.entry : candidate.entry;
+        }
+
+        // otherwise, evict from probation, then protected, then (if the main region is empty) the window...
+        Node victim = probation.first();
+        if( victim == null ) victim = protect.first();
+        if( victim == null ) victim = window.first();
+        return (victim == null) ? null : victim.entry;
+    }
+
+
+    @Override
+    public synchronized void clear() {
+
+        nodes.clear();
+        window.clear();
+        probation.clear();
+        protect.clear();
+        sketch.clear();
+    }
+
+
+    /**
+     * Moves entries that have overflowed the window into probation, least recently used first, for as long as they fit in the main region.  An entry that doesn't fit stays
+     * in the window, where it competes for a place (see {@link #victim()}).  Must be called while holding this instance's lock.
+     */
+    private void admit() {
+
+        while( (window.records > windowMax) && (probation.records + protect.records + window.first().records <= mainMax) )
+            probation.addLast( window.removeFirst() );
+    }
+
+
+    /**
+     * Record a use of the entry in the given node: move it to the most recently used end of its queue, promoting it from probation to protected (and demoting the least recently
+     * used protected entries if the protected queue has overflowed).  Must be called while holding this instance's lock.
+     *
+     * @param _node The node of the entry that was used.
+     */
+    private void access( final Node _node ) {
+
+        if( _node.queue == probation ) {
+            probation.remove( _node );
+            protect.addLast( _node );
+            while( (protect.records > protectedMax) && (protect.first() != _node) )
+                probation.addLast( protect.removeFirst() );
+        }
+        else {
+            Queue queue = _node.queue;
+            queue.remove( _node );
+            queue.addLast( _node );
+        }
+    }
+
+
+    /**
+     * Returns the hash used to estimate the use frequency of the given entry's resource record set, from its domain name and type, so that all the copies of a resource record
+     * set over time share one estimate.
+     *
+     * @param _entry The entry.
+     * @return The hash of the entry's domain name and type.
+     */
+    private static int keyHash( final DNSCacheEntry _entry ) {
+        return _entry.name().text.hashCode() * 31 + _entry.type.hashCode();
+    }
+
+
+    /**
+     * A node in one of our LRU queues, holding a cache entry.
+     */
+    private static class Node {
+
+        private DNSCacheEntry entry;    // the entry in this node...
+        private int           records;  // the number of resource records in the entry...
+        private Queue         queue;    // the queue that this node is in, or null if none...
+        private Node          prev;     // the previous (less recently used) node in the queue...
+        private Node          next;     // the next (more recently used) node in the queue...
+
+
+        private Node( final DNSCacheEntry _entry ) {
+            entry   = _entry;
+            records = _entry.resourceRecords.size();
+        }
+    }
+
+
+    /**
+     * A doubly-linked LRU queue of nodes, with the least recently used node first, that counts the resource records in its nodes' entries.  Not threadsafe.
+     */
+    private static class Queue {
+
+        private Node head;     // the least recently used node...
+        private Node tail;     // the most recently used node...
+        private int  records;  // the number of resource records in this queue's entries...
+
+
+        private Node first() {
+            return head;
+        }
+
+
+        private void addLast( final Node _node ) {
+            _node.queue = this;
+            _node.prev  = tail;
+            _node.next  = null;
+            if( tail == null )
+                head = _node;
+            else
+                tail.next = _node;
+            tail = _node;
+            records += _node.records;
+        }
+
+
+        private Node removeFirst() {
+            Node node = head;
+            if( node != null )
+                remove( node );
+            return node;
+        }
+
+
+        private void remove( final Node _node ) {
+            if( _node.prev == null ) head = _node.next; else _node.prev.next = _node.next;
+            if( _node.next == null ) tail = _node.prev; else _node.next.prev = _node.prev;
+            _node.prev  = null;
+            _node.next  = null;
+            _node.queue = null;
+            records -= _node.records;
+        }
+
+
+        private void resize( final Node _node, final DNSCacheEntry _entry ) {
+            records      -= _node.records;
+            _node.entry   = _entry;
+            _node.records = _entry.resourceRecords.size();
+            records      += _node.records;
+        }
+
+
+        private void clear() {
+            head    = null;
+            tail    = null;
+            records = 0;
+        }
+    }
+
+
+    /**
+     * A count-min sketch with four 4-bit counters per item, packed sixteen to a long.  Estimates how often an item (identified by a hash) has been seen recently; the estimate
+     * is never lower than the true count (up to 15), and is usually exact.  Every time the number of increments reaches ten times the capacity, all the counters are halved,
+     * so that the estimates reflect recent history.  Not threadsafe.
+     */
+    private static class FrequencySketch {
+
+        private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        private static final long   RESET_MASK = 0x7777777777777777L;  // clears the high bit of each counter after a shift...
+
+        private final long[] table;       // the counters, sixteen to a long...
+        private final int    tableMask;   // the mask for a table index (the table's size is a power of two)...
+        private final int    sampleSize;  // the number of increments between halvings...
+        private       int    increments;  // the number of increments since the last halving...
+
+
+        private FrequencySketch( final int _capacity ) {
+            int size   = Integer.highestOneBit( Math.max( 16, _capacity ) - 1 ) << 1;  // the next power of two...
+            table      = new long[size];
+            tableMask  = size - 1;
+            sampleSize = 10 * Math.max( 16, _capacity );
+        }
+
+
+        /**
+         * Count one more occurrence of the item with the given hash.
+         *
+         * @param _hash The item's hash.
+         */
+        private void increment( final int _hash ) {
+
+            boolean added = false;
+            for( int i = 0; i < SEEDS.length; i++ ) {
+                long h      = hash( _hash, i );
+                int  index  = (int) h & tableMask;
+                int  offset = (int)(h >>> 58) & 0x3C;  // one of the sixteen 4-bit counters in the long...
+                if( ((table[index] >>> offset) & 0xF) < 15 ) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+
+            // if it's time to age our counters, halve them all...
+            if( added && (++increments >= sampleSize) ) {
+                for( int i = 0; i < table.length; i++ )
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                increments /= 2;
+            }
+        }
+
+
+        /**
+         * Returns the estimated number of occurrences of the item with the given hash (at most 15).
+         *
+         * @param _hash The item's hash.
+         * @return The estimated number of occurrences.
+         */
+        private int frequency( final int _hash ) {
+
+            int frequency = 15;
+            for( int i = 0; i < SEEDS.length; i++ ) {
+                long h      = hash( _hash, i );
+                int  index  = (int) h & tableMask;
+                int  offset = (int)(h >>> 58) & 0x3C;
+                frequency = Math.min( frequency, (int)((table[index] >>> offset) & 0xF) );
+            }
+            return frequency;
+        }
+
+
+        private void clear() {
+            Arrays.fill( table, 0 );
+            increments = 0;
+        }
+
+
+        /**
+         * Returns the given hash rehashed with the seed for the given counter.
+         *
+         * @param _hash The item's hash.
+         * @param _i The counter (0..3).
+         * @return The rehashed hash.
+         */
+        private static long hash( final int _hash, final int _i ) {
+            long h = (_hash + SEEDS[_i]) * SEEDS[_i];
+            return h ^ (h >>> 32);
+        }
+    }
+}
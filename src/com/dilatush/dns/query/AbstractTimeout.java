@@ -1,17 +1,29 @@
 package com.dilatush.dns.query;
 
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 /**
  * Concrete instances of this class represent cancellable timeouts that call a {@link Consumer Consumer&lt;Object&gt;} if the timeout actually occurs.  The
- * companion {@link Timeouts} class manages a collection of these timeouts.
+ * companion {@link Timeouts} class manages a collection of these timeouts.  The state of an instance (pending, expired, or cancelled) changes exactly once, through an
+ * atomic compare-and-set, so no locks are needed to decide whether the timeout handler gets called.
  */
 @SuppressWarnings( "unused" )
 public abstract class AbstractTimeout {
 
-    private final long     expiration;       // the system time that this timeout expires...
-    private       boolean  cancelled;        // true if this timeout has been cancelled...
-    private       boolean  done;             // true if this timeout has expired or has been cancelled...
+    private static final int PENDING   = 0;  // neither expired nor cancelled...
+    private static final int EXPIRED   = 1;  // expired, and the timeout handler has been (or is being) called...
+    private static final int CANCELLED = 2;  // cancelled before it expired...
+
+    private final long          expiration;  // the system time that this timeout expires...
+    private final AtomicInteger state;       // PENDING, EXPIRED, or CANCELLED...
+
+    // the fields below are used only by the Timeouts instance that manages this timeout, and only from its IO Runner thread...
+    volatile Timeouts        owner;          // the Timeouts instance this timeout was added to, or null if it hasn't been added to one...
+             AbstractTimeout next;           // the next timeout in the same timing wheel slot...
+             AbstractTimeout previous;       // the previous timeout in the same timing wheel slot...
+             int             slot = -1;      // the timing wheel slot this timeout is in, or -1 if it's not in the wheel...
+             long            deadlineTick;   // the timing wheel tick that this timeout expires in...
 
 
     /**
@@ -21,6 +33,7 @@ public abstract class AbstractTimeout {
      */
     protected AbstractTimeout( final long _timeoutMS ) {
         expiration     = System.currentTimeMillis() + _timeoutMS;  // calculating the system time at timeout expiration...
+        state          = new AtomicInteger( PENDING );
     }
 
 
@@ -30,21 +43,17 @@ public abstract class AbstractTimeout {
      *
      * @return {@code true} if this timeout has expired.
      */
-    public synchronized boolean hasExpired() {
+    public boolean hasExpired() {
 
         // if we haven't yet reached our expiration time, then leave with a negative...
         if( System.currentTimeMillis() < expiration )
             return false;
 
-        // if we're already done somehow or if we've been cancelled, return positive without doing anything...
-        if( done || cancelled )
-            return true;
-
-        // looks like we actually have to expire - so call our handler...
-        onTimeout();
+        // if we're the ones who moved this timeout from pending to expired, then we get to call the handler...
+        // if we're already done somehow or if we've been cancelled, we return positive without doing anything...
+        if( state.compareAndSet( PENDING, EXPIRED ) )
+            onTimeout();
 
-        // mark us as done (so we don't do this again), and leave with a positive...
-        done = true;
         return true;
     }
 
@@ -58,20 +67,21 @@ public abstract class AbstractTimeout {
     /**
      * Attempt to cancel this timeout, returning {@code true} if the cancellation was successful and the timeout handler will not be called, or
      * {@code false} if the cancellation failed (because the timeout has already been cancelled or because the timeout handler has already been
-     * called).
+     * called).  A successfully cancelled timeout is removed from the {@link Timeouts} instance managing it.
      *
      * @return {@code true} if cancellation was successful, and the timeout handler will not be called.
      */
     @SuppressWarnings( "UnusedReturnValue" )
-    public synchronized boolean cancel() {
+    public boolean cancel() {
 
         // if we've already been cancelled or expired, just return false...
-        if( done )
+        if( !state.compareAndSet( PENDING, CANCELLED ) )
             return false;
 
-        // otherwise, cancel and return true...
-        cancelled = true;
-        done = true;
+        // let our manager (if we have one yet) know that it can forget about us...
+        Timeouts timeouts = owner;
+        if( timeouts != null )
+            timeouts.cancelled( this );
         return true;
     }
 
@@ -81,8 +91,8 @@ public abstract class AbstractTimeout {
      *
      * @return {@code true} if this timeout has expired or has been cancelled.
      */
-    public synchronized boolean isDone() {
-        return done;
+    public boolean isDone() {
+        return state.get() != PENDING;
     }
 
 
@@ -101,7 +111,7 @@ public abstract class AbstractTimeout {
      *
      * @return {@code true} if this timeout has been cancelled.
      */
-    public synchronized boolean isCancelled() {
-        return cancelled;
+    public boolean isCancelled() {
+        return state.get() == CANCELLED;
     }
 }
@@ -1,6 +1,5 @@
 package com.dilatush.dns.query;
 
-import com.dilatush.dns.message.DNSMessage;
 import com.dilatush.util.Checks;
 import com.dilatush.util.ExecutorService;
 import com.dilatush.util.General;
@@ -14,7 +13,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * The abstract base class for {@link DNSUDPChannel} and {@link DNSTCPChannel}.
+ * The abstract base class for {@link DNSUDPSocket} and {@link DNSTCPConnection}, the classes whose instances are registered with {@link DNSNIO}'s selector and actually do network
+ * I/O.  Each instance is shared by all the queries in flight to its DNS server; the per-query {@link DNSUDPChannel} and {@link DNSTCPChannel} send through them.
  */
 public abstract class DNSChannel {
 
@@ -23,10 +23,7 @@ public abstract class DNSChannel {
     protected static final Outcome.Forge<?> outcome = new Outcome.Forge<>();
 
 
-    protected        final DNSQuery          query;          // the query that owns the agent that owns this channel...
-    protected        final DNSServerAgent    agent;          // the agent that owns this channel...
     protected        final DNSNIO            nio;            // the NIO for this channel to use...
-    protected        final ExecutorService   executor;       // the executor for this channel to use...
     protected        final Deque<ByteBuffer> sendData;       // the send buffer for this channel...
     protected        final InetSocketAddress serverAddress;  // the IP and port for this channel to connect to...
 
@@ -34,34 +31,19 @@ public abstract class DNSChannel {
     /**
      * Create a new instance of this base class with the given parameters.
      *
-     * @param _query The query that owns the agent that owns this channel.
-     * @param _agent The agent that owns this channel.
      * @param _nio The {@link DNSNIO} for this channel to use for network I/O.
-     * @param _executor The {@link ExecutorService} for this channel to use.
      * @param _serverAddress The IP address and port for this channel to connect to.
      */
-    protected DNSChannel( final DNSQuery _query, final DNSServerAgent _agent, final DNSNIO _nio, final ExecutorService _executor, final InetSocketAddress _serverAddress ) {
+    protected DNSChannel( final DNSNIO _nio, final InetSocketAddress _serverAddress ) {
 
-        Checks.required( _query, _agent, _nio, _executor, _serverAddress );
+        Checks.required( _nio, _serverAddress );
 
-        query         = _query;
-        agent         = _agent;
         nio           = _nio;
-        executor      = _executor;
         serverAddress = _serverAddress;
         sendData      = new ConcurrentLinkedDeque<>();
     }
 
 
-    /**
-     * Send the given {@link DNSMessage} via this channel.  The message is sent asynchronously; this method will return immediately.
-     *
-     * @param _msg The {@link DNSMessage} to send.
-     * @return The {@link Outcome Outcome&lt;?&gt;} of the send operation.
-     */
-    protected abstract Outcome<?> send( final DNSMessage _msg );
-
-
     /**
      * Write data from the send buffer to the network, addressed to this channel's server address.  This method is called from {@link DNSNIO}'s <i>IO Runner</i> thread, and should
      * never be called from anywhere else.  The work done in this method should be minimal and constrained, as it's being executed in the I/O loop.  This method must be carefully
@@ -20,7 +20,7 @@ import com.dilatush.util.fsm.FSMTransition;
 import com.dilatush.util.fsm.events.FSMEvent;
 
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -53,19 +53,19 @@ public class DNSForwardedQuery extends DNSQuery {
      *               partially), and to add new resource records received from other DNS servers.
      * @param _nio The {@link DNSNIO} to use for all network I/O.  This reference can be passed along to the {@link DNSServerAgent}s that need it.
      * @param _executor The {@link ExecutorService} to be used for processing received messages, to keep the load on the NIO thread to a minimum.
-     * @param _activeQueries The {@link DNSResolver}'s map of currently active queries.  This reference allows the query to update the map.  The map has a peculiar purpose: to
+     * @param _activeQueries The {@link DNSResolver}'s set of currently active queries.  This reference allows the query to update the set.  The set has a peculiar purpose: to
      *                       keep a reference to any active queries, as the resolver otherwise keeps none.
      * @param _question The {@link DNSQuestion} to be resolved by this query.
-     * @param _id The unique identifying 32-bit integer for this query.  The DNS specifications call for this ID to help the resolver match incoming responses to the query that
-     *            produced them.  In this implementation, the matching is done by the fact that each query has a unique port number associated with it, so the ID isn't needed at
-     *            all for matching.  Nevertheless, it has an important purpose: it is the key for the active query map described above.
+     * @param _id The identifying 32-bit integer for this query.  The DNS specifications call for a 16-bit ID to help the resolver match incoming responses to the query that
+     *            produced them.  In this implementation, that ID is allocated by the transport when the query message is actually sent (see {@link DNSMessageIDAllocator}), so
+     *            this ID is used only to identify the query, and as the default ID in the query message.
      * @param _serverSpecs The {@link List List&lt;ServerSpec&gt;} of the parameters used to create {@link DNSServerAgent} instances that can query other DNS servers.  Note that
      *                     for forwarded queries this list is supplied by the resolver, but for recursive queries it is generated in the course of making the queries.
      * @param _handler The {@link Consumer Consumer&lt;Outcome&lt;QueryResult&gt;&gt;} handler that will be called when the query is completed.  Note that the handler is called
      *                 either for success or failure.
      */
     public DNSForwardedQuery( final DNSResolver _resolver, final DNSCache _cache, final DNSNIO _nio, final ExecutorService _executor,
-                              final Map<Short,DNSQuery> _activeQueries, final DNSQuestion _question, final int _id,
+                              final Set<DNSQuery> _activeQueries, final DNSQuestion _question, final int _id,
                               final List<ServerSpec> _serverSpecs, final Consumer<Outcome<QueryResult>> _handler ) {
         super( _resolver, _cache, _nio, _executor, _activeQueries, _question, _id, _handler );
 
@@ -185,13 +185,14 @@ public class DNSForwardedQuery extends DNSQuery {
             agent.close();
 
         // remove our reference, so this query can be garbage-collected...
-        activeQueries.remove( (short) id );
+        activeQueries.remove( this );
     }
 
 
 
     /**
      * Event transform that checks to see if this query can be satisfied from the DNS cache.  If it can be satisfied, returns a DATA event.  Otherwise, returns a NO_CACHE event.
+     * Note that a cached negative answer (the name doesn't exist, or has no records of the queried type) satisfies the query just as well as cached answers do.
      *
      * @param _event The FSM event being transformed. In this case, it's always an INITIATE event.
      * @param _fsm The FSM associated with this transformation.
@@ -199,6 +200,12 @@ public class DNSForwardedQuery extends DNSQuery {
      */
     private FSMEvent<Event> cacheCheck( final FSMEvent<Event> _event, final FSM<State,Event> _fsm  ) {
 
+        // if we're refreshing the cache, we have to actually do a query...
+        if( bypassCache ) {
+            queryLog.log( "Bypassing cache: " + question );
+            return _fsm.event( Event.NO_CACHE );
+        }
+
         // if we can resolve this query from the cache, pass the result on for analysis...
         DNSMessage cacheResponse = cache.resolve( queryMessage );
         if( (cacheResponse.responseCode == DNSResponseCode.OK) && (cacheResponse.answers.size() > 0) ) {
@@ -206,6 +213,12 @@ public class DNSForwardedQuery extends DNSQuery {
             return _fsm.event( Event.DATA, new ReceivedDNSMessage( cacheResponse, transport ) );  // fake the transport as the transport we expect...
         }
 
+        // if the cache has a negative answer for this query, that's just as good...
+        if( DNSCache.isNegativeAnswer( cacheResponse ) ) {
+            queryLog.log( "Resolved negative answer from cache: " + question + " (" + cacheResponse.responseCode + ")" );
+            return _fsm.event( Event.DATA, new ReceivedDNSMessage( cacheResponse, transport ) );  // fake the transport as the transport we expect...
+        }
+
         // otherwise, we have to actually do a query...
         return _fsm.event( Event.NO_CACHE );
     }
@@ -254,6 +267,11 @@ public class DNSForwardedQuery extends DNSQuery {
         // if we got a name error, and the response is authoritative, then the name doesn't exist...
         if( responseMessage.responseCode == NAME_ERROR ) {
             queryLog.log( "Response was NAME_ERROR, so queried name does not exist" );
+
+            // if we're currently in the QUERY state, then remember this in the cache (if not, then this name error came FROM the cache)...
+            if( _fsm.getStateEnum() == State.QUERY )
+                updateCacheFromMessage( responseMessage );
+
             return _fsm.event( Event.NAME_ERROR );
         }
 
@@ -383,7 +401,7 @@ public class DNSForwardedQuery extends DNSQuery {
     /**
      * Transition action on NAME_ERROR event that notifies the client that the queried DNS name does not exist.
      *
-     * @param _transition The transition that triggered this action, in this case always QUERY::NAME_ERROR.
+     * @param _transition The transition that triggered this action, in this case QUERY::NAME_ERROR (from a DNS server) or IDLE::NAME_ERROR (resolved from cache).
      * @param _event The event that triggered this action.
      */
     private void notifyNameError( final FSMTransition<State,Event> _transition, FSMEvent<Event> _event ) {
@@ -509,6 +527,7 @@ public class DNSForwardedQuery extends DNSQuery {
         spec.addTransition( State.QUERY,          Event.TRUNCATED_UDP,       this::queryServer,      State.QUERY                       );
         spec.addTransition( State.QUERY,          Event.MORE_SERVERS,        this::queryServer,      State.QUERY                       );
         spec.addTransition( State.QUERY,          Event.NAME_ERROR,          this::notifyNameError,  State.NAME_NOT_FOUND_TERMINATION  );
+        spec.addTransition( State.IDLE,           Event.NAME_ERROR,          this::notifyNameError,  State.NAME_NOT_FOUND_TERMINATION  );
         spec.addTransition( State.QUERY,          Event.ANSWER,              this::notifyAnswer,     State.ANSWER_TERMINATION          );
         spec.addTransition( State.IDLE,           Event.ANSWER,              this::notifyAnswer,     State.ANSWER_TERMINATION          );
 
@@ -0,0 +1,126 @@
+package com.dilatush.dns.query;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Instances of this class allocate the 16-bit message IDs for the queries in flight on a single connection (or UDP socket) to a DNS server.  An ID is never handed out again
+ * until it has been released, so no matter how many queries a long-running resolver makes, two queries in flight on the same connection never share an ID.  The IDs are chosen
+ * at random (from a cryptographically strong source), which makes it much harder for an attacker to spoof responses.</p>
+ * <p>The IDs in flight are tracked in a 65,536 bit bitmap that is updated with compare-and-set operations, so allocating and releasing IDs never takes a lock.  Instances of this
+ * class are threadsafe.</p>
+ */
+public class DNSMessageIDAllocator {
+
+    private static final SecureRandom random        = new SecureRandom();
+
+    private static final int          ID_COUNT      = 65536;           // the number of possible 16-bit IDs...
+    private static final int          WORD_COUNT    = ID_COUNT / 64;   // the number of longs in our bitmap...
+    private static final int          RANDOM_PROBES = 8;               // the number of purely random IDs we'll try before scanning for a free one...
+
+    private final AtomicLongArray inFlight;  // one bit per ID; a one bit means the ID is in flight...
+    private final AtomicInteger   count;     // the number of IDs in flight...
+
+
+    /**
+     * Creates a new instance of this class, with no IDs in flight.
+     */
+    public DNSMessageIDAllocator() {
+        inFlight = new AtomicLongArray( WORD_COUNT );
+        count    = new AtomicInteger();
+    }
+
+
+    /**
+     * Allocates a random 16-bit ID that is not currently in flight, and marks it as in flight.  Returns -1 if all 65,536 IDs are in flight.
+     *
+     * @return the allocated ID, or -1 if there are none available.
+     */
+    public int allocate() {
+
+        // first try a few completely random IDs; unless we have a LOT of queries in flight, one of these will almost always work...
+        for( int i = 0; i < RANDOM_PROBES; i++ ) {
+            int id = random.nextInt( ID_COUNT );
+            if( claim( id ) )
+                return id;
+        }
+
+        // we're busy; scan the bitmap for a free ID, starting at a random word...
+        int startWord = random.nextInt( WORD_COUNT );
+        for( int w = 0; w < WORD_COUNT; w++ ) {
+
+            int word = (startWord + w) % WORD_COUNT;
+            long bits = inFlight.get( word );
+
+            // as long as this word has a zero bit, try to claim it...
+            while( bits != -1L ) {
+                int bit = Long.numberOfTrailingZeros( ~bits );
+                if( inFlight.compareAndSet( word, bits, bits | (1L << bit) ) ) {
+                    count.incrementAndGet();
+                    return (word << 6) | bit;
+                }
+                bits = inFlight.get( word );  // someone beat us to it; try again with the current bits...
+            }
+        }
+
+        // if we get here, every ID is in flight...
+        return -1;
+    }
+
+
+    /**
+     * Releases the given ID, so that it may be allocated again.  Releasing an ID that isn't in flight does nothing.
+     *
+     * @param _id The ID to release.
+     */
+    public void release( final int _id ) {
+
+        if( (_id < 0) || (_id >= ID_COUNT) )
+            return;
+
+        int  word = _id >>> 6;
+        long mask = 1L << (_id & 63);
+        while( true ) {
+            long bits = inFlight.get( word );
+            if( (bits & mask) == 0 )
+                return;
+            if( inFlight.compareAndSet( word, bits, bits & ~mask ) ) {
+                count.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Returns the number of IDs currently in flight.
+     *
+     * @return the number of IDs currently in flight.
+     */
+    public int inFlight() {
+        return count.get();
+    }
+
+
+    /**
+     * Try to mark the given ID as in flight, returning {@code true} if it was free (and is now ours).
+     *
+     * @param _id The ID to claim.
+     * @return {@code true} if the ID was claimed.
+     */
+    private boolean claim( final int _id ) {
+
+        int  word = _id >>> 6;
+        long mask = 1L << (_id & 63);
+        while( true ) {
+            long bits = inFlight.get( word );
+            if( (bits & mask) != 0 )
+                return false;
+            if( inFlight.compareAndSet( word, bits, bits | mask ) ) {
+                count.incrementAndGet();
+                return true;
+            }
+        }
+    }
+}
@@ -6,12 +6,15 @@ import com.dilatush.util.ExecutorService;
 import com.dilatush.util.General;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,51 +23,65 @@ import static java.lang.System.currentTimeMillis;
 
 
 /**
- * A single instance of this class manages the network I/O in a single thread for a {@link DNSResolver} instance.  Note that instances of {@link DNSChannel} and its subclasses
- * are called by this class's <i>IO Runner</i> thread to do the actual work of connecting (for TCP), reading from, and writing to the network.
+ * <p>A single instance of this class manages the network I/O for a {@link DNSResolver} instance, or for several that share it (see
+ * {@link DNSResolver.Builder#setSharedWith(DNSResolver)}).  Note that instances of {@link DNSChannel} and its subclasses are called by this class's <i>IO Runner</i> threads
+ * to do the actual work of connecting (for TCP), reading from, and writing to the network.</p>
+ * <p>The I/O is spread over a configurable number of reactors (by default, one per available processor), each of which is a <i>IO Runner</i> thread with its own
+ * {@link Selector} and its own collection of timeouts.  Each {@link DNSChannel} is assigned to one reactor (by its identity hash) for its entire life, so any given channel's
+ * {@link DNSChannel#read()}, {@link DNSChannel#write()}, and timeouts are always called from the same thread, exactly as if there were only one reactor.</p>
  */
 public class DNSNIO {
 
     final static private Logger    LOGGER = General.getLogger();
 
-    private static final long      TIMEOUT_CHECK_INTERVAL_MILLIS = 50;
+    private static final int       UDP_SOCKETS_PER_SERVER = 4;  // the number of pooled UDP sockets for each DNS server...
+    private static final long      NO_EDNS_RETRY_MILLIS   = 60 * 60 * 1000;  // how long we assume a server that rejected EDNS still doesn't support it...
 
-    private        final Selector  selector;         // the Selector where DNSChannels register their I/O interests...
-    private        final Thread    ioRunner;         // the single "IO Runner" thread that does all the actual network I/O...
-    private        final Timeouts  timeouts;         // the collection of active timeouts...
+    private        final Reactor[] reactors;         // the reactors that do all the actual network I/O...
+
+    // the pooled UDP sockets for each DNS server we've talked to...
+    private        final Map<InetSocketAddress,DNSUDPSocket[]> udpSockets = new ConcurrentHashMap<>();
+
+    // the persistent TCP connection for each DNS server we've talked to over TCP...
+    private        final Map<InetSocketAddress,DNSTCPConnection> tcpConnections = new ConcurrentHashMap<>();
+
+    // the DNS servers that we've found don't support EDNS, mapped to the system time we'll next try EDNS with them...
+    private        final Map<InetSocketAddress,Long>           noEDNSUntil = new ConcurrentHashMap<>();
 
 
     /**
-     * Creates a new instance of this class.  The new instance will start a daemon thread that does the bulk of the work of this class, which is to handle the low-level (UDP and
-     * TCP) I/O for the DNS resolver.  By default, received data and timeout handlers are called through a single-threaded {@link ExecutorService} instance (with a daemon thread
-     * and a queue of 100).
+     * Creates a new instance of this class with the given number of reactors.  The new instance will start a daemon thread for each reactor; those threads do the bulk of the
+     * work of this class, which is to handle the low-level (UDP and TCP) I/O for the DNS resolver.
      *
-     * @throws DNSResolverException if the selector can't be opened for some reason.
+     * @param _reactorCount The number of reactors (and therefore <i>IO Runner</i> threads) to use; must be at least one.
+     * @throws DNSResolverException if a selector can't be opened for some reason.
      */
-    public DNSNIO() throws DNSResolverException {
+    public DNSNIO( final int _reactorCount ) throws DNSResolverException {
 
-        // get our timeouts manager...
-        timeouts = new Timeouts();
+        if( _reactorCount < 1 )
+            throw new IllegalArgumentException( "Reactor count must be at least one: " + _reactorCount );
 
-        // open the selector we're going to use for all our I/O...
-        try {
-            selector = Selector.open();
-        }
-        catch( IOException _e ) {
-            throw new DNSResolverException( "Problem opening selector", _e, NETWORK );
+        reactors = new Reactor[_reactorCount];
+        for( int i = 0; i < reactors.length; i++ ) {
+            reactors[i] = new Reactor( (reactors.length == 1) ? "IO Runner" : ("IO Runner " + i) );
         }
+    }
 
-        // create and start our I/O thread...
-        ioRunner = new Thread( this::ioLoop );
-        ioRunner.setDaemon( true );
-        ioRunner.setName( "IO Runner" );
-        ioRunner.start();
+
+    /**
+     * Creates a new instance of this class with one reactor for each available processor.
+     *
+     * @throws DNSResolverException if a selector can't be opened for some reason.
+     */
+    public DNSNIO() throws DNSResolverException {
+        this( Runtime.getRuntime().availableProcessors() );
     }
 
 
     /**
-     * Register the given operations (as defined by {@link SelectableChannel#register(Selector,int,Object)}) for the given {@link SelectableChannel} on this instance's selector.
-     * The given {@link DNSChannel} will be attached.
+     * Register the given operations (as defined by {@link SelectableChannel#register(Selector,int,Object)}) for the given {@link SelectableChannel} on the selector of the
+     * reactor that the given {@link DNSChannel} is assigned to.  The given {@link DNSChannel} will be attached.  If called from a thread other than that reactor's
+     * <i>IO Runner</i>, the selector is woken up so that the registration takes effect right away.
      *
      * @param _dnsChannel The {@link DNSChannel} to attach.
      * @param _channel The {@link SelectableChannel} to register operations for.
@@ -72,81 +89,235 @@ public class DNSNIO {
      * @throws ClosedChannelException if the channel is closed.
      */
     protected void register( final DNSChannel _dnsChannel, final SelectableChannel _channel, final int _operations ) throws ClosedChannelException {
-        _channel.register( selector, _operations, _dnsChannel );
+        Reactor reactor = reactorFor( _dnsChannel );
+        _channel.register( reactor.selector, _operations, _dnsChannel );
+        if( Thread.currentThread() != reactor.ioRunner )
+            reactor.selector.wakeup();
+    }
+
+
+    /**
+     * Returns the pool of shared {@link DNSUDPSocket}s for the DNS server at the given address, creating it if necessary.  The sockets in the pool are opened lazily, on their
+     * first send.
+     *
+     * @param _serverAddress The IP address and port of the DNS server.
+     * @return The pool of {@link DNSUDPSocket}s for the DNS server.
+     */
+    protected DNSUDPSocket[] getUDPSockets( final InetSocketAddress _serverAddress ) {
+
+        return udpSockets.computeIfAbsent( _serverAddress, (address) -> {
+            DNSUDPSocket[] sockets = new DNSUDPSocket[UDP_SOCKETS_PER_SERVER];
+            for( int i = 0; i < sockets.length; i++ )
+                sockets[i] = new DNSUDPSocket( this, address );
+            return sockets;
+        } );
+    }
+
+
+    /**
+     * Returns the shared, persistent {@link DNSTCPConnection} for the DNS server at the given address, creating it if necessary.  The connection is opened lazily, on its first
+     * send, and is reopened as needed after it has been closed.
+     *
+     * @param _serverAddress The IP address and port of the DNS server.
+     * @return The {@link DNSTCPConnection} for the DNS server.
+     */
+    protected DNSTCPConnection getTCPConnection( final InetSocketAddress _serverAddress ) {
+        return tcpConnections.computeIfAbsent( _serverAddress, (address) -> new DNSTCPConnection( this, address ) );
+    }
+
+
+    /**
+     * Returns {@code true} if we should use EDNS(0) when querying the DNS server at the given address, which is the case unless that server has recently responded to an
+     * EDNS query in a way that shows it doesn't support EDNS.
+     *
+     * @param _serverAddress The IP address and port of the DNS server.
+     * @return {@code true} if we should use EDNS with the DNS server.
+     */
+    protected boolean isEDNSSupported( final InetSocketAddress _serverAddress ) {
+
+        Long until = noEDNSUntil.get( _serverAddress );
+        if( until == null )
+            return true;
+        if( until > currentTimeMillis() )
+            return false;
+
+        // it's been long enough that we'll give EDNS another try with this server...
+        noEDNSUntil.remove( _serverAddress, until );
+        return true;
     }
 
 
     /**
-     * Add the given timeout to the collection of active timeouts.
+     * Record that the DNS server at the given address doesn't support EDNS(0), so that we'll query it without EDNS for a while.
+     *
+     * @param _serverAddress The IP address and port of the DNS server.
+     */
+    protected void setEDNSUnsupported( final InetSocketAddress _serverAddress ) {
+        noEDNSUntil.put( _serverAddress, currentTimeMillis() + NO_EDNS_RETRY_MILLIS );
+    }
+
+
+    /**
+     * Add the given timeout to the collection of active timeouts of one of our reactors, chosen by the timeout's identity hash.  Use this for timeouts whose handlers don't
+     * touch the state of any particular {@link DNSChannel}.  The timeout's handler is called in an <i>IO Runner</i> thread, so it must not take long.
      *
      * @param _timeout The timeout to add.
      */
-    protected void addTimeout( final AbstractTimeout _timeout ) {
-        timeouts.add( _timeout );
+    public void addTimeout( final AbstractTimeout _timeout ) {
+        reactorFor( _timeout ).addTimeout( _timeout );
     }
 
 
     /**
-     * The main I/O loop for {@link DNSServerAgent}s.  In normal operation the {@code while()} loop will run forever.
+     * Add the given timeout to the collection of active timeouts of the reactor that the given {@link DNSChannel} is assigned to, so that the timeout handler is called from the
+     * same thread as the channel's {@link DNSChannel#read()} and {@link DNSChannel#write()} methods.
+     *
+     * @param _timeout The timeout to add.
+     * @param _dnsChannel The {@link DNSChannel} whose reactor should manage the timeout.
      */
-    private void ioLoop() {
+    protected void addTimeout( final AbstractTimeout _timeout, final DNSChannel _dnsChannel ) {
+        reactorFor( _dnsChannel ).addTimeout( _timeout );
+    }
 
-        // the earliest system time that we should do a timeout check...
-        long nextTimeoutCheck = currentTimeMillis() + TIMEOUT_CHECK_INTERVAL_MILLIS;
 
-        // we're going to loop here basically forever...
-        while( !ioRunner.isInterrupted() ) {
+    /**
+     * Returns the reactor assigned to the given object, by its identity hash.  A given object is always assigned to the same reactor.
+     *
+     * @param _object The object to get the reactor for.
+     * @return the reactor assigned to the object.
+     */
+    private Reactor reactorFor( final Object _object ) {
 
-            // any exceptions in this code are a serious problem; if we get one, we just log it and make no attempt to recover...
-            try {
+        if( reactors.length == 1 )
+            return reactors[0];
 
-                // select and get any keys, but timeout when it's next time to check our timeouts...
-                selector.select( nextTimeoutCheck - currentTimeMillis() );
+        // spread the hash bits, as identity hashes aren't necessarily well distributed in their low bits...
+        int hash = System.identityHashCode( _object );
+        hash ^= (hash >>> 16);
+        return reactors[(hash & 0x7FFFFFFF) % reactors.length];
+    }
 
-                // iterate over any selected keys, and handle them...
-                Set<SelectionKey> keys = selector.selectedKeys();
-                Iterator<SelectionKey> keyIterator = keys.iterator();
-                while( keyIterator.hasNext() ) {
 
-                    // get the next key, extract and safely cast its attachment...
-                    SelectionKey key = keyIterator.next();
-                    DNSTCPChannel tcp  = (key.attachment() instanceof DNSTCPChannel) ? (DNSTCPChannel) key.attachment() : null;
-                    DNSChannel channel = (key.attachment() instanceof DNSChannel)    ? (DNSChannel)    key.attachment() : null;
+    /**
+     * Instances of this class are the reactors that do the network I/O: each has a selector, a collection of timeouts, and a single daemon <i>IO Runner</i> thread that
+     * selects, handles the selected keys, and handles timeouts.
+     */
+    private static class Reactor {
 
-                    // handle connecting (TCP only)...
-                    if( key.isValid() && key.isConnectable() && (tcp != null) )
-                        tcp.tcpChannel.finishConnect();
+        private final Selector  selector;         // the Selector where DNSChannels register their I/O interests...
+        private final Thread    ioRunner;         // the "IO Runner" thread that does this reactor's actual network I/O...
+        private final Timeouts  timeouts;         // this reactor's collection of active timeouts...
 
-                    // handle writing to the network...
-                    if( key.isValid() && key.isWritable() && (channel != null) )
-                        channel.write();
+        // the system time the IO Runner will wake up at if nothing happens (Long.MAX_VALUE if it's about to go to sleep, Long.MIN_VALUE if it's awake)...
+        private volatile long   sleepingUntil = Long.MIN_VALUE;
 
-                    // handle reading from the network...
-                    if( key.isValid() && key.isReadable() && (channel != null) )
-                        channel.read();
 
-                    // get rid the key we just processed...
-                    keyIterator.remove();
-                }
+        /**
+         * Creates a new instance of this class, and starts its <i>IO Runner</i> thread.
+         *
+         * @param _name The name of the <i>IO Runner</i> thread.
+         * @throws DNSResolverException if the selector can't be opened for some reason.
+         */
+        private Reactor( final String _name ) throws DNSResolverException {
 
-                // see if it's time for us to check the timeouts...
-                if( currentTimeMillis() >= nextTimeoutCheck ) {
+            // get our timeouts manager...
+            timeouts = new Timeouts();
 
-                    // check 'em...
+            // open the selector we're going to use for all our I/O...
+            try {
+                selector = Selector.open();
+            }
+            catch( IOException _e ) {
+                throw new DNSResolverException( "Problem opening selector", _e, NETWORK );
+            }
+
+            // create and start our I/O thread...
+            ioRunner = new Thread( this::ioLoop );
+            ioRunner.setDaemon( true );
+            ioRunner.setName( _name );
+            ioRunner.start();
+        }
+
+
+        /**
+         * Add the given timeout to this reactor's collection of active timeouts.  If the <i>IO Runner</i> is sleeping until some time after the new timeout expires, it is woken
+         * up.
+         *
+         * @param _timeout The timeout to add.
+         */
+        private void addTimeout( final AbstractTimeout _timeout ) {
+            timeouts.add( _timeout );
+            if( _timeout.getExpiration() < sleepingUntil )
+                selector.wakeup();
+        }
+
+
+        /**
+         * The main I/O loop for {@link DNSServerAgent}s.  In normal operation the {@code while()} loop will run forever.
+         */
+        private void ioLoop() {
+
+            // we're going to loop here basically forever...
+            while( !ioRunner.isInterrupted() ) {
+
+                // any exceptions in this code are a serious problem; if we get one, we just log it and make no attempt to recover...
+                try {
+
+                    // handle any timeouts that are due...
                     timeouts.check();
 
-                    // figure out when we should check again...
-                    nextTimeoutCheck = currentTimeMillis() + TIMEOUT_CHECK_INTERVAL_MILLIS;
+                    // figure out how long we can sleep; we tell addTimeout() that we're about to sleep BEFORE we ask for the next timeout, so that a timeout
+                    // added between the two will wake us up...
+                    sleepingUntil = Long.MAX_VALUE;
+                    long nextCheck = timeouts.nextCheckTime();
+                    if( nextCheck >= 0 )
+                        sleepingUntil = nextCheck;
+
+                    // select and get any keys, sleeping until the next timeout is due (or forever, if there are no timeouts)...
+                    long sleepMillis = nextCheck - currentTimeMillis();
+                    if( nextCheck < 0 )
+                        selector.select();
+                    else if( sleepMillis > 0 )
+                        selector.select( sleepMillis );
+                    else
+                        selector.selectNow();
+                    sleepingUntil = Long.MIN_VALUE;
+
+                    // iterate over any selected keys, and handle them...
+                    Set<SelectionKey> keys = selector.selectedKeys();
+                    Iterator<SelectionKey> keyIterator = keys.iterator();
+                    while( keyIterator.hasNext() ) {
+
+                        // get the next key, extract and safely cast its attachment...
+                        SelectionKey key = keyIterator.next();
+                        DNSTCPConnection tcp = (key.attachment() instanceof DNSTCPConnection) ? (DNSTCPConnection) key.attachment() : null;
+                        DNSChannel channel   = (key.attachment() instanceof DNSChannel)       ? (DNSChannel)       key.attachment() : null;
+
+                        // handle connecting (TCP only)...
+                        if( key.isValid() && key.isConnectable() && (tcp != null) )
+                            tcp.finishConnect();
+
+                        // handle writing to the network...
+                        if( key.isValid() && key.isWritable() && (channel != null) )
+                            channel.write();
+
+                        // handle reading from the network...
+                        if( key.isValid() && key.isReadable() && (channel != null) )
+                            channel.read();
+
+                        // get rid the key we just processed...
+                        keyIterator.remove();
+                    }
                 }
-            }
 
-            // getting here means something seriously wrong happened; log and let the loop die...
-            catch( Throwable _e ) {
+                // getting here means something seriously wrong happened; log and let the loop die...
+                catch( Throwable _e ) {
 
-                LOGGER.log( Level.SEVERE, "Unhandled exception in NIO selector loop", _e );
+                    LOGGER.log( Level.SEVERE, "Unhandled exception in NIO selector loop", _e );
 
-                // this will cause the IO Runner thread to exit, and all I/O will cease...
-                break;
+                    // this will cause the IO Runner thread to exit, and all of this reactor's I/O will cease...
+                    break;
+                }
             }
         }
     }
@@ -14,7 +14,7 @@ import com.dilatush.util.Outcome;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -41,7 +41,7 @@ public abstract class DNSQuery {
     protected        final DNSCache                        cache;               // the resolver's cache...
     protected        final DNSNIO                          nio;                 // the resolver's network I/O implementation...
     protected        final ExecutorService                 executor;            // the resolver's executor service...
-    protected        final Map<Short,DNSQuery>             activeQueries;       // the resolver's map of active queries (to ensure a reference to active queries)...
+    protected        final Set<DNSQuery>                   activeQueries;       // the resolver's set of active queries (to ensure a reference to active queries)...
     protected        final int                             id;                  // the ID for this query...
     protected        final DNSQuestion                     question;            // the question being answered by this query...
     protected        final Consumer<Outcome<QueryResult>>  handler;             // the client's handler for this query's results...
@@ -53,6 +53,8 @@ public abstract class DNSQuery {
     protected              DNSMessage                      queryMessage;        // the query message sent to the DNS server...
     protected              DNSMessage                      responseMessage;     // the response message received from the DNS server...
 
+    protected volatile     boolean                         bypassCache;         // true if this query must not be answered from the cache...
+
 
     /**
      * Creates a new instance of this abstract base class using the given arguments.  Each instance of this class exists to answer a single {@link DNSQuestion}, which is one
@@ -63,17 +65,17 @@ public abstract class DNSQuery {
      *               partially), and to add new resource records received from other DNS servers.
      * @param _nio The {@link DNSNIO} to use for all network I/O.  This reference is passed along to the {@link DNSServerAgent}s that need it.
      * @param _executor The {@link ExecutorService} to be used for processing received messages, to keep the load on the NIO's {@code IO Runner} thread to a minimum.
-     * @param _activeQueries The {@link DNSResolver}'s map of currently active queries.  This reference allows the query to update the map.  The map has a peculiar purpose: to
+     * @param _activeQueries The {@link DNSResolver}'s set of currently active queries.  This reference allows the query to update the set.  The set has a peculiar purpose: to
      *                       keep a reference to any active queries, as the resolver otherwise keeps none.
      * @param _question The {@link DNSQuestion} to be resolved by this query.
-     * @param _id The unique identifying 32-bit integer for this query.  The DNS specifications call for this ID to help the resolver match incoming responses to the query that
-     *            produced them.  In this implementation, the matching is done by the fact that each query has a unique port number associated with it, so the ID isn't needed at
-     *            all for matching.  Nevertheless, it has an important purpose: it is the key for the active query map described above.
+     * @param _id The identifying 32-bit integer for this query.  The DNS specifications call for a 16-bit ID to help the resolver match incoming responses to the query that
+     *            produced them.  In this implementation, that ID is allocated by the transport when the query message is actually sent (see {@link DNSMessageIDAllocator}), so
+     *            this ID is used only to identify the query, and as the default ID in the query message.
      * @param _handler The {@link Consumer Consumer&lt;Outcome&lt;QueryResult&gt;&gt;} handler that will be called when the query is completed.  Note that the handler is called
      *                 either for success or failure.
      */
     protected DNSQuery( final DNSResolver _resolver, final DNSCache _cache, final DNSNIO _nio, final ExecutorService _executor,
-                        final Map<Short,DNSQuery> _activeQueries, final DNSQuestion _question, final int _id,
+                        final Set<DNSQuery> _activeQueries, final DNSQuestion _question, final int _id,
                         final Consumer<Outcome<QueryResult>> _handler ) {
 
         Checks.required( _resolver, _cache, _nio, _executor, _activeQueries, _question, _handler );
@@ -89,12 +91,23 @@ public abstract class DNSQuery {
         queryLog        = new QueryLog();
 
         // create a reference to ourselves so that we don't go "poof" when the initiate method returns...
-        activeQueries.put( (short) id, this );
+        activeQueries.add( this );
 
         queryLog.log("New query for " + question );
     }
 
 
+    /**
+     * Makes this query skip looking for its answer in the cache, and ask a DNS server instead; the answer it gets is still added to the cache.  This is how records in the cache
+     * are refreshed before they expire.  A recursive query still uses the cache to find the name servers to ask.  This must be called before {@link #initiate()}.
+     *
+     * @param _bypassCache {@code true} if this query must not be answered from the cache.
+     */
+    public void setBypassCache( final boolean _bypassCache ) {
+        bypassCache = _bypassCache;
+    }
+
+
     /**
      * Initiates a query using UDP transport.  Note that a call to this method may result in several messages to DNS servers and several responses from them.
      * This may happen if a queried DNS server doesn't respond within the timeout time, or if a series of DNS servers must be queried to get the answer to the question this
@@ -156,7 +169,7 @@ public abstract class DNSQuery {
 
             // some cleanup...
             agent.close();
-            activeQueries.remove( (short) id );
+            activeQueries.remove( this );
 
             // tell the customer what happened...
             String msg = "Could not send query via TCP: " + sendOutcome.msg();
@@ -180,7 +193,7 @@ public abstract class DNSQuery {
 
         // some cleanup...
         agent.close();
-        activeQueries.remove( (short) id );
+        activeQueries.remove( this );
 
         // tell the customer what happened...
         String msg = "Received message on " + _transport + ", expected it on " + transport;
@@ -217,10 +230,11 @@ public abstract class DNSQuery {
 
         Checks.required( _message );
 
-        // add the message's information to the cache...
-        cache.add( _message.answers           );
-        cache.add( _message.authorities       );
-        cache.add( _message.additionalRecords );
+        // add the message's information to the cache, all in one go...
+        cache.add( _message );
+
+        // if the message is a negative answer (name error, or no data) with an SOA, the cache will remember that too...
+        cache.addNegative( _message );
     }
 
 
@@ -256,7 +270,7 @@ public abstract class DNSQuery {
 
         // some cleanup...
         agent.close();
-        activeQueries.remove( (short) id );
+        activeQueries.remove( this );
 
         // let the customer know...
         handler.accept( queryOutcome.notOk(
@@ -273,7 +287,7 @@ public abstract class DNSQuery {
 
         // some cleanup...
         agent.close();
-        activeQueries.remove( (short) id );
+        activeQueries.remove( this );
 
         // let the customer know what happened...
         handler.accept( queryOutcome.notOk(
@@ -306,7 +320,7 @@ public abstract class DNSQuery {
 
         // some cleanup...
         agent.close();
-        activeQueries.remove( (short) id );
+        activeQueries.remove( this );
 
         queryLog.log("No more DNS servers to try" );
         handler.accept(
@@ -22,9 +22,12 @@ import com.dilatush.util.ip.IPv4Address;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.logging.Level;
@@ -65,6 +68,8 @@ public class DNSRecursiveQuery extends DNSQuery {
 
     private       List<IPHost>            nameServers;           // Hostnames and IPs of name servers we can query (IP is wildcard if unknown)...
 
+    private final Set<DNSQuestion>        lineage;               // our question, and the questions of all the queries we're a sub-query of...
+
 
 
 
@@ -76,20 +81,27 @@ public class DNSRecursiveQuery extends DNSQuery {
      *               partially), and to add new resource records received from other DNS servers.
      * @param _nio The {@link DNSNIO} to use for all network I/O.  This reference can be passed along to the {@link DNSServerAgent}s that need it.
      * @param _executor The {@link ExecutorService} to be used for processing received messages, to keep the load on the NIO thread to a minimum.
-     * @param _activeQueries The {@link DNSResolver}'s map of currently active queries.  This reference allows the query to update the map.  The map has a peculiar purpose: to
+     * @param _activeQueries The {@link DNSResolver}'s set of currently active queries.  This reference allows the query to update the set.  The set has a peculiar purpose: to
      *                       keep a reference to any active queries, as the resolver otherwise keeps none.
      * @param _question The {@link DNSQuestion} to be resolved by this query.
-     * @param _id The unique identifying 32-bit integer for this query.  The DNS specifications call for this ID to help the resolver match incoming responses to the query that
-     *            produced them.  In this implementation, the matching is done by the fact that each query has a unique port number associated with it, so the ID isn't needed at
-     *            all for matching.  Nevertheless, it has an important purpose: it is the key for the active query map described above.
+     * @param _id The identifying 32-bit integer for this query.  The DNS specifications call for a 16-bit ID to help the resolver match incoming responses to the query that
+     *            produced them.  In this implementation, that ID is allocated by the transport when the query message is actually sent (see {@link DNSMessageIDAllocator}), so
+     *            this ID is used only to identify the query, and as the default ID in the query message.
+     * @param _ancestors The questions of all the queries this query is a sub-query of; empty if this query isn't a sub-query.
      * @param _handler The {@link Consumer Consumer&lt;Outcome&lt;QueryResult&gt;&gt;} handler that will be called when the query is completed.  Note that the handler is called
      *                 either for success or failure.
      */
     public DNSRecursiveQuery( final DNSResolver _resolver, final DNSCache _cache, final DNSNIO _nio, final ExecutorService _executor,
-                              final Map<Short,DNSQuery> _activeQueries, final DNSQuestion _question, final int _id,
-                              final Consumer<Outcome<QueryResult>> _handler ) {
+                              final Set<DNSQuery> _activeQueries, final DNSQuestion _question, final int _id,
+                              final Set<DNSQuestion> _ancestors, final Consumer<Outcome<QueryResult>> _handler ) {
         super( _resolver, _cache, _nio, _executor, _activeQueries, _question, _id, _handler );
 
+        Checks.required( _ancestors );
+
+        Set<DNSQuestion> questions = new HashSet<>( _ancestors );
+        questions.add( _question );
+        lineage           = Collections.unmodifiableSet( questions );
+
         nameServers       = new ArrayList<>();
         fsm               = createFSM();
 
@@ -329,8 +341,12 @@ public class DNSRecursiveQuery extends DNSQuery {
             queryLog.log( msg );
             LOGGER.finer( msg );
 
-            // fire off a QUERY_NS_FAIL event...
+            // remember the name error in the cache, so we don't have to ask again for a while...
+            updateCacheFromMessage( responseMessage );
+
+            // fire off a NAME_ERROR event...
             fsm.onEvent( fsm.event( Event.NAME_ERROR ) );
+            return;
         }
 
         // in all other cases, we had a failure of some kind; fire off a QUERY_NS_FAIL event...
@@ -414,7 +430,7 @@ public class DNSRecursiveQuery extends DNSQuery {
             agent.close();
 
         // remove our reference, so this query can be garbage-collected...
-        activeQueries.remove( (short) id );
+        activeQueries.remove( this );
     }
 
 
@@ -453,7 +469,9 @@ public class DNSRecursiveQuery extends DNSQuery {
         }
 
         // try to resolve the query through the cache...
-        DNSMessage cacheResponse = cache.resolve( queryMessage, resolveAny );
+        // if we're refreshing the cache, we only want name servers from it - unless the attached message had answers, which are now in the cache...
+        boolean gotAnswers = (attachment instanceof DNSMessage msg) && !msg.answers.isEmpty();
+        DNSMessage cacheResponse = (bypassCache && !gotAnswers) ? cache.resolveDelegation( queryMessage ) : cache.resolve( queryMessage, resolveAny );
 
         queryLog.log( "Resolved from cache: response code: " + cacheResponse.responseCode + ", " + cacheResponse.answers.size() + " answers, " + cacheResponse.authorities.size()
                 + " authorities, " + cacheResponse.additionalRecords.size() + " additional records" );
@@ -474,6 +492,15 @@ public class DNSRecursiveQuery extends DNSQuery {
             return _fsm.event( Event.MALFORMED_QUERY );
         }
 
+        // if the cache has a negative answer, then either the name doesn't exist (return a NAME_ERROR event), or it has no records of the type we want (return a GOT_ANSWER
+        // event with the attached response, which has no answers)...
+        if( DNSCache.isNegativeAnswer( cacheResponse ) ) {
+            String msg = "Resolved negative answer from cache: " + question + " (" + cacheResponse.responseCode + ")";
+            queryLog.log( msg );
+            LOGGER.log( FINER, msg );
+            return (cacheResponse.responseCode == NAME_ERROR) ? _fsm.event( Event.NAME_ERROR ) : _fsm.event( Event.GOT_ANSWER, cacheResponse );
+        }
+
         // if the response code is OK, and we have some answers; return a GOT_ANSWER event with attached response...
         if( (cacheResponse.responseCode == OK) && (cacheResponse.answers.size() > 0) ) {
             String msg = "Resolved from cache: " + question;
@@ -658,13 +685,19 @@ public class DNSRecursiveQuery extends DNSQuery {
         DNSDomainName nextDomain = DNSDomainName.fromString( canonicalName ).info();
         DNSRRType nextType = question.qtype;
 
+        // if the cache already knows how the chain goes on from here, skip straight to its end rather than sub-querying for each link...
+        List<DNSResourceRecord> chain = cache.getCNAMEChain( nextDomain );
+        if( !chain.isEmpty() && (chain.get( chain.size() - 1 ) instanceof CNAME last) ) {
+            answers.addAll( chain );
+            nextDomain = last.cname;
+            queryLog.log( "Followed " + chain.size() + " CNAME records from cache to " + nextDomain.text );
+        }
+
         String msg = "Got CNAME; firing " + nextDomain.text + " " + nextType + " record sub-query from query " + id;
         LOGGER.finest( msg );
         queryLog.log( msg );
         DNSQuestion cnameSubqueryQuestion = new DNSQuestion( nextDomain, nextType );
-        DNSRecursiveQuery recursiveQuery = new DNSRecursiveQuery( resolver, cache, nio, executor, activeQueries, cnameSubqueryQuestion, resolver.getNextID(),
-                this::handleCNAMESubqueryResponse );
-        recursiveQuery.initiate();
+        resolver.subquery( cnameSubqueryQuestion, lineage, this::handleCNAMESubqueryResponse );
     }
 
 
@@ -696,9 +729,7 @@ public class DNSRecursiveQuery extends DNSQuery {
 
             // and then the actual subquery...
             DNSQuestion question = new DNSQuestion( dnsDomainName, DNSRRType.A );
-            DNSRecursiveQuery recursiveQuery = new DNSRecursiveQuery( resolver, cache, nio, executor, activeQueries, question, resolver.getNextID(),
-                    this::handleNSIPSubqueryResponse );
-            recursiveQuery.initiate();
+            resolver.subquery( question, lineage, this::handleNSIPSubqueryResponse );
         }
 
         // if we're using IPv6, query for "AAAA" records...
@@ -711,9 +742,7 @@ public class DNSRecursiveQuery extends DNSQuery {
 
             // and then the actual subquery...
             DNSQuestion question = new DNSQuestion( dnsDomainName, DNSRRType.AAAA );
-            DNSRecursiveQuery recursiveQuery = new DNSRecursiveQuery( resolver, cache, nio, executor, activeQueries, question, resolver.getNextID(),
-                    this::handleNSIPSubqueryResponse );
-            recursiveQuery.initiate();
+            resolver.subquery( question, lineage, this::handleNSIPSubqueryResponse );
         }
     }
 
@@ -791,9 +820,9 @@ public class DNSRecursiveQuery extends DNSQuery {
 
 
     /**
-     * Transition action on QUERY_NS::NAME_ERROR that notifies the client that the queried DNS name does not exist.
+     * Transition action on QUERY_NS::NAME_ERROR or IDLE::NAME_ERROR (resolved from cache) that notifies the client that the queried DNS name does not exist.
      *
-     * @param _transition The transition that triggered this action, in this case always QUERY_NS::NAME_ERROR.
+     * @param _transition The transition that triggered this action, in this case QUERY_NS::NAME_ERROR or IDLE::NAME_ERROR.
      * @param _event The event that triggered this action.
      */
     private void notifyNameError( final FSMTransition<State, Event> _transition, FSMEvent<Event> _event ) {
@@ -910,6 +939,7 @@ public class DNSRecursiveQuery extends DNSQuery {
         spec.addTransition( State.QUERY_NS,        Event.FINAL_ANSWER,        this::notifyAnswer,               State.ANSWER_TERMINATION   );
         spec.addTransition( State.SUB_QUERY_CNAME, Event.FINAL_ANSWER,        this::notifyAnswer,               State.ANSWER_TERMINATION   );
         spec.addTransition( State.QUERY_NS,        Event.NAME_ERROR,          this::notifyNameError,            State.ERROR_TERMINATION    );
+        spec.addTransition( State.IDLE,            Event.NAME_ERROR,          this::notifyNameError,            State.ERROR_TERMINATION    );
         spec.addTransition( State.IDLE,            Event.QUERY_NS,            null,                             State.QUERY_NS             );
         spec.addTransition( State.QUERY_NS,        Event.QUERY_NS,            null,                             State.QUERY_NS             );
         spec.addTransition( State.SUB_QUERY_NS_IP, Event.QUERY_NS,            null,                             State.QUERY_NS             );
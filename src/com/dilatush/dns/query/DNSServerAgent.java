@@ -2,6 +2,9 @@ package com.dilatush.dns.query;
 
 import com.dilatush.dns.DNSResolver;
 import com.dilatush.dns.message.DNSMessage;
+import com.dilatush.dns.message.DNSOPTRecord;
+import com.dilatush.dns.message.DNSResponseCode;
+import com.dilatush.dns.misc.DNSBufferPool;
 import com.dilatush.util.Bytes;
 import com.dilatush.util.Checks;
 import com.dilatush.util.ExecutorService;
@@ -9,7 +12,7 @@ import com.dilatush.util.Outcome;
 
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,8 +22,10 @@ import static com.dilatush.util.General.getLogger;
 /**
  * Implements an asynchronous resolver for DNS queries to a particular DNS server.  Any number of resolvers can be instantiated concurrently, but
  * only one resolver for each DNS server.  Each resolver can process any number of queries concurrently.  Each resolver can connect using either UDP
- * or TCP (normally UDP, but switching to TCP as needed).  All resolver I/O is performed by a single thread owned by the singleton
- * {@link DNSNIO}, which is instantiated on demand (when any {@link DNSServerAgent} is instantiated).
+ * or TCP (normally UDP, but switching to TCP as needed).  All resolver I/O is performed by the <i>IO Runner</i> threads of the {@link DNSNIO} the agent
+ * is given, which spreads its channels over several reactors (by default, one per processor), each a thread with its own selector.  Each of an agent's
+ * channels stays on one reactor for its whole life, so its reads, writes, and timeouts always happen on the same thread; but an agent's UDP and TCP
+ * channels, and the channels of different agents, may well be handled by different threads at once.
  *
  * @author Tom Dilatush  tom@dilatush.com
  */
@@ -40,8 +45,10 @@ public class DNSServerAgent {
     private          final DNSResolver                   resolver;
     private          final DNSQuery                      query;
     private          final DNSNIO                        nio;
+    private          final InetSocketAddress             serverAddress;
 
     private                DNSQueryTimeout               timeout;
+    private volatile       DNSMessage                    sentMessage;    // the query message most recently sent...
 
     public           final long                          timeoutMillis;
     public           final int                           priority;
@@ -68,15 +75,35 @@ public class DNSServerAgent {
         timeoutMillis    = _timeoutMillis;
         priority         = _priority;
         name             = _name;
+        serverAddress    = _serverAddress;
 
         udpChannel = new DNSUDPChannel( query, this, nio, executor, _serverAddress );
         tcpChannel = new DNSTCPChannel( query, this, nio, executor, _serverAddress );
     }
 
+
+    /**
+     * Send the given query message to our DNS server via the given transport, and start the timeout for the response.  If the resolver uses EDNS(0), and our DNS server isn't
+     * known not to support it, the message is sent with an OPT pseudo-record advertising the resolver's UDP payload size.  Over TCP, the OPT record also asks the server how
+     * long it would like our (persistent) connection to it kept open while idle.
+     *
+     * @param _queryMsg The query message to send.
+     * @param _transport The transport (UDP or TCP) to send it with.
+     * @return The {@link Outcome Outcome&lt;?&gt;} of the send operation.
+     */
     protected Outcome<?> sendQuery( final DNSMessage _queryMsg, final DNSTransport _transport ) {
+        int ednsBufferSize = resolver.getEDNSBufferSize();
+        DNSMessage msg;
+        if( (ednsBufferSize > 0) && nio.isEDNSSupported( serverAddress ) )
+            msg = _queryMsg.withOPT( (_transport == DNSTransport.TCP)
+                    ? new DNSOPTRecord( ednsBufferSize, List.of( new DNSOPTRecord.Option( DNSOPTRecord.TCP_KEEPALIVE_OPTION, new byte[0] ) ) )
+                    : new DNSOPTRecord( ednsBufferSize ) );
+        else
+            msg = _queryMsg.withOPT( null );
+        sentMessage = msg;
         Outcome<?> result = switch( _transport ) {
-            case UDP -> udpChannel.send( _queryMsg );
-            case TCP -> tcpChannel.send( _queryMsg );
+            case UDP -> udpChannel.send( msg );
+            case TCP -> tcpChannel.send( msg );
         };
         if( result.ok() ) {
             timeout = new DNSQueryTimeout( timeoutMillis, this::handleTimeout );
@@ -100,23 +127,34 @@ public class DNSServerAgent {
 
     /**
      * Handles decoding and processing received data (which may be from either a UDP channel or a TCP channel).  The given {@link ByteBuffer} must contain exactly one full
-     * message, without the TCP length prefix
+     * message, without the TCP length prefix, in a buffer from the {@link DNSBufferPool}; it is released once the message has been decoded.  A message whose question doesn't
+     * match the query we sent is a stray (or spoofed) response; it is logged and otherwise ignored, and we keep waiting for the real response (or a timeout).
      *
-     * @param _receivedData
-     * @param _transport
+     * @param _receivedData The received message.
+     * @param _transport The transport (UDP or TCP) the message was received on.
      */
     protected void handleReceivedData( final ByteBuffer _receivedData, final DNSTransport _transport ) {
 
-        timeout.cancel();
+        Outcome<DNSMessage> messageOutcome;
+        byte[] badBytes = null;
+        try {
+            messageOutcome = DNSMessage.decode( _receivedData );
 
-        Outcome<DNSMessage> messageOutcome = DNSMessage.decode( _receivedData );
+            // if we couldn't decode it, grab the bytes for logging before we give up the buffer...
+            if( messageOutcome.notOk() ) {
+                badBytes = new byte[_receivedData.limit()];
+                _receivedData.get( 0, badBytes );
+            }
+        }
+        finally {
+            DNSBufferPool.release( _receivedData );
+        }
 
         if( messageOutcome.notOk() ) {
             close();
             query.handleProblem( "Could not decode received DNS message", null );
 
             // log the bytes we could not decode...
-            byte[] badBytes = Arrays.copyOfRange( _receivedData.array(), 0, _receivedData.limit() );
             LOGGER.log( Level.WARNING, "Cannot decode received message:\n" + Bytes.bytesToString( badBytes) );
 
             // the commented-out code below is a convenient way to debug messages that cannot be decoded...
@@ -127,6 +165,39 @@ public class DNSServerAgent {
 
         DNSMessage message = messageOutcome.info();
 
+        // make sure this is actually the response to what we asked; the transport has already matched the server and the message ID...
+        DNSMessage sent = sentMessage;
+        if( (sent != null) && !message.questions.equals( sent.questions ) ) {
+            LOGGER.log( Level.FINE, "Ignoring response that doesn't match our query:\n" + message );
+            return;
+        }
+
+        timeout.cancel();
+
+        // if our server told us how long to keep our TCP connection to it open, pass that along (the timeout is in units of 100 milliseconds)...
+        if( (_transport == DNSTransport.TCP) && (message.opt != null) ) {
+            DNSOPTRecord.Option keepalive = message.opt.getOption( DNSOPTRecord.TCP_KEEPALIVE_OPTION );
+            if( (keepalive != null) && (keepalive.data().length == 2) )
+                tcpChannel.handleKeepalive( 100L * (((0xFF & keepalive.data()[0]) << 8) | (0xFF & keepalive.data()[1])) );
+        }
+
+        // if we sent EDNS, and our server told us it didn't understand our query, or doesn't implement our EDNS version (we only use version zero, so there's nothing lower
+        // to fall back to), assume it doesn't support EDNS and try again without it...
+        boolean noEDNS     = (message.opt == null)
+                && ((message.responseCode == DNSResponseCode.FORMAT_ERROR) || (message.responseCode == DNSResponseCode.NOT_IMPLEMENTED));
+        boolean badVersion = (message.responseCode == DNSResponseCode.BADVERS);
+        if( (sent != null) && (sent.opt != null) && (noEDNS || badVersion) ) {
+
+            LOGGER.log( Level.FINE, "DNS server " + name + " doesn't support EDNS; retrying without it" );
+            nio.setEDNSUnsupported( serverAddress );
+            Outcome<?> sendOutcome = sendQuery( sent.withOPT( null ), _transport );
+            if( sendOutcome.notOk() ) {
+                close();
+                query.handleProblem( "Could not resend query without EDNS: " + sendOutcome.msg(), sendOutcome.cause() );
+            }
+            return;
+        }
+
         query.handleResponse( message, _transport );
     }
 }
@@ -0,0 +1,389 @@
+package com.dilatush.dns.query;
+
+import com.dilatush.dns.misc.DNSBufferPool;
+import com.dilatush.dns.misc.DNSResolverError;
+import com.dilatush.dns.misc.DNSResolverException;
+import com.dilatush.util.Checks;
+import com.dilatush.util.Outcome;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.dilatush.util.General.getLogger;
+import static java.nio.channels.SelectionKey.*;
+
+
+/**
+ * <p>Instances of this class implement a persistent TCP connection to a specific DNS server, shared by any number of concurrent queries to that server (see RFC 7766).
+ * {@link DNSNIO} keeps one of these for each DNS server it talks to over TCP.  Each query sends through a {@link DNSTCPChannel}; this connection allocates a 16-bit message ID
+ * that isn't already in flight on it (see {@link DNSMessageIDAllocator}), puts that ID into the encoded message, and registers the channel under it.  Queries are pipelined:
+ * any number of them may be sent without waiting for responses, and the server may answer them in any order.  Each received message is routed to the {@link DNSTCPChannel}
+ * registered under its ID; messages whose ID isn't registered are dropped.</p>
+ * <p>The connection is opened lazily, by the first send, and stays open while it has queries in flight.  Once it has none, it is closed after an idle time: ten seconds by
+ * default, or whatever the server asked for with the EDNS TCP keepalive option (RFC 7828).  The next send after that transparently opens a new connection.  If the connection
+ * has an I/O error, or the server closes it, every query in flight on it is failed.</p>
+ */
+public class DNSTCPConnection extends DNSChannel {
+
+    private static final Logger LOGGER            = getLogger();
+
+    private static final long   DEFAULT_IDLE_MILLIS = 10_000;    // how long we keep an idle connection open, unless the server tells us otherwise...
+    private static final long   MAX_IDLE_MILLIS     = 120_000;   // the longest we'll keep an idle connection open, no matter what the server tells us...
+
+    private static final Outcome.Forge<Integer> sendOutcome = new Outcome.Forge<>();
+
+    private final    Map<Integer,DNSTCPChannel> pending;        // the channels with queries in flight on this connection, by 16-bit message ID...
+    private final    DNSMessageIDAllocator      ids;            // the allocator for the message IDs in flight on this connection...
+    private volatile SocketChannel              tcpChannel;     // the socket channel for our TCP communications, or null if we've never opened one...
+    private volatile long                       idleMillis;     // how long to keep this connection open once it has no queries in flight...
+    private          DNSQueryTimeout            idleTimeout;    // the timeout that will close this connection if it stays idle, or null if none...
+
+    // these are used only by our reactor's IO Runner thread...
+    private final    ByteBuffer                 prefix = ByteBuffer.allocate( 2 );  // the TCP prefix is always two bytes long...
+    private          ByteBuffer                 inboundMessage;                      // the buffer for the incoming message, or null if we're still reading its prefix...
+
+
+    /**
+     * Creates a new instance of this class with the given parameters.  Note that creating an instance does not actually open the connection; that happens on the first send.
+     *
+     * @param _nio The {@link DNSNIO} for this connection to use for network I/O.
+     * @param _serverAddress The IP address and port for this connection to connect to.
+     */
+    protected DNSTCPConnection( final DNSNIO _nio, final InetSocketAddress _serverAddress ) {
+        super( _nio, _serverAddress );
+
+        pending    = new ConcurrentHashMap<>();
+        ids        = new DNSMessageIDAllocator();
+        idleMillis = DEFAULT_IDLE_MILLIS;
+    }
+
+
+    /**
+     * Send the given encoded message (without the TCP length prefix) for the given {@link DNSTCPChannel}, allocating a 16-bit message ID for it and registering the channel to
+     * receive the response with that ID.  The ID in the encoded message is overwritten with the allocated ID.  The message is sent asynchronously; this method will return
+     * immediately.  If the outcome is ok, its info is the allocated ID.  Fails (without a cause) if all 65,536 IDs are in flight on this connection.  The message is copied, so
+     * the caller still owns the given buffer.
+     *
+     * @param _channel The {@link DNSTCPChannel} sending the message.
+     * @param _encodedMsg The encoded message to send.
+     * @return The {@link Outcome Outcome&lt;Integer&gt;} of the send operation, with the allocated message ID if ok.
+     */
+    protected synchronized Outcome<Integer> send( final DNSTCPChannel _channel, final ByteBuffer _encodedMsg ) {
+
+        Checks.required( _channel, _encodedMsg );
+
+        // allocate an ID, or fail if they're all in use...
+        int id = ids.allocate();
+        if( id < 0 )
+            return sendOutcome.notOk( "Every message ID is in flight on this connection" );
+        pending.put( id, _channel );
+
+        // we're not idle any more...
+        if( idleTimeout != null ) {
+            idleTimeout.cancel();
+            idleTimeout = null;
+        }
+
+        // prepend the TCP length field (a two byte length prefix specified by the DNS RFCs), and put our ID into the message...
+        // when this completes, the "data" ByteBuffer contains the entire encoded message, including the length prefix...
+        if( _encodedMsg.position() != 0 )
+            _encodedMsg.flip();
+        ByteBuffer data = DNSBufferPool.acquire( 2 + _encodedMsg.limit() );
+        data.putShort( (short) _encodedMsg.limit() );
+        data.put( _encodedMsg.duplicate() );
+        data.flip();
+        data.putShort( 2, (short) id );
+
+        try {
+
+            // add the encoded message to our send queue...
+            sendData.addFirst( data );
+
+            // if we don't have an open connection, start opening one; the message will be written once it's connected...
+            SocketChannel channel = tcpChannel;
+            if( (channel == null) || !channel.isOpen() )
+                open();
+
+            // if we're already connected, make sure our write interest is set...
+            // if we're still connecting, finishConnect() will set it...
+            else if( channel.isConnected() )
+                nio.register( this, channel, OP_WRITE | OP_READ );
+        }
+
+        // if we had a problem opening the connection, release the ID and fail the send...
+        catch( IOException _e ) {
+            sendData.remove( data );
+            DNSBufferPool.release( data );
+            release( id, _channel );
+            return sendOutcome.notOk(
+                    "Could not send message via TCP: " + _e.getMessage(),
+                    new DNSResolverException( "Could not send message via TCP", _e, DNSResolverError.NETWORK )
+            );
+        }
+
+        // if we make it here, then everything was hunky-dory...
+        return sendOutcome.ok( id );
+    }
+
+
+    /**
+     * Release the given 16-bit message ID, if it is held by the given {@link DNSTCPChannel}.  Any response with that ID that is received after this call is dropped.  If this
+     * leaves the connection with no queries in flight, the idle timeout is started.
+     *
+     * @param _id The 16-bit message ID to release.
+     * @param _channel The {@link DNSTCPChannel} that holds the ID.
+     */
+    protected void release( final int _id, final DNSTCPChannel _channel ) {
+
+        if( pending.remove( _id, _channel ) ) {
+            ids.release( _id );
+            if( pending.isEmpty() )
+                startIdleTimeout();
+        }
+    }
+
+
+    /**
+     * Called when the DNS server has told us (with the EDNS TCP keepalive option) how long it would like us to keep this connection open while it is idle.
+     *
+     * @param _idleMillis The idle time (in milliseconds) requested by the server.
+     */
+    protected void setIdleMillis( final long _idleMillis ) {
+        idleMillis = Math.max( 0, Math.min( MAX_IDLE_MILLIS, _idleMillis ) );
+    }
+
+
+    /**
+     * Start the timeout that closes this connection if it stays idle, if it is open and has no queries in flight.
+     */
+    private synchronized void startIdleTimeout() {
+
+        SocketChannel channel = tcpChannel;
+        if( (idleTimeout != null) || !pending.isEmpty() || (channel == null) || !channel.isOpen() )
+            return;
+
+        idleTimeout = new DNSQueryTimeout( idleMillis, this::handleIdleTimeout );
+        nio.addTimeout( idleTimeout, this );
+    }
+
+
+    /**
+     * Called (in our reactor's <i>IO Runner</i> thread) when the idle timeout expires.  Closes this connection, unless a query was sent on it in the meantime.
+     */
+    private synchronized void handleIdleTimeout() {
+
+        if( !pending.isEmpty() )
+            return;
+
+        LOGGER.log( Level.FINE, "Closing idle TCP connection to " + serverAddress );
+        idleTimeout = null;
+        close();
+    }
+
+
+    /**
+     * Open a new connection to our DNS server.  This just initiates the connection; {@link #finishConnect()} completes it.
+     *
+     * @throws IOException on any I/O problem.
+     */
+    private void open() throws IOException {
+
+        SocketChannel channel = SocketChannel.open();    // despite the method name, this call actually creates the SocketChannel instance...
+        try {
+            channel.configureBlocking( false );          // this is the entire point of using NIO...
+            channel.bind( null );                        // bind to an automatically selected address (only matters if the host has multiple network interfaces)...
+            tcpChannel = channel;
+            if( channel.connect( serverAddress ) )       // this just initiates the connection; doesn't necessarily complete it...
+                nio.register( this, channel, OP_WRITE | OP_READ );
+            else
+                nio.register( this, channel, OP_CONNECT );
+        }
+        catch( IOException _e ) {
+            channel.close();
+            throw _e;
+        }
+    }
+
+
+    /**
+     * Finish connecting to our DNS server, and once connected, set our interest in reading and writing.  This method is called from {@link DNSNIO}'s <i>IO Runner</i> thread
+     * when the connection is ready to be completed, and should never be called from anywhere else.  This method must be carefully coded so that it cannot throw any uncaught
+     * exceptions that would terminate the I/O loop thread.
+     */
+    protected void finishConnect() {
+
+        SocketChannel channel = tcpChannel;
+        if( channel == null )
+            return;
+
+        try {
+            if( channel.finishConnect() )
+                nio.register( this, channel, OP_WRITE | OP_READ );
+        }
+
+        // if we couldn't connect, fail all the queries waiting on this connection...
+        catch( IOException _e ) {
+            fail( "Could not connect by TCP: ", _e );
+        }
+    }
+
+
+    /**
+     * Write data from the send buffer to the network, addressed to this connection's server address.  This method is called from {@link DNSNIO}'s <i>IO Runner</i> thread, and
+     * should never be called from anywhere else.  The work done in this method should be minimal and constrained, as it's being executed in the I/O loop.  This method must be
+     * carefully coded so that it cannot throw any uncaught exceptions that would terminate the I/O loop thread.
+     */
+    @Override
+    protected void write() {
+
+        SocketChannel channel = tcpChannel;
+        if( (channel == null) || !channel.isConnected() )
+            return;
+
+        try {
+
+            // write for so long as we have data to write, and the network will take it...
+            ByteBuffer buffer;
+            while( (buffer = sendData.peekLast()) != null ) {
+
+                channel.write( buffer );               // write as much of the data as we can...
+                if( buffer.hasRemaining() )            // if we couldn't write all of it, we'll finish when the socket is writable again...
+                    return;
+                sendData.pollLast();                   // we've written this message, so on to the next one...
+                DNSBufferPool.release( buffer );
+            }
+
+            // there's no more data in the send queue, so de-register our write interest...
+            nio.register( this, channel, OP_READ );
+
+            // if another thread queued data while we were de-registering, put our write interest back...
+            if( sendData.peekLast() != null )
+                nio.register( this, channel, OP_WRITE | OP_READ );
+        }
+
+        // naught to do here; this happens only if the connection was closed out from under us...
+        catch( ClosedChannelException _e ) {
+            // this is here to make the IDE happy; it doesn't like empty catch clauses...
+        }
+
+        // if something went wrong with the writing, then we need to close the connection and fail its queries...
+        catch( IOException _e ) {
+            fail( "Error sending message by TCP: ", _e );
+        }
+    }
+
+
+    /**
+     * Read data from the server this connection is connected to, routing each received message to the {@link DNSTCPChannel} registered for its ID.  This method is called from
+     * {@link DNSNIO}'s <i>IO Runner</i> thread, and should never be called from anywhere else.  The work done in this method should be minimal and constrained, as it's being
+     * executed in the I/O loop; message decoding and handling must be done in another thread.  This method must be carefully coded so that it cannot throw any uncaught
+     * exceptions that would terminate the I/O loop thread.
+     */
+    @Override
+    protected void read() {
+
+        SocketChannel channel = tcpChannel;
+        if( channel == null )
+            return;
+
+        try {
+
+            // read messages until there's no more data waiting for us...
+            while( true ) {
+
+                // if we haven't yet read the two-byte length prefix, try to do so now...
+                if( prefix.hasRemaining() ) {
+                    if( channel.read( prefix ) < 0 )
+                        throw new EOFException( "DNS server closed the TCP connection" );
+                    if( prefix.hasRemaining() )      // if we couldn't read both bytes, we'll try again when there's more data...
+                        return;
+                }
+
+                // if we haven't yet got the buffer for the message, do so now, using the length in the prefix...
+                if( inboundMessage == null ) {
+                    int length = prefix.getShort( 0 ) & 0xFFFF;
+                    inboundMessage = DNSBufferPool.acquire( length );
+                    inboundMessage.limit( length );
+                }
+
+                // read as much of the message as we can...
+                if( channel.read( inboundMessage ) < 0 )
+                    throw new EOFException( "DNS server closed the TCP connection" );
+                if( inboundMessage.hasRemaining() )  // if we couldn't read all of it, we'll try again when there's more data...
+                    return;
+
+                // we've got the entire message, so get ready for the next one...
+                ByteBuffer msg = inboundMessage;
+                msg.flip();
+                inboundMessage = null;
+                prefix.clear();
+
+                // find the channel waiting for this ID; if there isn't one, this is a response to a query that's been abandoned, and we just drop it...
+                int id = (msg.limit() < 2) ? -1 : (0xFFFF & msg.getShort( 0 ));
+                DNSTCPChannel dnsChannel = pending.get( id );
+                if( dnsChannel == null ) {
+                    LOGGER.log( Level.FINE, "Dropping TCP message with unknown ID " + id + " from " + serverAddress );
+                    DNSBufferPool.release( msg );
+                    continue;
+                }
+
+                // send it off for decoding and handling (which will release the buffer)...
+                dnsChannel.handleReceivedData( msg );
+            }
+        }
+
+        // if something went wrong while reading (including the server closing the connection), close the connection and fail its queries...
+        catch( IOException _e ) {
+            fail( "Error receiving message by TCP: ", _e );
+        }
+    }
+
+
+    /**
+     * Close this connection and fail all the queries that are in flight on it.
+     *
+     * @param _msg The message describing the failure.
+     * @param _e The exception that caused the failure.
+     */
+    private synchronized void fail( final String _msg, final IOException _e ) {
+
+        close();
+        ByteBuffer buffer;
+        while( (buffer = sendData.poll()) != null )
+            DNSBufferPool.release( buffer );
+        pending.forEach( (id, channel) -> {
+            release( id, channel );
+            channel.handleProblem( _msg, _e );
+        } );
+    }
+
+
+    /**
+     * Close this connection.  A new one will be opened by the next send.
+     */
+    @Override
+    protected synchronized void close() {
+
+        try {
+            SocketChannel channel = tcpChannel;
+            if( (channel != null) && channel.isOpen() )
+                channel.close();
+        }
+        catch( IOException _e ) {
+            LOGGER.log( Level.WARNING, "Exception when closing TCP channel", _e );
+        }
+
+        // get ready to read the first message on the next connection...
+        prefix.clear();
+        DNSBufferPool.release( inboundMessage );
+        inboundMessage = null;
+    }
+}
@@ -1,46 +1,40 @@
 package com.dilatush.dns.query;
 
-import com.dilatush.dns.DNSResolver;
+import com.dilatush.dns.misc.DNSBufferPool;
 import com.dilatush.dns.misc.DNSResolverError;
 import com.dilatush.dns.misc.DNSResolverException;
 import com.dilatush.dns.message.DNSMessage;
+import com.dilatush.dns.message.DNSOPTRecord;
 import com.dilatush.util.Checks;
 import com.dilatush.util.ExecutorService;
 import com.dilatush.util.Outcome;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
-import java.nio.channels.DatagramChannel;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-import static com.dilatush.util.General.getLogger;
-import static java.nio.channels.SelectionKey.OP_READ;
-import static java.nio.channels.SelectionKey.OP_WRITE;
+import java.util.concurrent.ThreadLocalRandom;
 
 
 /**
- * Instances of this class implement a UDP transport channel to communicate with a specific DNS server.  The lifetime of an instance is intended to be a single query and response,
- * or a single transmitted UDP packet, followed by a single received UDP packet.  This might seem odd to anyone experienced with network communications, but if follows directly
- * from these things:
- * <ol>
- *     <li>Since DNS queries/responses normally start off with UDP communications, there is no "connection" as there is with TCP.  Establishing a UDP NIO channel is quite a
- *     lightweight operation, so there is little benefit to keeping the {@link DatagramChannel} and its associated {@link DatagramSocket} in memory, or in the complexity of
- *     the code required to manage such a persistent object.</li>
- *     <li>When the {@link DNSResolver} is operating in recursive mode, which the author expects to be the more common case, then there will be relatively few DNS queries being
- *     made to the same DNS server - and thus a persistent object would be useless by definition.</li>
- * </ol>
- * <p>Note that instances of this class will not create any networking objects until the {@link #send(DNSMessage)} method is called.  This "lazy initialization" ensures that
- * creating an instance of this class is as lightweight as possible.</p>
+ * <p>Instances of this class implement a UDP transport channel to communicate with a specific DNS server.  The lifetime of an instance is intended to be a single query and
+ * response, or a single transmitted UDP packet, followed by a single received UDP packet.  Instances of this class do no network I/O themselves; they send through one of the
+ * long-lived {@link DNSUDPSocket}s that {@link DNSNIO} pools for each DNS server, and that socket routes responses back to the instance that sent the query with the same ID.
+ * Note that the socket assigns the message ID that is actually sent, so it generally differs from the ID in the {@link DNSMessage} given to {@link #send(DNSMessage)}.</p>
+ * <p>Note that instances of this class will not claim a socket until the {@link #send(DNSMessage)} method is called.  This "lazy initialization" ensures that creating an
+ * instance of this class is as lightweight as possible.</p>
  */
-public class DNSUDPChannel extends DNSChannel {
+public class DNSUDPChannel {
+
+    private static final Outcome.Forge<?> outcome = new Outcome.Forge<>();
 
-    private static final Logger LOGGER = getLogger();
+    private final DNSQuery          query;          // the query that owns the agent that owns this channel...
+    private final DNSServerAgent    agent;          // the agent that owns this channel...
+    private final DNSNIO            nio;            // the NIO for this channel to use...
+    private final ExecutorService   executor;       // the executor for this channel to use...
+    private final InetSocketAddress serverAddress;  // the IP and port for this channel to send to...
 
-    private DatagramChannel udpChannel;  // the DatagramChannel that implements the UDP communications for this instance...
+    private       DNSUDPSocket      socket;         // the socket our query is in flight on, or null if none...
+    private       int               id;             // the 16-bit message ID our query is in flight with (assigned by the socket)...
 
 
     /**
@@ -50,151 +44,95 @@ public class DNSUDPChannel extends DNSChannel {
      * @param _agent The agent that owns this channel.
      * @param _nio The {@link DNSNIO} for this channel to use for network I/O.
      * @param _executor The {@link ExecutorService} for this channel to use.
-     * @param _serverAddress The IP address and port for this channel to connect to.
+     * @param _serverAddress The IP address and port for this channel to send to.
      */
     public DNSUDPChannel( final DNSQuery _query, final DNSServerAgent _agent, final DNSNIO _nio, final ExecutorService _executor, final InetSocketAddress _serverAddress ) {
-        super( _query, _agent, _nio, _executor, _serverAddress );
+
+        Checks.required( _query, _agent, _nio, _executor, _serverAddress );
+
+        query         = _query;
+        agent         = _agent;
+        nio           = _nio;
+        executor      = _executor;
+        serverAddress = _serverAddress;
     }
 
 
     /**
-     * Send the given {@link DNSMessage} via this channel.  The message is sent asynchronously; this method will return immediately.  Note that this method is not synchronized,
-     * but because there is a separate instance of this class per query, it doesn't need to be.
+     * Send the given {@link DNSMessage} via this channel.  The message is sent asynchronously; this method will return immediately.  The message is sent on one of the pooled
+     * sockets for this channel's server, with a message ID allocated by that socket.
      *
      * @param _msg The {@link DNSMessage} to send.
      * @return The {@link Outcome Outcome&lt;?&gt;} of the send operation.
      */
-    @Override
     protected synchronized Outcome<?> send( final DNSMessage _msg ) {
 
         Checks.required( _msg );
 
+        // if we already have a query in flight, we're done with it...
+        close();
+
         // encode (serialize) our message into a new byte buffer...
         Outcome<ByteBuffer> emo = _msg.encode();
         if( emo.notOk() )
             return outcome.notOk( "Could not encode message: " + emo.msg(), emo.cause() );
 
-        // push the encoded message into the send data queue...
-        boolean wasEmpty = (sendData.peekLast() == null);
-        sendData.addFirst( emo.info() );
-
-        // if we just added the first data, open the UDP socket, bind, connect, and set write interest on...
-        // note that because the lifetime of an instance of this class is a single query, this should ALWAYS be true...
-        if( wasEmpty ) {
-
-            try {
-                udpChannel = DatagramChannel.open();                      // this actually creates the socket and channel...
-                udpChannel.configureBlocking( false );                    // this is the entire point of using NIO!
-                udpChannel.bind( null );                                  // we don't care what interface will be used...
-                udpChannel.connect( serverAddress );                      // there's no actual connection with UDP; this just constrains this channel to the given server...
-                nio.register( this, udpChannel, OP_WRITE | OP_READ );     // this tells NIO that we want to read and write to this channel...
-            }
-
-            // if we had a problem initializing the UDP channel, close the channel and fail the query...
-            catch( IOException _e ) {
-                close();
-                return outcome.notOk(
-                        "Could not send message via UDP: " + _e.getMessage(),
-                        new DNSResolverException( "Could not send message via UDP", _e, DNSResolverError.NETWORK )
-                );
+        // if we're using EDNS, the server may send us a response as big as the UDP payload size we advertised...
+        int maxResponseSize = (_msg.opt != null) ? _msg.opt.udpPayloadSize : DNSOPTRecord.MIN_UDP_PAYLOAD_SIZE;
+
+        // pick one of the pooled sockets for our server at random, and send on it; it will give our message a fresh ID...
+        // we only need to try another socket if this one has every possible ID in flight...
+        DNSUDPSocket[] sockets = nio.getUDPSockets( serverAddress );
+        int start = ThreadLocalRandom.current().nextInt( sockets.length );
+        Outcome<Integer> sendOutcome = null;
+        for( int i = 0; i < sockets.length; i++ ) {
+
+            DNSUDPSocket candidate = sockets[(start + i) % sockets.length];
+            sendOutcome = candidate.send( this, emo.info(), maxResponseSize );
+            if( sendOutcome.ok() ) {
+                socket = candidate;
+                id     = sendOutcome.info();
+                return outcome.ok();
             }
+            if( sendOutcome.cause() != null )
+                break;  // a real problem, not just a busy socket...
         }
 
-        // if we make it here, then everything was hunky-dory...
-        return outcome.ok();
+        // none of our sockets took the message, so we still own its buffer...
+        DNSBufferPool.release( emo.info() );
+        return outcome.notOk( sendOutcome.msg(), sendOutcome.cause() );
     }
 
 
     /**
-     * Write data from the send buffer to the network, addressed to this channel's server address.  This method is called from {@link DNSNIO}'s <i>IO Runner</i> thread, and should
-     * never be called from anywhere else.  The work done in this method should be minimal and constrained, as it's being executed in the I/O loop.  This method must be carefully
-     * coded so that it cannot throw any uncaught exceptions that would terminate the I/O loop thread.
+     * Called by our {@link DNSUDPSocket} (in the <i>IO Runner</i> thread) when it has received a message with the ID of our query.  Sends the data off for decoding and handling.
+     *
+     * @param _readData The received message, in a buffer from the {@link DNSBufferPool} that is released once the message has been decoded.
      */
-    @Override
-    protected void write() {
-
-        // get the next packet of data to send (null if there was none)...
-        ByteBuffer buffer = sendData.pollLast();
-
-        // if we had some data to send, then send it...
-        if( buffer != null ) {
-
-            try {
-                udpChannel.write( buffer );  // we ignore the number of bytes written, as it will always be the entire UDP message in a single packet...
-            }
-
-            // we had some I/O problem (unlikely with UDP, but possible, and not recoverable), so close the channel and fail the query...
-            catch( IOException _e ) {
-                close();
-                executor.submit( new Wrapper( () -> query.handleProblem(
-                        "Error sending message by UDP: ",
-                        new DNSResolverException( _e.getMessage(), _e, DNSResolverError.NETWORK ) )
-                ) );
-                return;
-            }
-        }
-
-        // if there's no more data in the send queue, de-register our write interest...
-        if( sendData.peekLast() == null ) {
-
-            try {
-                nio.register( this, udpChannel, OP_READ );
-            }
-
-            // naught to do here; it's safe to ignore this...
-            catch( ClosedChannelException _e ) {
-                // this is here to make the IDE happy; it doesn't like empty catch clauses...
-            }
-        }
+    protected void handleReceivedData( final ByteBuffer _readData ) {
+        executor.submit( new DNSChannel.Wrapper( () -> agent.handleReceivedData( _readData, DNSTransport.UDP ) ) );
     }
 
 
     /**
-     * Read data from the server this channel is addressed to, into the read buffer.  This method is called from {@link DNSNIO}'s <i>IO Runner</i> thread, and should
-     * never be called from anywhere else.  The work done in this method should be minimal and constrained, as it's being executed in the I/O loop; message decoding and handling
-     * must be done in another thread.  This method must be carefully coded so that it cannot throw any uncaught exceptions that would terminate the I/O loop thread.
+     * Called by our {@link DNSUDPSocket} (in the <i>IO Runner</i> thread) when it has had an I/O problem, and our query has therefore failed.
+     *
+     * @param _msg The message describing the problem.
+     * @param _e The exception that caused the problem.
      */
-    @Override
-    protected void read() {
-
-        try {
-
-            // allocate a buffer that can hold the largest allowable UDP message (512 bytes)...
-            ByteBuffer readData = ByteBuffer.allocate( 512 );
-
-            // try to read some data, and just leave if we didn't read anything at all...
-            if( udpChannel.read( readData ) == 0 )
-                return;
-
-            // if we did read any data at all, then we got the entire message, as it's in a single packet by definition...
-            // so we prepare the data and send it off for decoding and handling...
-            readData.flip();
-            executor.submit( new Wrapper( () -> agent.handleReceivedData( readData, DNSTransport.UDP ) ) );
-        }
-
-        // if something went wrong while reading, close the channel and fail the query...
-        catch( IOException _e ) {
-            close();
-            executor.submit( new Wrapper( () -> query.handleProblem(
-                    "Error receiving message by UDP: ",
-                    new DNSResolverException( _e.getMessage(), _e, DNSResolverError.NETWORK ) )
-            ) );
-        }
+    protected void handleProblem( final String _msg, final IOException _e ) {
+        executor.submit( new DNSChannel.Wrapper( () -> query.handleProblem( _msg, new DNSResolverException( _e.getMessage(), _e, DNSResolverError.NETWORK ) ) ) );
     }
 
 
     /**
-     * Close this channel.
+     * Close this channel, releasing its query's ID on the socket it was sent on.  The socket itself stays open for other queries.
      */
-    @Override
-    protected void close() {
+    protected synchronized void close() {
 
-        try {
-            if( udpChannel != null )
-                udpChannel.close();
-        }
-        catch( IOException _e ) {
-            LOGGER.log( Level.WARNING, "Exception when closing UDP channel", _e );
+        if( socket != null ) {
+            socket.release( id, this );
+            socket = null;
         }
     }
 }
@@ -0,0 +1,341 @@
+package com.dilatush.dns.query;
+
+import com.dilatush.dns.message.DNSOPTRecord;
+import com.dilatush.dns.misc.DNSBufferPool;
+import com.dilatush.dns.misc.DNSResolverError;
+import com.dilatush.dns.misc.DNSResolverException;
+import com.dilatush.util.Checks;
+import com.dilatush.util.Outcome;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.dilatush.util.General.getLogger;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+
+
+/**
+ * <p>Instances of this class implement a long-lived UDP socket connected to a specific DNS server, shared by any number of concurrent queries to that server.  {@link DNSNIO}
+ * keeps a small pool of these for each DNS server it talks to.  Each query sends through a {@link DNSUDPChannel}; this socket allocates a random 16-bit message ID that isn't
+ * already in flight on it (see {@link DNSMessageIDAllocator}), puts that ID into the encoded message, and registers the channel under it.  Received messages are routed to the
+ * {@link DNSUDPChannel} registered under the received message's ID.  Received messages whose ID isn't registered are stray (or spoofed) responses, and are dropped.  Together
+ * with the question check, this matches every response on (server, ID, question): the question in a routed response is checked against the query's
+ * question by {@link DNSServerAgent} before the response is accepted, so a response for a different question that happens to carry the same ID can't complete a query.</p>
+ * <p>Each socket is bound to a randomly chosen local port, and because it is connected to the DNS server, the operating system discards any datagrams from other sources.  An
+ * I/O error affects only the queries it must: if a message can't be sent, only the query that sent it fails; if there's an error receiving, the socket is closed and reopened
+ * (on a new random port), and the queries in flight on it stay registered, each to get its response (if the server was slow) or to time out and retry on its own schedule.  A
+ * single ICMP port-unreachable, say, thus never fails every query sharing the socket.</p>
+ */
+public class DNSUDPSocket extends DNSChannel {
+
+    private static final Logger       LOGGER         = getLogger();
+
+    private static final SecureRandom random         = new SecureRandom();
+    private static final int          MIN_PORT       = 1024;    // the lowest port number we'll bind to...
+    private static final int          BIND_ATTEMPTS  = 10;      // the number of random ports we'll try to bind to before letting the OS choose...
+
+    private static final Outcome.Forge<Integer> sendOutcome = new Outcome.Forge<>();
+
+    private final    Map<Integer,DNSUDPChannel> pending;        // the channels with queries in flight on this socket, by 16-bit message ID...
+    private final    DNSMessageIDAllocator      ids;            // the allocator for the message IDs in flight on this socket...
+    private volatile DatagramChannel            udpChannel;     // the DatagramChannel that implements the UDP communications for this instance, or null if not open...
+    private volatile int                        readSize;       // the largest UDP message we've told the server we can receive...
+
+
+    /**
+     * Creates a new instance of this class with the given parameters.  Note that creating an instance does not actually open the socket; that happens on the first send.
+     *
+     * @param _nio The {@link DNSNIO} for this socket to use for network I/O.
+     * @param _serverAddress The IP address and port for this socket to connect to.
+     */
+    protected DNSUDPSocket( final DNSNIO _nio, final InetSocketAddress _serverAddress ) {
+        super( _nio, _serverAddress );
+
+        pending  = new ConcurrentHashMap<>();
+        ids      = new DNSMessageIDAllocator();
+        readSize = DNSOPTRecord.MIN_UDP_PAYLOAD_SIZE;
+    }
+
+
+    /**
+     * Send the given encoded message for the given {@link DNSUDPChannel}, allocating a 16-bit message ID for it and registering the channel to receive responses with that ID.
+     * The ID in the encoded message is overwritten with the allocated ID.  The message is sent asynchronously; this method will return immediately.  If the outcome is ok, its
+     * info is the allocated ID, and this socket owns the given buffer (which must be from the {@link DNSBufferPool}), releasing it once it has been sent.  Otherwise, the caller
+     * still owns the buffer.  Fails if all 65,536 IDs are in flight on this socket.
+     *
+     * @param _channel The {@link DNSUDPChannel} sending the message.
+     * @param _data The encoded message to send, in a buffer from the {@link DNSBufferPool}.
+     * @param _maxResponseSize The largest UDP response (in bytes) that the message tells the server we can receive.
+     * @return The {@link Outcome Outcome&lt;Integer&gt;} of the send operation, with the allocated message ID if ok.
+     */
+    protected synchronized Outcome<Integer> send( final DNSUDPChannel _channel, final ByteBuffer _data, final int _maxResponseSize ) {
+
+        Checks.required( _channel, _data );
+
+        // make sure we can read the largest response the server might send...
+        if( _maxResponseSize > readSize )
+            readSize = _maxResponseSize;
+
+        // allocate an ID, or fail if they're all in use...
+        int id = ids.allocate();
+        if( id < 0 )
+            return sendOutcome.notOk( "Every message ID is in flight on this socket" );
+        pending.put( id, _channel );
+        _data.putShort( 0, (short) id );
+
+        try {
+
+            // if we don't have an open socket, then open one...
+            if( (udpChannel == null) || !udpChannel.isOpen() )
+                open();
+
+            // push the encoded message into the send data queue, and make sure our write interest is set...
+            sendData.addFirst( _data );
+            nio.register( this, udpChannel, OP_WRITE | OP_READ );
+        }
+
+        // if we had a problem opening the socket, release the ID and fail the send...
+        catch( IOException _e ) {
+            release( id, _channel );
+            return sendOutcome.notOk(
+                    "Could not send message via UDP: " + _e.getMessage(),
+                    new DNSResolverException( "Could not send message via UDP", _e, DNSResolverError.NETWORK )
+            );
+        }
+
+        // if we make it here, then everything was hunky-dory...
+        return sendOutcome.ok( id );
+    }
+
+
+    /**
+     * Release the given 16-bit message ID, if it is held by the given {@link DNSUDPChannel}.  Any responses with that ID that are received after this call are dropped.
+     *
+     * @param _id The 16-bit message ID to release.
+     * @param _channel The {@link DNSUDPChannel} that holds the ID.
+     */
+    protected void release( final int _id, final DNSUDPChannel _channel ) {
+        if( pending.remove( _id, _channel ) )
+            ids.release( _id );
+    }
+
+
+    /**
+     * Open the UDP socket, bind it to a random local port, and connect it to our DNS server.  If none of the random ports we try is available, we let the operating system
+     * choose the port.
+     *
+     * @throws IOException on any I/O problem.
+     */
+    private void open() throws IOException {
+
+        DatagramChannel channel = DatagramChannel.open();                 // this actually creates the socket and channel...
+        try {
+            channel.configureBlocking( false );                           // this is the entire point of using NIO!
+
+            // try binding to random ports, in case the one we picked is in use...
+            boolean bound = false;
+            for( int attempt = 0; !bound && (attempt < BIND_ATTEMPTS); attempt++ ) {
+                try {
+                    channel.bind( new InetSocketAddress( MIN_PORT + random.nextInt( 65536 - MIN_PORT ) ) );
+                    bound = true;
+                }
+                catch( IOException _e ) {
+                    // the port we tried is in use; try another one...
+                }
+            }
+            if( !bound )
+                channel.bind( null );                                     // we'll settle for whatever port the OS gives us...
+
+            channel.connect( serverAddress );                             // there's no actual connection with UDP; this just constrains this channel to the given server...
+        }
+        catch( IOException _e ) {
+            channel.close();
+            throw _e;
+        }
+        udpChannel = channel;
+    }
+
+
+    /**
+     * Write data from the send buffer to the network, addressed to this socket's server address.  This method is called from {@link DNSNIO}'s <i>IO Runner</i> thread, and should
+     * never be called from anywhere else.  The work done in this method should be minimal and constrained, as it's being executed in the I/O loop.  This method must be carefully
+     * coded so that it cannot throw any uncaught exceptions that would terminate the I/O loop thread.
+     */
+    @Override
+    protected void write() {
+
+        DatagramChannel channel = udpChannel;
+        if( channel == null )
+            return;
+
+        try {
+
+            // send everything we've got, one message per packet...
+            ByteBuffer buffer;
+            while( (buffer = sendData.pollLast()) != null ) {
+                int id = 0xFFFF & buffer.getShort( 0 );
+                try {
+                    channel.write( buffer );  // we ignore the number of bytes written, as it will always be the entire UDP message in a single packet...
+                }
+
+                // if this message couldn't be sent, its query fails, but the socket (and every other query in flight on it) carries on...
+                catch( IOException _e ) {
+                    if( _e instanceof ClosedChannelException )
+                        throw _e;
+                    failQuery( id, "Error sending message by UDP: ", _e );
+                }
+
+                // whether or not it was sent, the buffer goes back to the pool...
+                finally {
+                    DNSBufferPool.release( buffer );
+                }
+            }
+
+            // there's no more data in the send queue, so de-register our write interest...
+            nio.register( this, channel, OP_READ );
+
+            // if another thread queued data while we were de-registering, put our write interest back...
+            if( sendData.peekLast() != null )
+                nio.register( this, channel, OP_WRITE | OP_READ );
+        }
+
+        // naught to do here; this happens only if the socket was closed out from under us (its queries will time out, or be re-sent on the reopened socket)...
+        catch( ClosedChannelException _e ) {
+            // this is here to make the IDE happy; it doesn't like empty catch clauses...
+        }
+
+        // we couldn't change our write interest, so the socket is broken; reopen it...
+        catch( IOException _e ) {
+            reopen( "Error sending message by UDP: ", _e );
+        }
+    }
+
+
+    /**
+     * Read data from the server this socket is connected to, routing each received message to the {@link DNSUDPChannel} registered for its ID.  This method is called from
+     * {@link DNSNIO}'s <i>IO Runner</i> thread, and should never be called from anywhere else.  The work done in this method should be minimal and constrained, as it's being
+     * executed in the I/O loop; message decoding and handling must be done in another thread.  This method must be carefully coded so that it cannot throw any uncaught exceptions
+     * that would terminate the I/O loop thread.
+     */
+    @Override
+    protected void read() {
+
+        DatagramChannel channel = udpChannel;
+        if( channel == null )
+            return;
+
+        try {
+
+            // read until there are no more packets waiting for us...
+            while( true ) {
+
+                // get a buffer that can hold the largest UDP message we've told the server we can receive...
+                ByteBuffer readData = DNSBufferPool.acquire( readSize );
+
+                // try to read some data, and just leave if we didn't read anything at all...
+                int bytesRead;
+                try {
+                    bytesRead = channel.read( readData );
+                }
+                catch( IOException _e ) {
+                    DNSBufferPool.release( readData );
+                    throw _e;
+                }
+                if( bytesRead == 0 ) {
+                    DNSBufferPool.release( readData );
+                    return;
+                }
+
+                // if we did read any data at all, then we got the entire message, as it's in a single packet by definition...
+                readData.flip();
+
+                // if it's too short to even have an ID, it's garbage...
+                if( readData.limit() < 2 ) {
+                    DNSBufferPool.release( readData );
+                    continue;
+                }
+
+                // find the channel waiting for this ID; if there isn't one, this is a stray (or spoofed) response, and we just drop it...
+                int id = 0xFFFF & readData.getShort( 0 );
+                DNSUDPChannel dnsChannel = pending.get( id );
+                if( dnsChannel == null ) {
+                    LOGGER.log( Level.FINE, "Dropping UDP message with unknown ID " + id + " from " + serverAddress );
+                    DNSBufferPool.release( readData );
+                    continue;
+                }
+
+                // send it off for decoding and handling (which will release the buffer)...
+                dnsChannel.handleReceivedData( readData );
+            }
+        }
+
+        // if something went wrong while reading, reopen the socket; the queries in flight on it stay registered...
+        catch( IOException _e ) {
+            reopen( "Error receiving message by UDP: ", _e );
+        }
+    }
+
+
+    /**
+     * Fail the query in flight on this socket with the given message ID, if there is one, releasing its ID.  No other query on this socket is affected.
+     *
+     * @param _id The 16-bit message ID of the query to fail.
+     * @param _msg The message describing the failure.
+     * @param _e The exception that caused the failure.
+     */
+    private void failQuery( final int _id, final String _msg, final IOException _e ) {
+
+        DNSUDPChannel channel = pending.get( _id );
+        if( channel == null )
+            return;
+        release( _id, channel );
+        channel.handleProblem( _msg, _e );
+    }
+
+
+    /**
+     * Close this socket and open it again (on a new random port), keeping every query in flight on it registered.  Responses to those queries that arrive at the old port are
+     * lost, so each of them either gets its response anyway (if the server hadn't yet sent it) or times out and is retried by its own query, independently of the others.  Any
+     * messages waiting to be sent are sent on the reopened socket.  If the socket can't be reopened, it stays closed until the next send tries again.
+     *
+     * @param _msg The message describing the problem.
+     * @param _e The exception that caused the problem.
+     */
+    private synchronized void reopen( final String _msg, final IOException _e ) {
+
+        LOGGER.log( Level.FINE, _msg + serverAddress + "; reopening socket", _e );
+        close();
+        try {
+            open();
+            nio.register( this, udpChannel, (sendData.peekLast() != null) ? (OP_WRITE | OP_READ) : OP_READ );
+        }
+        catch( IOException _reopenException ) {
+            LOGGER.log( Level.WARNING, "Could not reopen UDP socket to " + serverAddress, _reopenException );
+        }
+    }
+
+
+    /**
+     * Close this socket.  It will be reopened by the next send.
+     */
+    @Override
+    protected void close() {
+
+        try {
+            if( udpChannel != null )
+                udpChannel.close();
+        }
+        catch( IOException _e ) {
+            LOGGER.log( Level.WARNING, "Exception when closing UDP channel", _e );
+        }
+    }
+}
@@ -1,64 +1,174 @@
 package com.dilatush.dns.query;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Logger;
 
 import static com.dilatush.util.General.getLogger;
 
 /**
- * Instances of this class efficiently manage a collection of timeouts.  Methods allow for adding new timeouts and checking timeouts to see if they've
- * actually timed out.
+ * <p>Instances of this class efficiently manage a collection of timeouts.  Methods allow for adding new timeouts and checking timeouts to see if they've
+ * actually timed out.</p>
+ * <p>The timeouts are held in a hashed timing wheel: an array of slots, each of which is a doubly-linked list of the timeouts whose expiration tick maps to it.
+ * Adding and cancelling a timeout are both O(1), and cancelled timeouts are actually removed from the wheel.  Any thread may add or cancel a timeout; those
+ * requests are queued (without locking) and applied by the thread that calls {@link #check()}, which is the only thread that ever touches the wheel itself.</p>
  */
 public class Timeouts {
 
     final static private Logger LOGGER = getLogger();
 
-    // The list of active timeouts, in order of their expiration times (earlier times first)...
-    private final List<AbstractTimeout> timeouts = new ArrayList<>();
+    private static final int  TICK_MILLIS = 1;                 // the duration of one tick of the timing wheel...
+    private static final int  SLOTS       = 4096;              // the number of slots in the wheel; must be a power of two...
+    private static final int  SLOT_MASK   = SLOTS - 1;
 
+    private final AbstractTimeout[]              wheel     = new AbstractTimeout[SLOTS];     // the head of the list of timeouts in each slot...
+    private final Queue<AbstractTimeout>         added     = new ConcurrentLinkedQueue<>();  // timeouts added but not yet in the wheel...
+    private final Queue<AbstractTimeout>         cancelled = new ConcurrentLinkedQueue<>();  // timeouts cancelled but perhaps still in the wheel...
 
-    public synchronized void add( final AbstractTimeout _newTimeout ) {
+    private       long                           lastTick  = System.currentTimeMillis() / TICK_MILLIS;  // the last tick that check() has processed...
+    private       long                           nextTick  = lastTick + 1;                   // no slot for a tick after lastTick and before this holds a timeout...
+    private       int                            count;                                      // the number of timeouts in the wheel...
+
+
+    /**
+     * Add the given timeout to this collection.  This may be called from any thread; the timeout will be placed in the timing wheel by the next {@link #check()}.
+     *
+     * @param _newTimeout The timeout to add.
+     */
+    public void add( final AbstractTimeout _newTimeout ) {
 
         LOGGER.finest( "Adding timeout" );
 
-        // Walk backwards down the list, looking for a timeout expiring no later than the new timeout; we want to insert the
-        // new one right after that.  We walk backwards on the theory that if the list is large, the insertion point will be closer to the end than
-        // to the beginning of the list...
-        for( int i = timeouts.size() - 1; i >= 0; i-- ) {
+        _newTimeout.owner = this;
+        added.add( _newTimeout );
+    }
+
+
+    /**
+     * Called by a timeout managed by this instance when it has been successfully cancelled, so that it can be removed from the wheel by the next {@link #check()}.
+     *
+     * @param _timeout The timeout that was cancelled.
+     */
+    void cancelled( final AbstractTimeout _timeout ) {
+        cancelled.add( _timeout );
+    }
+
+
+    /**
+     * Check to see if any of the timeouts have expired, and if so, handle them.  This must always be called from the same thread.
+     */
+    public void check() {
+
+        LOGGER.finest( "Checking timeouts" );
 
-            // if the timeout from the list expires no later than the new timeout...
-            if( timeouts.get( i ).getExpiration() <= _newTimeout.getExpiration() ) {
+        // move any newly added timeouts into the wheel, and take any newly cancelled timeouts out of it...
+        AbstractTimeout timeout;
+        while( (timeout = added.poll()) != null ) {
+            if( !timeout.isDone() )
+                insert( timeout );
+        }
+        while( (timeout = cancelled.poll()) != null ) {
+            unlink( timeout );
+        }
 
-                // insert the new one right after it, and we're done...
-                timeouts.add( i + 1, _newTimeout );
-                return;
+        // process every tick since the last one we processed, up to and including the current tick...
+        // if more than a full revolution of the wheel has gone by, we only need to visit each slot once...
+        long nowTick = System.currentTimeMillis() / TICK_MILLIS;
+        for( long tick = Math.max( lastTick + 1, nowTick - SLOTS + 1 ); (tick <= nowTick) && (count > 0); tick++ ) {
+
+            // walk the slot's list, expiring everything that's due (the slot may also hold timeouts that are due on later revolutions of the wheel)...
+            timeout = wheel[(int)(tick & SLOT_MASK)];
+            while( timeout != null ) {
+                AbstractTimeout next = timeout.next;
+                if( timeout.deadlineTick <= nowTick ) {
+                    unlink( timeout );
+                    if( timeout.hasExpired() )
+                        LOGGER.finest( "Timeout!" );
+                }
+                timeout = next;
             }
         }
+        lastTick = nowTick;
 
-        // if the list was empty, or all the timeouts in it expire after the new one, then the new one needs to be the first in the list...
-        timeouts.add( 0, _newTimeout );
+        // we know nothing about the slots we just processed, as they now stand for ticks a whole revolution later...
+        nextTick = Math.max( nextTick, lastTick + 1 );
     }
 
 
     /**
-     * Check to see if any of the timeouts have expired, and if so, handle them.
+     * Returns the system time (as from {@link System#currentTimeMillis()}) that {@link #check()} should next be called, or -1 if there are no timeouts in the wheel.
+     * The time returned is that of the first tick with a non-empty slot, so it may be earlier than the next actual expiration (if that slot only holds timeouts due on a later
+     * revolution of the wheel, or timeouts that have been cancelled), but it is never later.  The search for that slot starts where the last one stopped (or at the earliest
+     * slot a timeout has been inserted into since), so successive calls don't walk the same empty slots again; over a revolution of the wheel, each slot is looked at about
+     * once, however often this is called.  This must be called from the same thread as {@link #check()}.
+     *
+     * @return the system time that {@link #check()} should next be called, or -1 if there are no timeouts.
      */
-    public synchronized void check() {
+    public long nextCheckTime() {
 
-        LOGGER.finest( "Checking timeouts" );
+        // if we have newly added timeouts that haven't made it into the wheel yet, we need to check right away...
+        if( !added.isEmpty() )
+            return System.currentTimeMillis();
 
-        // walk the list of timeouts until we run into one that has not expired yet...
-        int i;
-        for( i = 0; i < timeouts.size(); i++ ) {
-            if( !timeouts.get( i ).hasExpired() )
-                break;
-            LOGGER.finest( "Timeout!" );
+        if( count == 0 )
+            return -1;
+
+        for( long tick = nextTick; tick <= lastTick + SLOTS; tick++ ) {
+            if( wheel[(int)(tick & SLOT_MASK)] != null ) {
+                nextTick = tick;
+                return tick * TICK_MILLIS;
+            }
         }
+        return -1;  // we can't actually get here, because count is non-zero...
+    }
+
 
-        // clear all the expired timeouts off the beginning of the list...
-        if( i > 0)
-            LOGGER.finest( "Deleting " + i + " timeouts" );
-        timeouts.subList( 0, i ).clear();
+    /**
+     * Put the given timeout into the slot for its expiration tick, or into the slot for the next tick to be processed if it is already due.
+     *
+     * @param _timeout The timeout to insert.
+     */
+    private void insert( final AbstractTimeout _timeout ) {
+
+        _timeout.deadlineTick = _timeout.getExpiration() / TICK_MILLIS;
+        int slot = (int)(Math.max( _timeout.deadlineTick, lastTick + 1 ) & SLOT_MASK);
+
+        // if its slot comes up before the first one we knew might not be empty, it's the new first one...
+        long tick = lastTick + 1 + ((slot - (lastTick + 1)) & SLOT_MASK);
+        nextTick = Math.min( nextTick, tick );
+
+        // link it in at the head of the slot's list...
+        _timeout.slot     = slot;
+        _timeout.previous = null;
+        _timeout.next     = wheel[slot];
+        if( wheel[slot] != null )
+            wheel[slot].previous = _timeout;
+        wheel[slot] = _timeout;
+        count++;
+    }
+
+
+    /**
+     * Remove the given timeout from the wheel, if it is in the wheel.
+     *
+     * @param _timeout The timeout to remove.
+     */
+    private void unlink( final AbstractTimeout _timeout ) {
+
+        // if it's not in the wheel, there's nothing to do...
+        if( _timeout.slot < 0 )
+            return;
+
+        if( _timeout.previous != null )
+            _timeout.previous.next = _timeout.next;
+        else
+            wheel[_timeout.slot] = _timeout.next;
+        if( _timeout.next != null )
+            _timeout.next.previous = _timeout.previous;
+
+        _timeout.slot     = -1;
+        _timeout.next     = null;
+        _timeout.previous = null;
+        count--;
     }
 }
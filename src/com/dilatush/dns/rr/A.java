@@ -169,6 +169,24 @@ public class A extends DNSResourceRecord {
     }
 
 
+    /**
+     * Returns a new {@link DNSResourceRecord} instance, a clone of this instance except with the given time-to-live (TTL).  If the new TTL is the same as the existing TTL,
+     * this instance is returned.
+     *
+     * @param _ttl The new TTL (in seconds).
+     * @return A new {@link DNSResourceRecord} instance, a clone of this instance except with the given TTL.
+     */
+    @Override
+    public DNSResourceRecord changeTTLTo( final long _ttl ) {
+
+        // if the TTL is already the same as the given TTL, just return ourselves...
+        if( _ttl == ttl )
+            return this;
+
+        return new A( name, klass, _ttl, dataLength, address );
+    }
+
+
     /**
      * Return a string representing this instance.
      *
@@ -27,6 +27,12 @@ public abstract class DNSResourceRecord {
     private static final Outcome.Forge<? extends DNSResourceRecord> outcome       = new Outcome.Forge<>();
     private static final Outcome.Forge<?>                           encodeOutcome = new Outcome.Forge<>();
 
+    /** The estimated heap size (in bytes) of the fields in this base class: the object header, three references, two longs, and an int. */
+    protected static final int RR_HEADER_SIZE   = 48;
+
+    /** The estimated heap size (in bytes) of the overhead of one object holding resource data (an object header and an array header). */
+    protected static final int RR_DATA_OVERHEAD = 32;
+
 
     /** The name of the node to which this resource record pertains (the owner) */
     public final DNSDomainName name;
@@ -243,6 +249,29 @@ public abstract class DNSResourceRecord {
     }
 
 
+    /**
+     * Returns a rough estimate of the number of bytes of heap that this resource record occupies, including its domain name and its resource data.  This is what
+     * {@link com.dilatush.dns.misc.DNSCache DNSCache} uses to account for the memory its records consume, so that (for instance) a large TXT record counts for more than an A
+     * record.  The estimate assumes a 64 bit JVM with compressed object pointers.
+     *
+     * @return the estimated number of bytes of heap that this resource record occupies.
+     */
+    public int estimatedSize() {
+        return RR_HEADER_SIZE + name.estimatedSize() + estimatedDataSize();
+    }
+
+
+    /**
+     * Returns a rough estimate of the number of bytes of heap that this resource record's data occupies, not including the fields in this base class.  By default this is the
+     * resource data length plus the overhead of one object holding it; subclasses whose data is held in domain names or lists override this.
+     *
+     * @return the estimated number of bytes of heap that this resource record's data occupies.
+     */
+    protected int estimatedDataSize() {
+        return RR_DATA_OVERHEAD + dataLength;
+    }
+
+
     /**
      * Returns {@code true} if the given {@link DNSResourceRecord} has the same resource data as this record.
      *
@@ -262,6 +291,16 @@ public abstract class DNSResourceRecord {
     public abstract DNSResourceRecord changeNameTo( final DNSDomainName _dn );
 
 
+    /**
+     * Returns a new {@link DNSResourceRecord} instance, a clone of this instance except with the given time-to-live (TTL).  If the new TTL is the same as the existing TTL,
+     * this instance is returned.
+     *
+     * @param _ttl The new TTL (in seconds).
+     * @return A new {@link DNSResourceRecord} instance, a clone of this instance except with the given TTL.
+     */
+    public abstract DNSResourceRecord changeTTLTo( final long _ttl );
+
+
     /**
      * Return a string representing this instance.
      *
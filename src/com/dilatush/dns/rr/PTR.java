@@ -157,6 +157,35 @@ public class PTR extends DNSResourceRecord {
     }
 
 
+    /**
+     * Returns a new {@link DNSResourceRecord} instance, a clone of this instance except with the given time-to-live (TTL).  If the new TTL is the same as the existing TTL,
+     * this instance is returned.
+     *
+     * @param _ttl The new TTL (in seconds).
+     * @return A new {@link DNSResourceRecord} instance, a clone of this instance except with the given TTL.
+     */
+    @Override
+    public DNSResourceRecord changeTTLTo( final long _ttl ) {
+
+        // if the TTL is already the same as the given TTL, just return ourselves...
+        if( _ttl == ttl )
+            return this;
+
+        return new PTR( name, klass, _ttl, dataLength, dnPointer );
+    }
+
+
+    /**
+     * Returns a rough estimate of the number of bytes of heap that this resource record's data occupies: the domain name pointed to.
+     *
+     * @return the estimated number of bytes of heap that this resource record's data occupies.
+     */
+    @Override
+    protected int estimatedDataSize() {
+        return dnPointer.estimatedSize();
+    }
+
+
     /**
      * Return a string representing this instance.
      *
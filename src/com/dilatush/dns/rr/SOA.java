@@ -243,6 +243,35 @@ public class SOA extends DNSResourceRecord {
     }
 
 
+    /**
+     * Returns a new {@link DNSResourceRecord} instance, a clone of this instance except with the given time-to-live (TTL).  If the new TTL is the same as the existing TTL,
+     * this instance is returned.
+     *
+     * @param _ttl The new TTL (in seconds).
+     * @return A new {@link DNSResourceRecord} instance, a clone of this instance except with the given TTL.
+     */
+    @Override
+    public DNSResourceRecord changeTTLTo( final long _ttl ) {
+
+        // if the TTL is already the same as the given TTL, just return ourselves...
+        if( _ttl == ttl )
+            return this;
+
+        return new SOA( name, klass, _ttl, dataLength, mname, rname, serial, refresh, retry, expire, minimum );
+    }
+
+
+    /**
+     * Returns a rough estimate of the number of bytes of heap that this resource record's data occupies: the five 32 bit values (held in longs) and the two domain names.
+     *
+     * @return the estimated number of bytes of heap that this resource record's data occupies.
+     */
+    @Override
+    protected int estimatedDataSize() {
+        return 40 + mname.estimatedSize() + rname.estimatedSize();
+    }
+
+
     /**
      * Return a string representing this instance.
      *
@@ -196,7 +196,7 @@ public class TXT extends DNSResourceRecord {
             _msgBuffer.put( (byte) src.remaining() );
 
             // encode the actual bytes...
-            _msgBuffer.put( src.array() );
+            _msgBuffer.put( src.duplicate() );
         }
 
         // if we got here, then all is well...
@@ -238,6 +238,41 @@ public class TXT extends DNSResourceRecord {
     }
 
 
+    /**
+     * Returns a new {@link DNSResourceRecord} instance, a clone of this instance except with the given time-to-live (TTL).  If the new TTL is the same as the existing TTL,
+     * this instance is returned.
+     *
+     * @param _ttl The new TTL (in seconds).
+     * @return A new {@link DNSResourceRecord} instance, a clone of this instance except with the given TTL.
+     */
+    @Override
+    public DNSResourceRecord changeTTLTo( final long _ttl ) {
+
+        // if the TTL is already the same as the given TTL, just return ourselves...
+        if( _ttl == ttl )
+            return this;
+
+        return new TXT( name, klass, _ttl, dataLength, data, ascii );
+    }
+
+
+    /**
+     * Returns a rough estimate of the number of bytes of heap that this resource record's data occupies: the two lists, and for each "string" both its buffer and its
+     * decoded ASCII string.
+     *
+     * @return the estimated number of bytes of heap that this resource record's data occupies.
+     */
+    @Override
+    protected int estimatedDataSize() {
+
+        // the two lists (~56 bytes each), then each buffer (~64 bytes plus the data) and string (~40 bytes plus the characters)...
+        int size = 112;
+        for( ByteBuffer buffer : data )
+            size += 112 + 2 * buffer.capacity();
+        return size;
+    }
+
+
     /**
      * Return a string representing this instance.
      *